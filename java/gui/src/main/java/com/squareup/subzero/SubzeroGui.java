@@ -15,6 +15,9 @@ import com.squareup.subzero.proto.service.Service;
 import com.squareup.subzero.proto.service.Service.CommandRequest;
 import com.squareup.subzero.proto.service.Service.CommandResponse;
 import com.squareup.subzero.proto.wallet.WalletProto;
+import com.squareup.subzero.shared.QrCompression;
+import com.squareup.subzero.shared.QrFrames;
+import com.squareup.subzero.shared.QrPayload;
 import com.squareup.subzero.shared.SubzeroUtils;
 
 import java.io.*;
@@ -127,12 +130,16 @@ public class SubzeroGui {
   }
 
   private void debugMode() throws Exception {
-    byte[] rawCmd = base64().decode(debug);
-    CommandRequest commandRequest = CommandRequest.parseFrom(rawCmd);
+    QrPayload.Encoding encoding = QrPayload.detect(debug);
+    byte[] payload = QrPayload.decode(debug);
+    int compression = QrCompression.version(payload);
+    CommandRequest commandRequest =
+        SubzeroUtils.parseCommandRequest(QrCompression.decompress(payload));
 
     InternalCommandConnector conn = makeInternalCommandConnector();
     CommandResponse commandResponse = CommandHandler.dispatch(this, conn, commandRequest);
-    String response = base64().encode(commandResponse.toByteArray());
+    String response = QrPayload.encode(
+        QrCompression.compress(commandResponse.toByteArray(), compression), encoding);
 
     // Pretty print the response
     String debugString = TextFormat.shortDebugString(commandResponse);
@@ -159,17 +166,28 @@ public class SubzeroGui {
       while (true) {
         String input = screens.readQRCode();
 
-        byte[] proto = base64().decode(input);
+        // The response is encoded and compressed like the request, which tells us what the server
+        // can read.
+        QrPayload.Encoding encoding = QrPayload.detect(input);
+        byte[] payload = QrPayload.decode(input);
+        int compression = QrCompression.version(payload);
 
-        CommandRequest commandRequest = CommandRequest.parseFrom(proto);
+        CommandRequest commandRequest =
+            SubzeroUtils.parseCommandRequest(QrCompression.decompress(payload));
 
         CommandResponse response =
             CommandHandler.dispatch(this, makeInternalCommandConnector(), commandRequest);
         System.out.println(response.toString());
 
-        String encoded = base64().encode(response.toByteArray());
-
-        Screens.ExitOrRestartOrPowerOff command = screens.displayQRCode(encoded);
+        byte[] responseBytes = QrCompression.compress(response.toByteArray(), compression);
+        Screens.ExitOrRestartOrPowerOff command;
+        if (responseBytes.length <= encoding.getMaxProtoBytes()) {
+          command = screens.displayQRCode(QrPayload.encode(responseBytes, encoding));
+        } else {
+          // e.g. many signatures. Split the response over a sequence of QR codes.
+          command = screens.displayQRCodes(
+              new QrFrames.Encoder(responseBytes, QrFrames.maxFrameBytes(encoding)), encoding);
+        }
         if (command == Screens.ExitOrRestartOrPowerOff.Exit) {
           return;
         } else if (command == Screens.ExitOrRestartOrPowerOff.PowerOff){
@@ -363,7 +381,7 @@ public class SubzeroGui {
 
         byte[] proto = base64().decode(request);
 
-        CommandRequest commandRequest = CommandRequest.parseFrom(proto);
+        CommandRequest commandRequest = SubzeroUtils.parseCommandRequest(proto);
         // If the filename for the test vector has a "negative" then it's
         // expected that subzero core will return an error code.
         // These test vectors are handcrafted. Like the `bad_qr_signature` one was crafted
@@ -15,6 +15,7 @@ import com.squareup.subzero.proto.service.Internal.InternalCommandRequest;
 import com.squareup.subzero.proto.service.Internal.InternalCommandResponse;
 import com.squareup.subzero.proto.service.Service.CommandRequest;
 import com.squareup.subzero.proto.service.Service.CommandResponse;
+import com.squareup.subzero.shared.SubzeroUtils;
 import com.squareup.subzero.proto.wallet.WalletProto.Wallet;
 import java.io.IOException;
 import java.text.DecimalFormat;
@@ -35,7 +36,9 @@ public class SignTx {
     // it accordingly.
     Service.CommandRequest command_request = request;
     if(isSerializedCommand){
-      command_request = Service.CommandRequest.parseFrom(request.getSerializedCommandRequest().toByteArray());
+      // Parsed in place: the ByteStrings of command_request are views of the serialized bytes,
+      // which are forwarded to core as is.
+      command_request = SubzeroUtils.parseCommandRequest(request.getSerializedCommandRequest());
     }
     if (Strings.isNullOrEmpty(subzero.debug)) {
       // Compute amount being sent
@@ -279,10 +279,25 @@ public class Framebuffer {
    * @param size font size, like framebuffer.text()
    * @param yOffset Y offset, like framebuffer.text()
    * @param password Should I echo or use * to show input?
-   * @return The string the user typed
+   * @return The string the user typed, without whitespace
    * @throws IOException From reading input
    */
   public String prompt(int size, int yOffset, boolean password) throws IOException {
+    return prompt(size, yOffset, password, false);
+  }
+
+  /**
+   * Prompt for a string
+   *
+   * @param size font size, like framebuffer.text()
+   * @param yOffset Y offset, like framebuffer.text()
+   * @param password Should I echo or use * to show input?
+   * @param keepSpaces Should spaces be kept? e.g. they are part of Base45 payloads.
+   * @return The string the user typed
+   * @throws IOException From reading input
+   */
+  public String prompt(int size, int yOffset, boolean password, boolean keepSpaces)
+      throws IOException {
     if (password) {
       this.flip(); // draw prompt to the framebuffer
       return new String(System.console().readPassword());
@@ -311,7 +326,9 @@ public class Framebuffer {
         }
       } else if (read == NEWLINE || read == CARRIAGE) {
         // Strip whitespace and return if the buffer is nonempty.
-        input = input.replaceAll("\\s+", "");
+        if (!keepSpaces) {
+          input = input.replaceAll("\\s+", "");
+        }
         if (input.length() > 0) {
           return input;
         }
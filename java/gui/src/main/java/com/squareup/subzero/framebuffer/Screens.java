@@ -5,6 +5,8 @@ import com.google.zxing.WriterException;
 import com.google.zxing.client.j2se.MatrixToImageWriter;
 import com.google.zxing.common.BitMatrix;
 import com.google.zxing.qrcode.QRCodeWriter;
+import com.squareup.subzero.shared.QrFrames;
+import com.squareup.subzero.shared.QrPayload;
 import java.awt.Color;
 import java.awt.FontMetrics;
 import java.awt.Graphics2D;
@@ -15,6 +17,8 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 
+import static java.lang.String.format;
+
 /**
  * Screens has methods for user interaction.  It handles the layout on screen and manages getting
  * input from the users.
@@ -26,6 +30,9 @@ public class Screens {
   // Margin we generally preserve at the edge of the screen.
   private static final int margin = 32;
 
+  // How long each frame of a QR code sequence is displayed.
+  private static final int QR_FRAME_INTERVAL_MS = 500;
+
   public Screens(Framebuffer framebuffer, String teamName) {
     this.framebuffer = framebuffer;
     this.teamName = teamName;
@@ -102,8 +109,11 @@ public class Screens {
   }
 
   /**
-   * Prompt for a QR code
-   * @return the data from a scanned QR Code (or just typed in...)
+   * Prompt for a QR code. If it's a frame of a sequence (see QrFrames), keeps prompting until the
+   * sequence is reassembled. A frame of another sequence starts over with that sequence, and a QR
+   * code which isn't a frame is returned as is, so an abandoned sequence doesn't get in the way.
+   * @return the data from a scanned QR Code (or just typed in...), or the reassembled sequence,
+   *         as a single payload in the encoding of its frames.
    */
   public String readQRCode() throws IOException {
     String instructions = "Please scan the QR-Code using the red scanner";
@@ -112,7 +122,45 @@ public class Screens {
       baseScreenLayout(graphics,"Scan QR Code", instructions, Color.white)
     );
 
-    return framebuffer.prompt(12, 250, false);
+    // The frames can be scanned in any order, and some of them can be missed.
+    String input = readPayload();
+    QrFrames.Decoder decoder = new QrFrames.Decoder();
+    int offset = 200;
+    while (QrFrames.isFrame(input)) {
+      boolean complete;
+      try {
+        complete = decoder.receive(input);
+      } catch (IllegalArgumentException e) {
+        // Either a bad scan, or a frame of another sequence. Start over with the latter.
+        QrFrames.Decoder restarted = new QrFrames.Decoder();
+        try {
+          complete = restarted.receive(input);
+        } catch (IllegalArgumentException invalid) {
+          framebuffer.text("That wasn't a valid QR-Code. Keep scanning.", 18, offset);
+          input = readPayload();
+          continue;
+        }
+        decoder = restarted;
+      }
+      if (complete) {
+        return QrPayload.encode(decoder.getProto(), QrPayload.detect(input.substring(1)));
+      }
+      framebuffer.text(format("Scanned %d of %d. Keep scanning the QR-Codes.",
+          decoder.getReceivedCount(), decoder.getFragmentCount()), 18, offset);
+      input = readPayload();
+    }
+    return input;
+  }
+
+  private String readPayload() throws IOException {
+    // Spaces are part of Base45 payloads, but not of base64 ones. Whitespace is removed from the
+    // latter, as it always was.
+    String input = framebuffer.prompt(12, 250, false, true);
+    String payload = QrFrames.isFrame(input) ? input.substring(1) : input;
+    if (QrPayload.detect(payload) == QrPayload.Encoding.BASE45) {
+      return input;
+    }
+    return input.replaceAll("\\s+", "");
   }
 
   /**
@@ -203,7 +251,9 @@ public class Screens {
 
   /**
    * Display a QR Code, and ask what to do next (exit or restart)
-   * @param encodedData The data to put in the QR code
+   * @param encodedData The data to put in the QR code. A Base45 payload (see QrPayload) only uses
+   *                    alphanumeric characters, which the QR code writer encodes in the denser
+   *                    alphanumeric mode.
    * @return A string, either "exit" or "restart", from the user
    * @throws IOException
    * @throws WriterException
@@ -218,36 +268,118 @@ public class Screens {
 
     framebuffer.draw((Graphics2D g) -> {
       baseScreenLayout(g, "QR Code Output", message, Color.white);
+      drawQRCode(g, encodedData);
+    });
+
+    return promptExitOrRestartOrPowerOff();
+  }
+
+  /**
+   * Display a sequence of QR Codes, for data which doesn't fit in a single one, and ask what to do
+   * next (exit or restart). The frames advance automatically until the user answers.
+   * @param frames The data, split into frames.
+   * @param encoding The encoding of the frames.
+   * @return A string, either "exit" or "restart", from the user
+   * @throws IOException
+   */
+  public ExitOrRestartOrPowerOff displayQRCodes(QrFrames.Encoder frames,
+      QrPayload.Encoding encoding) throws IOException {
+
+    System.out.println(format("Displaying QR code sequence. Fragments: %d",
+        frames.getFragmentCount()));
+
+    String message = "We are done. Please scan the following QR-codes with the blue scanner.\n"
+            + "They change by themselves. Keep scanning until all of them are read.\n"
+            + "Then type 'exit' + <enter> or 'restart' + <enter>.\n"
+            + "To turn off the machine type 'poweroff' + <enter>.";
 
-      // Draw the QR Code
-      QRCodeWriter qrCodeWriter = new QRCodeWriter();
-      BitMatrix matrix;
+    String first = frames.payload(1, encoding);
+    framebuffer.draw((Graphics2D g) -> {
+      baseScreenLayout(g, "QR Code Output", message, Color.white);
+      drawQRCode(g, first);
+    });
+
+    QRCodeSequence sequence = new QRCodeSequence(frames, encoding);
+    sequence.start();
+    try {
+      return promptExitOrRestartOrPowerOff();
+    } finally {
+      sequence.interrupt();
       try {
-        matrix = qrCodeWriter.encode(encodedData, BarcodeFormat.QR_CODE, 1, 1);
-      } catch (WriterException w) {
-        throw new RuntimeException(w);
+        // Don't let a last frame be drawn over the next screen.
+        sequence.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
       }
-      BufferedImage img = MatrixToImageWriter.toBufferedImage(matrix);
+    }
+  }
 
-      // aim to have the QR code fill 50% of the screen height
-      int scale = (framebuffer.getHeight() / 2) / img.getHeight();
-      if (scale < 1) {
-        scale = 1;
-      }
-      if (scale > 4) {
-        scale = 4;
+  /**
+   * Draws the following frames of a sequence, in place of the previous one, until interrupted.
+   * All the frames have the same size, so they all cover the same area.
+   */
+  private class QRCodeSequence extends Thread {
+    private final QrFrames.Encoder frames;
+    private final QrPayload.Encoding encoding;
+
+    QRCodeSequence(QrFrames.Encoder frames, QrPayload.Encoding encoding) {
+      this.frames = frames;
+      this.encoding = encoding;
+      setDaemon(true);
+    }
+
+    public void run() {
+      // The fountain coded frames are endless, so a missed frame doesn't need to come around.
+      for (int seq = 2; seq > 0; seq++) {
+        try {
+          Thread.sleep(QR_FRAME_INTERVAL_MS);
+        } catch (InterruptedException e) {
+          // Exit this thread when we get interrupted.
+          return;
+        }
+        String payload = frames.payload(seq, encoding);
+        framebuffer.draw((Graphics2D g) -> drawQRCode(g, payload));
+        try {
+          framebuffer.flip();
+        } catch (IOException exception) {
+          // Log and continue, like the framebuffer's own refresh.
+          System.out.println("Error drawing QR code sequence");
+          System.out.println(exception.toString());
+        }
       }
+    }
+  }
 
-      AffineTransform at = new AffineTransform();
-      at.scale(scale, scale);
-      AffineTransformOp scaleOp =
-          new AffineTransformOp(at, AffineTransformOp.TYPE_NEAREST_NEIGHBOR);
+  private void drawQRCode(Graphics2D g, String encodedData) {
+    QRCodeWriter qrCodeWriter = new QRCodeWriter();
+    BitMatrix matrix;
+    try {
+      matrix = qrCodeWriter.encode(encodedData, BarcodeFormat.QR_CODE, 1, 1);
+    } catch (WriterException w) {
+      throw new RuntimeException(w);
+    }
+    BufferedImage img = MatrixToImageWriter.toBufferedImage(matrix);
 
-      g.drawImage(img, scaleOp,
-          framebuffer.getWidth()/2 - (scale*img.getWidth())/2,
-          framebuffer.getHeight()/2 - (scale*img.getHeight())/2);
-    });
+    // aim to have the QR code fill 50% of the screen height
+    int scale = (framebuffer.getHeight() / 2) / img.getHeight();
+    if (scale < 1) {
+      scale = 1;
+    }
+    if (scale > 4) {
+      scale = 4;
+    }
+
+    AffineTransform at = new AffineTransform();
+    at.scale(scale, scale);
+    AffineTransformOp scaleOp =
+        new AffineTransformOp(at, AffineTransformOp.TYPE_NEAREST_NEIGHBOR);
+
+    g.drawImage(img, scaleOp,
+        framebuffer.getWidth()/2 - (scale*img.getWidth())/2,
+        framebuffer.getHeight()/2 - (scale*img.getHeight())/2);
+  }
 
+  private ExitOrRestartOrPowerOff promptExitOrRestartOrPowerOff() throws IOException {
     int offset = framebuffer.getHeight() - 60;
     framebuffer.text("Type 'exit' or 'restart' or 'poweroff'", 18, offset);
     while (true) {
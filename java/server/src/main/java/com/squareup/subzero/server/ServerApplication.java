@@ -34,7 +34,8 @@ public class ServerApplication extends Application<ServerConfiguration> {
         jersey.register(new AssetsResource());
         jersey.register(new ConstantsResource());
         jersey.register(new PrettyPrintResource());
-        jersey.register(new GenerateQrCodeResource());
+        jersey.register(new GenerateQrCodeResource(configuration.getQrEncoding(),
+            configuration.getQrCompression()));
         jersey.register(new ComputeResource());
         jersey.register(new ShowFinalTransactionResource());
         jersey.register(new ServerExceptionMapper());
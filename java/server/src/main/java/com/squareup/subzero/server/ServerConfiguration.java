@@ -1,6 +1,30 @@
 package com.squareup.subzero.server;
 
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.squareup.subzero.shared.QrCompression;
+import com.squareup.subzero.shared.QrPayload;
 import io.dropwizard.Configuration;
 
 public class ServerConfiguration extends Configuration {
+  /**
+   * Encoding of the QR codes generated for the GUI. The GUI responds in the same encoding. BASE45
+   * QR codes hold about 30% more than BASE64 ones, but need a GUI which supports them.
+   */
+  @JsonProperty
+  private QrPayload.Encoding qrEncoding = QrPayload.Encoding.BASE64;
+
+  /**
+   * Compression version of the QR codes generated for the GUI (see QrCompression), or 0 for none.
+   * The GUI responds with the same version.
+   */
+  @JsonProperty
+  private int qrCompression = QrCompression.NONE;
+
+  public QrPayload.Encoding getQrEncoding() {
+    return qrEncoding;
+  }
+
+  public int getQrCompression() {
+    return qrCompression;
+  }
 }
@@ -1,7 +1,6 @@
 package com.squareup.subzero.server.resources;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
-import com.google.common.io.BaseEncoding;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.zxing.BarcodeFormat;
@@ -12,6 +11,7 @@ import com.squareup.subzero.proto.service.Common;
 import com.squareup.subzero.proto.service.Internal;
 import com.squareup.subzero.proto.service.Service;
 import com.squareup.subzero.shared.Constants;
+import java.util.ArrayList;
 import java.util.List;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.GET;
@@ -21,14 +21,17 @@ import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
 
+import com.squareup.subzero.shared.QrFrames;
+import com.squareup.subzero.shared.QrCompression;
+import com.squareup.subzero.shared.QrPayload;
 import com.squareup.subzero.shared.QrSigner;
 import org.bouncycastle.util.encoders.Hex;
 
 import static java.lang.String.format;
 
 /**
- * Creates various QR codes. Also returns the base64-encoded data, which allows copy-pasting in
- * development.
+ * Creates various QR codes. Also returns the encoded data (see QrPayload), which allows
+ * copy-pasting in development.
  *
  * Uses the same underlying QR-code library as the GUI.
  */
@@ -40,9 +43,29 @@ public class GenerateQrCodeResource {
     public String data;
     public int size;
     public boolean[] pixels;
+    // Set when data doesn't fit in a single QR code: the QR codes to display in turn instead.
+    public List<QrCode> frames;
   }
 
+  // Sign with a known dev key. This is for testing only.
+  // This needs to be in sync with the public key(QR_PUBKEY) in config.h on the
+  // subzero core side. QrSigner is thread safe, so requests share it.
+  private static final QrSigner SIGNER = new QrSigner(
+      Hex.decode("3d9b97530af1d91e1d818c9498d8a53d9b97530af1d91e1d818c9498d8a59fe3"));
 
+  /** The number of fountain coded frames to add, per fragment, to the frames which carry one. */
+  private static final double FRAME_REDUNDANCY = 0.5;
+
+  private final QrPayload.Encoding encoding;
+  private final int compression;
+
+  public GenerateQrCodeResource(QrPayload.Encoding encoding, int compression) {
+    if (!QrCompression.isSupported(compression)) {
+      throw new IllegalArgumentException(format("Unsupported qrCompression %d", compression));
+    }
+    this.encoding = encoding;
+    this.compression = compression;
+  }
 
   @Path("/init-wallet-request")
   @GET
@@ -92,7 +115,7 @@ public class GenerateQrCodeResource {
         Service.CommandRequest.FinalizeWalletRequest.newBuilder();
 
     for (String encPubKey : encPubKeys) {
-      byte[] rawEncPubKey = BaseEncoding.base64().decode(encPubKey);
+      byte[] rawEncPubKey = QrCompression.decode(encPubKey);
       Service.CommandResponse commandResponse = Service.CommandResponse.parseFrom(rawEncPubKey);
       finalizeWalletBuilder.addEncryptedPubKeys(commandResponse.getInitWallet().getEncryptedPubKey());
     }
@@ -146,11 +169,7 @@ public class GenerateQrCodeResource {
     builder.setSignTx(signTxBuilder);
 
     byte [] command_bytes = builder.build().toByteArray();
-    // Sign with a known dev key. This is for testing only.
-    // This needs to be in sync with the public key(QR_PUBKEY) in config.h on the
-    // subzero core side.
-    QrSigner signer = new QrSigner(Hex.decode("3d9b97530af1d91e1d818c9498d8a53d9b97530af1d91e1d818c9498d8a59fe3"));
-    byte [] signature = signer.sign(command_bytes);
+    byte [] signature = SIGNER.sign(command_bytes);
     // flip bits to get an invalid sig and trigger QRSIG_CHECK_FAILED
     // This generates negative_bad_qrsignature vector.
     //signature[63] = (byte) ((Byte.toUnsignedInt(signature[63])) ^ 0xFF);
@@ -164,8 +183,32 @@ public class GenerateQrCodeResource {
   }
 
   protected QrCode generateQrCode(Service.CommandRequest.Builder builder) throws WriterException {
+    // The proto, or its envelope (see QrCompression).
+    byte[] proto = QrCompression.compress(builder.build().toByteArray(), compression);
+    String data = QrPayload.encode(proto, encoding);
+    if (proto.length <= encoding.getMaxProtoBytes()) {
+      return render(data);
+    }
+
+    // Too big for a single QR code. Split it over a sequence of frames, which the GUI reassembles
+    // (see QrFrames). data still has the whole proto, for copy-pasting.
+    QrFrames.Encoder encoder = new QrFrames.Encoder(proto, QrFrames.maxFrameBytes(encoding));
+    int count = encoder.getFragmentCount();
+    List<QrCode> frames = new ArrayList<>();
+    for (int seq = 1; seq <= count + Math.ceil(count * FRAME_REDUNDANCY); seq++) {
+      frames.add(render(encoder.payload(seq, encoding)));
+    }
+    QrCode r = new QrCode();
+    r.data = data;
+    r.size = frames.get(0).size;
+    r.pixels = frames.get(0).pixels;
+    r.frames = frames;
+    return r;
+  }
+
+  private QrCode render(String data) throws WriterException {
     QrCode r = new QrCode();
-    r.data = BaseEncoding.base64().encode(builder.build().toByteArray());
+    r.data = data;
 
     QRCodeWriter qrCodeWriter = new QRCodeWriter();
     BitMatrix matrix = qrCodeWriter.encode(r.data, BarcodeFormat.QR_CODE, 1, 1);
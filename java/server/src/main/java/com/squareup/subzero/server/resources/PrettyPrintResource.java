@@ -3,16 +3,16 @@ package com.squareup.subzero.server.resources;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.util.JsonFormat;
 import com.squareup.subzero.proto.service.Service;
+import com.squareup.subzero.shared.QrCompression;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
 
-import static com.google.common.io.BaseEncoding.base64;
-
 /**
- * Decodes a CommandRequest or CommandResponse base64-encoded protobuf.
+ * Decodes a CommandRequest or CommandResponse protobuf, base64 or Base45 encoded (see QrPayload),
+ * and possibly compressed (see QrCompression).
  *
  * We don't have a way to tell a request from a response apart. We could implement a heuristic (see
  * which fields are present and compare them with what we expect), but this could backfire if
@@ -25,7 +25,7 @@ public class PrettyPrintResource {
   @Path("/request")
   @GET
   public String request(@QueryParam("raw") String raw) throws InvalidProtocolBufferException {
-    byte[] rawBytes = base64().decode(raw);
+    byte[] rawBytes = QrCompression.decode(raw);
     Service.CommandRequest command = Service.CommandRequest.parseFrom(rawBytes);
     String json = JsonFormat.printer().print(command);
     if (command.hasInitWallet()) {
@@ -43,7 +43,7 @@ public class PrettyPrintResource {
   @Path("/response")
   @GET
   public String response(@QueryParam("raw") String raw) throws InvalidProtocolBufferException {
-    byte[] rawBytes = base64().decode(raw);
+    byte[] rawBytes = QrCompression.decode(raw);
     Service.CommandResponse command = Service.CommandResponse.parseFrom(rawBytes);
     String json = JsonFormat.printer().print(command);
     if (command.hasInitWallet()) {
@@ -7,6 +7,7 @@ import com.squareup.subzero.proto.service.Common;
 import com.squareup.subzero.proto.service.Service;
 import com.squareup.subzero.shared.ColdWallet;
 import com.squareup.subzero.shared.Constants;
+import com.squareup.subzero.shared.QrCompression;
 import com.squareup.subzero.shared.SubzeroUtils;
 import java.util.List;
 import javax.ws.rs.GET;
@@ -43,7 +44,7 @@ public class ShowFinalTransactionResource {
     NetworkParameters params = SubzeroUtils.inferNetworkParameters(gateway);
 
     Service.CommandRequest initialSignTxRequest = Service.CommandRequest.parseFrom(
-        BaseEncoding.base64().decode(signTxRequest));
+        QrCompression.decode(signTxRequest));
 
     List<String> addresses = SubzeroUtils.finalizeResponsesToAddresses(finalizeResponses);
 
@@ -51,7 +52,7 @@ public class ShowFinalTransactionResource {
 
     List<List<Common.Signature>> signatures = Lists.newArrayList();
     for (String signTxResponse : signTxResponses) {
-      Service.CommandResponse sig = Service.CommandResponse.parseFrom(BaseEncoding.base64().decode(signTxResponse));
+      Service.CommandResponse sig = Service.CommandResponse.parseFrom(QrCompression.decode(signTxResponse));
       signatures.add(sig.getSignTx().getSignaturesList());
     }
 
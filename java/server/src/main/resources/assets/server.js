@@ -37,6 +37,35 @@ function pretty_print_response() {
   });
 }
 
+// Draws a QR code on a canvas. When the data doesn't fit in a single QR code, the server returns a
+// sequence of frames instead, which are displayed in turn until the canvas is drawn on again.
+function draw_qr_code(canvas, result) {
+  clearInterval(canvas.qr_interval);
+  var frames = result.frames || [result];
+  var n = 0;
+  var draw_next = () => draw_qr_frame(canvas, frames[n++ % frames.length]);
+  draw_next();
+  if (frames.length > 1) {
+    canvas.qr_interval = setInterval(draw_next, 500);
+  }
+}
+
+function draw_qr_frame(canvas, qr) {
+  var r = Math.floor(canvas.width / qr.size);
+  canvas.width = r * qr.size;
+  canvas.height = r * qr.size;
+
+  var ctx = canvas.getContext('2d');
+  var i = 0;
+  for (var x=0; x<qr.size; x++) {
+    for (var y=0; y<qr.size; y++) {
+      if (qr.pixels[i++]) {
+        ctx.fillRect(x * r, y * r, r, r);
+      }
+    }
+  }
+}
+
 function init_wallet_request() {
   $('#init_wallet_response').slideDown();
   $.ajax("/generate-qr-code/init-wallet-request", {
@@ -44,19 +73,7 @@ function init_wallet_request() {
   })
   .done(result => {
     init_wallet_response_data.innerText = result.data;
-    var r = Math.floor(init_wallet_response_qr.width / result.size);
-    init_wallet_response_qr.width = r * result.size;
-    init_wallet_response_qr.height = r * result.size;
-
-    var ctx = init_wallet_response_qr.getContext('2d');
-    var i = 0;
-    for (var x=0; x<result.size; x++) {
-      for (var y=0; y<result.size; y++) {
-        if (result.pixels[i++]) {
-          ctx.fillRect(x * r, y * r, r, r);
-        }
-      }
-    }
+    draw_qr_code(init_wallet_response_qr, result);
   });
 }
 
@@ -76,19 +93,7 @@ function finalize_wallet_request() {
   })
   .done(result => {
     finalize_wallet_response_data.innerText = result.data;
-    var r = Math.floor(finalize_wallet_response_qr.width / result.size);
-    finalize_wallet_response_qr.width = r * result.size;
-    finalize_wallet_response_qr.height = r * result.size;
-
-    var ctx = finalize_wallet_response_qr.getContext('2d');
-    var i = 0;
-    for (var x=0; x<result.size; x++) {
-      for (var y=0; y<result.size; y++) {
-        if (result.pixels[i++]) {
-          ctx.fillRect(x * r, y * r, r, r);
-        }
-      }
-    }
+    draw_qr_code(finalize_wallet_response_qr, result);
     $('#finalize_wallet_response').slideDown();
   });
 }
@@ -154,19 +159,7 @@ function sign_tx_request() {
   })
   .done(result => {
     sign_tx_response_data.innerText = result.data;
-    var r = Math.floor(sign_tx_response_qr.width / result.size);
-    sign_tx_response_qr.width = r * result.size;
-    sign_tx_response_qr.height = r * result.size;
-
-    var ctx = sign_tx_response_qr.getContext('2d');
-    var i = 0;
-    for (var x=0; x<result.size; x++) {
-      for (var y=0; y<result.size; y++) {
-        if (result.pixels[i++]) {
-          ctx.fillRect(x * r, y * r, r, r);
-        }
-      }
-    }
+    draw_qr_code(sign_tx_response_qr, result);
     $('#sign_tx_response').slideDown();
   });
 }
@@ -1,8 +1,10 @@
 package com.squareup.subzero.shared;
 
 import com.google.common.collect.ImmutableMap;
-import java.io.ByteArrayOutputStream;
-import java.util.HashMap;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.Arrays;
 
 import static java.lang.String.format;
 
@@ -19,36 +21,84 @@ import static java.lang.String.format;
  * emit ASCII sequences. We however risk having rendering issues (most QR code rendering libraries
  * take a string instead of a byte buffer as input). We would also need to support an alternate way
  * to manually type the code (for dev/debugging purpose or as a fallback).
+ *
+ * Every 2 bytes are encoded as 3 characters, most significant first. A trailing byte is encoded as
+ * 2 characters. Characters are looked up in tables, and the buffer variants don't allocate, so
+ * large payloads can be streamed through the codec.
  */
 public final class Base45 {
   /** The ordered set of valid Base45 characters as a String. */
   protected static final String CHARSET = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ $%*+-./:";
+  /** The Base45 characters, indexed by value. */
+  private static final char[] ALPHABET = CHARSET.toCharArray();
+  /** The value of each ASCII character, or -1 if it's not a Base45 character. */
+  private static final byte[] VALUES = makeValues();
   /** The reverse-lookup map from Base45 character to Integer value. */
   protected static final ImmutableMap<Character, Integer> REVERSE_CHARSET = makeReverseCharset();
 
+  /**
+   * Constructs the reverse-lookup table.
+   * @return the value of each ASCII character.
+   */
+  private static byte[] makeValues() {
+    byte[] values = new byte[128];
+    Arrays.fill(values, (byte) -1);
+    for (int i = 0; i < ALPHABET.length; i++) {
+      values[ALPHABET[i]] = (byte) i;
+    }
+    return values;
+  }
+
   /**
    * Constructs the reverse-lookup character-to-integer map.
    * @return the reverse-lookup character-to-integer map.
    */
   private static ImmutableMap<Character, Integer> makeReverseCharset() {
-    HashMap<Character, Integer> map = new HashMap<>(CHARSET.length());
-    for (int i = 0; i < CHARSET.length(); i++) {
-      map.put(CHARSET.charAt(i), i);
+    ImmutableMap.Builder<Character, Integer> map = ImmutableMap.builder();
+    for (int i = 0; i < ALPHABET.length; i++) {
+      map.put(ALPHABET[i], i);
     }
-    return ImmutableMap.copyOf(map);
+    return map.build();
   }
 
   /** Everything in this class is static, so don't allow construction. */
   private Base45() {}
 
   /**
-   * Fast reverse lookup using ImmutableMap.
+   * Reverse lookup.
    * @param c the Base45 character to look up.
    * @return the Integer value of the character, in the range [0, 44], or null if the character is
    *         not a member of the Base45 charset.
    */
   protected static Integer indexOf(char c) {
-    return REVERSE_CHARSET.get(c);
+    int value = lookup(c);
+    return value < 0 ? null : value;
+  }
+
+  /**
+   * Fast reverse lookup using a table, without boxing.
+   * @param c the Base45 character to look up.
+   * @return the value of the character, in the range [0, 44], or -1 if the character is not a
+   *         member of the Base45 charset.
+   */
+  private static int lookup(char c) {
+    return c < VALUES.length ? VALUES[c] : -1;
+  }
+
+  /**
+   * @param length the number of bytes to encode.
+   * @return the number of Base45 characters they are encoded as.
+   */
+  public static int encodedLength(int length) {
+    return length / 2 * 3 + length % 2 * 2;
+  }
+
+  /**
+   * @param length the number of Base45 characters to decode.
+   * @return the number of bytes they are decoded as.
+   */
+  public static int decodedLength(int length) {
+    return length / 3 * 2 + (length % 3 == 0 ? 0 : 1);
   }
 
   /**
@@ -57,48 +107,55 @@ public final class Base45 {
    * @return the input encoded as a Base45 string.
    */
   public static String toBase45(byte[] input) {
-    // input expands by approximately a factor of 1.5 (1.5 comes from log(256) / log(45))
-    StringBuilder output = new StringBuilder((int)(input.length * 1.5) + 3);
-    int acc = 0;
-    int counter = 0;
-
-    // consume the input buffer
-    for (int i = 0; i < input.length; i++) {
-      // convert signed byte to unsigned int
-      int inputByte = (input[i] & 0xff);
-      // read 2 bytes at a time
-      acc = (acc << 8) | inputByte;
-      counter++;
-
-      if (counter == 2) {
-        // emit acc and reset
-        int s0 = (acc / 45) / 45;
-        int s1 = (acc / 45) % 45;
-        int s2 = (acc % 45);
-        if (s0 >= 45) {
-          throw new IllegalStateException(format("s0 should be <45, but is %d", s0));
-        }
-        output.append(CHARSET.charAt(s0));
-        output.append(CHARSET.charAt(s1));
-        output.append(CHARSET.charAt(s2));
-
-        acc = 0;
-        counter = 0;
-      }
+    char[] output = new char[encodedLength(input.length)];
+    toBase45(ByteBuffer.wrap(input), CharBuffer.wrap(output));
+    return new String(output);
+  }
+
+  /**
+   * Encodes the remaining bytes of input into output. input's position is advanced to its limit,
+   * and output's position past the encoded characters.
+   * @param input the bytes to encode.
+   * @param output receives the encoded characters.
+   * @throws IllegalArgumentException if output doesn't have encodedLength(input.remaining())
+   *         characters remaining. Nothing is consumed or written in that case.
+   */
+  public static void toBase45(ByteBuffer input, CharBuffer output) {
+    int length = encodedLength(input.remaining());
+    if (output.remaining() < length) {
+      throw new IllegalArgumentException(format("The encoding needs %d chars, %d remaining",
+          length, output.remaining()));
     }
+    try {
+      toBase45(input, (Appendable) output);
+    } catch (IOException e) {
+      // CharBuffer.append doesn't throw IOException, and there's room for every character.
+      throw new AssertionError(e);
+    }
+  }
 
-    if (counter > 0) {
+  /**
+   * Encodes the remaining bytes of input, appending the characters to output. input's position is
+   * advanced to its limit.
+   * @param input the bytes to encode.
+   * @param output receives the encoded characters, e.g. a StringBuilder or a Writer.
+   * @throws IOException if output throws.
+   */
+  public static void toBase45(ByteBuffer input, Appendable output) throws IOException {
+    while (input.remaining() >= 2) {
+      int value = (input.get() & 0xff) << 8 | input.get() & 0xff;
+      int high = value / 45;
+      output.append(ALPHABET[high / 45]);
+      output.append(ALPHABET[high % 45]);
+      output.append(ALPHABET[value % 45]);
+    }
+    if (input.hasRemaining()) {
       // if we blindly emit the last value, we won't be able to tell even from odd length inputs
       // apart. So we emit 2 chars for odd length inputs.
-      int s0 = acc / 45;
-      int s1 = acc % 45;
-      if (s0 >= 45) {
-        throw new IllegalStateException(format("s0 should be <45, but is %d", s0));
-      }
-      output.append(CHARSET.charAt(s0));
-      output.append(CHARSET.charAt(s1));
+      int value = input.get() & 0xff;
+      output.append(ALPHABET[value / 45]);
+      output.append(ALPHABET[value % 45]);
     }
-    return output.toString();
   }
 
   /**
@@ -108,41 +165,70 @@ public final class Base45 {
    * @throws IllegalArgumentException if the input contains invalid characters.
    */
   public static byte[] fromBase45(String input) {
-    // input shrinks by a factor 1.5
-    ByteArrayOutputStream output = new ByteArrayOutputStream((int) (input.length() / 1.5));
-    int acc = 0;
-    int counter = 0;
-
-    // consume the input string
-    for (int i = 0; i < input.length(); i++) {
-      Integer inputValue = indexOf(input.charAt(i));
-      if (inputValue == null) {
-        throw new IllegalArgumentException(format("invalid char (%d) at offset %d", (int)input.charAt(i), i));
+    return fromBase45((CharSequence) input);
+  }
+
+  /**
+   * Decodes Base45 characters, e.g. a slice of a larger payload, back to a byte array.
+   * @param input the Base45 characters.
+   * @return the decoded byte array.
+   * @throws IllegalArgumentException if the input contains invalid characters.
+   */
+  public static byte[] fromBase45(CharSequence input) {
+    byte[] output = new byte[decodedLength(input.length())];
+    fromBase45(input, 0, input.length(), ByteBuffer.wrap(output));
+    return output;
+  }
+
+  /**
+   * Decodes the remaining characters of input into output. input's position is advanced to its
+   * limit, and output's position past the decoded bytes.
+   * @param input the Base45 characters to decode.
+   * @param output receives the decoded bytes.
+   * @throws IllegalArgumentException if output doesn't have decodedLength(input.remaining())
+   *         bytes remaining, or if input contains invalid characters. input's position is left
+   *         unchanged in that case, but part of the bytes may have been written.
+   */
+  public static void fromBase45(CharBuffer input, ByteBuffer output) {
+    int length = decodedLength(input.remaining());
+    if (output.remaining() < length) {
+      throw new IllegalArgumentException(format("The decoding needs %d bytes, %d remaining",
+          length, output.remaining()));
+    }
+    // A CharBuffer's chars are indexed from its position.
+    fromBase45(input, 0, input.remaining(), output);
+    input.position(input.limit());
+  }
+
+  private static void fromBase45(CharSequence input, int start, int end, ByteBuffer output) {
+    int i = start;
+    // consume 3 chars at a time
+    for (; end - i >= 3; i += 3) {
+      int value = (value(input, i) * 45 + value(input, i + 1)) * 45 + value(input, i + 2);
+      if (value > 0xffff) {
+        throw new IllegalStateException(format("s0 should be <256, but is %d", value >> 8));
+      }
+      output.put((byte) (value >> 8));
+      output.put((byte) value);
+    }
+    if (i < end) {
+      int value = value(input, i);
+      if (i + 1 < end) {
+        value = value * 45 + value(input, i + 1);
       }
-      // read 3 chars at a time
-      acc = acc * 45 + inputValue;
-      counter++;
-      if (counter == 3) {
-        // emit acc and reset
-        int s0 = acc / 256;
-        int s1 = acc % 256;
-        if (s0 >= 256) {
-          throw new IllegalStateException(format("s0 should be <256, but is %d", s0));
-        }
-        output.write((byte) s0);
-        output.write((byte) s1);
-
-        acc = 0;
-        counter = 0;
+      if (value >= 256) {
+        throw new IllegalStateException(format("acc should be <256, but is %d", value));
       }
+      output.put((byte) value);
     }
+  }
 
-    if (counter > 0) {
-      if (acc >= 256) {
-        throw new IllegalStateException(format("acc should be <256, but is %d", acc));
-      }
-      output.write((byte) acc);
+  private static int value(CharSequence input, int offset) {
+    char c = input.charAt(offset);
+    int value = lookup(c);
+    if (value < 0) {
+      throw new IllegalArgumentException(format("invalid char (%d) at offset %d", (int) c, offset));
     }
-    return output.toByteArray();
+    return value;
   }
 }
@@ -0,0 +1,123 @@
+package com.squareup.subzero.shared;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.protobuf.ByteString;
+import java.math.BigInteger;
+import java.util.List;
+import javax.annotation.Nullable;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+import org.bouncycastle.math.ec.ECCurve;
+import org.bouncycastle.math.ec.ECFieldElement;
+import org.bouncycastle.math.ec.ECPoint;
+import org.bouncycastle.math.ec.FixedPointCombMultiplier;
+
+/**
+ * A SignatureVerifier which recovers the signer's public key from the signature, and looks it up
+ * among the candidate keys. Each signature costs one multiplication, whichever key made it:
+ * - R is lifted from r, with a square root. The public key is Q = (s*R - e*G) / r, and using -R
+ *   instead of R gives Q' = -(s*R + e*G) / r. So both candidates come from the same two products.
+ * - e/r*G is a fixed-base multiplication, which uses the comb tables bitcoinj precomputes for G.
+ *   s/r*R is the only variable-base multiplication.
+ * - The candidates are normalized together, with a single field inversion, and compared with the
+ *   public key points. Those are cached, so compressed keys aren't decompressed on each call.
+ *
+ * Verifying against each key computes u1*G + u2*Q up to pubkeys.size() times, and
+ * RecoverySignatureVerifier computes one u1*G + u2*R per recovery id it tries (plus building an
+ * ECKey for each), so this is the cheapest way to find the signer. The results are identical to
+ * verifying each key with ECKey.verify, see SignatureVerifierTest. Instances are thread-safe.
+ *
+ * No multiplication tables are precomputed per public key: the only variable-base multiplication
+ * is by R, which is different for every signature, so a table for Q would never be used. The
+ * cache only saves decompressing and normalizing the key points. s/r*R goes through
+ * BouncyCastle's default multiplier for secp256k1 (which uses the GLV endomorphism); nothing here
+ * builds GLV or wNAF tables of its own.
+ */
+public final class CachingRecoveryVerifier implements SignatureVerifier {
+  /** Default number of public keys to keep. */
+  public static final long DEFAULT_MAXIMUM_SIZE = 1_000;
+
+  private static final BigInteger N = ECKey.CURVE.getN();
+  private static final ECPoint G = ECKey.CURVE.getG();
+
+  /** The normalized public key points, by encoded public key. */
+  private final Cache<ByteString, ECPoint> points;
+
+  /**
+   * Creates a verifier keeping up to DEFAULT_MAXIMUM_SIZE public keys.
+   */
+  public CachingRecoveryVerifier() {
+    this(DEFAULT_MAXIMUM_SIZE);
+  }
+
+  /**
+   * Creates a verifier keeping up to maximumSize public keys.
+   * @param maximumSize the maximum number of public keys to keep.
+   * @throws IllegalArgumentException if maximumSize is negative.
+   */
+  public CachingRecoveryVerifier(long maximumSize) {
+    if (maximumSize < 0) {
+      throw new IllegalArgumentException("maximumSize should be non-negative");
+    }
+    this.points = CacheBuilder.newBuilder()
+        .maximumSize(maximumSize)
+        .build();
+  }
+
+  @Override
+  public int signer(List<ECKey> pubkeys, Sha256Hash message, ECKey.ECDSASignature signature) {
+    BigInteger rInverse = signature.r.modInverse(N);
+    BigInteger u1 = message.toBigInteger().multiply(rInverse).mod(N);
+    BigInteger u2 = signature.s.multiply(rInverse).mod(N);
+    ECCurve curve = G.getCurve();
+    BigInteger p = curve.getField().getCharacteristic();
+    ECPoint eG = null;
+    // R's affine x coordinate is below p, so it's either r or r + n (which is only possible when
+    // r + n < p).
+    for (BigInteger x = signature.r; x.compareTo(p) < 0; x = x.add(N)) {
+      ECPoint r = liftX(curve, x);
+      if (r == null) {
+        continue;
+      }
+      if (eG == null) {
+        eG = new FixedPointCombMultiplier().multiply(G, u1);
+      }
+      ECPoint sR = r.multiply(u2);
+      ECPoint[] candidates = {sR.subtract(eG), sR.add(eG).negate()};
+      curve.normalizeAll(candidates);
+      for (int i = 0; i < pubkeys.size(); i++) {
+        ECPoint point = point(pubkeys.get(i));
+        if (point.equals(candidates[0]) || point.equals(candidates[1])) {
+          return i;
+        }
+      }
+    }
+    return -1;
+  }
+
+  private ECPoint point(ECKey key) {
+    ByteString encoded = ByteString.copyFrom(key.getPubKey());
+    ECPoint point = points.getIfPresent(encoded);
+    if (point == null) {
+      // Two threads may race to add the same key. That's harmless: the point is just decoded
+      // twice.
+      point = key.getPubKeyPoint().normalize();
+      points.put(encoded, point);
+    }
+    return point;
+  }
+
+  /**
+   * @return one of the points with affine x coordinate x, or null if there is none.
+   */
+  @Nullable
+  private static ECPoint liftX(ECCurve curve, BigInteger x) {
+    ECFieldElement fx = curve.fromBigInteger(x);
+    ECFieldElement y = fx.square().add(curve.getA()).multiply(fx).add(curve.getB()).sqrt();
+    if (y == null) {
+      return null;
+    }
+    return curve.createPoint(x, y.toBigInteger());
+  }
+}
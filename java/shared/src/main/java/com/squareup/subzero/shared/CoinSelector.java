@@ -0,0 +1,259 @@
+package com.squareup.subzero.shared;
+
+import com.google.common.collect.ImmutableList;
+import com.squareup.subzero.proto.service.Common.Destination;
+import com.squareup.subzero.proto.service.Common.Path;
+import com.squareup.subzero.proto.service.Common.TxInput;
+import com.squareup.subzero.proto.service.Common.TxOutput;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import javax.annotation.Nullable;
+
+import static java.lang.String.format;
+
+/**
+ * Picks the inputs of a transaction, so that both the SignTx request and the responses fit in a
+ * QR code.
+ *
+ * Rather than assuming worst-case inputs (see Constants.INPUTS_COUNT_AT_LEAST), the selector
+ * uses RequestSizeEstimator to compute the exact size of the request for the inputs it picks, and
+ * the worst-case size of the response.
+ *
+ * The fee is the fee rate times the virtual size of the transaction, estimated with worst-case
+ * signatures.
+ */
+public final class CoinSelector {
+  /** Change below this amount isn't worth an output, and is left to the miners. */
+  public static final long DUST_THRESHOLD = 546;
+
+  /** nVersion, nLockTime, the input and output counts (assuming less than 253 each). */
+  static final int TX_OVERHEAD_SIZE = 4 + 4 + 1 + 1;
+  /** The segwit marker and flag, which are witness data. */
+  static final int TX_OVERHEAD_WITNESS_SIZE = 2;
+  /** Outpoint, scriptSig (push of the 34-byte P2WSH program) and nSequence. */
+  static final int INPUT_SIZE = 32 + 4 + 1 + 35 + 4;
+  /**
+   * Item count, empty item for CHECKMULTISIG, two signatures (with the sighash type) and the
+   * 2-of-4 witness script.
+   */
+  static final int INPUT_WITNESS_SIZE =
+      1 + 1 + 2 * (1 + Constants.SIGNATURE_DER_MAX_SIZE) + 1 + (1 + 4 * 34 + 2);
+  /** Amount and P2PKH script. */
+  static final int GATEWAY_OUTPUT_SIZE = 8 + 1 + 25;
+  /** Amount and P2SH script. */
+  static final int CHANGE_OUTPUT_SIZE = 8 + 1 + 23;
+
+  private final ColdWallet wallet;
+  private final double feeRate;
+  private final boolean qrSigned;
+  private final QrPayload.Encoding encoding;
+
+  /**
+   * Same as CoinSelector(wallet, feeRate, qrSigned, encoding), for base64 QR codes.
+   *
+   * @param wallet the wallet the inputs belong to.
+   * @param feeRate the fee rate, in satoshis per virtual byte.
+   * @param qrSigned whether the request is going to be signed for the QR code.
+   */
+  public CoinSelector(ColdWallet wallet, double feeRate, boolean qrSigned) {
+    this(wallet, feeRate, qrSigned, QrPayload.Encoding.BASE64);
+  }
+
+  /**
+   * @param wallet the wallet the inputs belong to.
+   * @param feeRate the fee rate, in satoshis per virtual byte.
+   * @param qrSigned whether the request is going to be signed for the QR code.
+   * @param encoding the encoding of the QR codes. Base45 QR codes carry more inputs.
+   */
+  public CoinSelector(ColdWallet wallet, double feeRate, boolean qrSigned,
+      QrPayload.Encoding encoding) {
+    if (!(feeRate >= 0)) {
+      throw new IllegalArgumentException("feeRate can't be negative");
+    }
+    this.wallet = wallet;
+    this.feeRate = feeRate;
+    this.qrSigned = qrSigned;
+    this.encoding = encoding;
+  }
+
+  /** The inputs and outputs to pass to ColdWallet.startTransaction. */
+  public static final class Selection {
+    private final List<TxInput> inputs;
+    private final List<TxOutput> outputs;
+    private final long fee;
+    private final int requestSize;
+    private final int responseSize;
+
+    private Selection(List<TxInput> inputs, List<TxOutput> outputs, long fee, int requestSize,
+        int responseSize) {
+      this.inputs = ImmutableList.copyOf(inputs);
+      this.outputs = ImmutableList.copyOf(outputs);
+      this.fee = fee;
+      this.requestSize = requestSize;
+      this.responseSize = responseSize;
+    }
+
+    public List<TxInput> getInputs() {
+      return inputs;
+    }
+
+    public List<TxOutput> getOutputs() {
+      return outputs;
+    }
+
+    /** The fee, in satoshis. */
+    public long getFee() {
+      return fee;
+    }
+
+    /** Size of the request, as encoded in the QR code (before base64 or Base45 encoding). */
+    public int getRequestSize() {
+      return requestSize;
+    }
+
+    /** Worst-case size of each response. */
+    public int getResponseSize() {
+      return responseSize;
+    }
+  }
+
+  /**
+   * Selects inputs to pay amount to the gateway. Inputs are picked largest first, which
+   * minimizes the number of inputs (and the fee). Change below DUST_THRESHOLD is added to the
+   * fee.
+   *
+   * @param utxos the candidate inputs.
+   * @param amount the amount to send to the gateway, in satoshis.
+   * @param gatewayPath the path of the gateway output.
+   * @param changePath the path of the change output, if any.
+   * @param token the token which will be passed to startTransaction.
+   * @param localRate the local rate which will be passed to startTransaction.
+   * @return the selection.
+   * @throws IllegalArgumentException if the utxos can't pay the amount, or if the inputs needed
+   *         don't fit in a QR code.
+   */
+  public Selection select(List<TxInput> utxos, long amount, Path gatewayPath, Path changePath,
+      @Nullable String token, @Nullable Double localRate) {
+    if (amount < DUST_THRESHOLD) {
+      throw new IllegalArgumentException(format("amount should be at least %d", DUST_THRESHOLD));
+    }
+    RequestSizeEstimator size = estimator(token, localRate);
+    TxOutput gatewayOutput = output(amount, Destination.GATEWAY, gatewayPath);
+    size.addOutput(gatewayOutput);
+    // The change output's amount is unknown, account for the largest one.
+    size.addOutput(output(Long.MAX_VALUE, Destination.CHANGE, changePath));
+
+    List<TxInput> inputs = new ArrayList<>();
+    long total = 0;
+    for (TxInput utxo : economic(utxos)) {
+      size.addInput(utxo);
+      if (!size.fits(qrSigned, encoding)) {
+        throw new IllegalArgumentException(format(
+            "paying %d requires more than the %d inputs which fit in a QR code", amount,
+            inputs.size()));
+      }
+      inputs.add(utxo);
+      total += utxo.getAmount();
+
+      long feeWithChange = fee(inputs.size(), GATEWAY_OUTPUT_SIZE + CHANGE_OUTPUT_SIZE);
+      long change = total - amount - feeWithChange;
+      if (change >= DUST_THRESHOLD) {
+        TxOutput changeOutput = output(change, Destination.CHANGE, changePath);
+        return selection(inputs, ImmutableList.of(gatewayOutput, changeOutput), feeWithChange,
+            token, localRate);
+      }
+      if (total - amount >= fee(inputs.size(), GATEWAY_OUTPUT_SIZE)) {
+        return selection(inputs, ImmutableList.of(gatewayOutput), total - amount, token,
+            localRate);
+      }
+    }
+    throw new IllegalArgumentException(format("insufficient funds to pay %d", amount));
+  }
+
+  /**
+   * Selects as much value as fits in a single QR code, and sends it (minus the fee) to the
+   * gateway. Inputs are picked largest first; inputs which are worth less than the fee they add
+   * are skipped.
+   *
+   * @param utxos the candidate inputs.
+   * @param gatewayPath the path of the gateway output.
+   * @param token the token which will be passed to startTransaction.
+   * @param localRate the local rate which will be passed to startTransaction.
+   * @return the selection.
+   * @throws IllegalArgumentException if there isn't enough value to pay the fee and a non-dust
+   *         output.
+   */
+  public Selection selectMax(List<TxInput> utxos, Path gatewayPath, @Nullable String token,
+      @Nullable Double localRate) {
+    RequestSizeEstimator size = estimator(token, localRate);
+    size.addOutput(output(Long.MAX_VALUE, Destination.GATEWAY, gatewayPath));
+
+    List<TxInput> inputs = new ArrayList<>();
+    long total = 0;
+    for (TxInput utxo : economic(utxos)) {
+      size.addInput(utxo);
+      if (!size.fits(qrSigned, encoding)) {
+        // Smaller inputs may still fit, but they'd move very little value.
+        break;
+      }
+      inputs.add(utxo);
+      total += utxo.getAmount();
+    }
+    long fee = fee(inputs.size(), GATEWAY_OUTPUT_SIZE);
+    if (total - fee < DUST_THRESHOLD) {
+      throw new IllegalArgumentException("insufficient funds to pay the fee");
+    }
+    return selection(inputs,
+        ImmutableList.of(output(total - fee, Destination.GATEWAY, gatewayPath)), fee, token,
+        localRate);
+  }
+
+  /**
+   * The fee of a transaction with the given number of inputs and total output size.
+   *
+   * @param inputCount the number of inputs.
+   * @param outputsSize the serialized size of the outputs (see GATEWAY_OUTPUT_SIZE and
+   *                    CHANGE_OUTPUT_SIZE).
+   * @return the fee, in satoshis.
+   */
+  public long fee(int inputCount, int outputsSize) {
+    long weight = 4L * (TX_OVERHEAD_SIZE + (long) inputCount * INPUT_SIZE + outputsSize)
+        + TX_OVERHEAD_WITNESS_SIZE + (long) inputCount * INPUT_WITNESS_SIZE;
+    long vsize = (weight + 3) / 4;
+    return (long) Math.ceil(vsize * feeRate);
+  }
+
+  /** Candidates sorted largest first, without the ones which don't pay for themselves. */
+  List<TxInput> economic(List<TxInput> utxos) {
+    long inputFee = fee(1, 0) - fee(0, 0);
+    return utxos.stream()
+        .filter(utxo -> utxo.getAmount() > inputFee)
+        .sorted(Comparator.comparingLong(TxInput::getAmount).reversed())
+        .collect(Collectors.toList());
+  }
+
+  static TxOutput output(long amount, Destination destination, Path path) {
+    return TxOutput.newBuilder()
+        .setAmount(amount)
+        .setDestination(destination)
+        .setPath(path)
+        .build();
+  }
+
+  /** Builds the selection, measuring the actual request. */
+  private Selection selection(List<TxInput> inputs, List<TxOutput> outputs, long fee,
+      @Nullable String token, @Nullable Double localRate) {
+    RequestSizeEstimator size = estimator(token, localRate);
+    inputs.forEach(size::addInput);
+    outputs.forEach(size::addOutput);
+    return new Selection(inputs, outputs, fee, size.requestSize(qrSigned),
+        size.responseSize());
+  }
+
+  private RequestSizeEstimator estimator(@Nullable String token, @Nullable Double localRate) {
+    return new RequestSizeEstimator(
+        wallet.startTransaction(ImmutableList.of(), ImmutableList.of(), token, localRate));
+  }
+}
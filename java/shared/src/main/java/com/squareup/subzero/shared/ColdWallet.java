@@ -1,5 +1,8 @@
 package com.squareup.subzero.shared;
 
+import com.google.protobuf.ByteString;
+import com.squareup.subzero.shared.MultisigScriptCache.MultisigScript;
+import com.squareup.subzero.proto.service.Common.Destination;
 import com.squareup.subzero.proto.service.Common.Path;
 import com.squareup.subzero.proto.service.Common.Signature;
 import com.squareup.subzero.proto.service.Common.TxInput;
@@ -8,26 +11,33 @@ import com.squareup.subzero.proto.service.Service.CommandRequest;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import javax.annotation.Nullable;
 import org.bitcoinj.core.Address;
 import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
 import org.bitcoinj.core.NetworkParameters;
 import org.bitcoinj.core.Sha256Hash;
-import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.Utils;
 import org.bitcoinj.core.VarInt;
 import org.bitcoinj.crypto.DeterministicKey;
 import org.bitcoinj.script.Script;
 import org.bitcoinj.script.ScriptBuilder;
-import org.bitcoinj.script.ScriptChunk;
 import org.bitcoinj.script.ScriptOpCodes;
 
-import static com.squareup.subzero.shared.SubzeroUtils.derivePublicKey;
 import static java.lang.String.format;
 import static org.bitcoinj.crypto.DeterministicKey.deserializeB58;
 
@@ -36,10 +46,19 @@ import static org.bitcoinj.crypto.DeterministicKey.deserializeB58;
  * the cold wallet into the gateway.
  */
 public class ColdWallet {
+  /** nLockTime of the transactions, which is also passed to Subzero in SignTxRequest. */
+  private static final int LOCK_TIME = 0;
+  /** nSequence of the inputs. */
+  private static final int SEQUENCE = 0xfffffffe;
+
   private NetworkParameters params;
   private int walletId;
   private List<DeterministicKey> publicRootKeys;
   private DeterministicKey gateway;
+  private final DerivationCache derivationCache = new DerivationCache();
+  private final MultisigScriptCache scriptCache = new MultisigScriptCache();
+  @Nullable private volatile Executor verificationExecutor;
+  private volatile SignatureVerifier signatureVerifier = RecoverySignatureVerifier.INSTANCE;
 
   /**
    * Constructor for ColdWallet object, used to interact with a cold wallet.
@@ -49,6 +68,7 @@ public class ColdWallet {
    * @param walletId A walletId used by Subzero to identify which wallet to use.
    * @param publicRootKeys The Base58-encoded public keys from wallet initialization.
    * @param gateway The Base58-encoded gateway xpub address.
+   * @throws IllegalArgumentException if there aren't MULTISIG_PARTICIPANTS public keys.
    */
   public ColdWallet(NetworkParameters params, int walletId, List<String> publicRootKeys,
       String gateway) {
@@ -58,6 +78,8 @@ public class ColdWallet {
         .map(key -> deserializeB58(key, params))
         .collect(Collectors.toList());
     this.gateway = deserializeB58(gateway, params);
+    // The addresses and scripts are built from the keys without further checks.
+    SubzeroUtils.checkMultisigParameters(Constants.MULTISIG_THRESHOLD, this.publicRootKeys);
   }
 
   /**
@@ -67,6 +89,7 @@ public class ColdWallet {
    * @param walletId A walletId used by Subzero to identify which wallet to use.
    * @param publicRootKeys The public keys from wallet initialization.
    * @param gateway The gateway public key.
+   * @throws IllegalArgumentException if there aren't MULTISIG_PARTICIPANTS public keys.
    */
   public ColdWallet(NetworkParameters params, int walletId, List<DeterministicKey> publicRootKeys,
       DeterministicKey gateway) {
@@ -74,6 +97,7 @@ public class ColdWallet {
     this.walletId = walletId;
     this.publicRootKeys = publicRootKeys;
     this.gateway = gateway;
+    SubzeroUtils.checkMultisigParameters(Constants.MULTISIG_THRESHOLD, publicRootKeys);
   }
 
   /**
@@ -83,7 +107,185 @@ public class ColdWallet {
    * @return Address that you can send bitcoin to cold storage with.
    */
   public Address address(Path path) {
-    return SubzeroUtils.deriveP2SHP2WSH(params, Constants.MULTISIG_THRESHOLD, publicRootKeys, path);
+    return LegacyAddress.fromScriptHash(params,
+        multisigScript(publicRootKeys, path).getScriptHash());
+  }
+
+  /**
+   * Get the addresses for a contiguous range of indexes, i.e. the addresses for the paths
+   * (isChange, fromIndex) ... (isChange, fromIndex + count - 1).
+   *
+   * The addresses are derived in parallel on the common ForkJoinPool. They are returned in index
+   * order. The derived keys don't go through the leaf cache, so a large range doesn't evict
+   * the addresses used by address(Path).
+   *
+   * @param isChange the is_change component of the paths.
+   * @param fromIndex the first index.
+   * @param count the number of addresses.
+   * @return the addresses, in index order.
+   * @throws IllegalArgumentException if the range is outside [0, 2^31).
+   */
+  public List<Address> addresses(boolean isChange, int fromIndex, int count) {
+    return addressStream(isChange, fromIndex, count).collect(Collectors.toList());
+  }
+
+  /**
+   * Stream variant of addresses(). The stream is parallel and ordered; call sequential() on it to
+   * derive the addresses lazily on the calling thread instead.
+   *
+   * @param isChange the is_change component of the paths.
+   * @param fromIndex the first index.
+   * @param count the number of addresses.
+   * @return a stream of the addresses, in index order.
+   * @throws IllegalArgumentException if the range is outside [0, 2^31).
+   */
+  public Stream<Address> addressStream(boolean isChange, int fromIndex, int count) {
+    return pathRangeStream(isChange, fromIndex, count,
+        publicKeys ->
+            SubzeroUtils.p2shP2wshAddress(params, Constants.MULTISIG_THRESHOLD, publicKeys));
+  }
+
+  /**
+   * Get the 20-byte P2SH script hash for a given derivation path. This is the hash encoded in
+   * address(path), without building the Address.
+   *
+   * @param path The derivation path to use.
+   * @return the 20-byte script hash.
+   */
+  public byte[] scriptHash(Path path) {
+    return multisigScript(publicRootKeys, path).getScriptHash().clone();
+  }
+
+  /**
+   * Get the scriptPubKey for a given derivation path, i.e. the output script which pays to
+   * address(path).
+   *
+   * @param path The derivation path to use.
+   * @return the 23-byte scriptPubKey.
+   */
+  public byte[] scriptPubKey(Path path) {
+    return SubzeroUtils.p2shScriptPubKey(scriptHash(path));
+  }
+
+  /**
+   * Script hash variant of addresses(): returns scriptHash() for a contiguous range of indexes,
+   * derived in parallel.
+   *
+   * @param isChange the is_change component of the paths.
+   * @param fromIndex the first index.
+   * @param count the number of script hashes.
+   * @return the 20-byte script hashes, in index order.
+   * @throws IllegalArgumentException if the range is outside [0, 2^31).
+   */
+  public List<byte[]> scriptHashes(boolean isChange, int fromIndex, int count) {
+    return scriptHashStream(isChange, fromIndex, count).collect(Collectors.toList());
+  }
+
+  /**
+   * Stream variant of scriptHashes(). The stream is parallel and ordered.
+   *
+   * @param isChange the is_change component of the paths.
+   * @param fromIndex the first index.
+   * @param count the number of script hashes.
+   * @return a stream of the 20-byte script hashes, in index order.
+   * @throws IllegalArgumentException if the range is outside [0, 2^31).
+   */
+  public Stream<byte[]> scriptHashStream(boolean isChange, int fromIndex, int count) {
+    return pathRangeStream(isChange, fromIndex, count,
+        publicKeys -> SubzeroUtils.p2shP2wshScriptHash(Constants.MULTISIG_THRESHOLD, publicKeys));
+  }
+
+  private <T> Stream<T> pathRangeStream(boolean isChange, int fromIndex, int count,
+      Function<List<ECKey>, T> mapper) {
+    if (fromIndex < 0) {
+      throw new IllegalArgumentException("fromIndex should be between 0 and 2^31-1");
+    }
+    if (count < 0) {
+      throw new IllegalArgumentException("count should be non-negative");
+    }
+    long end = (long) fromIndex + count;
+    if (end > 1L << 31) {
+      throw new IllegalArgumentException("fromIndex + count should be at most 2^31");
+    }
+    List<DeterministicKey> changeKeys = new ArrayList<>(publicRootKeys.size());
+    for (DeterministicKey publicRootKey : publicRootKeys) {
+      changeKeys.add(derivationCache.deriveChangeKey(publicRootKey, isChange));
+    }
+    return StreamSupport.stream(new PathRangeSpliterator<>(changeKeys, mapper, fromIndex, end),
+        true);
+  }
+
+  /**
+   * The cache used to derive public keys. Exposed so callers can monitor the hit rate.
+   *
+   * @return the DerivationCache used by this wallet.
+   */
+  public DerivationCache getDerivationCache() {
+    return derivationCache;
+  }
+
+  /**
+   * The cache of the witness scripts of the paths, shared by address() and createTransaction().
+   * Exposed so callers can monitor the hit rate.
+   *
+   * @return the MultisigScriptCache used by this wallet.
+   */
+  public MultisigScriptCache getMultisigScriptCache() {
+    return scriptCache;
+  }
+
+  /**
+   * Returns the multisig script of a path, from the cache if publicRootKeys are the wallet's.
+   */
+  private MultisigScript multisigScript(List<DeterministicKey> publicRootKeys, Path path) {
+    Supplier<List<? extends ECKey>> publicKeys = () -> {
+      List<ECKey> derived = new ArrayList<>(publicRootKeys.size());
+      for (DeterministicKey publicRootKey : publicRootKeys) {
+        derived.add(derivationCache.derivePublicKey(publicRootKey, path));
+      }
+      return derived;
+    };
+    if (!publicRootKeys.equals(this.publicRootKeys)) {
+      // The cache is keyed by walletId, so it only holds this wallet's scripts.
+      return new MultisigScript(Constants.MULTISIG_THRESHOLD, publicKeys.get());
+    }
+    return scriptCache.get(walletId, path, publicKeys);
+  }
+
+  /**
+   * Sets the executor createTransaction uses to derive the witness scripts, compute the sighashes
+   * and verify the signatures of the inputs in parallel. The transaction is serialized on the
+   * calling thread, so the result is the same as without an executor.
+   *
+   * @param executor the executor, or null to do everything on the calling thread (the default).
+   */
+  public void setVerificationExecutor(@Nullable Executor executor) {
+    this.verificationExecutor = executor;
+  }
+
+  /**
+   * Sets how createTransaction matches the signatures of each input to the public keys.
+   *
+   * @param verifier the verifier, RecoverySignatureVerifier.INSTANCE by default.
+   */
+  public void setSignatureVerifier(SignatureVerifier verifier) {
+    this.signatureVerifier = verifier;
+  }
+
+  /**
+   * Identifies the wallet's network and public root keys. Files derived from the wallet (e.g.
+   * ScriptHashIndex) store it, so they can't be loaded with the wrong wallet.
+   *
+   * @return the SHA-256 of the network id and the Base58-encoded public root keys.
+   */
+  byte[] fingerprint() {
+    MessageDigest digest = Sha256Hash.newDigest();
+    digest.update(params.getId().getBytes(StandardCharsets.UTF_8));
+    for (DeterministicKey publicRootKey : publicRootKeys) {
+      digest.update((byte) 0);
+      digest.update(publicRootKey.serializePubB58(params).getBytes(StandardCharsets.UTF_8));
+    }
+    return digest.digest();
   }
 
   /**
@@ -99,11 +301,10 @@ public class ColdWallet {
    */
   public CommandRequest startTransaction(List<TxInput> inputs, List<TxOutput> outputs,
       String token, @Nullable Double localRate) {
-    int lockTime = 0;
     CommandRequest.SignTxRequest.Builder signRequestBuilder = CommandRequest.SignTxRequest.newBuilder()
         .addAllInputs(inputs)
         .addAllOutputs(outputs)
-        .setLockTime(lockTime);
+        .setLockTime(LOCK_TIME);
     if (localRate != null) {
         signRequestBuilder.setLocalRate(localRate).setLocalCurrency("USD");
     }
@@ -118,6 +319,24 @@ public class ColdWallet {
         .build();
   }
 
+  /**
+   * Same as startTransaction, and returns a TransactionAssembler which does everything
+   * createTransaction needs besides the signatures up front. Add the signatures of each response
+   * to the assembler as they arrive, the transaction is ready once MULTISIG_THRESHOLD responses
+   * have been added.
+   *
+   * @param inputs the inputs to the transaction.
+   * @param outputs the outputs of the transaction.
+   * @param token a unique token used to uniquely identify this transaction.
+   * @param localRate the current exchange rate in USD per satoshi, or null if not available.
+   * @return the assembler. getRequest() returns the CommandRequest startTransaction returns.
+   */
+  public TransactionAssembler startTransactionAssembler(List<TxInput> inputs,
+      List<TxOutput> outputs, String token, @Nullable Double localRate) {
+    return assembler(startTransaction(inputs, outputs, token, localRate), publicRootKeys, inputs,
+        outputs, gateway, LOCK_TIME, SEQUENCE);
+  }
+
   /**
    * createTransaction takes the responses from all participants and returns a transaction suitable
    * for broadcasting to the network. You must call it with the same inputs and outputs used to
@@ -130,34 +349,145 @@ public class ColdWallet {
    */
   public byte[] createTransaction(List<TxInput> inputs, List<TxOutput> outputs,
       List<List<Signature>> signatures) {
-    int lockTime = 0;
-    int sequence = 0xfffffffe;
     return createWrappedSegwitMultisigTransaction(publicRootKeys, inputs, outputs,
-        gateway, signatures, lockTime, sequence);
+        gateway, signatures, LOCK_TIME, SEQUENCE);
   }
 
   /**
-   * Implement our own trivial Pair class so we don't have to pull in apache's entire commons-lang3 dependency.
+   * Same as createTransaction, writing the transaction at the position of out instead of
+   * returning an array. out can be a direct buffer, e.g. to write the transaction to a channel
+   * without copying it. Its position is advanced past the transaction.
+   *
+   * @param inputs This needs to match the inputs passed to startTransaction.
+   * @param outputs This needs to match the inputs passed to startTransaction.
+   * @param signatures The signatures from the Subzero responses to the startTransaction CommandRequests.
+   * @param out the buffer to write the transaction to.
+   * @return the size of the transaction, in bytes.
+   * @throws IllegalArgumentException if out doesn't have enough space remaining. Nothing is
+   *         written in that case.
    */
-  private static final class Pair<L, R> {
-    private final L left;
-    private final R right;
+  public int createTransaction(List<TxInput> inputs, List<TxOutput> outputs,
+      List<List<Signature>> signatures, ByteBuffer out) {
+    return signTransaction(publicRootKeys, inputs, outputs, gateway, signatures, LOCK_TIME,
+        SEQUENCE).writeTransaction(out);
+  }
 
-    private Pair(L left, R right) {
-      this.left = left;
-      this.right = right;
-    }
+  /**
+   * Same as createTransaction, writing the transaction to a buffer obtained from allocator, e.g.
+   * ByteBuffer::allocateDirect or a pool.
+   *
+   * @param inputs This needs to match the inputs passed to startTransaction.
+   * @param outputs This needs to match the inputs passed to startTransaction.
+   * @param signatures The signatures from the Subzero responses to the startTransaction CommandRequests.
+   * @param allocator called with the exact size of the transaction, returns a buffer with at
+   *                  least that many bytes remaining.
+   * @return the buffer from allocator. Its position is where the transaction starts and its limit
+   *         where it ends, so it's ready to be written to a channel.
+   * @throws IllegalArgumentException if the buffer doesn't have enough space remaining.
+   */
+  public ByteBuffer createTransaction(List<TxInput> inputs, List<TxOutput> outputs,
+      List<List<Signature>> signatures, IntFunction<ByteBuffer> allocator) {
+    TransactionAssembler transaction = signTransaction(publicRootKeys, inputs, outputs, gateway,
+        signatures, LOCK_TIME, SEQUENCE);
+    ByteBuffer out = allocator.apply(transaction.size());
+    int start = out.position();
+    transaction.writeTransaction(out);
+    out.limit(out.position());
+    out.position(start);
+    return out;
+  }
 
-    public static <L, R> Pair<L, R> of(L left, R right) {
-      return new Pair(left, right);
+  /**
+   * Same as createTransaction, and records the transaction in a UtxoStore: the inputs are marked
+   * as spent and the change outputs are added, so they can be used before the transaction is
+   * seen in a block.
+   *
+   * @param inputs This needs to match the inputs passed to startTransaction.
+   * @param outputs This needs to match the inputs passed to startTransaction.
+   * @param signatures The signatures from the Subzero responses to the startTransaction CommandRequests.
+   * @param utxoStore the store the inputs came from.
+   * @return the transaction serialized to a byte array.
+   * @throws IOException if the store can't be updated.
+   */
+  public byte[] createTransaction(List<TxInput> inputs, List<TxOutput> outputs,
+      List<List<Signature>> signatures, UtxoStore utxoStore) throws IOException {
+    byte[] transaction = createTransaction(inputs, outputs, signatures);
+    // The txid doesn't cover the witnesses, so there's no need to parse the transaction.
+    ByteString txid = ByteString.copyFrom(txid(inputs, outputs));
+    utxoStore.markSpent(inputs);
+    List<TxInput> change = new ArrayList<>();
+    for (int i = 0; i < outputs.size(); i++) {
+      TxOutput output = outputs.get(i);
+      if (output.getDestination() == Destination.CHANGE) {
+        change.add(TxInput.newBuilder()
+            .setPrevHash(txid)
+            .setPrevIndex(i)
+            .setAmount(output.getAmount())
+            .setPath(output.getPath())
+            .build());
+      }
     }
+    utxoStore.addAll(change);
+    return transaction;
+  }
 
-    public L getLeft() {
-      return left;
-    }
+  /**
+   * Computes the txid of the transaction createTransaction will return, before it is signed. The
+   * txid doesn't cover the witnesses, and the scriptSig of a P2SH-P2WSH input only depends on its
+   * path, so a transaction can spend the change of another transaction before either is signed.
+   *
+   * @param inputs the inputs to the transaction.
+   * @param outputs the outputs of the transaction.
+   * @return the txid, in the byte order of TxInput.prev_hash.
+   */
+  public byte[] txid(List<TxInput> inputs, List<TxOutput> outputs) {
+    try {
+      // The legacy serialization: nVersion|txins|txouts|nLockTime
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      Utils.uint32ToByteStreamLE(1, out);
+
+      out.write(new VarInt(inputs.size()).encode());
+      for (TxInput input : inputs) {
+        out.write(Utils.reverseBytes(input.getPrevHash().toByteArray()));
+        Utils.uint32ToByteStreamLE(input.getPrevIndex(), out);
+
+        // The scriptSig pushes the P2SH redeem script, i.e. the P2WSH program:
+        // OP_0 <sha256(witness script)>
+        out.write(1 + 2 + 32);
+        out.write(2 + 32);
+        out.write(ScriptOpCodes.OP_0);
+        out.write(32);
+        out.write(multisigScript(publicRootKeys, input.getPath()).getWitnessScriptHash());
+
+        Utils.uint32ToByteStreamLE(SEQUENCE, out);
+      }
 
-    public R getRight() {
-      return right;
+      out.write(new VarInt(outputs.size()).encode());
+      for (TxOutput output : outputs) {
+        Utils.uint64ToByteStreamLE(BigInteger.valueOf(output.getAmount()), out);
+        byte[] dest;
+        switch (output.getDestination()) {
+          case GATEWAY:
+            DeterministicKey to = derivationCache.derivePublicKey(gateway, output.getPath());
+            dest = ScriptBuilder.createOutputScript(
+                Address.fromKey(params, to, Script.ScriptType.P2PKH)).getProgram();
+            break;
+          case CHANGE:
+            dest = scriptPubKey(output.getPath());
+            break;
+          default:
+            throw new IllegalArgumentException(
+                format("unexpected destination: %s", output.getDestination()));
+        }
+        out.write(new VarInt(dest.length).encode());
+        out.write(dest);
+      }
+
+      Utils.uint32ToByteStreamLE(LOCK_TIME, out);
+      return Utils.reverseBytes(Sha256Hash.hashTwice(out.toByteArray()));
+    } catch (IOException e) {
+      // Can't happen: We're writing to a memory stream which won't IOException
+      throw new RuntimeException(e);
     }
   }
 
@@ -190,158 +520,143 @@ public class ColdWallet {
       List<List<Signature>> signatures,
       int lock_time,
       int sequence) {
-    try {
-      if (publicRootKeys.size() != Constants.MULTISIG_PARTICIPANTS) {
-        throw new RuntimeException(format("Expected %d signers", Constants.MULTISIG_PARTICIPANTS));
-      }
-      if (signatures.size() != Constants.MULTISIG_THRESHOLD) {
-        throw new RuntimeException(format("Expected %d signatures", Constants.MULTISIG_THRESHOLD));
-      }
-      for (List<Signature> sig : signatures) {
-        if (sig.size() != inputs.size()) {
-          throw new RuntimeException("Expected signature and input counts to be equal");
-        }
-      }
-
-      // Segwit serialization format:
-      // https://bitcoincore.org/en/segwit_wallet_dev/#transaction-serialization
-      // 1.      |2.    |3.  |4.   |5.    |6.     |7.
-      // nVersion|marker|flag|txins|txouts|witness|nLockTime
-      ByteArrayOutputStream out = new ByteArrayOutputStream();
-
-      // 1. nVersion:
-      Utils.uint32ToByteStreamLE(1, out);
-      // 2. The marker MUST be a 1-byte zero value: 0x00.
-      out.write(0x00);
-      // 3. The flag MUST be a 1-byte non-zero value. Currently, 0x01 MUST be used.
-      out.write(0x01);
-
-      // This uses a LinkedHashMap to preserve insertion order, so the iteration below is in
-      // the same order as the inputs are stored here.
-      List<Pair<List<ECKey>, Script>> witnesses = new ArrayList<>();
-
-      // 4. txins
-      // hashPrevouts is the double SHA256 of the serialization of all input outpoints
-      MessageDigest hashPrevouts = Sha256Hash.newDigest();
-      // hashSequence is the double SHA256 of the serialization of nSequence of all inputs
-      MessageDigest hashSequence = Sha256Hash.newDigest();
-
-      out.write(inputs.size()); // number of inputs
-      for (TxInput input : inputs) {
-        byte[] prevHash = Utils.reverseBytes(input.getPrevHash().toByteArray());
-        Integer prevIndex = input.getPrevIndex();
-        out.write(prevHash);
-        Utils.uint32ToByteStreamLE(prevIndex, out);
-        hashPrevouts.update(prevHash);
-        SubzeroUtils.hashUint32LE(prevIndex, hashPrevouts);
-
-        // serialize the script
-        // Derive the public keys from the roots
-        List<ECKey> publicKeys = new ArrayList<>();
-        for (DeterministicKey publicRootKey : publicRootKeys) {
-          Path path = input.getPath();
-          DeterministicKey publicKey = derivePublicKey(publicRootKey, path);
-          publicKeys.add(publicKey);
-        }
-
-        Script witnessScript =
-            ScriptBuilder.createRedeemScript(2 /* required multisig participants */, publicKeys);
-        witnesses.add(Pair.of(publicKeys, witnessScript));
-        byte[] scriptHash = Sha256Hash.of(witnessScript.getProgram()).getBytes();
-
-        // checkArgument(scriptHash.length == 20);
-        Script redeemScript = new ScriptBuilder()
-            .addChunk(0, new ScriptChunk(ScriptOpCodes.OP_0, null))
-            .data(scriptHash)
-            .build();
-
-        out.write(new VarInt(redeemScript.getProgram().length + 1).encode());
-        out.write(new VarInt(redeemScript.getProgram().length).encode());
-        out.write(redeemScript.getProgram());
+    return signTransaction(publicRootKeys, inputs, outputs, gateway, signatures, lock_time,
+        sequence).getTransaction();
+  }
 
-        Utils.uint32ToByteStreamLE(sequence, out);
-        SubzeroUtils.hashUint32LE(sequence, hashSequence);
+  /**
+   * Assembles a transaction from all the responses at once.
+   *
+   * @return the complete TransactionAssembler.
+   */
+  private TransactionAssembler signTransaction(
+      List<DeterministicKey> publicRootKeys,
+      List<TxInput> inputs,
+      List<TxOutput> outputs,
+      DeterministicKey gateway,
+      List<List<Signature>> signatures,
+      int lock_time,
+      int sequence) {
+    if (signatures.size() != Constants.MULTISIG_THRESHOLD) {
+      throw new RuntimeException(format("Expected %d signatures", Constants.MULTISIG_THRESHOLD));
+    }
+    for (List<Signature> sig : signatures) {
+      if (sig.size() != inputs.size()) {
+        throw new RuntimeException("Expected signature and input counts to be equal");
       }
+    }
+    TransactionAssembler assembler = assembler(null, publicRootKeys, inputs, outputs, gateway,
+        lock_time, sequence);
+    for (List<Signature> sig : signatures) {
+      assembler.addSignatures(sig);
+    }
+    return assembler;
+  }
 
-      // 5. txouts
-      MessageDigest hashOutputs = Sha256Hash.newDigest();
-      out.write(outputs.size()); // number of outputs
-      for (TxOutput output : outputs) {
-        // Each output starts with the amount:
-        Long amount = output.getAmount();
-        Utils.uint64ToByteStreamLE(BigInteger.valueOf(amount), out);
-        SubzeroUtils.hashUint64LE(amount, hashOutputs);
+  /**
+   * Computes everything a transaction needs besides the signatures: the witness scripts, the
+   * sighashes and the serialization of the inputs and outputs.
+   */
+  private TransactionAssembler assembler(
+      @Nullable CommandRequest request,
+      List<DeterministicKey> publicRootKeys,
+      List<TxInput> inputs,
+      List<TxOutput> outputs,
+      DeterministicKey gateway,
+      int lock_time,
+      int sequence) {
+    if (publicRootKeys.size() != Constants.MULTISIG_PARTICIPANTS) {
+      throw new RuntimeException(format("Expected %d signers", Constants.MULTISIG_PARTICIPANTS));
+    }
 
-        Address address;
-        switch (output.getDestination()) {
-          case GATEWAY:
-            DeterministicKey to = derivePublicKey(gateway, output.getPath());
-            address = Address.fromKey(params, to, Script.ScriptType.P2PKH);
-            break;
-          case CHANGE:
-            address = SubzeroUtils.deriveP2SHP2WSH(params, Constants.MULTISIG_THRESHOLD,
-                publicRootKeys, output.getPath());
-            break;
-          default:
-            throw new IllegalStateException("unreachable");
-        }
-        byte[] dest = ScriptBuilder.createOutputScript(address).getProgram();
-        out.write(new VarInt(dest.length).encode());
-        out.write(dest);
-        hashOutputs.update(new VarInt(dest.length).encode());
-        hashOutputs.update(dest);
+    Executor executor = verificationExecutor;
+
+    // Get the witness scripts, which are usually cached already if we derived the addresses. This
+    // is independent for each input, so it can run on the verification executor.
+    List<MultisigScript> witnesses = mapInputs(executor, inputs.size(),
+        i -> multisigScript(publicRootKeys, inputs.get(i).getPath()));
+
+    // hashPrevouts is the double SHA256 of the serialization of all input outpoints
+    MessageDigest hashPrevouts = Sha256Hash.newDigest();
+    // hashSequence is the double SHA256 of the serialization of nSequence of all inputs
+    MessageDigest hashSequence = Sha256Hash.newDigest();
+    for (TxInput input : inputs) {
+      ByteString prevHash = input.getPrevHash();
+      for (int j = prevHash.size() - 1; j >= 0; j--) {
+        hashPrevouts.update(prevHash.byteAt(j));
       }
+      SubzeroUtils.hashUint32LE(input.getPrevIndex(), hashPrevouts);
+      SubzeroUtils.hashUint32LE(sequence, hashSequence);
+    }
 
-      // Double sha256:
-      byte[] prevoutsDoubleSha = Sha256Hash.hash(hashPrevouts.digest());
-      byte[] sequenceDoubleSha = Sha256Hash.hash(hashSequence.digest());
-      byte[] outputsDoubleSha = Sha256Hash.hash(hashOutputs.digest());
-
-      // 6. witness
-      // Each txin is associated with a witness field.
-      for (int i=0; i<witnesses.size(); i++) {
-        Pair<List<ECKey>, Script> witness = witnesses.get(i);
-        byte[] witnessProgram = witness.getRight().getProgram();
-        TxInput input = inputs.get(i);
-
-        byte[] hash = SubzeroUtils.bip0143hash(prevoutsDoubleSha, sequenceDoubleSha, outputsDoubleSha, input,
-            witnessProgram, sequence, lock_time);
+    // hashOutputs is the double SHA256 of the serialization of all outputs
+    MessageDigest hashOutputs = Sha256Hash.newDigest();
+    List<byte[]> outputScripts = new ArrayList<>(outputs.size());
+    for (TxOutput output : outputs) {
+      SubzeroUtils.hashUint64LE(output.getAmount(), hashOutputs);
+
+      byte[] dest;
+      switch (output.getDestination()) {
+        case GATEWAY:
+          DeterministicKey to = derivationCache.derivePublicKey(gateway, output.getPath());
+          dest = ScriptBuilder.createOutputScript(
+              Address.fromKey(params, to, Script.ScriptType.P2PKH)).getProgram();
+          break;
+        case CHANGE:
+          dest = SubzeroUtils.p2shScriptPubKey(
+              multisigScript(publicRootKeys, output.getPath()).getScriptHash());
+          break;
+        default:
+          throw new IllegalStateException("unreachable");
+      }
+      outputScripts.add(dest);
+      hashOutputs.update(new VarInt(dest.length).encode());
+      hashOutputs.update(dest);
+    }
 
-        // Each witness field starts with a compactSize integer to indicate the number of stack
-        // items for the corresponding txin. The stack is as following:
-        // extra 0 for CHECKMULTISIG bug, MULTISIG_THRESHOLD signatures, script
-        out.write(Constants.MULTISIG_THRESHOLD + 2);
+    // Double sha256:
+    byte[] prevoutsDoubleSha = Sha256Hash.hash(hashPrevouts.digest());
+    byte[] sequenceDoubleSha = Sha256Hash.hash(hashSequence.digest());
+    byte[] outputsDoubleSha = Sha256Hash.hash(hashOutputs.digest());
+    SighashContext sighashes = new SighashContext(prevoutsDoubleSha, sequenceDoubleSha,
+        outputsDoubleSha, sequence, lock_time);
 
-        // CHECKMULTISIG bug empty stack item.
-        out.write(0);
+    return new TransactionAssembler(request, inputs, witnesses, outputs, outputScripts,
+        sighashes, lock_time, sequence, executor, signatureVerifier);
+  }
 
-        List<Signature> filteredSignatures = new LinkedList<>();
-        for (List<Signature> sig : signatures) {
-          filteredSignatures.add(sig.get(i));
+  /**
+   * Runs task for each input index, on executor if it isn't null, and returns the results in
+   * input order.
+   */
+  static <T> List<T> mapInputs(@Nullable Executor executor, int count,
+      IntFunction<T> task) {
+    List<T> results = new ArrayList<>(count);
+    if (executor == null) {
+      for (int i = 0; i < count; i++) {
+        results.add(task.apply(i));
+      }
+      return results;
+    }
+    List<CompletableFuture<T>> futures = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      int index = i;
+      futures.add(CompletableFuture.supplyAsync(() -> task.apply(index), executor));
+    }
+    for (CompletableFuture<T> future : futures) {
+      try {
+        results.add(future.join());
+      } catch (CompletionException e) {
+        // Rethrow what the task threw, like the sequential path does.
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
         }
-
-        // We need the signatures sorted in the same order as the public keys.
-        // This function validates the signatures and sorts them.
-        List<byte[]> sortedSigs = SubzeroUtils.validateAndSort(witness.getLeft(), hash, filteredSignatures);
-
-        // Write signatures out. It's length + 1 because of the extra byte for the signature type.
-        for (byte[] sig : sortedSigs) {
-          out.write(new VarInt(sig.length + 1).encode());
-          out.write(sig);
-          out.write(Transaction.SigHash.ALL.value);
+        if (e.getCause() instanceof Error) {
+          throw (Error) e.getCause();
         }
-
-        // And finally the script.
-        out.write(new VarInt(witnessProgram.length).encode());
-        out.write(witnessProgram);
+        throw e;
       }
-      // 7. nLocktime
-      Utils.uint32ToByteStreamLE(lock_time, out);
-
-      return out.toByteArray();
-    } catch (IOException e) {
-      // Can't happen: We're writing to a memory stream which won't IOException
-      throw new RuntimeException(e);
     }
+    return results;
   }
 }
@@ -26,6 +26,7 @@ public class Constants {
   // more restrictive than the C ones.
   // https://github.com/square/subzero/blob/master/core/proto/squareup/subzero/common.options
   // https://github.com/square/subzero/blob/master/core/proto/squareup/subzero/internal.options
+  // https://github.com/square/subzero/blob/master/core/proto/squareup/subzero/service.options
 
   /** Max size of an encrypted master seed, in bytes. */
   public static final int ENCRYPTED_MASTER_SEED_MAX_SIZE = 92;
@@ -51,6 +52,21 @@ public class Constants {
   /** Max size of a TxInput prev_hash, in bytes. */
   public static final int TXINPUT_PREV_HASH_MAX_SIZE = 32;
 
+  /** Max size of a Signature.der field, in bytes. */
+  public static final int SIGNATURE_DER_MAX_SIZE = 73;
+
+  /** Size of a Signature.hash field, in bytes. */
+  public static final int SIGNATURE_HASH_SIZE = 32;
+
+  /** Size of a QrCodeSignature.signature field, in bytes. */
+  public static final int QR_SIGNATURE_SIZE = 64;
+
+  /** Max length of a CommandRequest token (nanopb's max_size includes the terminating null). */
+  public static final int TOKEN_MAX_SIZE = 36;
+
+  /** Max size of a serialized_command_request field, in bytes. */
+  public static final int SERIALIZED_COMMAND_REQUEST_MAX_SIZE = 4000;
+
   /** Max size of an InitializeWallet.random_bytes field, in bytes. */
   public static final int RANDOM_BYTES_MAX_SIZE = 64;
 
@@ -74,4 +90,11 @@ public class Constants {
    * http://www.qrcode.com/en/about/version.html contains the sizes for each type of QR code.
    */
   public static final int MAX_QR_PROTO_BYTES = 2214;
+
+  /**
+   * MAX_QR_PROTO_BYTES_BASE45 is MAX_QR_PROTO_BYTES for Base45 payloads (see QrPayload).
+   * 4,296 (40, L, Alphanumeric) - 1 (prefix) = 4,295 chars, Base45 is 2 bytes in 3 chars and a
+   * trailing byte in 2 chars.
+   */
+  public static final int MAX_QR_PROTO_BYTES_BASE45 = 2863;
 }
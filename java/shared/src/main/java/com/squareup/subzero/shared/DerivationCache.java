@@ -0,0 +1,161 @@
+package com.squareup.subzero.shared;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.squareup.subzero.proto.service.Common.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.bitcoinj.crypto.DeterministicKey;
+
+/**
+ * Memoizes SubzeroUtils.derivePublicKey.
+ *
+ * Deriving key/change/index costs two EC point multiplications. The change level only has two
+ * possible values per root key, so those nodes are kept forever. The index level is unbounded, so
+ * recently used leaf keys are kept in a bounded LRU cache (Guava evicts per segment, so the order
+ * is approximately least-recently-used).
+ *
+ * Instances are thread-safe. The results are identical to calling
+ * SubzeroUtils.derivePublicKey directly.
+ */
+public class DerivationCache {
+  /** Default number of leaf keys to keep. */
+  public static final long DEFAULT_MAXIMUM_SIZE = 100_000;
+
+  /** The change level nodes, m/0 and m/1, for each root key we've seen. */
+  private final ConcurrentMap<DeterministicKey, Root> roots = new ConcurrentHashMap<>();
+  private final AtomicInteger nextRootId = new AtomicInteger();
+  private final Cache<Long, DeterministicKey> leaves;
+
+  /**
+   * Creates a cache holding up to DEFAULT_MAXIMUM_SIZE leaf keys.
+   */
+  public DerivationCache() {
+    this(DEFAULT_MAXIMUM_SIZE);
+  }
+
+  /**
+   * Creates a cache holding up to maximumSize leaf keys.
+   * @param maximumSize the maximum number of leaf keys to keep. 0 disables leaf caching, but the
+   *                    change level nodes are still cached.
+   * @throws IllegalArgumentException if maximumSize is negative.
+   */
+  public DerivationCache(long maximumSize) {
+    if (maximumSize < 0) {
+      throw new IllegalArgumentException("maximumSize should be non-negative");
+    }
+    this.leaves = CacheBuilder.newBuilder()
+        .maximumSize(maximumSize)
+        .recordStats()
+        .build();
+  }
+
+  /**
+   * Cached equivalent of SubzeroUtils.derivePublicKey.
+   *
+   * @param key the parent key to derive subkey from.
+   * @param path the Path object describing is_change and index parameters.
+   * @return the derived subkey.
+   * @throws IllegalStateException on invalid input.
+   */
+  public DeterministicKey derivePublicKey(DeterministicKey key, Path path) {
+    if (path.getIndex() < 0) {
+      throw new IllegalStateException("index should be between 0 and 2^31-1");
+    }
+    Root root = root(key);
+    Long leafKey = leafKey(root.id, path.getIsChange(), path.getIndex());
+    DeterministicKey leaf = leaves.getIfPresent(leafKey);
+    if (leaf == null) {
+      // Two threads may race to derive the same leaf. That's harmless: the result is the same.
+      leaf = SubzeroUtils.deriveIndexKey(root.change(path.getIsChange()), path.getIndex());
+      leaves.put(leafKey, leaf);
+    }
+    return leaf;
+  }
+
+  /**
+   * Returns the change level node key/0 or key/1, deriving it on first use. These are never
+   * evicted.
+   *
+   * @param key the parent key to derive subkey from.
+   * @param isChange If true, returns key/1, otherwise key/0.
+   * @return the derived subkey.
+   */
+  public DeterministicKey deriveChangeKey(DeterministicKey key, boolean isChange) {
+    return root(key).change(isChange);
+  }
+
+  /**
+   * Statistics for the leaf key cache, useful to size it.
+   * @return the statistics for the leaf key cache.
+   */
+  public CacheStats stats() {
+    return leaves.stats();
+  }
+
+  /**
+   * Number of leaf key lookups which were served from the cache.
+   * @return the hit count.
+   */
+  public long hitCount() {
+    return leaves.stats().hitCount();
+  }
+
+  /**
+   * Number of leaf key lookups which required a derivation.
+   * @return the miss count.
+   */
+  public long missCount() {
+    return leaves.stats().missCount();
+  }
+
+  /**
+   * Approximate number of leaf keys currently cached.
+   * @return the number of leaf keys.
+   */
+  public long size() {
+    return leaves.size();
+  }
+
+  /**
+   * Removes all the leaf keys. The change level nodes are kept.
+   */
+  public void invalidateAll() {
+    leaves.invalidateAll();
+  }
+
+  private Root root(DeterministicKey key) {
+    Root root = roots.get(key);
+    if (root == null) {
+      root = roots.computeIfAbsent(key, k -> new Root(nextRootId.getAndIncrement(),
+          SubzeroUtils.deriveChangeKey(k, false), SubzeroUtils.deriveChangeKey(k, true)));
+    }
+    return root;
+  }
+
+  /**
+   * Packs (root, is_change, index) into a single value. index is 31 bits, is_change is 1 bit and
+   * the root id gets the remaining 32 bits.
+   */
+  private static Long leafKey(int rootId, boolean isChange, int index) {
+    return ((long) rootId << 32) | (isChange ? 1L << 31 : 0L) | index;
+  }
+
+  private static final class Root {
+    private final int id;
+    private final DeterministicKey receive;
+    private final DeterministicKey change;
+
+    private Root(int id, DeterministicKey receive, DeterministicKey change) {
+      this.id = id;
+      this.receive = receive;
+      this.change = change;
+    }
+
+    private DeterministicKey change(boolean isChange) {
+      return isChange ? change : receive;
+    }
+  }
+}
@@ -0,0 +1,171 @@
+package com.squareup.subzero.shared;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableList;
+import com.squareup.subzero.proto.service.Common.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.script.ScriptOpCodes;
+
+/**
+ * Memoizes the multisig script of each path.
+ *
+ * ColdWallet needs the same things for a path when paying to it (address, scriptHash, change
+ * outputs) and when spending from it (createTransaction, txid): the derived public keys in script
+ * order, the witness script and its hashes. DerivationCache already saves the EC work; this also
+ * saves sorting the keys, building the script and hashing it. Recently used paths are kept in a
+ * bounded LRU cache.
+ *
+ * Entries are keyed by (walletId, is_change, index). Each ColdWallet owns its cache, see
+ * ColdWallet.getMultisigScriptCache(). Instances are thread-safe.
+ */
+public class MultisigScriptCache {
+  /** Default number of paths to keep. */
+  public static final long DEFAULT_MAXIMUM_SIZE = 10_000;
+
+  private final Cache<Long, MultisigScript> scripts;
+
+  /**
+   * Creates a cache holding up to DEFAULT_MAXIMUM_SIZE paths.
+   */
+  public MultisigScriptCache() {
+    this(DEFAULT_MAXIMUM_SIZE);
+  }
+
+  /**
+   * Creates a cache holding up to maximumSize paths.
+   * @param maximumSize the maximum number of paths to keep. 0 disables caching.
+   * @throws IllegalArgumentException if maximumSize is negative.
+   */
+  public MultisigScriptCache(long maximumSize) {
+    if (maximumSize < 0) {
+      throw new IllegalArgumentException("maximumSize should be non-negative");
+    }
+    this.scripts = CacheBuilder.newBuilder()
+        .maximumSize(maximumSize)
+        .recordStats()
+        .build();
+  }
+
+  /**
+   * Returns the multisig script of a path, building it on a miss.
+   *
+   * @param walletId the id of the wallet the path belongs to.
+   * @param path the path.
+   * @param publicKeys derives the public keys of the path, in any order. Only called on a miss.
+   * @return the multisig script.
+   * @throws IllegalStateException if the index is negative.
+   */
+  MultisigScript get(int walletId, Path path, Supplier<List<? extends ECKey>> publicKeys) {
+    if (path.getIndex() < 0) {
+      throw new IllegalStateException("index should be between 0 and 2^31-1");
+    }
+    Long key = key(walletId, path.getIsChange(), path.getIndex());
+    MultisigScript script = scripts.getIfPresent(key);
+    if (script == null) {
+      // Two threads may race to build the same script. That's harmless: the result is the same.
+      script = new MultisigScript(Constants.MULTISIG_THRESHOLD, publicKeys.get());
+      scripts.put(key, script);
+    }
+    return script;
+  }
+
+  /**
+   * Statistics for the cache, useful to size it.
+   * @return the statistics for the cache.
+   */
+  public CacheStats stats() {
+    return scripts.stats();
+  }
+
+  /**
+   * Number of lookups which were served from the cache.
+   * @return the hit count.
+   */
+  public long hitCount() {
+    return scripts.stats().hitCount();
+  }
+
+  /**
+   * Number of lookups which required building a script.
+   * @return the miss count.
+   */
+  public long missCount() {
+    return scripts.stats().missCount();
+  }
+
+  /**
+   * Approximate number of paths currently cached.
+   * @return the number of paths.
+   */
+  public long size() {
+    return scripts.size();
+  }
+
+  /**
+   * Removes all the paths.
+   */
+  public void invalidateAll() {
+    scripts.invalidateAll();
+  }
+
+  /**
+   * Packs (walletId, is_change, index) into a single value. index is 31 bits, is_change is 1 bit
+   * and the wallet id gets the remaining 32 bits.
+   */
+  private static Long key(int walletId, boolean isChange, int index) {
+    return ((long) walletId << 32) | (isChange ? 1L << 31 : 0L) | index;
+  }
+
+  /**
+   * The multisig script of a path. The arrays are shared, callers must not modify them.
+   */
+  static final class MultisigScript {
+    private final List<ECKey> publicKeys;
+    private final byte[] witnessScript;
+    private final byte[] witnessScriptHash;
+    private final byte[] scriptHash;
+
+    MultisigScript(int threshold, List<? extends ECKey> publicKeys) {
+      // This needs to be the same sort that ScriptBuilder.createRedeemScript does.
+      List<ECKey> sorted = new ArrayList<>(publicKeys);
+      sorted.sort(ECKey.PUBKEY_COMPARATOR);
+      this.publicKeys = ImmutableList.copyOf(sorted);
+      this.witnessScript = SubzeroUtils.multisigWitnessScript(threshold, sorted);
+      this.witnessScriptHash = Sha256Hash.hash(witnessScript);
+
+      // The P2SH redeem script is the P2WSH program: OP_0 <sha256(witness script)>
+      byte[] redeemScript = new byte[2 + 32];
+      redeemScript[0] = (byte) ScriptOpCodes.OP_0;
+      redeemScript[1] = 32;
+      System.arraycopy(witnessScriptHash, 0, redeemScript, 2, 32);
+      this.scriptHash = Utils.sha256hash160(redeemScript);
+    }
+
+    /** The derived public keys, in the order of the witness script. */
+    List<ECKey> getPublicKeys() {
+      return publicKeys;
+    }
+
+    /** OP_m &lt;pubkey&gt;... OP_n OP_CHECKMULTISIG. */
+    byte[] getWitnessScript() {
+      return witnessScript;
+    }
+
+    /** The 32-byte SHA256 of the witness script, which the P2WSH program commits to. */
+    byte[] getWitnessScriptHash() {
+      return witnessScriptHash;
+    }
+
+    /** The 20-byte P2SH script hash, which the address encodes. */
+    byte[] getScriptHash() {
+      return scriptHash;
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package com.squareup.subzero.shared;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.crypto.DeterministicKey;
+
+/**
+ * Spliterator over a contiguous range of indexes, i.e. m/change/fromIndex ...
+ * m/change/(fromIndex + count - 1). For each index, the participants' public keys are derived and
+ * passed to a mapper, which turns them into an address, a script hash, etc.
+ *
+ * The range is split in halves, which lets a parallel stream derive on all the ForkJoinPool
+ * threads while keeping the index order.
+ *
+ * @param <T> the type of the elements, as returned by the mapper.
+ */
+class PathRangeSpliterator<T> implements Spliterator<T> {
+  /** Ranges smaller than this aren't split further, the task overhead isn't worth it. */
+  static final int MIN_SPLIT_SIZE = 64;
+
+  private final List<DeterministicKey> changeKeys;
+  private final Function<List<ECKey>, T> mapper;
+  // Indexes are longs so that end can be 2^31 without overflowing.
+  private long index;
+  private final long end;
+
+  /**
+   * @param changeKeys the change level keys (root/0 or root/1) of each participant.
+   * @param mapper computes the element from the derived public keys, in participant order.
+   * @param index the first index, inclusive.
+   * @param end the last index, exclusive.
+   */
+  PathRangeSpliterator(List<DeterministicKey> changeKeys, Function<List<ECKey>, T> mapper,
+      long index, long end) {
+    this.changeKeys = changeKeys;
+    this.mapper = mapper;
+    this.index = index;
+    this.end = end;
+  }
+
+  @Override public boolean tryAdvance(Consumer<? super T> action) {
+    if (index >= end) {
+      return false;
+    }
+    List<ECKey> publicKeys =
+        new ArrayList<>(Arrays.asList(RangeDerivation.deriveChild(changeKeys, (int) index++)));
+    action.accept(mapper.apply(publicKeys));
+    return true;
+  }
+
+  @Override public void forEachRemaining(Consumer<? super T> action) {
+    // Derive MIN_SPLIT_SIZE children of each change key at a time, so RangeDerivation can batch
+    // the EC work.
+    while (index < end) {
+      int count = (int) Math.min(MIN_SPLIT_SIZE, end - index);
+      DeterministicKey[][] keys = new DeterministicKey[changeKeys.size()][];
+      for (int i = 0; i < changeKeys.size(); i++) {
+        keys[i] = SubzeroUtils.deriveIndexKeys(changeKeys.get(i), (int) index, count);
+      }
+      for (int j = 0; j < count; j++) {
+        List<ECKey> publicKeys = new ArrayList<>(changeKeys.size());
+        for (int i = 0; i < changeKeys.size(); i++) {
+          publicKeys.add(keys[i][j]);
+        }
+        action.accept(mapper.apply(publicKeys));
+      }
+      index += count;
+    }
+  }
+
+  @Override public Spliterator<T> trySplit() {
+    long remaining = end - index;
+    if (remaining < 2 * MIN_SPLIT_SIZE) {
+      return null;
+    }
+    long mid = index + remaining / 2;
+    Spliterator<T> prefix = new PathRangeSpliterator<>(changeKeys, mapper, index, mid);
+    index = mid;
+    return prefix;
+  }
+
+  @Override public long estimateSize() {
+    return end - index;
+  }
+
+  @Override public int characteristics() {
+    return ORDERED | SIZED | SUBSIZED | NONNULL | IMMUTABLE;
+  }
+}
@@ -0,0 +1,173 @@
+package com.squareup.subzero.shared;
+
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static java.lang.String.format;
+
+/**
+ * Optional compression of the CommandRequest and CommandResponse protos carried by QR codes.
+ *
+ * A compressed proto is wrapped in an envelope:
+ * - MARKER (1 byte). A serialized proto can't start with it, since field numbers start at 1.
+ * - the version (1 byte), which picks the preset dictionary.
+ * - the proto, raw deflated with the dictionary.
+ *
+ * The dictionaries are trained on the txsign test vectors (see utils/qr_dictionary_train.py),
+ * so field tags, Path submessages, DER signature prefixes, etc. are cheap even in small protos.
+ * Signed SignTx requests also carry the request twice, which deflate halves.
+ *
+ * The envelope sits between the proto and QrPayload, and a frame sequence (see QrFrames) can carry
+ * it. The GUI compresses its response with the version of the request, so the server picks
+ * whether to use compression, and which version.
+ */
+public final class QrCompression {
+  /** Marks an envelope. */
+  public static final byte MARKER = 0;
+
+  /** Not compressed: the payload is the proto itself. */
+  public static final int NONE = 0;
+  /** Deflate, with qr-dictionary-v1.bin. */
+  public static final int VERSION_1 = 1;
+
+  /** A bound on the size of a decompressed proto, so a small payload can't use up the memory. */
+  private static final int MAX_PROTO_BYTES = 1 << 20;
+
+  /** The preset dictionaries, indexed by version. These must never change once released. */
+  private static final byte[][] DICTIONARIES = {
+      new byte[0],
+      loadDictionary("/qr-dictionary-v1.bin"),
+  };
+
+  /** Everything in this class is static, so don't allow construction. */
+  private QrCompression() {}
+
+  private static byte[] loadDictionary(String name) {
+    try (InputStream in = QrCompression.class.getResourceAsStream(name)) {
+      if (in == null) {
+        throw new IllegalStateException(format("Missing resource %s", name));
+      }
+      return ByteStreams.toByteArray(in);
+    } catch (IOException e) {
+      throw new IllegalStateException(format("Can't read resource %s", name), e);
+    }
+  }
+
+  /**
+   * @param version a compression version, e.g. from version().
+   * @return true if this version is supported.
+   */
+  public static boolean isSupported(int version) {
+    return version >= NONE && version < DICTIONARIES.length;
+  }
+
+  /**
+   * @param version a supported version.
+   * @return the preset dictionary of the version, empty for NONE.
+   */
+  static byte[] dictionary(int version) {
+    checkSupported(version);
+    return DICTIONARIES[version].clone();
+  }
+
+  /**
+   * @param payload a proto, or an envelope.
+   * @return the version of the envelope, or NONE if the payload is a proto.
+   */
+  public static int version(byte[] payload) {
+    return payload.length >= 2 && payload[0] == MARKER ? payload[1] & 0xff : NONE;
+  }
+
+  /**
+   * @param proto the serialized proto.
+   * @param version the compression version to use, NONE for none.
+   * @return the envelope, or the proto itself for NONE.
+   * @throws IllegalArgumentException if the version isn't supported.
+   */
+  public static byte[] compress(byte[] proto, int version) {
+    checkSupported(version);
+    if (version == NONE) {
+      return proto;
+    }
+    Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+    try {
+      deflater.setDictionary(DICTIONARIES[version]);
+      deflater.setInput(proto);
+      deflater.finish();
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream(proto.length + 16);
+      out.write(MARKER);
+      out.write(version);
+      byte[] buffer = new byte[1024];
+      while (!deflater.finished()) {
+        out.write(buffer, 0, deflater.deflate(buffer));
+      }
+      return out.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * @param payload a proto, or an envelope.
+   * @return the serialized proto.
+   * @throws IllegalArgumentException if the envelope's version isn't supported, or the envelope
+   *         isn't valid.
+   */
+  public static byte[] decompress(byte[] payload) {
+    int version = version(payload);
+    if (version == NONE) {
+      return payload;
+    }
+    checkSupported(version);
+    Inflater inflater = new Inflater(true);
+    try {
+      // With raw deflate, the dictionary is set upfront rather than on needsDictionary().
+      inflater.setDictionary(DICTIONARIES[version]);
+      inflater.setInput(payload, 2, payload.length - 2);
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length * 2);
+      byte[] buffer = new byte[1024];
+      while (!inflater.finished()) {
+        int n = inflater.inflate(buffer);
+        out.write(buffer, 0, n);
+        if (n == 0 && !inflater.finished() && inflater.needsInput()) {
+          throw new IllegalArgumentException("Truncated envelope");
+        }
+        if (out.size() > MAX_PROTO_BYTES) {
+          throw new IllegalArgumentException(format("Envelope exceeds %d bytes", MAX_PROTO_BYTES));
+        }
+      }
+      if (inflater.getRemaining() > 0) {
+        throw new IllegalArgumentException("Trailing bytes after the envelope");
+      }
+      return out.toByteArray();
+    } catch (DataFormatException e) {
+      throw new IllegalArgumentException("Invalid envelope", e);
+    } finally {
+      inflater.end();
+    }
+  }
+
+  /**
+   * Decodes a payload, in either encoding, and decompresses it if it's an envelope.
+   *
+   * @param payload a payload, as scanned from a QR code.
+   * @return the serialized proto.
+   * @throws IllegalArgumentException if the payload or the envelope isn't valid.
+   */
+  public static byte[] decode(String payload) {
+    return decompress(QrPayload.decode(payload));
+  }
+
+  private static void checkSupported(int version) {
+    if (!isSupported(version)) {
+      throw new IllegalArgumentException(format("Unsupported compression version %d", version));
+    }
+  }
+}
@@ -0,0 +1,322 @@
+package com.squareup.subzero.shared;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.zip.CRC32;
+
+import static java.lang.String.format;
+
+/**
+ * Splits a proto which doesn't fit in a single QR code into a sequence of frames, each of which
+ * fits in one, and reassembles it.
+ *
+ * The proto is cut into fragments of equal size (the last one is zero padded). Frames 1 to
+ * getFragmentCount() each carry one fragment. Later frames are fountain coded: they carry the xor
+ * of a pseudo-random subset of the fragments, picked from the sequence number. Any
+ * getFragmentCount() frames which are linearly independent are enough to reassemble the proto, so
+ * the frames can be scanned in any order, and missed ones don't need to come around again.
+ *
+ * A frame is, big-endian:
+ * - the sequence number (4 bytes), from 1.
+ * - the number of fragments (2 bytes).
+ * - the size of the proto (4 bytes).
+ * - the CRC32 of the proto (4 bytes). It tells sequences apart, and seeds the subsets.
+ * - the fragment, or xor of fragments.
+ * - the CRC32 of all the above (4 bytes).
+ *
+ * As text, frames start with FRAME_PREFIX, followed by a QrPayload in either encoding.
+ */
+public final class QrFrames {
+  /** Marks a frame. Part of the QR alphanumeric charset, but neither of base64's nor Base45's. */
+  public static final char FRAME_PREFIX = '*';
+
+  /** The size of the header and the trailing checksum. */
+  public static final int FRAME_OVERHEAD = 18;
+
+  private static final int HEADER_SIZE = FRAME_OVERHEAD - 4;
+  private static final int MAX_FRAGMENTS = 0xffff;
+
+  /** Everything in this class is static, so don't allow construction. */
+  private QrFrames() {}
+
+  /**
+   * @param encoding the encoding of the frames.
+   * @return the maximum size a frame can be to fit in a QR code, once prefixed.
+   */
+  public static int maxFrameBytes(QrPayload.Encoding encoding) {
+    return encoding.getMaxProtoBytes() - 1;
+  }
+
+  /**
+   * @param payload a payload, as scanned from a QR code.
+   * @return true if the payload is a frame, rather than a whole proto.
+   */
+  public static boolean isFrame(CharSequence payload) {
+    return payload.length() > 0 && payload.charAt(0) == FRAME_PREFIX;
+  }
+
+  /**
+   * Splits a proto into frames. Frames are computed on demand, so the sequence is endless.
+   */
+  public static final class Encoder {
+    private final int length;
+    private final int checksum;
+    private final byte[][] fragments;
+
+    /**
+     * @param proto the serialized proto.
+     * @param maxFrameBytes the maximum size of each frame, e.g. maxFrameBytes(encoding).
+     * @throws IllegalArgumentException if maxFrameBytes can't hold any data, or the proto needs
+     *         more than 65535 fragments.
+     */
+    public Encoder(byte[] proto, int maxFrameBytes) {
+      if (maxFrameBytes <= FRAME_OVERHEAD) {
+        throw new IllegalArgumentException(format("maxFrameBytes should be >%d, but is %d",
+            FRAME_OVERHEAD, maxFrameBytes));
+      }
+      int count = Math.max(1, ceilDiv(proto.length, maxFrameBytes - FRAME_OVERHEAD));
+      if (count > MAX_FRAGMENTS) {
+        throw new IllegalArgumentException(format("%d bytes don't fit in %d frames of %d bytes",
+            proto.length, MAX_FRAGMENTS, maxFrameBytes));
+      }
+      // Spread the proto evenly, rather than having a small last fragment.
+      int fragmentLength = ceilDiv(proto.length, count);
+      this.length = proto.length;
+      this.checksum = crc32(proto, 0, proto.length);
+      this.fragments = new byte[count][];
+      for (int i = 0; i < count; i++) {
+        int from = Math.min(i * fragmentLength, proto.length);
+        fragments[i] = Arrays.copyOfRange(proto, from, from + fragmentLength);
+      }
+    }
+
+    /**
+     * @return the number of fragments, which is the minimum number of frames to scan.
+     */
+    public int getFragmentCount() {
+      return fragments.length;
+    }
+
+    /**
+     * @param seq the sequence number of the frame, from 1.
+     * @return the frame.
+     */
+    public byte[] frame(int seq) {
+      if (seq < 1) {
+        throw new IllegalArgumentException(format("seq should be >=1, but is %d", seq));
+      }
+      BitSet subset = subset(checksum, seq, fragments.length);
+      byte[] data = new byte[fragments[0].length];
+      for (int i = subset.nextSetBit(0); i >= 0; i = subset.nextSetBit(i + 1)) {
+        xor(data, fragments[i]);
+      }
+
+      ByteBuffer frame = ByteBuffer.allocate(FRAME_OVERHEAD + data.length);
+      frame.putInt(seq);
+      frame.putShort((short) fragments.length);
+      frame.putInt(length);
+      frame.putInt(checksum);
+      frame.put(data);
+      frame.putInt(crc32(frame.array(), 0, frame.position()));
+      return frame.array();
+    }
+
+    /**
+     * @param seq the sequence number of the frame, from 1.
+     * @param encoding the encoding to use.
+     * @return the payload for the QR code.
+     */
+    public String payload(int seq, QrPayload.Encoding encoding) {
+      return FRAME_PREFIX + QrPayload.encode(frame(seq), encoding);
+    }
+  }
+
+  /**
+   * Reassembles a proto from frames, received in any order. Not thread safe.
+   */
+  public static final class Decoder {
+    private int count;
+    private int length;
+    private int checksum;
+    // The received frames, reduced so that masks[i], when set, has i as its lowest bit.
+    private BitSet[] masks;
+    private byte[][] rows;
+    private int rank;
+    private byte[] proto;
+
+    /**
+     * @param payload a frame, as scanned from a QR code.
+     * @return true once the proto is reassembled.
+     * @throws IllegalArgumentException if the payload isn't a valid frame, or belongs to another
+     *         sequence.
+     */
+    public boolean receive(String payload) {
+      if (!isFrame(payload)) {
+        throw new IllegalArgumentException("Not a frame");
+      }
+      return receive(QrPayload.decode(payload.substring(1)));
+    }
+
+    /**
+     * @param frame a frame, as produced by Encoder.frame().
+     * @return true once the proto is reassembled.
+     * @throws IllegalArgumentException if the frame isn't valid, or belongs to another sequence.
+     */
+    public boolean receive(byte[] frame) {
+      if (frame.length < FRAME_OVERHEAD) {
+        throw new IllegalArgumentException(format("A frame is at least %d bytes, got %d",
+            FRAME_OVERHEAD, frame.length));
+      }
+      ByteBuffer buffer = ByteBuffer.wrap(frame);
+      if (buffer.getInt(frame.length - 4) != crc32(frame, 0, frame.length - 4)) {
+        throw new IllegalArgumentException("Frame checksum mismatch");
+      }
+      int seq = buffer.getInt();
+      int frameCount = buffer.getShort() & 0xffff;
+      int frameLength = buffer.getInt();
+      int frameChecksum = buffer.getInt();
+      int fragmentLength = frame.length - FRAME_OVERHEAD;
+      if (seq < 1 || frameCount < 1 || frameLength < 0
+          || fragmentLength != ceilDiv(frameLength, frameCount)) {
+        throw new IllegalArgumentException("Invalid frame header");
+      }
+
+      if (count == 0) {
+        count = frameCount;
+        length = frameLength;
+        checksum = frameChecksum;
+        masks = new BitSet[count];
+        rows = new byte[count][];
+      } else if (frameCount != count || frameLength != length || frameChecksum != checksum) {
+        throw new IllegalArgumentException("Frame belongs to another sequence");
+      }
+      if (isComplete()) {
+        return true;
+      }
+
+      // Eliminate the fragments we already have a row for. What's left is either nothing, in
+      // which case the frame didn't tell us anything new, or a row for its lowest fragment.
+      BitSet mask = subset(checksum, seq, count);
+      byte[] data = Arrays.copyOfRange(frame, HEADER_SIZE, HEADER_SIZE + fragmentLength);
+      int pivot = mask.nextSetBit(0);
+      while (pivot >= 0 && masks[pivot] != null) {
+        mask.xor(masks[pivot]);
+        xor(data, rows[pivot]);
+        pivot = mask.nextSetBit(pivot + 1);
+      }
+      if (pivot < 0) {
+        return false;
+      }
+      masks[pivot] = mask;
+      rows[pivot] = data;
+      rank++;
+
+      if (rank == count) {
+        solve(fragmentLength);
+      }
+      return isComplete();
+    }
+
+    private void solve(int fragmentLength) {
+      // Back substitution: row i only depends on rows above it, which are already solved.
+      for (int i = count - 1; i >= 0; i--) {
+        BitSet mask = masks[i];
+        for (int j = mask.nextSetBit(i + 1); j >= 0; j = mask.nextSetBit(j + 1)) {
+          xor(rows[i], rows[j]);
+        }
+      }
+      byte[] result = new byte[count * fragmentLength];
+      for (int i = 0; i < count; i++) {
+        System.arraycopy(rows[i], 0, result, i * fragmentLength, fragmentLength);
+      }
+      int resultChecksum = crc32(result, 0, length);
+      masks = null;
+      rows = null;
+      if (resultChecksum != checksum) {
+        // Start over, rather than being stuck with a bad row.
+        count = 0;
+        rank = 0;
+        throw new IllegalArgumentException("Proto checksum mismatch");
+      }
+      proto = Arrays.copyOf(result, length);
+    }
+
+    /**
+     * @return true once the proto is reassembled.
+     */
+    public boolean isComplete() {
+      return proto != null;
+    }
+
+    /**
+     * @return the number of fragments, or 0 if no frame was received yet.
+     */
+    public int getFragmentCount() {
+      return count;
+    }
+
+    /**
+     * @return the number of useful frames received so far. The proto is reassembled once it
+     *         reaches getFragmentCount().
+     */
+    public int getReceivedCount() {
+      return rank;
+    }
+
+    /**
+     * @return the reassembled proto.
+     * @throws IllegalStateException if the proto isn't reassembled yet.
+     */
+    public byte[] getProto() {
+      if (proto == null) {
+        throw new IllegalStateException(format("Received %d of %d fragments", rank, count));
+      }
+      return proto.clone();
+    }
+  }
+
+  /**
+   * Picks the fragments a frame carries. The first frames carry one fragment each, the following
+   * ones each fragment with probability 1/2.
+   */
+  static BitSet subset(int checksum, int seq, int count) {
+    BitSet subset = new BitSet(count);
+    if (seq <= count) {
+      subset.set(seq - 1);
+      return subset;
+    }
+    // splitmix64, seeded with the proto's checksum and the sequence number.
+    long state = (long) checksum << 32 | seq & 0xffffffffL;
+    for (int i = 0; i < count; i++) {
+      state += 0x9e3779b97f4a7c15L;
+      long z = state;
+      z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+      z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+      z = z ^ (z >>> 31);
+      if (z < 0) {
+        subset.set(i);
+      }
+    }
+    if (subset.isEmpty()) {
+      subset.set(seq % count);
+    }
+    return subset;
+  }
+
+  private static int ceilDiv(int a, int b) {
+    return (int) (((long) a + b - 1) / b);
+  }
+
+  private static int crc32(byte[] bytes, int offset, int length) {
+    CRC32 crc = new CRC32();
+    crc.update(bytes, offset, length);
+    return (int) crc.getValue();
+  }
+
+  private static void xor(byte[] into, byte[] other) {
+    for (int i = 0; i < into.length; i++) {
+      into[i] ^= other[i];
+    }
+  }
+}
@@ -0,0 +1,114 @@
+package com.squareup.subzero.shared;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+
+import static com.google.common.io.BaseEncoding.base64;
+
+/**
+ * Converts the CommandRequest and CommandResponse protos to/from the text carried by QR codes.
+ *
+ * Two encodings are supported:
+ * - base64, which QR codes hold in byte mode (8 bits per character).
+ * - Base45, which uses exactly the QR alphanumeric charset, so QR codes hold it in alphanumeric
+ *   mode (5.5 bits per character). That's about 30% more proto bytes per QR code, or a smaller QR
+ *   code for the same proto.
+ *
+ * Base45 payloads start with BASE45_PREFIX, which isn't a base64 character, so decode can tell the
+ * encodings apart. Without it, a Base45 payload could also be valid base64.
+ */
+public final class QrPayload {
+  /** Marks a Base45 payload. Part of the QR alphanumeric charset, but not of base64's. */
+  public static final char BASE45_PREFIX = '-';
+
+  public enum Encoding {
+    BASE64(Constants.MAX_QR_PROTO_BYTES),
+    BASE45(Constants.MAX_QR_PROTO_BYTES_BASE45);
+
+    private final int maxProtoBytes;
+
+    Encoding(int maxProtoBytes) {
+      this.maxProtoBytes = maxProtoBytes;
+    }
+
+    /**
+     * @return the maximum size a proto can be to fit in a QR code, in this encoding.
+     */
+    public int getMaxProtoBytes() {
+      return maxProtoBytes;
+    }
+
+    /**
+     * @param size the size of a proto.
+     * @return the number of characters of its payload, in this encoding.
+     */
+    public int payloadSize(int size) {
+      switch (this) {
+        case BASE64:
+          return (size + 2) / 3 * 4;
+        case BASE45:
+          return 1 + Base45.encodedLength(size);
+        default:
+          throw new IllegalStateException("unreachable");
+      }
+    }
+  }
+
+  /** Everything in this class is static, so don't allow construction. */
+  private QrPayload() {}
+
+  /**
+   * @param proto the serialized proto.
+   * @param encoding the encoding to use.
+   * @return the payload for the QR code.
+   */
+  public static String encode(byte[] proto, Encoding encoding) {
+    switch (encoding) {
+      case BASE64:
+        return base64().encode(proto);
+      case BASE45:
+        char[] payload = new char[encoding.payloadSize(proto.length)];
+        payload[0] = BASE45_PREFIX;
+        Base45.toBase45(ByteBuffer.wrap(proto), CharBuffer.wrap(payload, 1, payload.length - 1));
+        return new String(payload);
+      default:
+        throw new IllegalStateException("unreachable");
+    }
+  }
+
+  /**
+   * @param payload a payload, as scanned from a QR code.
+   * @return the encoding of the payload.
+   */
+  public static Encoding detect(CharSequence payload) {
+    return payload.length() > 0 && payload.charAt(0) == BASE45_PREFIX
+        ? Encoding.BASE45
+        : Encoding.BASE64;
+  }
+
+  /**
+   * Decodes a payload, in either encoding.
+   *
+   * @param payload a payload, as scanned from a QR code.
+   * @return the serialized proto.
+   * @throws IllegalArgumentException if the payload isn't valid in its encoding.
+   */
+  public static byte[] decode(String payload) {
+    switch (detect(payload)) {
+      case BASE64:
+        return base64().decode(payload);
+      case BASE45:
+        CharBuffer chars = CharBuffer.wrap(payload, 1, payload.length());
+        byte[] proto = new byte[Base45.decodedLength(chars.remaining())];
+        try {
+          Base45.fromBase45(chars, ByteBuffer.wrap(proto));
+        } catch (IllegalStateException e) {
+          // A group of characters out of range.
+          throw new IllegalArgumentException(e.getMessage(), e);
+        }
+        return proto;
+      default:
+        throw new IllegalStateException("unreachable");
+    }
+  }
+}
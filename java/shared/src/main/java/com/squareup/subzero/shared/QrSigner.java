@@ -1,9 +1,11 @@
 package com.squareup.subzero.shared;
 
 import org.bitcoinj.core.Sha256Hash;
+import org.bouncycastle.crypto.ec.CustomNamedCurves;
 import org.bouncycastle.crypto.params.ECPublicKeyParameters;
 import org.bouncycastle.math.ec.ECPoint;
-import org.bouncycastle.asn1.sec.SECNamedCurves;
+import org.bouncycastle.math.ec.FixedPointCombMultiplier;
+import org.bouncycastle.math.ec.FixedPointUtil;
 import org.bouncycastle.asn1.x9.X9ECParameters;
 import org.bouncycastle.crypto.params.ECDomainParameters;
 import org.bouncycastle.crypto.params.ECPrivateKeyParameters;
@@ -30,17 +32,35 @@ import java.util.Arrays;
  * Bespoke class to provide signing capabilities for Qr Codes.
  * Only supports NIST P256 ECDSA signing
  * TODO?: Make this more generic and an abstraction for curves.
+ *
+ * A QrSigner is meant to be created once and reused: the private and public keys are parsed and
+ * derived in the constructor, and the curve, with the precomputed fixed-point comb tables for its
+ * generator, is shared by all instances. sign, verify and dumpPublicKey are safe for concurrent use.
  */
 public class QrSigner implements Destroyable {
-    private boolean is_destroyed;
-    private byte[] key;
-    private ECDomainParameters domain;
     // equivalent of NISTP256 in the trezor crypto library on the HSM.
     //https://tools.ietf.org/search/rfc4492#appendix-A
-    private String curve_name = "secp256r1";
+    private static final String curve_name = "secp256r1";
+    /** The curve, with its optimized field arithmetic. Shared, so the tables are computed once. */
+    private static final ECDomainParameters domain = makeDomain();
+
+    private volatile boolean is_destroyed;
+    private final byte[] key;
+    // Derived from key once. Immutable, so they can be shared between threads.
+    private volatile ECPrivateKeyParameters privateKey;
+    private final ECPublicKeyParameters publicKey;
     /** The path to the private key secret file. */
     public static String secret_path = "/tmp/secret";
 
+    private static ECDomainParameters makeDomain() {
+        X9ECParameters curve = CustomNamedCurves.getByName(curve_name);
+        ECDomainParameters domain =
+            new ECDomainParameters(curve.getCurve(), curve.getG(), curve.getN(), curve.getH());
+        // The tables are cached on the generator, and used by ECDSASigner and the comb multiplier.
+        FixedPointUtil.precompute(domain.getG());
+        return domain;
+    }
+
     /**
      * Zeroize what can be done.
      * TODO: BigInteger is still there somewhere and it needs to be handled.
@@ -50,6 +70,7 @@ public class QrSigner implements Destroyable {
     @Override
     public void destroy() throws DestroyFailedException {
         Arrays.fill(this.key, (byte) 0);
+        this.privateKey = null;
         this.is_destroyed = true;
     }
 
@@ -101,6 +122,7 @@ public class QrSigner implements Destroyable {
      * Constructs a new QrSigner which signs with the given secret key.
      * @param key bytes for the secret scalar. Big Endian.
      * @throws RuntimeException if key.length != 32.
+     * @throws IllegalArgumentException if the key isn't in the interval [1, n - 1].
      */
     public QrSigner(byte[] key) {
         if (key.length != 32) {
@@ -108,8 +130,11 @@ public class QrSigner implements Destroyable {
         }
         this.key = key;
 
-        X9ECParameters curve = SECNamedCurves.getByName(curve_name);
-        this.domain = new ECDomainParameters(curve.getCurve(), curve.getG(), curve.getN(), curve.getH());
+        //BigIntegers.fromUnsignedByteArray is the way to do it.
+        BigInteger d = BigIntegers.fromUnsignedByteArray(key, 0, 32);
+        this.privateKey = new ECPrivateKeyParameters(d, domain);
+        ECPoint pub = new FixedPointCombMultiplier().multiply(domain.getG(), d).normalize();
+        this.publicKey = new ECPublicKeyParameters(pub, domain);
         this.is_destroyed = false;
     }
 
@@ -120,11 +145,17 @@ public class QrSigner implements Destroyable {
      *
      * @param data bytes to sign.
      * @return raw signature bytes. Always of length 64.
+     * @throws IllegalStateException if destroy() has been called.
      */
     public byte[] sign(byte[] data) {
+        ECPrivateKeyParameters privateKey = this.privateKey;
+        if (privateKey == null) {
+            throw new IllegalStateException("QrSigner is destroyed.");
+        }
+        // ECDSASigner and HMacDSAKCalculator are mutable, so each call gets its own. They are cheap:
+        // the costly parts, parsing the key and the comb tables, are shared.
         ECDSASigner signer = new ECDSASigner(new HMacDSAKCalculator(new SHA256Digest()));
-        //BigIntegers.fromUnsignedByteArray is the way to do it.
-        signer.init(true, new ECPrivateKeyParameters(BigIntegers.fromUnsignedByteArray(this.key, 0, 32), this.domain));
+        signer.init(true, privateKey);
         byte[] hashed_data = Sha256Hash.hash(data);
 
         BigInteger[] signature = signer.generateSignature(hashed_data);
@@ -142,7 +173,7 @@ public class QrSigner implements Destroyable {
     public byte[] incorrectSignTest(byte[] data) {
         ECDSASigner signer = new ECDSASigner(new HMacDSAKCalculator(new SHA256Digest()));
         // BigInteger is signed. This is wrong. Just for Test.
-        signer.init(true, new ECPrivateKeyParameters(new BigInteger(this.key), this.domain));
+        signer.init(true, new ECPrivateKeyParameters(new BigInteger(this.key), domain));
         byte[] hashed_data = Sha256Hash.hash(data);
 
         BigInteger[] signature = signer.generateSignature(hashed_data);
@@ -164,8 +195,9 @@ public class QrSigner implements Destroyable {
         if (signature.length != 64) {
             throw new RuntimeException("Input signature of incorrect length.");
         }
-        ECDSASigner signer = new ECDSASigner(new HMacDSAKCalculator(new SHA256Digest()));
-        signer.init(false, new ECPublicKeyParameters(this.domain.getG().multiply(BigIntegers.fromUnsignedByteArray(this.key, 0 ,32)), this.domain));
+        // Verifying doesn't use the k calculator.
+        ECDSASigner signer = new ECDSASigner();
+        signer.init(false, this.publicKey);
 
         byte[] hashed_data = Sha256Hash.hash(data);
 
@@ -177,11 +209,7 @@ public class QrSigner implements Destroyable {
      * @return the raw public key bytes.
      */
     public byte[] dumpPublicKey() {
-        ECPoint base = this.domain.getG();
-        //BigIntegers.fromUnsignedByteArray is the way to do it.
-        ECPoint pub = base.multiply(BigIntegers.fromUnsignedByteArray(this.key, 0, 32));
-        return pub.getEncoded(false);
-
+        return this.publicKey.getQ().getEncoded(false);
     }
 
     /**
@@ -189,7 +217,7 @@ public class QrSigner implements Destroyable {
      * @return the public key, encoded incorrectly.
      */
     public byte[] dumpIncorrectPublicKeyTest() {
-        ECPoint base = this.domain.getG();
+        ECPoint base = domain.getG();
         // BigInteger is signed. This is wrong. Just for Test.
         ECPoint pub = base.multiply(new BigInteger(this.key));
         return pub.getEncoded(false);
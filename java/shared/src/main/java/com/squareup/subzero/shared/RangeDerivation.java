@@ -0,0 +1,177 @@
+package com.squareup.subzero.shared;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.List;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.crypto.ChildNumber;
+import org.bitcoinj.crypto.DeterministicKey;
+import org.bitcoinj.crypto.HDDerivationException;
+import org.bitcoinj.crypto.HDKeyDerivation;
+import org.bitcoinj.crypto.HDUtils;
+import org.bitcoinj.crypto.LazyECPoint;
+import org.bouncycastle.crypto.digests.SHA512Digest;
+import org.bouncycastle.crypto.macs.HMac;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.math.ec.ECMultiplier;
+import org.bouncycastle.math.ec.ECPoint;
+import org.bouncycastle.math.ec.FixedPointCombMultiplier;
+
+/**
+ * Derives many non-hardened BIP-32 public children at once.
+ *
+ * A public child is parent + I_L*G, where I_L comes from HMAC-SHA512(chain code, parent || index).
+ * HDKeyDerivation.deriveChildKey computes each child on its own: the multiplication uses the
+ * fixed-base comb table for G (which BouncyCastle caches on the generator), and the result is in
+ * Jacobian coordinates until it gets compressed, which costs a field inversion per child.
+ *
+ * Here we compute all the children in Jacobian coordinates using the same comb table, then
+ * convert them to affine together with ECCurve.normalizeAll, which uses Montgomery's trick to share
+ * a single inversion across the batch. We also reuse the HMAC state and the parent encoding.
+ *
+ * The resulting keys are built exactly like HDKeyDerivation.deriveChildKeyFromPublic builds them,
+ * so they are identical (equals, serialization, path, parent) to the keys bitcoinj derives.
+ * Parents with a private key are handed to HDKeyDerivation, since private derivation is a
+ * different computation.
+ */
+public final class RangeDerivation {
+  /** Everything in this class is static, so don't allow construction. */
+  private RangeDerivation() {}
+
+  /** Same multiplier as ECKey.publicPointFromPrivate. */
+  private static final ECMultiplier MULTIPLIER = new FixedPointCombMultiplier();
+
+  /**
+   * Derives parent/fromIndex ... parent/(fromIndex + count - 1).
+   *
+   * @param parent the parent key.
+   * @param fromIndex the first child index, non-hardened.
+   * @param count the number of children.
+   * @return the children, in index order.
+   * @throws IllegalArgumentException if the range isn't within [0, 2^31).
+   * @throws HDDerivationException if one of the children is invalid (probability lower than
+   *         2^-127), like HDKeyDerivation.deriveChildKey.
+   */
+  public static DeterministicKey[] deriveChildren(DeterministicKey parent, int fromIndex,
+      int count) {
+    if (fromIndex < 0 || count < 0 || (long) fromIndex + count > 1L << 31) {
+      throw new IllegalArgumentException("range should be within [0, 2^31)");
+    }
+    DeterministicKey[] children = new DeterministicKey[count];
+    if (parent.hasPrivKey()) {
+      for (int i = 0; i < count; i++) {
+        children[i] = HDKeyDerivation.deriveChildKey(parent, new ChildNumber(fromIndex + i, false));
+      }
+      return children;
+    }
+
+    ECPoint parentPoint = parent.getPubKeyPoint();
+    byte[] parentPublicKey = parentPoint.getEncoded(true);
+    HMac hmac = newHmac(parent.getChainCode());
+    byte[][] chainCodes = new byte[count][];
+    ECPoint[] points = new ECPoint[count];
+    for (int i = 0; i < count; i++) {
+      chainCodes[i] = new byte[32];
+      points[i] = childPoint(hmac, parentPublicKey, parentPoint, fromIndex + i, chainCodes[i]);
+    }
+    ECKey.CURVE.getCurve().normalizeAll(points);
+    for (int i = 0; i < count; i++) {
+      children[i] = newChild(parent, new ChildNumber(fromIndex + i, false), chainCodes[i],
+          points[i]);
+    }
+    return children;
+  }
+
+  /**
+   * Derives the same child of several parents, e.g. root/change for each participant of a
+   * multisig wallet.
+   *
+   * @param parents the parent keys.
+   * @param index the child index, non-hardened.
+   * @return parents.get(i)/index for each i.
+   * @throws IllegalArgumentException if index is negative.
+   * @throws HDDerivationException if one of the children is invalid, like
+   *         HDKeyDerivation.deriveChildKey.
+   */
+  public static DeterministicKey[] deriveChild(List<DeterministicKey> parents, int index) {
+    if (index < 0) {
+      throw new IllegalArgumentException("index should be between 0 and 2^31-1");
+    }
+    ChildNumber childNumber = new ChildNumber(index, false);
+    DeterministicKey[] children = new DeterministicKey[parents.size()];
+    byte[][] chainCodes = new byte[parents.size()][];
+    ECPoint[] points = new ECPoint[parents.size()];
+    for (int i = 0; i < parents.size(); i++) {
+      DeterministicKey parent = parents.get(i);
+      if (parent.hasPrivKey()) {
+        children[i] = HDKeyDerivation.deriveChildKey(parent, childNumber);
+        continue;
+      }
+      ECPoint parentPoint = parent.getPubKeyPoint();
+      chainCodes[i] = new byte[32];
+      points[i] = childPoint(newHmac(parent.getChainCode()), parentPoint.getEncoded(true),
+          parentPoint, index, chainCodes[i]);
+    }
+    // normalizeAll skips the null entries left by private parents.
+    ECKey.CURVE.getCurve().normalizeAll(points);
+    for (int i = 0; i < parents.size(); i++) {
+      if (children[i] == null) {
+        children[i] = newChild(parents.get(i), childNumber, chainCodes[i], points[i]);
+      }
+    }
+    return children;
+  }
+
+  private static HMac newHmac(byte[] chainCode) {
+    HMac hmac = new HMac(new SHA512Digest());
+    hmac.init(new KeyParameter(chainCode));
+    return hmac;
+  }
+
+  /**
+   * Computes parent + I_L*G, without normalizing the result.
+   *
+   * @param hmac HMAC-SHA512 keyed with the parent's chain code. doFinal resets it for the next
+   *             child.
+   * @param parentPublicKey the compressed encoding of parentPoint.
+   * @param parentPoint the parent's public point.
+   * @param index the child index.
+   * @param chainCode receives the child's chain code, I_R.
+   * @return the child's public point, in Jacobian coordinates.
+   */
+  private static ECPoint childPoint(HMac hmac, byte[] parentPublicKey, ECPoint parentPoint,
+      int index, byte[] chainCode) {
+    byte[] i = new byte[64];
+    hmac.update(parentPublicKey, 0, parentPublicKey.length);
+    hmac.update((byte) (index >>> 24));
+    hmac.update((byte) (index >>> 16));
+    hmac.update((byte) (index >>> 8));
+    hmac.update((byte) index);
+    hmac.doFinal(i, 0);
+    System.arraycopy(i, 32, chainCode, 0, 32);
+
+    // Same checks and error messages as HDKeyDerivation.deriveChildKeyBytesFromPublic
+    BigInteger ilInt = new BigInteger(1, Arrays.copyOfRange(i, 0, 32));
+    if (ilInt.compareTo(ECKey.CURVE.getN()) >= 0) {
+      throw new HDDerivationException("Illegal derived key: I_L >= n");
+    }
+    ECPoint point = MULTIPLIER.multiply(ECKey.CURVE.getG(), ilInt).add(parentPoint);
+    if (point.isInfinity()) {
+      throw new HDDerivationException("Illegal derived key: derived public key equals infinity.");
+    }
+    return point;
+  }
+
+  /**
+   * Builds the child key the same way HDKeyDerivation.deriveChildKeyFromPublic does.
+   */
+  private static DeterministicKey newChild(DeterministicKey parent, ChildNumber childNumber,
+      byte[] chainCode, ECPoint point) {
+    return new DeterministicKey(
+        HDUtils.append(parent.getPath(), childNumber),
+        chainCode,
+        new LazyECPoint(ECKey.CURVE.getCurve(), point.getEncoded(true)),
+        null,
+        parent);
+  }
+}
@@ -0,0 +1,330 @@
+package com.squareup.subzero.shared;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
+import com.squareup.subzero.proto.service.Common.Destination;
+import com.squareup.subzero.proto.service.Common.EncryptedPubKey;
+import com.squareup.subzero.proto.service.Common.Path;
+import com.squareup.subzero.proto.service.Common.TxInput;
+import com.squareup.subzero.proto.service.Common.TxOutput;
+import com.squareup.subzero.proto.service.Service.CommandRequest;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.VerificationException;
+
+import static com.squareup.subzero.shared.SubzeroUtils.ERROR_ENCRYPTED_PUB_KEYS_COUNT;
+import static com.squareup.subzero.shared.SubzeroUtils.ERROR_ENCRYPTED_PUB_KEY_SIZE;
+import static com.squareup.subzero.shared.SubzeroUtils.ERROR_FEE_TOO_HIGH;
+import static com.squareup.subzero.shared.SubzeroUtils.ERROR_INCONSISTENT_IS_CHANGE;
+import static com.squareup.subzero.shared.SubzeroUtils.ERROR_INPUTS_COUNT;
+import static com.squareup.subzero.shared.SubzeroUtils.ERROR_INVALID_DESTINATION;
+import static com.squareup.subzero.shared.SubzeroUtils.ERROR_NEGATIVE_FEE;
+import static com.squareup.subzero.shared.SubzeroUtils.ERROR_OUTPUTS_COUNT;
+import static com.squareup.subzero.shared.SubzeroUtils.ERROR_TXINPUT_PREV_HASH_SIZE;
+
+/**
+ * Applies the checks of SubzeroUtils.validateCommandRequest to a serialized CommandRequest,
+ * without parsing it.
+ *
+ * The bytes are walked once with a CodedInputStream: nothing is allocated per input or output,
+ * and a request with too many inputs is rejected as soon as the extra input is reached. Only
+ * counts, sizes, amounts, destinations and is_change are looked at; everything else is skipped.
+ *
+ * The walk follows the protobuf parsing rules, so it sees the same request parseFrom would build:
+ * the last value of a singular field wins, repeated occurrences of an embedded message are
+ * merged, a command replaces a different earlier command, unknown fields and enum values are
+ * ignored. When a request breaks several rules, the first one found on the wire is reported,
+ * which may not be the one validateCommandRequest reports.
+ *
+ * The walk checks the framing of every field, but not the contents of the fields it skips. A
+ * request which passes may still fail to parse, use parse to do both.
+ */
+public final class RawCommandRequestValidator {
+  private static final int FINALIZE_WALLET_ENCRYPTED_PUB_KEYS_TAG =
+      lengthDelimited(CommandRequest.FinalizeWalletRequest.ENCRYPTED_PUB_KEYS_FIELD_NUMBER);
+  private static final int ENCRYPTED_PUB_KEY_TAG =
+      lengthDelimited(EncryptedPubKey.ENCRYPTED_PUB_KEY_FIELD_NUMBER);
+  private static final int SIGN_TX_INPUTS_TAG =
+      lengthDelimited(CommandRequest.SignTxRequest.INPUTS_FIELD_NUMBER);
+  private static final int SIGN_TX_OUTPUTS_TAG =
+      lengthDelimited(CommandRequest.SignTxRequest.OUTPUTS_FIELD_NUMBER);
+  private static final int TX_INPUT_PREV_HASH_TAG = lengthDelimited(TxInput.PREV_HASH_FIELD_NUMBER);
+  private static final int TX_INPUT_AMOUNT_TAG = varint(TxInput.AMOUNT_FIELD_NUMBER);
+  private static final int TX_OUTPUT_AMOUNT_TAG = varint(TxOutput.AMOUNT_FIELD_NUMBER);
+  private static final int TX_OUTPUT_DESTINATION_TAG = varint(TxOutput.DESTINATION_FIELD_NUMBER);
+  private static final int TX_OUTPUT_PATH_TAG = lengthDelimited(TxOutput.PATH_FIELD_NUMBER);
+  private static final int PATH_IS_CHANGE_TAG = varint(Path.IS_CHANGE_FIELD_NUMBER);
+
+  /** Everything in this class is static, so don't allow construction. */
+  private RawCommandRequestValidator() {}
+
+  /**
+   * Validates the request, and parses it if it's valid. Like SubzeroUtils.parseCommandRequest, the
+   * bytes fields of the result are views of request.
+   *
+   * @param request the serialized CommandRequest. It must not be modified afterwards.
+   * @return the parsed request.
+   * @throws VerificationException if limits are exceeded.
+   * @throws IllegalArgumentException if the request doesn't contain a command.
+   * @throws InvalidProtocolBufferException if the request is malformed.
+   */
+  public static CommandRequest parse(byte[] request) throws InvalidProtocolBufferException {
+    validate(request);
+    return SubzeroUtils.parseCommandRequest(request);
+  }
+
+  /**
+   * @param request the serialized CommandRequest.
+   * @throws VerificationException if limits are exceeded.
+   * @throws IllegalArgumentException if the request doesn't contain a command.
+   * @throws InvalidProtocolBufferException if the request is malformed.
+   */
+  public static void validate(byte[] request) throws InvalidProtocolBufferException {
+    validate(request, 0, request.length);
+  }
+
+  /**
+   * @param request contains the serialized CommandRequest.
+   * @param offset the offset of the CommandRequest in request.
+   * @param length the size of the CommandRequest.
+   * @throws VerificationException if limits are exceeded.
+   * @throws IllegalArgumentException if the request doesn't contain a command.
+   * @throws InvalidProtocolBufferException if the request is malformed.
+   */
+  public static void validate(byte[] request, int offset, int length)
+      throws InvalidProtocolBufferException {
+    validate(CodedInputStream.newInstance(request, offset, length), length);
+  }
+
+  /**
+   * @param request the serialized CommandRequest, from its position to its limit. The position
+   *                is left unchanged.
+   * @throws VerificationException if limits are exceeded.
+   * @throws IllegalArgumentException if the request doesn't contain a command.
+   * @throws InvalidProtocolBufferException if the request is malformed.
+   */
+  public static void validate(ByteBuffer request) throws InvalidProtocolBufferException {
+    validate(CodedInputStream.newInstance(request.duplicate()), request.remaining());
+  }
+
+  private static void validate(CodedInputStream in, int length)
+      throws InvalidProtocolBufferException {
+    try {
+      // With the outer limit set, an embedded message which runs past the end is reported as
+      // truncated, even if it ends at a field boundary.
+      in.pushLimit(length);
+      validateCommandRequest(in);
+    } catch (InvalidProtocolBufferException e) {
+      throw e;
+    } catch (IOException e) {
+      // The input is in memory, so only malformed input can fail.
+      throw new IllegalStateException("unreachable", e);
+    }
+  }
+
+  private static void validateCommandRequest(CodedInputStream in) throws IOException {
+    int command = 0;
+    SignTx signTx = null;
+    int encryptedPubKeys = 0;
+
+    int tag;
+    while ((tag = in.readTag()) != 0) {
+      int field = WireFormat.getTagFieldNumber(tag);
+      if (WireFormat.getTagWireType(tag) != WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+        in.skipField(tag);
+      } else if (field == CommandRequest.INITWALLET_FIELD_NUMBER) {
+        // We don't need to validate anything.
+        command = field;
+        in.skipField(tag);
+      } else if (field == CommandRequest.FINALIZEWALLET_FIELD_NUMBER) {
+        if (command != field) {
+          encryptedPubKeys = 0;
+        }
+        command = field;
+        int limit = in.pushLimit(in.readRawVarint32());
+        encryptedPubKeys = readFinalizeWallet(in, encryptedPubKeys);
+        in.popLimit(limit);
+      } else if (field == CommandRequest.SIGNTX_FIELD_NUMBER) {
+        if (command != field) {
+          signTx = new SignTx();
+        }
+        command = field;
+        int limit = in.pushLimit(in.readRawVarint32());
+        signTx.read(in);
+        in.popLimit(limit);
+      } else {
+        in.skipField(tag);
+      }
+    }
+
+    switch (command) {
+      case CommandRequest.INITWALLET_FIELD_NUMBER:
+      case CommandRequest.FINALIZEWALLET_FIELD_NUMBER:
+        break;
+      case CommandRequest.SIGNTX_FIELD_NUMBER:
+        signTx.validateFees();
+        break;
+      default:
+        throw new IllegalArgumentException("CommandRequest doesn't contain a command");
+    }
+  }
+
+  /**
+   * Reads one occurrence of FinalizeWalletRequest.
+   * @param count the number of encrypted_pub_keys in the previous occurrences.
+   * @return the number of encrypted_pub_keys so far.
+   */
+  private static int readFinalizeWallet(CodedInputStream in, int count) throws IOException {
+    int tag;
+    while ((tag = in.readTag()) != 0) {
+      if (tag != FINALIZE_WALLET_ENCRYPTED_PUB_KEYS_TAG) {
+        in.skipField(tag);
+        continue;
+      }
+      if (++count > Constants.ENCRYPTED_PUB_KEYS_MAX_COUNT) {
+        throw new VerificationException(ERROR_ENCRYPTED_PUB_KEYS_COUNT);
+      }
+      int limit = in.pushLimit(in.readRawVarint32());
+      int size = 0;
+      while ((tag = in.readTag()) != 0) {
+        if (tag == ENCRYPTED_PUB_KEY_TAG) {
+          size = skipBytes(in);
+        } else {
+          in.skipField(tag);
+        }
+      }
+      if (size > Constants.ENCRYPTED_PUB_KEY_MAX_SIZE) {
+        throw new VerificationException(ERROR_ENCRYPTED_PUB_KEY_SIZE);
+      }
+      in.popLimit(limit);
+    }
+    return count;
+  }
+
+  /**
+   * What's needed from a SignTxRequest, accumulated over its occurrences.
+   */
+  private static final class SignTx {
+    private int inputs;
+    private int outputs;
+    private Coin fee = Coin.ZERO;
+    private Coin total = Coin.ZERO;
+
+    /** Reads one occurrence of SignTxRequest. */
+    void read(CodedInputStream in) throws IOException {
+      int tag;
+      while ((tag = in.readTag()) != 0) {
+        if (tag == SIGN_TX_INPUTS_TAG) {
+          if (++inputs > Constants.INPUTS_COUNT_MAX) {
+            throw new VerificationException(ERROR_INPUTS_COUNT);
+          }
+          int limit = in.pushLimit(in.readRawVarint32());
+          readInput(in);
+          in.popLimit(limit);
+        } else if (tag == SIGN_TX_OUTPUTS_TAG) {
+          if (++outputs > Constants.OUTPUTS_COUNT_MAX) {
+            throw new VerificationException(ERROR_OUTPUTS_COUNT);
+          }
+          int limit = in.pushLimit(in.readRawVarint32());
+          readOutput(in);
+          in.popLimit(limit);
+        } else {
+          in.skipField(tag);
+        }
+      }
+    }
+
+    private void readInput(CodedInputStream in) throws IOException {
+      int prevHashSize = 0;
+      long amount = 0;
+      int tag;
+      while ((tag = in.readTag()) != 0) {
+        if (tag == TX_INPUT_PREV_HASH_TAG) {
+          prevHashSize = skipBytes(in);
+        } else if (tag == TX_INPUT_AMOUNT_TAG) {
+          amount = in.readUInt64();
+        } else {
+          in.skipField(tag);
+        }
+      }
+      if (prevHashSize > Constants.TXINPUT_PREV_HASH_MAX_SIZE) {
+        throw new VerificationException(ERROR_TXINPUT_PREV_HASH_SIZE);
+      }
+      fee = fee.add(Coin.valueOf(amount));
+    }
+
+    private void readOutput(CodedInputStream in) throws IOException {
+      long amount = 0;
+      Destination destination = Destination.DEFAULT_DESTINATION_DO_NOT_USE;
+      boolean isChange = false;
+      int tag;
+      while ((tag = in.readTag()) != 0) {
+        if (tag == TX_OUTPUT_AMOUNT_TAG) {
+          amount = in.readUInt64();
+        } else if (tag == TX_OUTPUT_DESTINATION_TAG) {
+          // Unknown values go to the unknown fields, and the previous value is kept.
+          Destination value = Destination.forNumber(in.readEnum());
+          if (value != null) {
+            destination = value;
+          }
+        } else if (tag == TX_OUTPUT_PATH_TAG) {
+          int limit = in.pushLimit(in.readRawVarint32());
+          while ((tag = in.readTag()) != 0) {
+            if (tag == PATH_IS_CHANGE_TAG) {
+              isChange = in.readBool();
+            } else {
+              in.skipField(tag);
+            }
+          }
+          in.popLimit(limit);
+        } else {
+          in.skipField(tag);
+        }
+      }
+
+      switch (destination) {
+        case CHANGE:
+          if (!isChange) {
+            throw new VerificationException(ERROR_INCONSISTENT_IS_CHANGE);
+          }
+          break;
+        case GATEWAY:
+          if (isChange) {
+            throw new VerificationException(ERROR_INCONSISTENT_IS_CHANGE);
+          }
+          total = total.add(Coin.valueOf(amount));
+          break;
+        default:
+          throw new VerificationException(ERROR_INVALID_DESTINATION);
+      }
+      fee = fee.subtract(Coin.valueOf(amount));
+    }
+
+    /** Same rules as SubzeroUtils.validateFees. */
+    void validateFees() {
+      if (fee.isNegative()) {
+        throw new VerificationException(ERROR_NEGATIVE_FEE);
+      }
+      if (fee.isGreaterThan(Coin.COIN) && fee.isGreaterThan(total.divide(10))) {
+        throw new VerificationException(ERROR_FEE_TOO_HIGH);
+      }
+    }
+  }
+
+  /** Skips a bytes field, after its tag. */
+  private static int skipBytes(CodedInputStream in) throws IOException {
+    int size = in.readRawVarint32();
+    in.skipRawBytes(size);
+    return size;
+  }
+
+  private static int lengthDelimited(int field) {
+    return field << 3 | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+  }
+
+  private static int varint(int field) {
+    return field << 3 | WireFormat.WIRETYPE_VARINT;
+  }
+}
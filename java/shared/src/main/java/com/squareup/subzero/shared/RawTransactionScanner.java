@@ -0,0 +1,299 @@
+package com.squareup.subzero.shared;
+
+import com.google.protobuf.ByteString;
+import com.squareup.subzero.proto.service.Common.TxInput;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import javax.annotation.Nullable;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Utils;
+
+import static java.lang.String.format;
+
+/**
+ * Finds the outputs paying a ColdWallet in raw blocks and transactions, and turns them into the
+ * TxInputs ColdWallet.startTransaction expects.
+ *
+ * The scanner reads the wire format directly from a ByteBuffer (which can be a memory-mapped
+ * block file) instead of deserializing bitcoinj Transactions. Scripts are never copied: an output
+ * is only looked at further if its script is P2SH (OP_HASH160 &lt;20 bytes&gt; OP_EQUAL), and its
+ * script hash is checked against the (optional) ScriptHashFilter and then the ScriptHashIndex in
+ * place. The txid is only computed for transactions which have a matching output.
+ *
+ * Only outputs within the range covered by the index are found, so the index should be extended
+ * past the gap limit before scanning.
+ *
+ * A scanner holds no mutable state, so it can be shared by threads scanning different blocks.
+ */
+public final class RawTransactionScanner {
+  private static final int BLOCK_HEADER_SIZE = 80;
+  private static final int P2SH_SCRIPT_SIZE = 23;
+
+  private final ScriptHashIndex index;
+  @Nullable private final ScriptHashFilter filter;
+
+  /**
+   * @param index the index of the wallet's script hashes.
+   * @param filter if not null, checked before the index. Worth it when the index doesn't fit in
+   *               memory.
+   */
+  public RawTransactionScanner(ScriptHashIndex index, @Nullable ScriptHashFilter filter) {
+    this.index = index;
+    this.filter = filter;
+  }
+
+  /**
+   * Scans a serialized transaction.
+   *
+   * @param tx the transaction, from its position to its limit.
+   * @return the wallet's outputs, in output order.
+   * @throws IllegalArgumentException if the transaction is malformed.
+   */
+  public List<TxInput> scanTransaction(ByteBuffer tx) {
+    List<TxInput> found = new ArrayList<>();
+    Reader reader = new Reader(tx);
+    scanTransaction(reader, found::add);
+    if (reader.offset != tx.limit()) {
+      throw new IllegalArgumentException("trailing bytes after transaction");
+    }
+    return found;
+  }
+
+  /**
+   * Scans a serialized block (as returned by getblock with verbosity 0).
+   *
+   * @param block the block, from its position to its limit.
+   * @return the wallet's outputs, in block order.
+   * @throws IllegalArgumentException if the block is malformed.
+   */
+  public List<TxInput> scanBlock(ByteBuffer block) {
+    List<TxInput> found = new ArrayList<>();
+    Reader reader = new Reader(block);
+    scanBlock(reader, found::add);
+    if (reader.offset != block.limit()) {
+      throw new IllegalArgumentException("trailing bytes after block");
+    }
+    return found;
+  }
+
+  /**
+   * Scans a bitcoind block file (blkNNNNN.dat): a sequence of records made of the network magic,
+   * the block size and the block. Scanning stops at the zero padding bitcoind preallocates.
+   *
+   * @param file the block file, which is memory-mapped.
+   * @param params the network, whose packet magic frames the records.
+   * @param sink receives the wallet's outputs, in file order.
+   * @throws IOException if the file can't be read.
+   * @throws IllegalArgumentException if the file is malformed.
+   */
+  public void scanBlockFile(File file, NetworkParameters params, Consumer<TxInput> sink)
+      throws IOException {
+    ByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    int magic = (int) params.getPacketMagic();
+    Reader reader = new Reader(buffer);
+    while (reader.offset + 8 <= buffer.limit()) {
+      // The magic is written big-endian, the size little-endian.
+      int recordMagic = reader.be.getInt(reader.offset);
+      if (recordMagic == 0) {
+        break;
+      }
+      if (recordMagic != magic) {
+        throw new IllegalArgumentException(format("%s: bad magic %x at offset %d", file,
+            recordMagic, reader.offset));
+      }
+      reader.skip(4);
+      long size = reader.readUint32();
+      long end = reader.offset + size;
+      scanBlock(reader, sink);
+      if (reader.offset != end) {
+        throw new IllegalArgumentException(format("%s: block size mismatch at offset %d", file,
+            reader.offset));
+      }
+    }
+  }
+
+  private void scanBlock(Reader reader, Consumer<TxInput> sink) {
+    reader.skip(BLOCK_HEADER_SIZE);
+    long count = reader.readVarInt();
+    for (long i = 0; i < count; i++) {
+      scanTransaction(reader, sink);
+    }
+  }
+
+  /**
+   * Parses one transaction. Segwit transactions (BIP-144) have a marker and flag after the
+   * version and the witnesses before the lock time, neither of which are part of the txid.
+   */
+  private void scanTransaction(Reader reader, Consumer<TxInput> sink) {
+    int start = reader.offset;
+    reader.skip(4); // version
+    boolean segwit = reader.peek(0) == 0 && reader.peek(1) == 1;
+    if (segwit) {
+      reader.skip(2);
+    }
+    int inputsStart = reader.offset;
+
+    long inputCount = reader.readVarInt();
+    for (long i = 0; i < inputCount; i++) {
+      reader.skip(36); // outpoint
+      reader.skip(reader.readVarInt()); // scriptSig
+      reader.skip(4); // sequence
+    }
+
+    // Matches are rare. They're collected as (output index, amount, packed path) until the txid
+    // is known.
+    long[] matches = null;
+    int matchCount = 0;
+    long outputCount = reader.readVarInt();
+    for (long i = 0; i < outputCount; i++) {
+      long amount = reader.readInt64();
+      long scriptSize = reader.readVarInt();
+      int script = reader.offset;
+      reader.skip(scriptSize);
+      if (scriptSize != P2SH_SCRIPT_SIZE
+          || reader.be.get(script) != (byte) 0xa9
+          || reader.be.get(script + 1) != 0x14
+          || reader.be.get(script + 22) != (byte) 0x87) {
+        continue;
+      }
+      if (filter != null && !filter.mightContain(reader.be, script + 2)) {
+        continue;
+      }
+      long packedPath = index.lookupPacked(reader.be, script + 2);
+      if (packedPath < 0) {
+        continue;
+      }
+      if (matches == null) {
+        matches = new long[3 * 4];
+      } else if (matches.length == 3 * matchCount) {
+        matches = Arrays.copyOf(matches, 2 * matches.length);
+      }
+      matches[3 * matchCount] = i;
+      matches[3 * matchCount + 1] = amount;
+      matches[3 * matchCount + 2] = packedPath;
+      matchCount++;
+    }
+    int outputsEnd = reader.offset;
+
+    if (segwit) {
+      for (long i = 0; i < inputCount; i++) {
+        long items = reader.readVarInt();
+        for (long j = 0; j < items; j++) {
+          reader.skip(reader.readVarInt());
+        }
+      }
+    }
+    int lockTime = reader.offset;
+    reader.skip(4);
+
+    if (matchCount == 0) {
+      return;
+    }
+    MessageDigest digest = Sha256Hash.newDigest();
+    reader.hash(digest, start, start + 4);
+    reader.hash(digest, inputsStart, outputsEnd);
+    reader.hash(digest, lockTime, lockTime + 4);
+    byte[] txid = digest.digest(digest.digest());
+    // TxInput.prev_hash is in the order txids are displayed in.
+    ByteString prevHash = ByteString.copyFrom(Utils.reverseBytes(txid));
+    for (int i = 0; i < matchCount; i++) {
+      sink.accept(TxInput.newBuilder()
+          .setPrevHash(prevHash)
+          .setPrevIndex((int) matches[3 * i])
+          .setAmount(matches[3 * i + 1])
+          .setPath(ScriptHashIndex.unpackPath((int) matches[3 * i + 2]))
+          .build());
+    }
+  }
+
+  /**
+   * Cursor over the buffer. Uses absolute reads, so the caller's buffer is never modified.
+   */
+  private static final class Reader {
+    /** Little-endian view, for the integers of the wire format. */
+    final ByteBuffer le;
+    /** Big-endian view, for script hashes. */
+    final ByteBuffer be;
+    final int limit;
+    int offset;
+
+    Reader(ByteBuffer buffer) {
+      le = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+      be = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+      limit = buffer.limit();
+      offset = buffer.position();
+    }
+
+    private void require(long size) {
+      if (size < 0 || size > limit - offset) {
+        throw new IllegalArgumentException(format("truncated data at offset %d", offset));
+      }
+    }
+
+    int peek(int i) {
+      require(i + 1);
+      return le.get(offset + i) & 0xff;
+    }
+
+    void skip(long size) {
+      require(size);
+      offset += (int) size;
+    }
+
+    long readUint32() {
+      require(4);
+      long r = le.getInt(offset) & 0xffffffffL;
+      offset += 4;
+      return r;
+    }
+
+    long readInt64() {
+      require(8);
+      long r = le.getLong(offset);
+      offset += 8;
+      return r;
+    }
+
+    /** Bitcoin's CompactSize. Values that don't fit in the buffer are caught by skip/require. */
+    long readVarInt() {
+      int first = peek(0);
+      offset++;
+      switch (first) {
+        case 0xfd:
+          require(2);
+          offset += 2;
+          return le.getShort(offset - 2) & 0xffff;
+        case 0xfe:
+          return readUint32();
+        case 0xff:
+          long r = readInt64();
+          if (r < 0) {
+            throw new IllegalArgumentException(format("invalid varint at offset %d", offset - 9));
+          }
+          return r;
+        default:
+          return first;
+      }
+    }
+
+    void hash(MessageDigest digest, int from, int to) {
+      ByteBuffer slice = be.duplicate();
+      slice.limit(to);
+      slice.position(from);
+      digest.update(slice);
+    }
+  }
+}
@@ -0,0 +1,37 @@
+package com.squareup.subzero.shared;
+
+import java.util.List;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+
+/**
+ * The reference SignatureVerifier, which uses bitcoinj's public key recovery.
+ *
+ * Recovery gives the key which verifies the signature, so a recovered key which is in pubkeys
+ * means the signature is valid for it. This costs about as much as one or two verifications,
+ * whereas verifying against each key costs up to pubkeys.size() verifications.
+ */
+public final class RecoverySignatureVerifier implements SignatureVerifier {
+  /** The verifier is stateless, so a single instance is enough. */
+  public static final RecoverySignatureVerifier INSTANCE = new RecoverySignatureVerifier();
+
+  private RecoverySignatureVerifier() {}
+
+  @Override
+  public int signer(List<ECKey> pubkeys, Sha256Hash message, ECKey.ECDSASignature signature) {
+    // The recovery id picks R among the (up to 4) points with x coordinate r. Ids 2 and 3 only
+    // exist when r + n is a valid x coordinate, which is extremely unlikely.
+    for (int recId = 0; recId < 4; recId++) {
+      ECKey recovered = ECKey.recoverFromSignature(recId, signature, message, true);
+      if (recovered == null) {
+        continue;
+      }
+      for (int i = 0; i < pubkeys.size(); i++) {
+        if (recovered.getPubKeyPoint().equals(pubkeys.get(i).getPubKeyPoint())) {
+          return i;
+        }
+      }
+    }
+    return -1;
+  }
+}
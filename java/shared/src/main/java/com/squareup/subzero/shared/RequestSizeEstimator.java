@@ -0,0 +1,287 @@
+package com.squareup.subzero.shared;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.squareup.subzero.proto.service.Common.EncryptedMasterSeed;
+import com.squareup.subzero.proto.service.Common.EncryptedPubKey;
+import com.squareup.subzero.proto.service.Common.Signature;
+import com.squareup.subzero.proto.service.Common.TxInput;
+import com.squareup.subzero.proto.service.Common.TxOutput;
+import com.squareup.subzero.proto.service.Internal.InternalCommandRequest;
+import com.squareup.subzero.proto.service.Service.CommandRequest;
+import com.squareup.subzero.proto.service.Service.CommandResponse;
+
+/**
+ * Computes the exact encoded size of a SignTx CommandRequest as inputs and outputs are added,
+ * without building it. Also computes the size of the forms the request takes on its way to the
+ * HSM: signed for the QR code, encoded in the QR code, and as an InternalCommandRequest.
+ *
+ * Repeated fields are encoded one after the other, so the size of a SignTxRequest is the size of
+ * its other fields plus the size of each input and output. The only thing which isn't additive is
+ * the length prefix of the SignTxRequest (and of the embedded request, when signed), which is
+ * recomputed when needed.
+ *
+ * Nanopb (in core) encodes the same bytes as protobuf-java, as long as the fields are within the
+ * limits of the .options files (e.g. TxInput.prev_hash is exactly 32 bytes), so the sizes also
+ * apply to the core side.
+ */
+public final class RequestSizeEstimator {
+  /** Size of a worst-case Signature in a SignTxResponse, including its tag and length. */
+  static final int RESPONSE_SIGNATURE_SIZE = CodedOutputStream.computeMessageSize(
+      CommandResponse.SignTxResponse.SIGNATURES_FIELD_NUMBER,
+      Signature.newBuilder()
+          .setDer(ByteString.copyFrom(new byte[Constants.SIGNATURE_DER_MAX_SIZE]))
+          .setHash(ByteString.copyFrom(new byte[Constants.SIGNATURE_HASH_SIZE]))
+          .build());
+
+  /** Size of the qrsignature field, with a full size signature. */
+  private static final int QR_SIGNATURE_FIELD_SIZE =
+      CodedOutputStream.computeTagSize(CommandRequest.QRSIGNATURE_FIELD_NUMBER)
+          + 1 + (1 + 1 + Constants.QR_SIGNATURE_SIZE);
+
+  private final CommandRequest template;
+  /** Size of the CommandRequest, without the SignTx field. */
+  private final int commandSize;
+  /** Size of the template's SignTxRequest. */
+  private final int signTxSize;
+  private final int tokenSize;
+  /** Size of the inputs and outputs added to the template. */
+  private int elementsSize;
+  private int inputCount;
+  private int outputCount;
+
+  /**
+   * @param template the request without the inputs and outputs which will be added, e.g. what
+   *                 ColdWallet.startTransaction returns for empty lists.
+   * @throws IllegalArgumentException if the template isn't a SignTx request.
+   */
+  public RequestSizeEstimator(CommandRequest template) {
+    if (!template.hasSignTx()) {
+      throw new IllegalArgumentException("template should be a SignTx request");
+    }
+    this.template = template;
+    signTxSize = template.getSignTx().getSerializedSize();
+    commandSize = template.getSerializedSize()
+        - CodedOutputStream.computeMessageSize(CommandRequest.SIGNTX_FIELD_NUMBER,
+        template.getSignTx());
+    tokenSize = template.hasToken()
+        ? CodedOutputStream.computeStringSize(CommandResponse.TOKEN_FIELD_NUMBER,
+        template.getToken())
+        : 0;
+    inputCount = template.getSignTx().getInputsCount();
+    outputCount = template.getSignTx().getOutputsCount();
+  }
+
+  /**
+   * @param input an input.
+   * @return the number of bytes the input adds to a SignTxRequest.
+   */
+  public static int inputSize(TxInput input) {
+    return CodedOutputStream.computeMessageSize(
+        CommandRequest.SignTxRequest.INPUTS_FIELD_NUMBER, input);
+  }
+
+  /**
+   * @param output an output.
+   * @return the number of bytes the output adds to a SignTxRequest.
+   */
+  public static int outputSize(TxOutput output) {
+    return CodedOutputStream.computeMessageSize(
+        CommandRequest.SignTxRequest.OUTPUTS_FIELD_NUMBER, output);
+  }
+
+  /**
+   * @param size the size of some data.
+   * @return the size of the data once base64 encoded (with padding).
+   */
+  public static int base64Size(int size) {
+    return (size + 2) / 3 * 4;
+  }
+
+  public RequestSizeEstimator addInput(TxInput input) {
+    elementsSize += inputSize(input);
+    inputCount++;
+    return this;
+  }
+
+  public RequestSizeEstimator addOutput(TxOutput output) {
+    elementsSize += outputSize(output);
+    outputCount++;
+    return this;
+  }
+
+  /**
+   * Undoes addInput.
+   *
+   * @param input an input previously added.
+   * @return this.
+   */
+  public RequestSizeEstimator removeInput(TxInput input) {
+    elementsSize -= inputSize(input);
+    inputCount--;
+    return this;
+  }
+
+  /**
+   * Undoes addOutput.
+   *
+   * @param output an output previously added.
+   * @return this.
+   */
+  public RequestSizeEstimator removeOutput(TxOutput output) {
+    elementsSize -= outputSize(output);
+    outputCount--;
+    return this;
+  }
+
+  public int getInputCount() {
+    return inputCount;
+  }
+
+  public int getOutputCount() {
+    return outputCount;
+  }
+
+  /**
+   * @return the size of the CommandRequest.
+   */
+  public int requestSize() {
+    return commandSize + lengthDelimitedSize(CommandRequest.SIGNTX_FIELD_NUMBER,
+        signTxSize + elementsSize);
+  }
+
+  /**
+   * Size of the request once signed for the QR code: the request, with the serialized request
+   * (serialized_command_request) and its signature (qrsignature) appended.
+   *
+   * @return the size of the signed CommandRequest.
+   */
+  public int signedRequestSize() {
+    int size = requestSize();
+    return size
+        + lengthDelimitedSize(CommandRequest.SERIALIZED_COMMAND_REQUEST_FIELD_NUMBER, size)
+        + QR_SIGNATURE_FIELD_SIZE;
+  }
+
+  /**
+   * @param signed whether the request is signed for the QR code.
+   * @return the size of the request, as encoded in the QR code.
+   */
+  public int requestSize(boolean signed) {
+    return signed ? signedRequestSize() : requestSize();
+  }
+
+  /**
+   * @param signed whether the request is signed for the QR code.
+   * @return the number of characters of the QR code.
+   */
+  public int qrPayloadSize(boolean signed) {
+    return qrPayloadSize(signed, QrPayload.Encoding.BASE64);
+  }
+
+  /**
+   * @param signed whether the request is signed for the QR code.
+   * @param encoding the encoding of the QR code.
+   * @return the number of characters of the QR code.
+   */
+  public int qrPayloadSize(boolean signed, QrPayload.Encoding encoding) {
+    return encoding.payloadSize(requestSize(signed));
+  }
+
+  /**
+   * @return the size of the SignTx CommandResponse, assuming signatures have the maximum size.
+   */
+  public int responseSize() {
+    return tokenSize + lengthDelimitedSize(CommandResponse.SIGNTX_FIELD_NUMBER,
+        inputCount * RESPONSE_SIGNATURE_SIZE);
+  }
+
+  /**
+   * Size of the InternalCommandRequest the GUI sends to core for this request (see
+   * actions.SignTx).
+   *
+   * @param internalTemplate the InternalCommandRequest, without the inputs and outputs of this
+   *                         estimator, serialized_command_request and qrsignature.
+   * @param signed whether the request is signed for the QR code, in which case the signed request
+   *               is forwarded in serialized_command_request and qrsignature.
+   * @return the size of the InternalCommandRequest.
+   */
+  public int internalRequestSize(InternalCommandRequest internalTemplate, boolean signed) {
+    InternalCommandRequest.SignTxRequest signTx = internalTemplate.getSignTx();
+    int size = internalTemplate.getSerializedSize()
+        - CodedOutputStream.computeMessageSize(InternalCommandRequest.SIGNTX_FIELD_NUMBER, signTx)
+        + lengthDelimitedSize(InternalCommandRequest.SIGNTX_FIELD_NUMBER,
+        signTx.getSerializedSize() + elementsSize);
+    if (signed) {
+      size += lengthDelimitedSize(InternalCommandRequest.SERIALIZED_COMMAND_REQUEST_FIELD_NUMBER,
+          requestSize())
+          + QR_SIGNATURE_FIELD_SIZE;
+    }
+    return size;
+  }
+
+  /**
+   * Same as internalRequestSize, with the encrypted wallet and the tickets at the maximum sizes
+   * in Constants.
+   *
+   * @param signed whether the request is signed for the QR code.
+   * @return the largest size the InternalCommandRequest can have.
+   */
+  public int worstCaseInternalRequestSize(boolean signed) {
+    EncryptedPubKey encryptedPubKey = EncryptedPubKey.newBuilder()
+        .setEncryptedPubKey(ByteString.copyFrom(new byte[Constants.ENCRYPTED_PUB_KEY_MAX_SIZE]))
+        .build();
+    InternalCommandRequest.SignTxRequest.Builder signTx =
+        InternalCommandRequest.SignTxRequest.newBuilder()
+            .setEncryptedMasterSeed(EncryptedMasterSeed.newBuilder()
+                .setEncryptedMasterSeed(
+                    ByteString.copyFrom(new byte[Constants.ENCRYPTED_MASTER_SEED_MAX_SIZE])))
+            .setLockTime(template.getSignTx().getLockTime());
+    for (int i = 0; i < Constants.ENCRYPTED_PUB_KEYS_MAX_COUNT; i++) {
+      signTx.addEncryptedPubKeys(encryptedPubKey);
+    }
+    InternalCommandRequest internalTemplate = InternalCommandRequest.newBuilder()
+        .setVersion(Constants.VERSION)
+        .setWalletId(template.getWalletId())
+        .setMasterSeedEncryptionKeyTicket(
+            ByteString.copyFrom(new byte[Constants.MASTER_SEED_ENCRYPTION_KEY_TICKET_MAX_SIZE]))
+        .setPubKeyEncryptionKeyTicket(
+            ByteString.copyFrom(new byte[Constants.PUB_KEY_ENCRYPTION_KEY_TICKET_MAX_SIZE]))
+        .setSignTx(signTx)
+        .build();
+    return internalRequestSize(internalTemplate, signed);
+  }
+
+  /**
+   * Checks the request and the responses fit in QR codes, and the limits of core (see
+   * core/proto/*.options).
+   *
+   * @param signed whether the request is signed for the QR code.
+   * @return true if the request can be signed by Subzero.
+   */
+  public boolean fits(boolean signed) {
+    return fits(signed, QrPayload.Encoding.BASE64);
+  }
+
+  /**
+   * Same as fits, for QR codes in the given encoding. The GUI responds in the encoding of the
+   * request.
+   *
+   * @param signed whether the request is signed for the QR code.
+   * @param encoding the encoding of the QR codes.
+   * @return true if the request can be signed by Subzero.
+   */
+  public boolean fits(boolean signed, QrPayload.Encoding encoding) {
+    return inputCount <= Constants.INPUTS_COUNT_MAX
+        && outputCount <= Constants.OUTPUTS_COUNT_MAX
+        && template.getTokenBytes().size() <= Constants.TOKEN_MAX_SIZE
+        && requestSize(signed) <= encoding.getMaxProtoBytes()
+        && responseSize() <= encoding.getMaxProtoBytes()
+        && (!signed || requestSize() <= Constants.SERIALIZED_COMMAND_REQUEST_MAX_SIZE);
+  }
+
+  private static int lengthDelimitedSize(int fieldNumber, int size) {
+    return CodedOutputStream.computeTagSize(fieldNumber)
+        + CodedOutputStream.computeUInt32SizeNoTag(size) + size;
+  }
+}
@@ -0,0 +1,265 @@
+package com.squareup.subzero.shared;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.lang.String.format;
+
+/**
+ * Bloom filter over the P2SH script hashes of a ColdWallet, for the indexes [0, receiveEnd) and
+ * [0, changeEnd).
+ *
+ * Meant to be checked against every output of a block before looking the script hash up in
+ * ScriptHashIndex: a negative answer is always right, a positive answer is wrong with probability
+ * falsePositiveRate().
+ *
+ * The script hashes are already uniformly distributed, so rather than hashing them again the bit
+ * positions come from their first 16 bytes (double hashing: h1 + i * h2). The number of bits is a
+ * power of two, so positions are computed with a mask.
+ *
+ * The filter is immutable. It can be written to a file and memory-mapped (read-only) by another
+ * process, which avoids deriving the window again.
+ *
+ * File layout (big-endian):
+ *   header (64 bytes): magic, format version, log2(number of bits), number of hash functions,
+ *                      receive end, change end, wallet fingerprint (32 bytes), padding.
+ *   the bits, as 64-bit words.
+ */
+public final class ScriptHashFilter {
+  static final int MAGIC = 0x535a4246; // "SZBF"
+  static final int FORMAT_VERSION = 1;
+  static final int HEADER_SIZE = 64;
+  static final int MIN_LOG2_BITS = 6;
+  /** 2^33 bits is 1GB, which keeps the filter within a single mapping (2GB). */
+  static final int MAX_LOG2_BITS = 33;
+  static final int MAX_HASH_FUNCTIONS = 30;
+  /** Number of script hashes derived at a time when building the filter. */
+  private static final int BUILD_CHUNK_SIZE = 1 << 16;
+
+  private static final int OFFSET_MAGIC = 0;
+  private static final int OFFSET_VERSION = 4;
+  private static final int OFFSET_LOG2_BITS = 8;
+  private static final int OFFSET_HASH_FUNCTIONS = 12;
+  private static final int OFFSET_RECEIVE_END = 16;
+  private static final int OFFSET_CHANGE_END = 20;
+  private static final int OFFSET_FINGERPRINT = 24;
+
+  /** Header followed by the bits. Never modified once the filter is built. */
+  private final ByteBuffer buffer;
+  private final long mask;
+  private final int hashFunctions;
+
+  private ScriptHashFilter(ByteBuffer buffer) {
+    this.buffer = buffer;
+    this.mask = (1L << buffer.getInt(OFFSET_LOG2_BITS)) - 1;
+    this.hashFunctions = buffer.getInt(OFFSET_HASH_FUNCTIONS);
+  }
+
+  /**
+   * Derives the script hashes of the wallet and builds a filter over them.
+   *
+   * @param wallet the wallet.
+   * @param receiveEnd the number of receive (is_change = false) indexes to include.
+   * @param changeEnd the number of change (is_change = true) indexes to include.
+   * @param falsePositiveRate the target false positive rate, between 0 and 1 (exclusive). The
+   *                          actual rate is lower, because the number of bits is rounded up to a
+   *                          power of two.
+   * @return the filter.
+   * @throws IllegalArgumentException if the parameters are out of range, or the filter would be
+   *         larger than 2^MAX_LOG2_BITS bits.
+   */
+  public static ScriptHashFilter build(ColdWallet wallet, int receiveEnd, int changeEnd,
+      double falsePositiveRate) {
+    if (receiveEnd < 0 || changeEnd < 0) {
+      throw new IllegalArgumentException("receiveEnd and changeEnd can't be negative");
+    }
+    if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+      throw new IllegalArgumentException("falsePositiveRate should be between 0 and 1");
+    }
+
+    // Standard Bloom filter sizing: m = -n ln(p) / ln(2)^2, k = (m / n) ln(2).
+    long entries = Math.max(1L, (long) receiveEnd + changeEnd);
+    double optimalBits = -entries * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+    int log2Bits = MIN_LOG2_BITS;
+    while ((double) (1L << log2Bits) < optimalBits) {
+      if (log2Bits == MAX_LOG2_BITS) {
+        throw new IllegalArgumentException(format(
+            "filter for %d entries at false positive rate %g is too large", entries,
+            falsePositiveRate));
+      }
+      log2Bits++;
+    }
+    long bits = 1L << log2Bits;
+    int hashFunctions = (int) Math.max(1,
+        Math.min(MAX_HASH_FUNCTIONS, Math.round((double) bits / entries * Math.log(2))));
+
+    ByteBuffer buffer = ByteBuffer.allocate((int) (HEADER_SIZE + bits / 8));
+    buffer.putInt(OFFSET_MAGIC, MAGIC);
+    buffer.putInt(OFFSET_VERSION, FORMAT_VERSION);
+    buffer.putInt(OFFSET_LOG2_BITS, log2Bits);
+    buffer.putInt(OFFSET_HASH_FUNCTIONS, hashFunctions);
+    buffer.putInt(OFFSET_RECEIVE_END, receiveEnd);
+    buffer.putInt(OFFSET_CHANGE_END, changeEnd);
+    byte[] fingerprint = wallet.fingerprint();
+    for (int i = 0; i < fingerprint.length; i++) {
+      buffer.put(OFFSET_FINGERPRINT + i, fingerprint[i]);
+    }
+
+    ScriptHashFilter filter = new ScriptHashFilter(buffer);
+    filter.addRange(wallet, false, receiveEnd);
+    filter.addRange(wallet, true, changeEnd);
+    return filter;
+  }
+
+  /** Only called while building, before the filter is published. */
+  private void addRange(ColdWallet wallet, boolean isChange, int end) {
+    for (int from = 0; from < end; from += BUILD_CHUNK_SIZE) {
+      List<byte[]> scriptHashes =
+          wallet.scriptHashes(isChange, from, Math.min(BUILD_CHUNK_SIZE, end - from));
+      for (byte[] scriptHash : scriptHashes) {
+        long h1 = SubzeroUtils.packScriptHash(scriptHash, 0);
+        long h2 = SubzeroUtils.packScriptHash(scriptHash, 8) | 1;
+        for (int i = 0; i < hashFunctions; i++) {
+          long bit = (h1 + i * h2) & mask;
+          int offset = HEADER_SIZE + (int) (bit >>> 6) * 8;
+          buffer.putLong(offset, buffer.getLong(offset) | (1L << bit));
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes the filter to a file, which can be loaded with map().
+   *
+   * @param file the file to write. It is overwritten if it exists.
+   * @throws IOException on error.
+   */
+  public void writeTo(File file) throws IOException {
+    ByteBuffer src = buffer.duplicate();
+    src.clear();
+    try (FileOutputStream out = new FileOutputStream(file)) {
+      FileChannel channel = out.getChannel();
+      while (src.hasRemaining()) {
+        channel.write(src);
+      }
+      channel.force(true);
+    }
+  }
+
+  /**
+   * Memory-maps a filter written by writeTo().
+   *
+   * @param file the filter file.
+   * @param wallet the wallet the filter was built for.
+   * @return the filter.
+   * @throws IOException if the file can't be read or isn't a valid filter.
+   * @throws IllegalArgumentException if the filter was built for a different wallet.
+   */
+  public static ScriptHashFilter map(File file, ColdWallet wallet) throws IOException {
+    ByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      if (channel.size() < HEADER_SIZE) {
+        throw new IOException(format("%s: file too short", file));
+      }
+      // The mapping stays valid after the channel is closed.
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+
+    int magic = buffer.getInt(OFFSET_MAGIC);
+    int version = buffer.getInt(OFFSET_VERSION);
+    if (magic != MAGIC || version != FORMAT_VERSION) {
+      throw new IOException(format("%s: not a script hash filter (magic %x, version %d)", file,
+          magic, version));
+    }
+    int log2Bits = buffer.getInt(OFFSET_LOG2_BITS);
+    int hashFunctions = buffer.getInt(OFFSET_HASH_FUNCTIONS);
+    if (log2Bits < MIN_LOG2_BITS || log2Bits > MAX_LOG2_BITS
+        || buffer.capacity() != HEADER_SIZE + (1L << log2Bits) / 8) {
+      throw new IOException(format("%s: invalid size", file));
+    }
+    if (hashFunctions < 1 || hashFunctions > MAX_HASH_FUNCTIONS) {
+      throw new IOException(format("%s: invalid number of hash functions %d", file,
+          hashFunctions));
+    }
+    byte[] fingerprint = new byte[32];
+    for (int i = 0; i < fingerprint.length; i++) {
+      fingerprint[i] = buffer.get(OFFSET_FINGERPRINT + i);
+    }
+    if (!Arrays.equals(fingerprint, wallet.fingerprint())) {
+      throw new IllegalArgumentException(format("%s: filter belongs to a different wallet", file));
+    }
+    return new ScriptHashFilter(buffer);
+  }
+
+  /**
+   * @param scriptHash a 20-byte script hash.
+   * @return false if the script hash definitely isn't one of the wallet's, true if it probably is.
+   */
+  public boolean mightContain(byte[] scriptHash) {
+    if (scriptHash.length != 20) {
+      throw new IllegalArgumentException("scriptHash should be 20 bytes");
+    }
+    return mightContain(ByteBuffer.wrap(scriptHash), 0);
+  }
+
+  /**
+   * Allocation-free variant of mightContain, meant for scanning raw blocks.
+   *
+   * @param src the buffer containing the script hash. Its position and byte order are ignored.
+   * @param offset the absolute offset of the 20-byte script hash in src.
+   * @return false if the script hash definitely isn't one of the wallet's, true if it probably is.
+   */
+  public boolean mightContain(ByteBuffer src, int offset) {
+    long h1 = src.getLong(offset);
+    long h2 = src.getLong(offset + 8);
+    if (src.order() != ByteOrder.BIG_ENDIAN) {
+      h1 = Long.reverseBytes(h1);
+      h2 = Long.reverseBytes(h2);
+    }
+    h2 |= 1;
+    for (int i = 0; i < hashFunctions; i++) {
+      long bit = (h1 + i * h2) & mask;
+      if ((buffer.getLong(HEADER_SIZE + (int) (bit >>> 6) * 8) & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @param isChange which chain.
+   * @return the number of indexes of the chain covered by the filter.
+   */
+  public int end(boolean isChange) {
+    return buffer.getInt(isChange ? OFFSET_CHANGE_END : OFFSET_RECEIVE_END);
+  }
+
+  /**
+   * @return the number of bits in the filter.
+   */
+  public long bits() {
+    return mask + 1;
+  }
+
+  /**
+   * @return the number of hash functions.
+   */
+  public int hashFunctions() {
+    return hashFunctions;
+  }
+
+  /**
+   * @return the expected false positive rate, (1 - e^(-kn/m))^k.
+   */
+  public double falsePositiveRate() {
+    long entries = (long) end(false) + end(true);
+    return Math.pow(1 - Math.exp(-(double) hashFunctions * entries / bits()), hashFunctions);
+  }
+}
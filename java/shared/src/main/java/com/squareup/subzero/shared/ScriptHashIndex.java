@@ -0,0 +1,451 @@
+package com.squareup.subzero.shared;
+
+import com.squareup.subzero.proto.service.Common.Path;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import javax.annotation.Nullable;
+
+import static java.lang.String.format;
+
+/**
+ * Maps P2SH script hashes back to the ColdWallet Path they were derived from.
+ *
+ * The index is an open-addressing hash table (linear probing) stored in a memory-mapped file, so it
+ * lives off-heap and reopening it doesn't require any derivation. The index remembers how far
+ * each chain (receive and change) has been derived, so it can be extended as the gap limit
+ * advances.
+ *
+ * File layout (big-endian):
+ *   header (64 bytes): magic, format version, capacity, size, receive end, change end,
+ *                      wallet fingerprint (32 bytes), clean flag, padding.
+ *   capacity slots (24 bytes each): 20-byte script hash, 4-byte packed path.
+ * The packed path is is_change in the top bit and the index in the low 31 bits. An all-zero slot
+ * is empty; an all-zero script hash would require a HASH160 preimage, so can't be a real entry.
+ *
+ * Extending writes each chunk's slots, forces them, then updates the size and ends. The clean
+ * flag is cleared while the index is being extended and set again by close(). Opening a clean
+ * index only reads the header; after a crash, the entries are counted again, since the last
+ * chunk's slots may be written without the header counting them.
+ *
+ * Lookups can run concurrently. Extending the index blocks lookups while it runs.
+ */
+public final class ScriptHashIndex implements Closeable {
+  static final int MAGIC = 0x535a4958; // "SZIX"
+  static final int FORMAT_VERSION = 1;
+  static final int HEADER_SIZE = 64;
+  static final int SLOT_SIZE = 24;
+  static final int MIN_CAPACITY = 1 << 10;
+  /** 2^26 slots is 1.5GB, which keeps the file within a single mapping (2GB). */
+  static final int MAX_CAPACITY = 1 << 26;
+  /** Number of script hashes derived at a time when extending the index. */
+  private static final int EXTEND_CHUNK_SIZE = 1 << 16;
+
+  static final int OFFSET_MAGIC = 0;
+  static final int OFFSET_VERSION = 4;
+  static final int OFFSET_CAPACITY = 8;
+  static final int OFFSET_SIZE = 12;
+  static final int OFFSET_RECEIVE_END = 16;
+  static final int OFFSET_CHANGE_END = 20;
+  static final int OFFSET_FINGERPRINT = 24;
+  static final int OFFSET_CLEAN = 56;
+
+  private final File file;
+  private final ColdWallet wallet;
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private FileChannel channel;
+  private MappedByteBuffer buffer;
+  private int capacity;
+  private int size;
+
+  private ScriptHashIndex(File file, ColdWallet wallet) {
+    this.file = file;
+    this.wallet = wallet;
+  }
+
+  /**
+   * Opens the index stored in file, or creates an empty one if the file doesn't exist.
+   *
+   * @param file the index file.
+   * @param wallet the wallet whose script hashes are indexed.
+   * @return the index.
+   * @throws IOException if the file can't be read or isn't a valid index.
+   * @throws IllegalArgumentException if the file is the index of a different wallet.
+   */
+  public static ScriptHashIndex open(File file, ColdWallet wallet) throws IOException {
+    ScriptHashIndex index = new ScriptHashIndex(file, wallet);
+    if (file.exists()) {
+      index.load();
+    } else {
+      index.create();
+    }
+    return index;
+  }
+
+  private void create() throws IOException {
+    channel = newTable(file, MIN_CAPACITY);
+    buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize(MIN_CAPACITY));
+    capacity = MIN_CAPACITY;
+    size = 0;
+    buffer.putInt(OFFSET_MAGIC, MAGIC);
+    buffer.putInt(OFFSET_VERSION, FORMAT_VERSION);
+    buffer.putInt(OFFSET_CAPACITY, capacity);
+    buffer.putInt(OFFSET_SIZE, size);
+    buffer.putInt(OFFSET_RECEIVE_END, 0);
+    buffer.putInt(OFFSET_CHANGE_END, 0);
+    buffer.putInt(OFFSET_CLEAN, 1);
+    byte[] fingerprint = wallet.fingerprint();
+    for (int i = 0; i < fingerprint.length; i++) {
+      buffer.put(OFFSET_FINGERPRINT + i, fingerprint[i]);
+    }
+    buffer.force();
+  }
+
+  private void load() throws IOException {
+    channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    if (channel.size() < HEADER_SIZE) {
+      channel.close();
+      throw new IOException(format("%s: file too short", file));
+    }
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    channel.read(header, 0);
+    int magic = header.getInt(OFFSET_MAGIC);
+    int version = header.getInt(OFFSET_VERSION);
+    int storedCapacity = header.getInt(OFFSET_CAPACITY);
+    int storedSize = header.getInt(OFFSET_SIZE);
+    int receiveEnd = header.getInt(OFFSET_RECEIVE_END);
+    int changeEnd = header.getInt(OFFSET_CHANGE_END);
+    boolean clean = header.getInt(OFFSET_CLEAN) == 1;
+    if (magic != MAGIC || version != FORMAT_VERSION) {
+      channel.close();
+      throw new IOException(format("%s: not a script hash index (magic %x, version %d)", file,
+          magic, version));
+    }
+    if (Integer.bitCount(storedCapacity) != 1 || storedCapacity < MIN_CAPACITY
+        || storedCapacity > MAX_CAPACITY || channel.size() != fileSize(storedCapacity)) {
+      channel.close();
+      throw new IOException(format("%s: invalid capacity %d", file, storedCapacity));
+    }
+    if (storedSize < 0 || storedSize > storedCapacity || receiveEnd < 0 || changeEnd < 0) {
+      channel.close();
+      throw new IOException(format("%s: invalid header (size %d, receive end %d, change end %d)",
+          file, storedSize, receiveEnd, changeEnd));
+    }
+    byte[] fingerprint = new byte[32];
+    for (int i = 0; i < fingerprint.length; i++) {
+      fingerprint[i] = header.get(OFFSET_FINGERPRINT + i);
+    }
+    if (!Arrays.equals(fingerprint, wallet.fingerprint())) {
+      channel.close();
+      throw new IllegalArgumentException(format("%s: index belongs to a different wallet", file));
+    }
+    capacity = storedCapacity;
+    buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize(capacity));
+
+    size = storedSize;
+    if (!clean) {
+      // extendTo was interrupted. The last chunk's slots may be written without the stored size
+      // counting them, and extending again would skip them as duplicates, so count them here.
+      size = 0;
+      for (int slot = 0; slot < capacity; slot++) {
+        if (!isEmpty(buffer, slotOffset(slot))) {
+          size++;
+        }
+      }
+    }
+    // Lookups rely on the table never being full.
+    if ((long) size * 2 > capacity) {
+      channel.close();
+      throw new IOException(format("%s: %d entries exceed the capacity %d", file, size,
+          capacity));
+    }
+    buffer.putInt(OFFSET_SIZE, size);
+  }
+
+  /**
+   * Creates a file for an empty table. The file is extended with setLength, which zero fills it
+   * (ftruncate semantics), so every slot starts empty.
+   */
+  private static FileChannel newTable(File file, int capacity) throws IOException {
+    try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+      f.setLength(0);
+      f.setLength(fileSize(capacity));
+    }
+    return FileChannel.open(file.toPath(), StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+  }
+
+  private static long fileSize(int capacity) {
+    return HEADER_SIZE + (long) capacity * SLOT_SIZE;
+  }
+
+  /**
+   * Derives and indexes the script hashes for the indexes [end(isChange), end). Does nothing if
+   * the index already covers the range. The derivation runs in parallel (see
+   * ColdWallet.scriptHashes).
+   *
+   * @param isChange which chain to extend.
+   * @param end the new end of the chain, exclusive.
+   * @throws IOException if the index file can't be grown.
+   * @throws IllegalStateException if the index would exceed MAX_CAPACITY.
+   */
+  public void extendTo(boolean isChange, int end) throws IOException {
+    lock.writeLock().lock();
+    try {
+      int from = endLocked(isChange);
+      if (from >= end) {
+        return;
+      }
+      markClean(false);
+      while (from < end) {
+        int count = Math.min(EXTEND_CHUNK_SIZE, end - from);
+        ensureCapacity(size + count);
+        List<byte[]> scriptHashes = wallet.scriptHashes(isChange, from, count);
+        for (int i = 0; i < count; i++) {
+          if (insert(buffer, capacity, ByteBuffer.wrap(scriptHashes.get(i)), 0,
+              packPath(isChange, from + i))) {
+            size++;
+          }
+        }
+        from += count;
+        // The header only counts slots which are on disk.
+        buffer.force();
+        buffer.putInt(OFFSET_SIZE, size);
+        buffer.putInt(isChange ? OFFSET_CHANGE_END : OFFSET_RECEIVE_END, from);
+      }
+      buffer.force();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * How far a chain has been indexed.
+   *
+   * @param isChange which chain.
+   * @return the first index which hasn't been indexed yet.
+   */
+  public int end(boolean isChange) {
+    lock.readLock().lock();
+    try {
+      return endLocked(isChange);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private int endLocked(boolean isChange) {
+    return buffer.getInt(isChange ? OFFSET_CHANGE_END : OFFSET_RECEIVE_END);
+  }
+
+  /**
+   * Number of script hashes in the index.
+   *
+   * @return the number of entries.
+   */
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return size;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Looks up the Path a script hash was derived from.
+   *
+   * @param scriptHash the 20-byte script hash.
+   * @return the Path, or null if the script hash isn't in the index.
+   */
+  @Nullable public Path lookup(byte[] scriptHash) {
+    if (scriptHash.length != 20) {
+      throw new IllegalArgumentException("scriptHash should be 20 bytes");
+    }
+    long packed = lookupPacked(ByteBuffer.wrap(scriptHash), 0);
+    if (packed < 0) {
+      return null;
+    }
+    return unpackPath((int) packed);
+  }
+
+  /**
+   * Allocation-free lookup, meant for scanning raw blocks.
+   *
+   * @param src the buffer containing the script hash. Its position and byte order are ignored.
+   * @param offset the absolute offset of the 20-byte script hash in src.
+   * @return the packed path (see unpackPath), as an unsigned value, or -1 if the script hash
+   *         isn't in the index.
+   */
+  public long lookupPacked(ByteBuffer src, int offset) {
+    if (src.order() != ByteOrder.BIG_ENDIAN) {
+      src = src.duplicate().order(ByteOrder.BIG_ENDIAN);
+    }
+    lock.readLock().lock();
+    try {
+      int base = slotOffset(findSlot(buffer, capacity, src, offset));
+      if (isEmpty(buffer, base)) {
+        return -1;
+      }
+      return buffer.getInt(base + 20) & 0xffffffffL;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Packs a path into an int: is_change in the top bit, index in the low 31 bits.
+   *
+   * @param isChange the is_change component of the path.
+   * @param index the index component of the path, between 0 and 2^31-1.
+   * @return the packed path.
+   */
+  public static int packPath(boolean isChange, int index) {
+    return (isChange ? 0x80000000 : 0) | index;
+  }
+
+  /**
+   * Inverse of packPath.
+   *
+   * @param packed the packed path.
+   * @return the Path.
+   */
+  public static Path unpackPath(int packed) {
+    return SubzeroUtils.newPath(packed < 0, packed & 0x7fffffff);
+  }
+
+  /**
+   * Flushes the index to disk, marks it clean and closes the file. The mapping itself is released when the
+   * buffer is garbage collected.
+   *
+   * @throws IOException on error.
+   */
+  @Override public void close() throws IOException {
+    lock.writeLock().lock();
+    try {
+      buffer.force();
+      markClean(true);
+      channel.close();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Grows the table, if needed, so it can hold entries with a load factor of at most 1/2. The
+   * new table is written next to the index and atomically moved over it, so a crash leaves
+   * either the old or the new index.
+   */
+  private void ensureCapacity(int entries) throws IOException {
+    int newCapacity = capacity;
+    while ((long) entries * 2 > newCapacity) {
+      if (newCapacity >= MAX_CAPACITY) {
+        throw new IllegalStateException(format("index can't hold %d entries", entries));
+      }
+      newCapacity *= 2;
+    }
+    if (newCapacity == capacity) {
+      return;
+    }
+
+    File tmp = new File(file.getPath() + ".tmp");
+    MappedByteBuffer newBuffer;
+    try (FileChannel newChannel = newTable(tmp, newCapacity)) {
+      newBuffer = newChannel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize(newCapacity));
+      for (int i = 0; i < HEADER_SIZE; i++) {
+        newBuffer.put(i, buffer.get(i));
+      }
+      newBuffer.putInt(OFFSET_CAPACITY, newCapacity);
+      for (int slot = 0; slot < capacity; slot++) {
+        int base = slotOffset(slot);
+        if (!isEmpty(buffer, base)) {
+          insert(newBuffer, newCapacity, buffer, base, buffer.getInt(base + 20));
+        }
+      }
+      newBuffer.force();
+    }
+    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+
+    channel.close();
+    channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize(newCapacity));
+    capacity = newCapacity;
+  }
+
+  /** Sets or clears the clean flag, and forces it to disk. */
+  private void markClean(boolean clean) {
+    buffer.putInt(OFFSET_CLEAN, clean ? 1 : 0);
+    buffer.force();
+  }
+
+  private static int slotOffset(int slot) {
+    return HEADER_SIZE + slot * SLOT_SIZE;
+  }
+
+  private static boolean isEmpty(ByteBuffer table, int base) {
+    return table.getLong(base) == 0 && table.getLong(base + 8) == 0 && table.getInt(base + 16) == 0;
+  }
+
+  /**
+   * Finds the slot holding the script hash, or the empty slot where it would be inserted. The
+   * table is never full, so this terminates.
+   */
+  private static int findSlot(ByteBuffer table, int capacity, ByteBuffer src, int offset) {
+    long h0 = src.getLong(offset);
+    long h1 = src.getLong(offset + 8);
+    int h2 = src.getInt(offset + 16);
+    int mask = capacity - 1;
+    // The script hash is uniformly distributed, its first bytes are a fine hash code.
+    int slot = (int) (h0 ^ (h0 >>> 32)) & mask;
+    while (true) {
+      int base = slotOffset(slot);
+      if (isEmpty(table, base)
+          || (table.getLong(base) == h0 && table.getLong(base + 8) == h1
+              && table.getInt(base + 16) == h2)) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  /**
+   * Inserts an entry. Inserting an entry which is already present is a no-op, which makes
+   * re-extending after a crash safe.
+   *
+   * @return true if the entry was added.
+   * @throws IllegalStateException if the script hash is already mapped to a different path.
+   */
+  private static boolean insert(ByteBuffer table, int capacity, ByteBuffer src, int offset,
+      int packedPath) {
+    if (src.getLong(offset) == 0 && src.getLong(offset + 8) == 0 && src.getInt(offset + 16) == 0) {
+      throw new IllegalArgumentException("invalid script hash");
+    }
+    int base = slotOffset(findSlot(table, capacity, src, offset));
+    if (!isEmpty(table, base)) {
+      if (table.getInt(base + 20) != packedPath) {
+        throw new IllegalStateException("script hash collision");
+      }
+      return false;
+    }
+    table.putLong(base, src.getLong(offset));
+    table.putLong(base + 8, src.getLong(offset + 8));
+    table.putInt(base + 16, src.getInt(offset + 16));
+    table.putInt(base + 20, packedPath);
+    return true;
+  }
+}
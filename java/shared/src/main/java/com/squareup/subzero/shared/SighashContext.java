@@ -0,0 +1,160 @@
+package com.squareup.subzero.shared;
+
+import com.google.protobuf.ByteString;
+import com.squareup.subzero.proto.service.Common.TxInput;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.Utils;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+
+import static java.lang.String.format;
+
+/**
+ * Computes the BIP-143 sighashes of the inputs of a transaction, see
+ * <a href=https://github.com/bitcoin/bips/blob/master/bip-0143.mediawiki>bip-143</a>.
+ *
+ * The preimage starts with nVersion, hashPrevouts and hashSequence (68 bytes), which are the same
+ * for all the inputs, and ends with hashOutputs, nLocktime and the sighash type. The SHA-256
+ * state after the prefix is computed once, and copied into a working digest for each input. The
+ * integers and the reversed prev hash go through a scratch buffer, so the only allocation per
+ * input is the returned hash (none with the variant which takes an output buffer).
+ *
+ * A context isn't thread-safe. Use copy() to get a context for another thread, which shares the
+ * precomputed state.
+ */
+public final class SighashContext {
+  /** The state after nVersion, hashPrevouts and hashSequence. Never updated after construction. */
+  private final SHA256Digest prefix;
+  /** hashOutputs, nLocktime and the sighash type. */
+  private final byte[] suffix;
+  private final int sequence;
+
+  private final SHA256Digest digest = new SHA256Digest();
+  private final byte[] scratch = new byte[32 + 4];
+
+  /**
+   * @param hashPrevouts the hashPrevouts param, a 32-byte hash.
+   * @param hashSequence the hashSequence param, a 32-byte hash.
+   * @param hashOutputs the hashOutputs param, a 32-byte hash.
+   * @param sequence the nSequence of the inputs.
+   * @param lockTime the nLocktime of the transaction.
+   */
+  public SighashContext(byte[] hashPrevouts, byte[] hashSequence, byte[] hashOutputs,
+      int sequence, int lockTime) {
+    checkHash("hashPrevouts", hashPrevouts);
+    checkHash("hashSequence", hashSequence);
+    checkHash("hashOutputs", hashOutputs);
+
+    // The comments below are straight from BIP 0143.
+    // Double SHA256 of the serialization of:
+    //     1. nVersion of the transaction (4-byte little endian)
+    //     2. hashPrevouts (32-byte hash)
+    //     3. hashSequence (32-byte hash)
+    prefix = new SHA256Digest();
+    byte[] version = new byte[4];
+    Utils.uint32ToByteArrayLE(1, version, 0);
+    prefix.update(version, 0, version.length);
+    prefix.update(hashPrevouts, 0, hashPrevouts.length);
+    prefix.update(hashSequence, 0, hashSequence.length);
+
+    //     8. hashOutputs (32-byte hash)
+    //     9. nLocktime of the transaction (4-byte little endian)
+    //    10. sighash type of the signature (4-byte little endian)
+    suffix = new byte[32 + 4 + 4];
+    System.arraycopy(hashOutputs, 0, suffix, 0, 32);
+    Utils.uint32ToByteArrayLE(lockTime, suffix, 32);
+    Utils.uint32ToByteArrayLE(Transaction.SigHash.ALL.value, suffix, 36);
+
+    this.sequence = sequence;
+  }
+
+  private SighashContext(SighashContext other) {
+    prefix = other.prefix;
+    suffix = other.suffix;
+    sequence = other.sequence;
+  }
+
+  /**
+   * @return a context for the same transaction, which can be used concurrently with this one.
+   */
+  public SighashContext copy() {
+    return new SighashContext(this);
+  }
+
+  /**
+   * @param input the TxInput object describing the transaction input. Describes the outpoint and
+   *              value params.
+   * @param scriptCode the scriptCode of the input.
+   * @return the BIP-143 hash of the input.
+   */
+  public byte[] sighash(TxInput input, byte[] scriptCode) {
+    byte[] out = new byte[32];
+    sighash(input, scriptCode, out, 0);
+    return out;
+  }
+
+  /**
+   * Same as sighash(TxInput, byte[]), writing the hash to out.
+   *
+   * @param input the TxInput object describing the transaction input.
+   * @param scriptCode the scriptCode of the input.
+   * @param out the buffer to write the hash to.
+   * @param offset where to write the 32-byte hash in out.
+   */
+  public void sighash(TxInput input, byte[] scriptCode, byte[] out, int offset) {
+    ByteString prevHash = input.getPrevHash();
+    if (prevHash.size() != 32) {
+      throw new IllegalArgumentException(
+          format("prev_hash should be 32 bytes, got %d", prevHash.size()));
+    }
+    digest.reset(prefix);
+
+    //     4. outpoint (32-byte hash + 4-byte little endian)
+    for (int i = 0; i < 32; i++) {
+      scratch[i] = prevHash.byteAt(31 - i);
+    }
+    Utils.uint32ToByteArrayLE(input.getPrevIndex(), scratch, 32);
+    digest.update(scratch, 0, 36);
+
+    //     5. scriptCode of the input (serialized as scripts inside CTxOuts)
+    digest.update(scratch, 0, writeVarInt(scriptCode.length));
+    digest.update(scriptCode, 0, scriptCode.length);
+
+    //     6. value of the output spent by this input (8-byte little endian)
+    //     7. nSequence of the input (4-byte little endian)
+    Utils.int64ToByteArrayLE(input.getAmount(), scratch, 0);
+    Utils.uint32ToByteArrayLE(sequence, scratch, 8);
+    digest.update(scratch, 0, 12);
+
+    //  8-10. hashOutputs, nLocktime and sighash type
+    digest.update(suffix, 0, suffix.length);
+
+    // Double SHA256:
+    digest.doFinal(scratch, 0);
+    digest.update(scratch, 0, 32);
+    digest.doFinal(out, offset);
+  }
+
+  /** Writes a CompactSize to the scratch buffer, returns its length. */
+  private int writeVarInt(int value) {
+    if (value < 0xfd) {
+      scratch[0] = (byte) value;
+      return 1;
+    }
+    if (value <= 0xffff) {
+      scratch[0] = (byte) 0xfd;
+      scratch[1] = (byte) value;
+      scratch[2] = (byte) (value >>> 8);
+      return 3;
+    }
+    scratch[0] = (byte) 0xfe;
+    Utils.uint32ToByteArrayLE(value, scratch, 1);
+    return 5;
+  }
+
+  private static void checkHash(String name, byte[] hash) {
+    if (hash.length != 32) {
+      throw new IllegalArgumentException(format("%s should be 32 bytes, got %d", name,
+          hash.length));
+    }
+  }
+}
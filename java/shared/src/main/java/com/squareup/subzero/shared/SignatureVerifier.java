@@ -0,0 +1,25 @@
+package com.squareup.subzero.shared;
+
+import java.util.List;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+
+/**
+ * Matches a signature to the public key which made it. TransactionAssembler.addSignatures uses
+ * this to check each signature of a response, and to put the signatures of each input in script
+ * order.
+ *
+ * RecoverySignatureVerifier is the reference implementation, built on bitcoinj.
+ * CachingRecoveryVerifier is faster when the same keys are checked repeatedly.
+ * Implementations must be thread-safe, since ColdWallet can verify inputs in parallel.
+ */
+public interface SignatureVerifier {
+  /**
+   * @param pubkeys the candidate public keys.
+   * @param message the signed message.
+   * @param signature the signature. r and s have already been checked to be in [1, n).
+   * @return the index in pubkeys of the key which made the signature, or -1 if the signature
+   *         isn't valid for any of them.
+   */
+  int signer(List<ECKey> pubkeys, Sha256Hash message, ECKey.ECDSASignature signature);
+}
@@ -1,9 +1,10 @@
 package com.squareup.subzero.shared;
 
 import com.google.common.collect.Lists;
-import com.google.common.io.BaseEncoding;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.UnsafeByteOperations;
 import com.google.zxing.BarcodeFormat;
 import com.google.zxing.common.BitMatrix;
 import com.google.zxing.qrcode.QRCodeWriter;
@@ -16,20 +17,20 @@ import com.squareup.subzero.proto.service.Common.TxOutput;
 import com.squareup.subzero.proto.service.Internal.InternalCommandRequest;
 import com.squareup.subzero.proto.service.Service;
 import com.squareup.subzero.proto.service.Service.CommandRequest;
+import java.math.BigInteger;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Set;
+import javax.annotation.Nullable;
 import org.bitcoinj.core.Address;
 import org.bitcoinj.core.Coin;
 import org.bitcoinj.core.ECKey;
 import org.bitcoinj.core.NetworkParameters;
 import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.SignatureDecodeException;
-import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.Utils;
-import org.bitcoinj.core.VarInt;
 import org.bitcoinj.core.VerificationException;
 import org.bitcoinj.crypto.ChildNumber;
 import org.bitcoinj.crypto.DeterministicKey;
@@ -68,6 +69,9 @@ public class SubzeroUtils {
   static final String ERROR_RANDOM_BYTES_SIZE = "Random bytes exceeds limit";
   static final String ERROR_INVALID_DESTINATION = "Invalid destination in output";
   static final String ERROR_INCONSISTENT_IS_CHANGE = "Inconsistent isChange in output";
+  static final String ERROR_NEGATIVE_FEE = "Transaction fee is negative";
+  static final String ERROR_FEE_TOO_HIGH =
+      "Transaction fee is greater than 1BTC and 10% of the total amount transferred";
 
   /**
    * Derives a P2SH-P2WSH address.
@@ -79,6 +83,44 @@ public class SubzeroUtils {
    * @throws IllegalArgumentException on invalid input.
    */
   public static Address deriveP2SHP2WSH(NetworkParameters network, int threshold, List<DeterministicKey> publicRootKeys, Path path) {
+    checkMultisigParameters(threshold, publicRootKeys);
+
+    // Derive the public keys from the roots
+    ArrayList<ECKey> publicKeys = new ArrayList<>(derivePublicKeys(publicRootKeys, path));
+
+    return p2shP2wshAddress(network, threshold, publicKeys);
+  }
+
+  /**
+   * Derives a P2SH-P2WSH address, using cache to avoid re-deriving keys which have already been
+   * derived. The result is identical to the uncached version.
+   * @param network org.bitcoinj.params.TestNet3Params or org.bitcoinj.params.MainNetParams
+   * @param threshold Number of signatures needed to authorize a transaction.
+   * @param publicRootKeys The public keys from wallet initialization.
+   * @param cache The cache to derive the public keys with.
+   * @param path The HD wallet Path.
+   * @return The derived address.
+   * @throws IllegalArgumentException on invalid input.
+   */
+  public static Address deriveP2SHP2WSH(NetworkParameters network, int threshold,
+      List<DeterministicKey> publicRootKeys, DerivationCache cache, Path path) {
+    checkMultisigParameters(threshold, publicRootKeys);
+
+    ArrayList<ECKey> publicKeys = new ArrayList<>();
+    for (DeterministicKey publicRootKey : publicRootKeys) {
+      publicKeys.add(cache.derivePublicKey(publicRootKey, path));
+    }
+
+    return p2shP2wshAddress(network, threshold, publicKeys);
+  }
+
+  /**
+   * Checks the multisig threshold and number of participants.
+   * @param threshold Number of signatures needed to authorize a transaction.
+   * @param publicRootKeys The public keys from wallet initialization.
+   * @throws IllegalArgumentException on invalid input.
+   */
+  static void checkMultisigParameters(int threshold, List<DeterministicKey> publicRootKeys) {
     // Constraints imposed by the Bitcoin protocol
     if (threshold <= 1) {
       throw new IllegalArgumentException("threshold too small");
@@ -97,14 +139,17 @@ public class SubzeroUtils {
     if (publicRootKeys.size() != Constants.MULTISIG_PARTICIPANTS) {
       throw new IllegalArgumentException("publicRootKeys.size() != MULTISIG_PARTICIPANTS");
     }
+  }
 
-    // Derive the public keys from the roots
-    ArrayList<ECKey> publicKeys = new ArrayList<>();
-    for (DeterministicKey publicRootKey : publicRootKeys) {
-      DeterministicKey publicKey = derivePublicKey(publicRootKey, path);
-      publicKeys.add(publicKey);
-    }
-
+  /**
+   * Computes the P2SH-P2WSH address for already derived public keys.
+   * @param network org.bitcoinj.params.TestNet3Params or org.bitcoinj.params.MainNetParams
+   * @param threshold Number of signatures needed to authorize a transaction.
+   * @param publicKeys The derived public keys, in any order.
+   * @return The address.
+   */
+  protected static Address p2shP2wshAddress(NetworkParameters network, int threshold,
+      List<ECKey> publicKeys) {
     Script witnessScript = ScriptBuilder.createRedeemScript(threshold, publicKeys);
     Hex.toHexString(witnessScript.getProgram());
     byte[] scriptHash = Sha256Hash.of(witnessScript.getProgram()).getBytes();
@@ -119,65 +164,161 @@ public class SubzeroUtils {
   }
 
   /**
-   * This validates that the two signatures are valid for two different pubkeys, and returns
-   * them in the same order that the pubkeys are sorted into.
-   * The hash is the value the signatures are over.
-   * @param pubkeys the public keys to use to validate the signatures.
-   * @param hash the signed message
-   * @param signatures the list of signatures to validate
-   * @return the sorted list of signatures, if they are valid
-   * @throws RuntimeException if any of the signatures are invalid.
+   * Derives the 20-byte script hash of a P2SH-P2WSH address, i.e. the HASH160 of the P2SH redeem
+   * script. This is what deriveP2SHP2WSH encodes into the address, but without building Script or
+   * Address objects.
+   * @param threshold Number of signatures needed to authorize a transaction.
+   * @param publicRootKeys The public keys from wallet initialization.
+   * @param path The HD wallet Path.
+   * @return The 20-byte script hash.
+   * @throws IllegalArgumentException on invalid input.
    */
-  protected static List<byte[]> validateAndSort(List<ECKey> pubkeys, byte[] hash, List<Signature> signatures) {
-    // This needs to be the same sort that ScriptBuilder.createRedeemScript does.
-    pubkeys.sort(ECKey.PUBKEY_COMPARATOR);
-    List<byte[]> sortedSigs = new ArrayList<>();
-    Set<ByteString> seenSigs = new HashSet<>();
+  public static byte[] deriveP2SHP2WSHScriptHash(int threshold, List<DeterministicKey> publicRootKeys,
+      Path path) {
+    checkMultisigParameters(threshold, publicRootKeys);
+    return p2shP2wshScriptHash(threshold, derivePublicKeys(publicRootKeys, path));
+  }
 
-    // If this check fails, we've probably got invalid signatures that would fail below, or when
-    // broadcast.  However, this lets us distinguish between invalid signatures and signatures over
-    // the wrong data.  Useful primarily for debugging when making changes to either piece of code.
-    ByteString expectedHash = ByteString.copyFrom(hash);
-    for (Signature sig : signatures) {
-      if (sig.hasHash()) {
-        ByteString sigHash = sig.getHash();
-        if (!sigHash.equals(expectedHash)) {
-          throw new RuntimeException(format(
-              "Our calculated hash does not match the HSM provided sig: %s != %s",
-              sigHash.toStringUtf8(), expectedHash.toStringUtf8()));
-        }
+  /**
+   * Computes the 20-byte P2SH-P2WSH script hash for already derived public keys.
+   * @param threshold Number of signatures needed to authorize a transaction.
+   * @param publicKeys The derived public keys, in any order.
+   * @return The 20-byte script hash.
+   */
+  protected static byte[] p2shP2wshScriptHash(int threshold, List<? extends ECKey> publicKeys) {
+    // The P2SH redeem script is the P2WSH program: OP_0 <sha256(witness script)>
+    byte[] redeemScript = new byte[2 + 32];
+    redeemScript[0] = (byte) ScriptOpCodes.OP_0;
+    redeemScript[1] = 32;
+    MessageDigest digest = Sha256Hash.newDigest();
+    digest.update(multisigWitnessScript(threshold, publicKeys));
+    try {
+      digest.digest(redeemScript, 2, 32);
+    } catch (DigestException e) {
+      // Can't happen: the buffer is large enough.
+      throw new RuntimeException(e);
+    }
+    return Utils.sha256hash160(redeemScript);
+  }
+
+  /**
+   * Serializes the sorted multisig witness script, OP_m <pubkey>... OP_n OP_CHECKMULTISIG. This is
+   * byte-for-byte the program of ScriptBuilder.createRedeemScript.
+   * @param threshold Number of signatures needed to authorize a transaction, between 1 and 16.
+   * @param publicKeys The derived compressed public keys, in any order. At most 16.
+   * @return The witness script.
+   */
+  protected static byte[] multisigWitnessScript(int threshold, List<? extends ECKey> publicKeys) {
+    // This needs to be the same sort that ScriptBuilder.createRedeemScript does.
+    List<ECKey> sorted = new ArrayList<>(publicKeys);
+    sorted.sort(ECKey.PUBKEY_COMPARATOR);
+
+    byte[] script = new byte[3 + sorted.size() * 34];
+    int offset = 0;
+    script[offset++] = (byte) encodeSmallNum(threshold);
+    for (ECKey key : sorted) {
+      byte[] pubKey = key.getPubKey();
+      if (pubKey.length != 33) {
+        throw new IllegalStateException(format("expecting compressed key. Got %d bytes.", pubKey.length));
       }
+      script[offset++] = (byte) pubKey.length;
+      System.arraycopy(pubKey, 0, script, offset, pubKey.length);
+      offset += pubKey.length;
     }
+    script[offset++] = (byte) encodeSmallNum(sorted.size());
+    script[offset] = (byte) ScriptOpCodes.OP_CHECKMULTISIG;
+    return script;
+  }
 
-    // Iterate over pubkeys, and find signatures valid for them.
-    // We should expect exactly two verifications to succeed
-    for(ECKey pubkey: pubkeys) {
-      for (Signature sig : signatures) {
-        try {
-          byte[] sigDerBytes = sig.getDer().toByteArray();
-          if (pubkey.verify(hash, sigDerBytes)) {
-            ByteString sigDerByteString = ByteString.copyFrom(sigDerBytes);
-            if (!seenSigs.contains(sigDerByteString)) {
-              // Only add the signature if it is unique
-              sortedSigs.add(sigDerBytes);
-              seenSigs.add(sigDerByteString);
-            }
-          }
-        } catch (SignatureDecodeException e) {
-          // keep going, we'll throw a RuntimeException later if we don't find the right number of
-          // signatures
-        }
-      }
+  private static int encodeSmallNum(int n) {
+    if (n < 1 || n > 16) {
+      throw new IllegalArgumentException("expecting a number between 1 and 16");
     }
+    return ScriptOpCodes.OP_1 + n - 1;
+  }
+
+  /**
+   * Builds the P2SH scriptPubKey for a script hash: OP_HASH160 <scriptHash> OP_EQUAL.
+   * @param scriptHash the 20-byte script hash.
+   * @return the 23-byte scriptPubKey.
+   * @throws IllegalArgumentException if scriptHash isn't 20 bytes.
+   */
+  public static byte[] p2shScriptPubKey(byte[] scriptHash) {
+    if (scriptHash.length != 20) {
+      throw new IllegalArgumentException("scriptHash should be 20 bytes");
+    }
+    byte[] script = new byte[23];
+    script[0] = (byte) ScriptOpCodes.OP_HASH160;
+    script[1] = 20;
+    System.arraycopy(scriptHash, 0, script, 2, 20);
+    script[22] = (byte) ScriptOpCodes.OP_EQUAL;
+    return script;
+  }
 
-    if(sortedSigs.size() != Constants.MULTISIG_THRESHOLD) {
-      // If we end up here with less signatures than expected, it implies we either received two
-      // or more of the same signature or one of the signatures is invalid.
-      throw new RuntimeException(format("Failed validating signatures. Expected %d, got %d",
-          Constants.MULTISIG_THRESHOLD, sortedSigs.size()));
+  /**
+   * Packs the first 8 bytes of a script hash into a long (big-endian). Script hashes are uniformly
+   * distributed, so this is a good hash table key or filter input. Different script hashes can
+   * have the same packed value, so matches must be confirmed against the full 20 bytes.
+   * @param scriptHash the script hash.
+   * @param offset the offset of the script hash in the array.
+   * @return the packed value.
+   */
+  public static long packScriptHash(byte[] scriptHash, int offset) {
+    long r = 0;
+    for (int i = 0; i < 8; i++) {
+      r = (r << 8) | (scriptHash[offset + i] & 0xff);
+    }
+    return r;
+  }
+
+  /**
+   * Finds which public key made a signature.
+   * @param pubkeys the public keys, sorted in script order.
+   * @param hash the signed message
+   * @param signature the signature to check
+   * @param verifier finds which public key made the signature.
+   * @return the index in pubkeys of the key which made the signature, or -1 if the signature
+   *         isn't valid for any of them.
+   * @throws RuntimeException if the signature carries a hash, and it isn't the expected one.
+   */
+  static int signer(List<ECKey> pubkeys, byte[] hash, Signature signature,
+      SignatureVerifier verifier) {
+    // If this check fails, we've probably got an invalid signature that would fail below, or when
+    // broadcast.  However, this lets us distinguish between invalid signatures and signatures over
+    // the wrong data.  Useful primarily for debugging when making changes to either piece of code.
+    ByteString expectedHash = ByteString.copyFrom(hash);
+    if (signature.hasHash() && !signature.getHash().equals(expectedHash)) {
+      throw new RuntimeException(format(
+          "Our calculated hash does not match the HSM provided sig: %s != %s",
+          signature.getHash().toStringUtf8(), expectedHash.toStringUtf8()));
+    }
+    ECKey.ECDSASignature decoded = decodeSignature(signature.getDer().toByteArray());
+    if (decoded == null) {
+      return -1;
     }
+    return verifier.signer(pubkeys, Sha256Hash.wrap(hash), decoded);
+  }
 
-    return sortedSigs;
+  /**
+   * Decodes a DER-encoded signature, and checks r and s are in [1, n).
+   * @param der the DER-encoded signature.
+   * @return the signature, or null if it can't be decoded or is out of range.
+   */
+  @Nullable
+  private static ECKey.ECDSASignature decodeSignature(byte[] der) {
+    ECKey.ECDSASignature signature;
+    try {
+      signature = ECKey.ECDSASignature.decodeFromDER(der);
+    } catch (SignatureDecodeException e) {
+      return null;
+    }
+    // Same range checks as the verification (ECDSASigner.verifySignature).
+    BigInteger n = ECKey.CURVE.getN();
+    if (signature.r.signum() <= 0 || signature.r.compareTo(n) >= 0
+        || signature.s.signum() <= 0 || signature.s.compareTo(n) >= 0) {
+      return null;
+    }
+    return signature;
   }
 
   /**
@@ -205,7 +346,7 @@ public class SubzeroUtils {
   /**
    * This calculates the BIP-143 hash for a transaction, see
    * <a href=https://github.com/bitcoin/bips/blob/master/bip-0143.mediawiki>bip-143</a> for the
-   * details.
+   * details. To hash several inputs of the same transaction, use a SighashContext.
    * @param hashPrevouts the hashPrevouts param, a 32-byte hash.
    * @param hashSequence the hashSequence param, a 32-byte hash.
    * @param hashOutputs the hashOutputs param, a 32-byte hash.
@@ -224,44 +365,8 @@ public class SubzeroUtils {
       byte[] script,
       int sequence,
       int locktime) {
-    MessageDigest hash = Sha256Hash.newDigest();
-
-    // The comments below are straight from BIP 0143.
-    // Double SHA256 of the serialization of:
-    //     1. nVersion of the transaction (4-byte little endian)
-    hashUint32LE(1, hash);
-
-    //     2. hashPrevouts (32-byte hash)
-    hash.update(hashPrevouts);
-
-    //     3. hashSequence (32-byte hash)
-    hash.update(hashSequence);
-
-    //     4. outpoint (32-byte hash + 4-byte little endian)
-    hash.update(Utils.reverseBytes(input.getPrevHash().toByteArray()));
-    hashUint32LE(input.getPrevIndex(), hash);
-
-    //     5. scriptCode of the input (serialized as scripts inside CTxOuts)
-    hash.update(new VarInt(script.length).encode());
-    hash.update(script);
-
-    //     6. value of the output spent by this input (8-byte little endian)
-    hashUint64LE(input.getAmount(), hash);
-
-    //     7. nSequence of the input (4-byte little endian)
-    hashUint32LE(sequence, hash);
-
-    //     8. hashOutputs (32-byte hash)
-    hash.update(hashOutputs);
-
-    //     9. nLocktime of the transaction (4-byte little endian)
-    hashUint32LE(locktime, hash);
-
-    //    10. sighash type of the signature (4-byte little endian)
-    hashUint32LE(Transaction.SigHash.ALL.value, hash);
-
-    // Double SHA256:
-    return hash.digest(hash.digest());
+    return new SighashContext(hashPrevouts, hashSequence, hashOutputs, sequence, locktime)
+        .sighash(input, script);
   }
 
   /**
@@ -289,18 +394,93 @@ public class SubzeroUtils {
       throw new IllegalStateException("index should be between 0 and 2^31-1");
     }
 
+    return deriveIndexKey(deriveChangeKey(key, path.getIsChange()), path.getIndex());
+  }
+
+  /**
+   * Derives the change level of the HD-wallet, i.e. key/0 or key/1. This is the first half of
+   * derivePublicKey and is exposed separately so the result can be cached.
+   *
+   * @param key the parent key to derive subkey from.
+   * @param isChange If true, the subkey will be key/1, otherwise it will be key/0.
+   * @return the derived subkey.
+   */
+  protected static DeterministicKey deriveChangeKey(DeterministicKey key, boolean isChange) {
     // note: key might be m/0 for prod, but it's m/ for testnet. Investigate if this is some kind of
     // BitcoinJ quirk?
-    key = HDKeyDerivation.deriveChildKey(key, new ChildNumber(path.getIsChange() ? 1 : 0, false));
+    return HDKeyDerivation.deriveChildKey(key, new ChildNumber(isChange ? 1 : 0, false));
+  }
 
-    key = HDKeyDerivation.deriveChildKey(key, new ChildNumber(path.getIndex(), false));
+  /**
+   * Derives the index level of the HD-wallet from a key returned by deriveChangeKey. This is the
+   * second half of derivePublicKey.
+   *
+   * @param changeKey the change level key, i.e. key/0 or key/1.
+   * @param index the index component of the Path.
+   * @return the derived subkey.
+   * @throws IllegalStateException on invalid input.
+   */
+  protected static DeterministicKey deriveIndexKey(DeterministicKey changeKey, int index) {
+    if (index < 0) {
+      throw new IllegalStateException("index should be between 0 and 2^31-1");
+    }
 
+    DeterministicKey key = HDKeyDerivation.deriveChildKey(changeKey, new ChildNumber(index, false));
+    checkCompressed(key);
+    return key;
+  }
+
+  /**
+   * Batch version of deriveIndexKey: derives changeKey/fromIndex ... changeKey/(fromIndex+count-1)
+   * using RangeDerivation.
+   *
+   * @param changeKey the change level key, i.e. key/0 or key/1.
+   * @param fromIndex the first index.
+   * @param count the number of keys to derive.
+   * @return the derived subkeys, in index order.
+   * @throws IllegalStateException on invalid input.
+   */
+  protected static DeterministicKey[] deriveIndexKeys(DeterministicKey changeKey, int fromIndex,
+      int count) {
+    if (fromIndex < 0 || (long) fromIndex + count > 1L << 31) {
+      throw new IllegalStateException("index should be between 0 and 2^31-1");
+    }
+    DeterministicKey[] keys = RangeDerivation.deriveChildren(changeKey, fromIndex, count);
+    for (DeterministicKey key : keys) {
+      checkCompressed(key);
+    }
+    return keys;
+  }
+
+  /**
+   * Derives the given path for each root key, i.e. the public keys of a multisig address. The
+   * result is the same as calling derivePublicKey on each root, but the EC work is batched with
+   * RangeDerivation.
+   *
+   * @param publicRootKeys the parent keys to derive subkeys from.
+   * @param path the Path object describing is_change and index parameters.
+   * @return the derived subkeys, in the same order as publicRootKeys.
+   * @throws IllegalStateException on invalid input.
+   */
+  protected static List<DeterministicKey> derivePublicKeys(List<DeterministicKey> publicRootKeys,
+      Path path) {
+    if (path.getIndex() < 0) {
+      throw new IllegalStateException("index should be between 0 and 2^31-1");
+    }
+    DeterministicKey[] changeKeys =
+        RangeDerivation.deriveChild(publicRootKeys, path.getIsChange() ? 1 : 0);
+    DeterministicKey[] keys = RangeDerivation.deriveChild(Arrays.asList(changeKeys), path.getIndex());
+    for (DeterministicKey key : keys) {
+      checkCompressed(key);
+    }
+    return Arrays.asList(keys);
+  }
+
+  private static void checkCompressed(DeterministicKey key) {
     int length = key.getPubKey().length;
     if (length != 33) {
       throw new IllegalStateException(format("expecting compressed key. Got %d bytes.", length));
     }
-
-    return key;
   }
 
   /**
@@ -347,12 +527,11 @@ public class SubzeroUtils {
     }
 
     if (fee.isNegative()) {
-      throw new VerificationException("Transaction fee is negative");
+      throw new VerificationException(ERROR_NEGATIVE_FEE);
     }
 
     if (fee.isGreaterThan(Coin.COIN) && fee.isGreaterThan(total.divide(10))) {
-      throw new VerificationException("Transaction fee is greater than 1BTC and 10% of the total "
-          + "amount transferred");
+      throw new VerificationException(ERROR_FEE_TOO_HIGH);
     }
   }
 
@@ -384,6 +563,34 @@ public class SubzeroUtils {
     return request;
   }
 
+  /**
+   * Parses a CommandRequest without copying its bytes fields: prev_hash, serialized_command_request
+   * and the other ByteStrings of the result are views of request.
+   *
+   * @param request the serialized CommandRequest. It must not be modified afterwards.
+   * @return the parsed request.
+   * @throws InvalidProtocolBufferException if the request is malformed.
+   */
+  public static CommandRequest parseCommandRequest(byte[] request)
+      throws InvalidProtocolBufferException {
+    return parseCommandRequest(UnsafeByteOperations.unsafeWrap(request));
+  }
+
+  /**
+   * Parses a CommandRequest without copying its bytes fields, e.g. the serialized_command_request
+   * of a signed request. The ByteStrings of the result are views of request.
+   *
+   * @param request the serialized CommandRequest.
+   * @return the parsed request.
+   * @throws InvalidProtocolBufferException if the request is malformed.
+   */
+  public static CommandRequest parseCommandRequest(ByteString request)
+      throws InvalidProtocolBufferException {
+    CodedInputStream in = request.newCodedInput();
+    in.enableAliasing(true);
+    return CommandRequest.parseFrom(in);
+  }
+
   /**
    * Verifies size/count limits for InternalCommandRequest proto fields.
    * @param request InternalCommandRequest to validate.
@@ -429,11 +636,12 @@ public class SubzeroUtils {
 
   /**
    * Converts the list of finalize wallet responses to a list of "xpub..." public keys.
-   * @param finalizeResponses the list of base64-encoded finalize wallet responses.
+   * @param finalizeResponses the list of finalize wallet responses, as scanned (see QrPayload and
+   *                          QrCompression).
    * @return a list of BIP-32 "xpub..." public keys.
    * @throws InvalidProtocolBufferException if any of the finalize wallet responses fail protobuf parsing.
    * @throws IllegalArgumentException if the number of responses != Constants.MULTISIG_PARTICIPANTS, or
-   *         if any of the responses are not valid Base64.
+   *         if any of the responses are not valid base64 or Base45.
    */
   public static List<String> finalizeResponsesToAddresses(List<String> finalizeResponses)
       throws InvalidProtocolBufferException {
@@ -444,7 +652,7 @@ public class SubzeroUtils {
 
     List<String> r = Lists.newArrayList();
     for (String finalizeResponse : finalizeResponses) {
-      byte[] rawFinalizeResponse = BaseEncoding.base64().decode(finalizeResponse);
+      byte[] rawFinalizeResponse = QrCompression.decode(finalizeResponse);
       Service.CommandResponse commandResponse = Service.CommandResponse.parseFrom(rawFinalizeResponse);
       r.add(ColdWalletCreator.finalize(commandResponse));
     }
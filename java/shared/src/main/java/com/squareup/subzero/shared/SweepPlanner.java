@@ -0,0 +1,265 @@
+package com.squareup.subzero.shared;
+
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.ByteString;
+import com.squareup.subzero.proto.service.Common.Destination;
+import com.squareup.subzero.proto.service.Common.Path;
+import com.squareup.subzero.proto.service.Common.TxInput;
+import com.squareup.subzero.proto.service.Common.TxOutput;
+import com.squareup.subzero.proto.service.Service.CommandRequest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Supplier;
+import javax.annotation.Nullable;
+
+import static com.squareup.subzero.shared.CoinSelector.CHANGE_OUTPUT_SIZE;
+import static com.squareup.subzero.shared.CoinSelector.DUST_THRESHOLD;
+import static com.squareup.subzero.shared.CoinSelector.GATEWAY_OUTPUT_SIZE;
+import static com.squareup.subzero.shared.CoinSelector.output;
+import static java.lang.String.format;
+
+/**
+ * Splits a sweep which doesn't fit in a single QR code into a sequence of SignTx requests. Each
+ * request is signed in its own ceremony, so the planner tries to use as few requests as possible:
+ * inputs are picked largest first, and each request is filled until the next input doesn't fit
+ * (see RequestSizeEstimator.fits).
+ *
+ * There are two ways to split a sweep, which plans() both computes:
+ * - INDEPENDENT: every transaction pays the gateway, only the last one has change.
+ * - CHAINED: every transaction but the last one sends everything to a change output, which the
+ *   next transaction spends (see ColdWallet.txid). Only the last transaction pays the gateway.
+ *   This uses up one input per transaction for the chained change, but the gateway receives a
+ *   single output.
+ *
+ * Change outputs use consecutive indexes, starting at the changePath passed to the planner.
+ */
+public final class SweepPlanner {
+  /** How the transactions of a plan are linked. */
+  public enum Strategy {
+    INDEPENDENT,
+    CHAINED,
+  }
+
+  /** The requests to sign, in order. */
+  public static final class Plan {
+    private final Strategy strategy;
+    private final List<CommandRequest> requests;
+    private final long fee;
+    private final long amount;
+
+    private Plan(Strategy strategy, List<CommandRequest> requests, long fee, long amount) {
+      this.strategy = strategy;
+      this.requests = ImmutableList.copyOf(requests);
+      this.fee = fee;
+      this.amount = amount;
+    }
+
+    public Strategy getStrategy() {
+      return strategy;
+    }
+
+    public List<CommandRequest> getRequests() {
+      return requests;
+    }
+
+    /** The number of signing ceremonies, i.e. the number of requests. */
+    public int getCeremonies() {
+      return requests.size();
+    }
+
+    /** The total fee of the transactions, in satoshis. */
+    public long getFee() {
+      return fee;
+    }
+
+    /** The total amount sent to the gateway, in satoshis. */
+    public long getAmount() {
+      return amount;
+    }
+  }
+
+  /** Fewest ceremonies first, then lowest fee. */
+  private static final Comparator<Plan> CHEAPEST =
+      Comparator.comparingInt(Plan::getCeremonies).thenComparingLong(Plan::getFee);
+
+  private final ColdWallet wallet;
+  private final CoinSelector selector;
+  private final boolean qrSigned;
+  private final QrPayload.Encoding encoding;
+
+  /**
+   * Same as SweepPlanner(wallet, feeRate, qrSigned, encoding), for base64 QR codes.
+   *
+   * @param wallet the wallet the inputs belong to.
+   * @param feeRate the fee rate, in satoshis per virtual byte.
+   * @param qrSigned whether the requests are going to be signed for the QR code.
+   */
+  public SweepPlanner(ColdWallet wallet, double feeRate, boolean qrSigned) {
+    this(wallet, feeRate, qrSigned, QrPayload.Encoding.BASE64);
+  }
+
+  /**
+   * @param wallet the wallet the inputs belong to.
+   * @param feeRate the fee rate, in satoshis per virtual byte.
+   * @param qrSigned whether the requests are going to be signed for the QR code.
+   * @param encoding the encoding of the QR codes. Base45 QR codes need fewer requests.
+   */
+  public SweepPlanner(ColdWallet wallet, double feeRate, boolean qrSigned,
+      QrPayload.Encoding encoding) {
+    this.wallet = wallet;
+    this.selector = new CoinSelector(wallet, feeRate, qrSigned, encoding);
+    this.qrSigned = qrSigned;
+    this.encoding = encoding;
+  }
+
+  /**
+   * Computes a plan for each strategy.
+   *
+   * @param utxos the candidate inputs.
+   * @param amount the amount to send to the gateway, in satoshis, or null to send everything
+   *               (minus the fees).
+   * @param gatewayPath the path of the gateway outputs.
+   * @param changePath the path of the first change output.
+   * @param tokens supplies the token of each request (which may be null).
+   * @param localRate the local rate which will be passed to startTransaction.
+   * @return the plans, cheapest first (see getCeremonies and getFee).
+   * @throws IllegalArgumentException if the utxos can't pay the amount.
+   */
+  public List<Plan> plans(List<TxInput> utxos, @Nullable Long amount, Path gatewayPath,
+      Path changePath, Supplier<String> tokens, @Nullable Double localRate) {
+    if (amount != null && amount < DUST_THRESHOLD) {
+      throw new IllegalArgumentException(format("amount should be at least %d", DUST_THRESHOLD));
+    }
+    List<TxInput> candidates = selector.economic(utxos);
+    List<Plan> plans = new ArrayList<>();
+    for (Strategy strategy : Strategy.values()) {
+      plans.add(plan(strategy, candidates, amount, gatewayPath, changePath, tokens, localRate));
+    }
+    plans.sort(CHEAPEST);
+    return plans;
+  }
+
+  /**
+   * Same as plans(), but only returns the cheapest plan.
+   *
+   * @param utxos the candidate inputs.
+   * @param amount the amount to send to the gateway, in satoshis, or null to send everything
+   *               (minus the fees).
+   * @param gatewayPath the path of the gateway outputs.
+   * @param changePath the path of the first change output.
+   * @param tokens supplies the token of each request (which may be null).
+   * @param localRate the local rate which will be passed to startTransaction.
+   * @return the plan with the fewest ceremonies.
+   * @throws IllegalArgumentException if the utxos can't pay the amount.
+   */
+  public Plan plan(List<TxInput> utxos, @Nullable Long amount, Path gatewayPath,
+      Path changePath, Supplier<String> tokens, @Nullable Double localRate) {
+    return plans(utxos, amount, gatewayPath, changePath, tokens, localRate).get(0);
+  }
+
+  private Plan plan(Strategy strategy, List<TxInput> candidates, @Nullable Long amount,
+      Path gatewayPath, Path changePath, Supplier<String> tokens, @Nullable Double localRate) {
+    List<CommandRequest> requests = new ArrayList<>();
+    long totalFee = 0;
+    long sent = 0;
+    int changeIndex = changePath.getIndex();
+    TxInput chained = null;
+    int next = 0;
+
+    while (true) {
+      String token = tokens.get();
+      // The amounts aren't known yet, account for the largest ones.
+      RequestSizeEstimator size = new RequestSizeEstimator(
+          wallet.startTransaction(ImmutableList.of(), ImmutableList.of(), token, localRate))
+          .addOutput(output(Long.MAX_VALUE, Destination.GATEWAY, gatewayPath))
+          .addOutput(output(Long.MAX_VALUE, Destination.CHANGE, changePath(changeIndex)));
+
+      List<TxInput> inputs = new ArrayList<>();
+      long total = 0;
+      if (chained != null) {
+        size.addInput(chained);
+        inputs.add(chained);
+        total += chained.getAmount();
+      }
+      int first = next;
+      boolean covered = false;
+      while (!covered && next < candidates.size()) {
+        TxInput utxo = candidates.get(next);
+        size.addInput(utxo);
+        if (!size.fits(qrSigned, encoding)) {
+          break;
+        }
+        inputs.add(utxo);
+        total += utxo.getAmount();
+        next++;
+        covered = amount != null
+            && total - (amount - sent) >= selector.fee(inputs.size(), GATEWAY_OUTPUT_SIZE);
+      }
+      if (next == first) {
+        throw new IllegalArgumentException(next == candidates.size()
+            ? "insufficient funds to pay the fees"
+            : "an input doesn't fit in a QR code");
+      }
+
+      if (!covered && amount != null && next == candidates.size()) {
+        throw new IllegalArgumentException(format("insufficient funds to pay %d", amount));
+      }
+
+      List<TxOutput> outputs;
+      long fee;
+      boolean last = covered || (amount == null && next == candidates.size());
+      if (covered) {
+        // Pays the rest of the amount, with change if it's worth an output.
+        long remaining = amount - sent;
+        long feeWithChange =
+            selector.fee(inputs.size(), GATEWAY_OUTPUT_SIZE + CHANGE_OUTPUT_SIZE);
+        long change = total - remaining - feeWithChange;
+        TxOutput gatewayOutput = output(remaining, Destination.GATEWAY, gatewayPath);
+        if (change >= DUST_THRESHOLD) {
+          outputs = ImmutableList.of(gatewayOutput,
+              output(change, Destination.CHANGE, changePath(changeIndex)));
+          fee = feeWithChange;
+        } else {
+          outputs = ImmutableList.of(gatewayOutput);
+          fee = total - remaining;
+        }
+      } else if (last || strategy == Strategy.INDEPENDENT) {
+        fee = selector.fee(inputs.size(), GATEWAY_OUTPUT_SIZE);
+        if (total - fee < DUST_THRESHOLD) {
+          throw new IllegalArgumentException("insufficient funds to pay the fee");
+        }
+        outputs = ImmutableList.of(output(total - fee, Destination.GATEWAY, gatewayPath));
+      } else {
+        fee = selector.fee(inputs.size(), CHANGE_OUTPUT_SIZE);
+        outputs = ImmutableList.of(
+            output(total - fee, Destination.CHANGE, changePath(changeIndex++)));
+      }
+
+      requests.add(SubzeroUtils.validateCommandRequest(
+          wallet.startTransaction(inputs, outputs, token, localRate)));
+      totalFee += fee;
+      for (TxOutput output : outputs) {
+        if (output.getDestination() == Destination.GATEWAY) {
+          sent += output.getAmount();
+        }
+      }
+      if (last) {
+        return new Plan(strategy, requests, totalFee, sent);
+      }
+      if (strategy == Strategy.CHAINED) {
+        TxOutput change = outputs.get(0);
+        chained = TxInput.newBuilder()
+            .setPrevHash(ByteString.copyFrom(wallet.txid(inputs, outputs)))
+            .setPrevIndex(0)
+            .setAmount(change.getAmount())
+            .setPath(change.getPath())
+            .build();
+      }
+    }
+  }
+
+  private static Path changePath(int index) {
+    return SubzeroUtils.newPath(true, index);
+  }
+}
@@ -0,0 +1,333 @@
+package com.squareup.subzero.shared;
+
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.ByteString;
+import com.squareup.subzero.proto.service.Common.Signature;
+import com.squareup.subzero.proto.service.Common.TxInput;
+import com.squareup.subzero.proto.service.Common.TxOutput;
+import com.squareup.subzero.proto.service.Service.CommandRequest;
+import com.squareup.subzero.shared.MultisigScriptCache.MultisigScript;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import javax.annotation.Nullable;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.VarInt;
+import org.bitcoinj.script.ScriptOpCodes;
+
+import static java.lang.String.format;
+
+/**
+ * Assembles a transaction from the Subzero responses, as they arrive.
+ *
+ * ColdWallet.startTransactionAssembler creates it along with the SignTx request. Everything which
+ * doesn't depend on the signatures is done up front: the witness scripts, the BIP-143 sighash of
+ * each input and the serialization of everything but the witnesses. Each response is checked as
+ * it's added, and once MULTISIG_THRESHOLD responses have been added, the witnesses are written
+ * after the precomputed bytes.
+ *
+ * ColdWallet.createTransaction uses the same steps. Instances are thread-safe.
+ */
+public final class TransactionAssembler {
+  /** The scriptSig of a P2SH-P2WSH input pushes OP_0 &lt;32-byte script hash&gt;. */
+  private static final int SCRIPT_SIG_SIZE = 1 + 2 + 32;
+
+  @Nullable private final CommandRequest request;
+  private final List<TxInput> inputs;
+  private final List<MultisigScript> witnesses;
+  @Nullable private final Executor executor;
+  private final SignatureVerifier verifier;
+  /** The sighash of each input, 32 bytes each. */
+  private final byte[] sighashes;
+  /** nVersion|marker|flag|txins|txouts */
+  private final byte[] unsigned;
+  private final int lockTime;
+
+  /** The DER signatures of each input, indexed by the signer's position in the script. */
+  private final byte[][][] signaturesByKey;
+  private int responseCount;
+  /** The signatures of each input, in script order. Null until the transaction is complete. */
+  @Nullable private List<List<byte[]>> sortedSignatures;
+
+  TransactionAssembler(@Nullable CommandRequest request, List<TxInput> inputs,
+      List<MultisigScript> witnesses, List<TxOutput> outputs, List<byte[]> outputScripts,
+      SighashContext sighashContext, int lockTime, int sequence, @Nullable Executor executor,
+      SignatureVerifier verifier) {
+    this.request = request;
+    this.inputs = ImmutableList.copyOf(inputs);
+    this.witnesses = ImmutableList.copyOf(witnesses);
+    this.executor = executor;
+    this.verifier = verifier;
+    this.lockTime = lockTime;
+    this.signaturesByKey = new byte[inputs.size()][][];
+    for (int i = 0; i < inputs.size(); i++) {
+      signaturesByKey[i] = new byte[witnesses.get(i).getPublicKeys().size()][];
+    }
+
+    // The sighashes are independent for each input. SighashContext isn't thread-safe, each task
+    // gets its own copy.
+    this.sighashes = new byte[inputs.size() * 32];
+    ColdWallet.mapInputs(executor, inputs.size(), i -> {
+      SighashContext context = executor == null ? sighashContext : sighashContext.copy();
+      context.sighash(inputs.get(i), witnesses.get(i).getWitnessScript(), sighashes, i * 32);
+      return null;
+    });
+
+    int size = 4 + 1 + 1; // nVersion, marker and flag
+    size += VarInt.sizeOf(inputs.size());
+    for (TxInput input : inputs) {
+      size += input.getPrevHash().size() + 4 + 1 + SCRIPT_SIG_SIZE + 4;
+    }
+    size += VarInt.sizeOf(outputs.size());
+    for (byte[] dest : outputScripts) {
+      size += 8 + VarInt.sizeOf(dest.length) + dest.length;
+    }
+    ByteBuffer out = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+
+    // Segwit serialization format:
+    // https://bitcoincore.org/en/segwit_wallet_dev/#transaction-serialization
+    // 1.      |2.    |3.  |4.   |5.    |6.     |7.
+    // nVersion|marker|flag|txins|txouts|witness|nLockTime
+
+    // 1. nVersion:
+    out.putInt(1);
+    // 2. The marker MUST be a 1-byte zero value: 0x00.
+    out.put((byte) 0x00);
+    // 3. The flag MUST be a 1-byte non-zero value. Currently, 0x01 MUST be used.
+    out.put((byte) 0x01);
+
+    // 4. txins
+    putVarInt(out, inputs.size());
+    for (int i = 0; i < inputs.size(); i++) {
+      TxInput input = inputs.get(i);
+      ByteString prevHash = input.getPrevHash();
+      for (int j = prevHash.size() - 1; j >= 0; j--) {
+        out.put(prevHash.byteAt(j));
+      }
+      out.putInt(input.getPrevIndex());
+
+      // The scriptSig pushes the P2SH redeem script, i.e. the P2WSH program:
+      // OP_0 <sha256(witness script)>
+      out.put((byte) SCRIPT_SIG_SIZE);
+      out.put((byte) (SCRIPT_SIG_SIZE - 1));
+      out.put((byte) ScriptOpCodes.OP_0);
+      out.put((byte) 32);
+      out.put(witnesses.get(i).getWitnessScriptHash());
+
+      out.putInt(sequence);
+    }
+
+    // 5. txouts
+    putVarInt(out, outputs.size());
+    for (int i = 0; i < outputs.size(); i++) {
+      // Each output starts with the amount:
+      out.putLong(outputs.get(i).getAmount());
+      byte[] dest = outputScripts.get(i);
+      putVarInt(out, dest.length);
+      out.put(dest);
+    }
+    this.unsigned = out.array();
+  }
+
+  /**
+   * @return the SignTx request to send to the signers, or null if the assembler wasn't created by
+   *         startTransactionAssembler.
+   */
+  @Nullable
+  public CommandRequest getRequest() {
+    return request;
+  }
+
+  /**
+   * @param input the index of an input.
+   * @return the BIP-143 sighash of the input, which the signers sign.
+   */
+  byte[] sighash(int input) {
+    return Arrays.copyOfRange(sighashes, input * 32, (input + 1) * 32);
+  }
+
+  /**
+   * Adds the signatures from a Subzero response. Each signature is checked when it's added: it
+   * must be valid, and come from a key which didn't sign the input in an earlier response. Once
+   * MULTISIG_THRESHOLD responses have been added, the transaction is assembled.
+   *
+   * @param signatures the signatures from a SignTx response, one per input.
+   * @return whether the transaction is complete.
+   * @throws IllegalStateException if the transaction is already complete.
+   * @throws RuntimeException if there isn't one signature per input, or if any signature is
+   *         invalid or from a key which already signed. The response isn't added in that case, so
+   *         a valid one can be added instead.
+   */
+  public boolean addSignatures(List<Signature> signatures) {
+    if (isComplete()) {
+      throw new IllegalStateException("The transaction is already complete");
+    }
+    if (signatures.size() != inputs.size()) {
+      throw new RuntimeException("Expected signature and input counts to be equal");
+    }
+    // Finding the signers only reads the sighashes, the witnesses and the verifier, which don't
+    // change. It runs without holding the lock: mapInputs waits for the executor, which mustn't
+    // happen while holding the monitor.
+    List<Integer> signers = ColdWallet.mapInputs(executor, inputs.size(), i -> {
+      int signer = SubzeroUtils.signer(witnesses.get(i).getPublicKeys(), sighash(i),
+          signatures.get(i), verifier);
+      if (signer < 0) {
+        throw new RuntimeException(format("Invalid signature for input %d", i));
+      }
+      return signer;
+    });
+
+    synchronized (this) {
+      // Another response may have been added in the meantime. Check everything before adding any
+      // signature, so a bad response leaves nothing behind.
+      if (sortedSignatures != null) {
+        throw new IllegalStateException("The transaction is already complete");
+      }
+      for (int i = 0; i < inputs.size(); i++) {
+        if (signaturesByKey[i][signers.get(i)] != null) {
+          throw new RuntimeException(
+              format("Input %d was already signed by key %d", i, signers.get(i)));
+        }
+      }
+      for (int i = 0; i < inputs.size(); i++) {
+        signaturesByKey[i][signers.get(i)] = signatures.get(i).getDer().toByteArray();
+      }
+      responseCount++;
+      if (responseCount < Constants.MULTISIG_THRESHOLD) {
+        return false;
+      }
+
+      // We need the signatures sorted in the same order as the public keys.
+      List<List<byte[]>> sorted = new ArrayList<>(inputs.size());
+      for (byte[][] sigs : signaturesByKey) {
+        List<byte[]> input = new ArrayList<>(Constants.MULTISIG_THRESHOLD);
+        for (byte[] sig : sigs) {
+          if (sig != null) {
+            input.add(sig);
+          }
+        }
+        sorted.add(input);
+      }
+      sortedSignatures = sorted;
+      return true;
+    }
+  }
+
+  /**
+   * @return whether MULTISIG_THRESHOLD valid responses have been added.
+   */
+  public synchronized boolean isComplete() {
+    return sortedSignatures != null;
+  }
+
+  /**
+   * @return the exact size of the serialized transaction.
+   * @throws IllegalStateException if the transaction isn't complete.
+   */
+  public synchronized int size() {
+    List<List<byte[]>> sorted = checkComplete();
+    int size = unsigned.length;
+    for (int i = 0; i < inputs.size(); i++) {
+      size += VarInt.sizeOf(Constants.MULTISIG_THRESHOLD + 2) + 1;
+      for (byte[] sig : sorted.get(i)) {
+        size += VarInt.sizeOf(sig.length + 1) + sig.length + 1;
+      }
+      byte[] witnessProgram = witnesses.get(i).getWitnessScript();
+      size += VarInt.sizeOf(witnessProgram.length) + witnessProgram.length;
+    }
+    return size + 4; // nLockTime
+  }
+
+  /**
+   * @return the transaction serialized to a byte array, suitable for broadcasting.
+   * @throws IllegalStateException if the transaction isn't complete.
+   */
+  public synchronized byte[] getTransaction() {
+    // The size is exact, so the array is the serialized transaction, without a copy.
+    ByteBuffer out = ByteBuffer.allocate(size());
+    writeTransaction(out);
+    return out.array();
+  }
+
+  /**
+   * Writes the transaction at the position of out, and advances its position past the
+   * transaction. out's byte order is left unchanged.
+   *
+   * @param out the buffer to write the transaction to, which can be direct.
+   * @return the size of the transaction, in bytes.
+   * @throws IllegalStateException if the transaction isn't complete.
+   * @throws IllegalArgumentException if out doesn't have enough space remaining. Nothing is
+   *         written in that case.
+   */
+  public synchronized int writeTransaction(ByteBuffer out) {
+    List<List<byte[]>> sorted = checkComplete();
+    int size = size();
+    if (out.remaining() < size) {
+      throw new IllegalArgumentException(format("The transaction needs %d bytes, %d remaining",
+          size, out.remaining()));
+    }
+    ByteOrder order = out.order();
+    out.order(ByteOrder.LITTLE_ENDIAN);
+    try {
+      // 1-5. Everything up to the witnesses.
+      out.put(unsigned);
+
+      // 6. witness
+      // Each txin is associated with a witness field.
+      for (int i = 0; i < inputs.size(); i++) {
+        // Each witness field starts with a compactSize integer to indicate the number of stack
+        // items for the corresponding txin. The stack is as following:
+        // extra 0 for CHECKMULTISIG bug, MULTISIG_THRESHOLD signatures, script
+        putVarInt(out, Constants.MULTISIG_THRESHOLD + 2);
+
+        // CHECKMULTISIG bug empty stack item.
+        out.put((byte) 0);
+
+        // Write signatures out. It's length + 1 because of the extra byte for the signature type.
+        for (byte[] sig : sorted.get(i)) {
+          putVarInt(out, sig.length + 1);
+          out.put(sig);
+          out.put((byte) Transaction.SigHash.ALL.value);
+        }
+
+        // And finally the script.
+        byte[] witnessProgram = witnesses.get(i).getWitnessScript();
+        putVarInt(out, witnessProgram.length);
+        out.put(witnessProgram);
+      }
+
+      // 7. nLocktime
+      out.putInt(lockTime);
+    } finally {
+      out.order(order);
+    }
+    return size;
+  }
+
+  private List<List<byte[]>> checkComplete() {
+    if (sortedSignatures == null) {
+      throw new IllegalStateException(format("Expected %d responses, got %d",
+          Constants.MULTISIG_THRESHOLD, responseCount));
+    }
+    return sortedSignatures;
+  }
+
+  /** Writes a CompactSize, out must be little-endian. */
+  private static void putVarInt(ByteBuffer out, long value) {
+    if (value < 0xfd) {
+      out.put((byte) value);
+    } else if (value <= 0xffff) {
+      out.put((byte) 0xfd);
+      out.putShort((short) value);
+    } else if (value <= 0xffffffffL) {
+      out.put((byte) 0xfe);
+      out.putInt((int) value);
+    } else {
+      out.put((byte) 0xff);
+      out.putLong(value);
+    }
+  }
+}
@@ -0,0 +1,560 @@
+package com.squareup.subzero.shared;
+
+import com.google.protobuf.ByteString;
+import com.squareup.subzero.proto.service.Common.TxInput;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+import org.bouncycastle.util.encoders.Hex;
+
+import static java.lang.String.format;
+
+/**
+ * Persistent set of the wallet's unspent outputs, in the form ColdWallet.startTransaction takes
+ * them (TxInput).
+ *
+ * Outputs are stored as fixed-width records appended to a memory-mapped file. The file is mapped
+ * in segments of SEGMENT_RECORDS records, so it isn't limited by the 2GB maximum mapping size.
+ * Spending an output sets a flag in its record; records are never removed.
+ *
+ * File layout (big-endian):
+ *   header (64 bytes): magic, format version, capacity (in records), record count,
+ *                      wallet fingerprint (32 bytes), padding.
+ *   capacity records (56 bytes each): prev_hash (32 bytes, same order as TxInput.prev_hash),
+ *                      prev_index, packed path (see ScriptHashIndex.packPath), amount, flags,
+ *                      padding.
+ * A record is written before the record count is incremented, so a crash can at worst lose the
+ * outputs added since the last call to force().
+ *
+ * Outpoints are located with a hash table of record numbers, kept on the heap (8 bytes per
+ * record of capacity). It isn't persisted: opening the store rebuilds it with one O(n) pass over
+ * the records. Neither are the orderings of unspentByAmount and unspentByPath, which sort the
+ * unspent records on each call.
+ */
+public final class UtxoStore implements Closeable {
+  static final int MAGIC = 0x535a5554; // "SZUT"
+  static final int FORMAT_VERSION = 1;
+  static final int HEADER_SIZE = 64;
+  static final int RECORD_SIZE = 56;
+  static final int MIN_CAPACITY = 1 << 10;
+  static final int SEGMENT_RECORDS = 1 << 22;
+  /** 2^27 outputs is a 7.5GB file and a 1GB outpoint table. */
+  static final int MAX_CAPACITY = 1 << 27;
+
+  private static final int OFFSET_MAGIC = 0;
+  private static final int OFFSET_VERSION = 4;
+  private static final int OFFSET_CAPACITY = 8;
+  private static final int OFFSET_COUNT = 12;
+  private static final int OFFSET_FINGERPRINT = 16;
+
+  private static final int RECORD_PREV_HASH = 0;
+  private static final int RECORD_PREV_INDEX = 32;
+  private static final int RECORD_PATH = 36;
+  private static final int RECORD_AMOUNT = 40;
+  private static final int RECORD_FLAGS = 48;
+
+  private static final int FLAG_SPENT = 1;
+
+  private final File file;
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private final FileChannel channel;
+  private final MappedByteBuffer header;
+  /** Records are only appended, so the streams read them without holding the lock. */
+  private volatile MappedByteBuffer[] segments;
+  private int capacity;
+  private int count;
+  /** Open-addressing table of record number + 1, 0 being empty. */
+  private int[] table;
+  private int unspentCount;
+  private long unspentAmount;
+
+  private UtxoStore(File file, FileChannel channel, MappedByteBuffer header) {
+    this.file = file;
+    this.channel = channel;
+    this.header = header;
+  }
+
+  /**
+   * Opens the store in file, or creates an empty one if the file doesn't exist.
+   *
+   * @param file the store file.
+   * @param wallet the wallet whose outputs are stored.
+   * @return the store.
+   * @throws IOException if the file can't be read or isn't a valid store.
+   * @throws IllegalArgumentException if the file is the store of a different wallet.
+   */
+  public static UtxoStore open(File file, ColdWallet wallet) throws IOException {
+    boolean create = !file.exists();
+    if (create) {
+      try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+        f.setLength(HEADER_SIZE + (long) MIN_CAPACITY * RECORD_SIZE);
+      }
+    }
+    FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    try {
+      if (channel.size() < HEADER_SIZE) {
+        throw new IOException(format("%s: file too short", file));
+      }
+      MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+      byte[] fingerprint = wallet.fingerprint();
+      if (create) {
+        header.putInt(OFFSET_MAGIC, MAGIC);
+        header.putInt(OFFSET_VERSION, FORMAT_VERSION);
+        header.putInt(OFFSET_CAPACITY, MIN_CAPACITY);
+        header.putInt(OFFSET_COUNT, 0);
+        for (int i = 0; i < fingerprint.length; i++) {
+          header.put(OFFSET_FINGERPRINT + i, fingerprint[i]);
+        }
+        header.force();
+      }
+
+      int magic = header.getInt(OFFSET_MAGIC);
+      int version = header.getInt(OFFSET_VERSION);
+      if (magic != MAGIC || version != FORMAT_VERSION) {
+        throw new IOException(format("%s: not a UTXO store (magic %x, version %d)", file, magic,
+            version));
+      }
+      int capacity = header.getInt(OFFSET_CAPACITY);
+      int count = header.getInt(OFFSET_COUNT);
+      if (Integer.bitCount(capacity) != 1 || capacity < MIN_CAPACITY || capacity > MAX_CAPACITY
+          || channel.size() < HEADER_SIZE + (long) capacity * RECORD_SIZE
+          || count < 0 || count > capacity) {
+        throw new IOException(format("%s: invalid capacity %d or count %d", file, capacity,
+            count));
+      }
+      for (int i = 0; i < fingerprint.length; i++) {
+        if (header.get(OFFSET_FINGERPRINT + i) != fingerprint[i]) {
+          throw new IllegalArgumentException(
+              format("%s: store belongs to a different wallet", file));
+        }
+      }
+
+      UtxoStore store = new UtxoStore(file, channel, header);
+      store.map(capacity);
+      store.count = count;
+      store.rebuildTable();
+      return store;
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /** (Re)maps the records for the given capacity. Segments which don't change are reused. */
+  private void map(int newCapacity) throws IOException {
+    int segmentCount = (newCapacity + SEGMENT_RECORDS - 1) / SEGMENT_RECORDS;
+    MappedByteBuffer[] newSegments = new MappedByteBuffer[segmentCount];
+    for (int i = 0; i < segmentCount; i++) {
+      int records = Math.min(SEGMENT_RECORDS, newCapacity - i * SEGMENT_RECORDS);
+      if (segments != null && i < segments.length
+          && segments[i].capacity() == records * RECORD_SIZE) {
+        newSegments[i] = segments[i];
+      } else {
+        newSegments[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+            HEADER_SIZE + (long) i * SEGMENT_RECORDS * RECORD_SIZE, (long) records * RECORD_SIZE);
+      }
+    }
+    segments = newSegments;
+    capacity = newCapacity;
+  }
+
+  private ByteBuffer segment(int record) {
+    return segments[record / SEGMENT_RECORDS];
+  }
+
+  private static int offset(int record) {
+    return (record % SEGMENT_RECORDS) * RECORD_SIZE;
+  }
+
+  private void rebuildTable() {
+    table = new int[tableSize(capacity)];
+    unspentCount = 0;
+    unspentAmount = 0;
+    for (int record = 0; record < count; record++) {
+      table[findSlot(table, segment(record), offset(record) + RECORD_PREV_HASH,
+          segment(record).getInt(offset(record) + RECORD_PREV_INDEX))] = record + 1;
+      if (!isSpent(record)) {
+        unspentCount++;
+        unspentAmount += amount(record);
+      }
+    }
+  }
+
+  private static int tableSize(int entries) {
+    return Integer.highestOneBit(entries - 1) << 2;
+  }
+
+  /**
+   * Finds the slot of the table containing the outpoint, or the empty slot where it would be
+   * inserted.
+   *
+   * @param table the table.
+   * @param prevHash buffer containing the prev_hash.
+   * @param offset the absolute offset of the prev_hash in prevHash.
+   * @param prevIndex the prev_index.
+   */
+  private int findSlot(int[] table, ByteBuffer prevHash, int offset, int prevIndex) {
+    // txids are uniformly distributed.
+    long h = prevHash.getLong(offset) ^ (prevIndex * 0x9e3779b97f4a7c15L);
+    int mask = table.length - 1;
+    int slot = (int) (h ^ (h >>> 32)) & mask;
+    while (true) {
+      int entry = table[slot];
+      if (entry == 0) {
+        return slot;
+      }
+      ByteBuffer segment = segment(entry - 1);
+      int recordOffset = offset(entry - 1);
+      if (segment.getInt(recordOffset + RECORD_PREV_INDEX) == prevIndex
+          && equalPrevHash(segment, recordOffset + RECORD_PREV_HASH, prevHash, offset)) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  private static boolean equalPrevHash(ByteBuffer a, int aOffset, ByteBuffer b, int bOffset) {
+    for (int i = 0; i < 32; i += 8) {
+      if (a.getLong(aOffset + i) != b.getLong(bOffset + i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Record number of an outpoint, or -1. */
+  private int find(ByteString prevHash, int prevIndex) {
+    if (prevHash.size() != 32) {
+      throw new IllegalArgumentException("prev_hash should be 32 bytes");
+    }
+    ByteBuffer key = ByteBuffer.wrap(prevHash.toByteArray());
+    return table[findSlot(table, key, 0, prevIndex)] - 1;
+  }
+
+  /**
+   * Adds an unspent output. Adding an output which is already in the store does nothing, so
+   * blocks can be re-scanned.
+   *
+   * @param utxo the output, as returned by RawTransactionScanner.
+   * @return true if the output was added.
+   * @throws IllegalArgumentException if the output is invalid, or is already in the store with a
+   *         different amount or path.
+   * @throws IOException if the file can't be grown.
+   */
+  public boolean add(TxInput utxo) throws IOException {
+    if (utxo.getPrevHash().size() != 32) {
+      throw new IllegalArgumentException("prev_hash should be 32 bytes");
+    }
+    if (utxo.getAmount() < 0) {
+      throw new IllegalArgumentException("amount can't be negative");
+    }
+    if (!utxo.hasPath() || utxo.getPath().getIndex() < 0) {
+      throw new IllegalArgumentException("path is missing or invalid");
+    }
+    int packedPath = ScriptHashIndex.packPath(utxo.getPath().getIsChange(),
+        utxo.getPath().getIndex());
+
+    lock.writeLock().lock();
+    try {
+      byte[] prevHash = utxo.getPrevHash().toByteArray();
+      int slot = findSlot(table, ByteBuffer.wrap(prevHash), 0, utxo.getPrevIndex());
+      if (table[slot] != 0) {
+        int record = table[slot] - 1;
+        if (amount(record) != utxo.getAmount()
+            || segment(record).getInt(offset(record) + RECORD_PATH) != packedPath) {
+          throw new IllegalArgumentException(format("conflicting output %s:%d",
+              Hex.toHexString(prevHash), utxo.getPrevIndex()));
+        }
+        return false;
+      }
+
+      if (count == capacity) {
+        grow();
+        slot = findSlot(table, ByteBuffer.wrap(prevHash), 0, utxo.getPrevIndex());
+      }
+      int record = count;
+      ByteBuffer segment = segment(record);
+      int offset = offset(record);
+      for (int i = 0; i < 32; i++) {
+        segment.put(offset + RECORD_PREV_HASH + i, prevHash[i]);
+      }
+      segment.putInt(offset + RECORD_PREV_INDEX, utxo.getPrevIndex());
+      segment.putInt(offset + RECORD_PATH, packedPath);
+      segment.putLong(offset + RECORD_AMOUNT, utxo.getAmount());
+      segment.putInt(offset + RECORD_FLAGS, 0);
+      count++;
+      header.putInt(OFFSET_COUNT, count);
+      table[slot] = record + 1;
+      unspentCount++;
+      unspentAmount += utxo.getAmount();
+      return true;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Adds unspent outputs, then flushes the store.
+   *
+   * @param utxos the outputs.
+   * @return the number of outputs which weren't already in the store.
+   * @throws IOException on error.
+   */
+  public int addAll(Iterable<TxInput> utxos) throws IOException {
+    int added = 0;
+    for (TxInput utxo : utxos) {
+      if (add(utxo)) {
+        added++;
+      }
+    }
+    force();
+    return added;
+  }
+
+  /** Doubles the capacity. The outpoint table only needs to grow with it. */
+  private void grow() throws IOException {
+    if (capacity >= MAX_CAPACITY) {
+      throw new IllegalStateException(format("store can't hold more than %d outputs", capacity));
+    }
+    int newCapacity = capacity * 2;
+    try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+      f.setLength(HEADER_SIZE + (long) newCapacity * RECORD_SIZE);
+    }
+    map(newCapacity);
+    header.putInt(OFFSET_CAPACITY, newCapacity);
+    if (tableSize(newCapacity) > table.length) {
+      int[] newTable = new int[tableSize(newCapacity)];
+      for (int entry : table) {
+        if (entry != 0) {
+          int record = entry - 1;
+          newTable[findSlot(newTable, segment(record), offset(record) + RECORD_PREV_HASH,
+              segment(record).getInt(offset(record) + RECORD_PREV_INDEX))] = entry;
+        }
+      }
+      table = newTable;
+    }
+  }
+
+  /**
+   * Marks an output as spent.
+   *
+   * @param prevHash the txid of the output, in the same order as TxInput.prev_hash.
+   * @param prevIndex the index of the output.
+   * @return true if the output was unspent, false if it was already spent or isn't in the store.
+   */
+  public boolean markSpent(ByteString prevHash, int prevIndex) {
+    lock.writeLock().lock();
+    try {
+      int record = find(prevHash, prevIndex);
+      if (record < 0 || isSpent(record)) {
+        return false;
+      }
+      ByteBuffer segment = segment(record);
+      int offset = offset(record);
+      segment.putInt(offset + RECORD_FLAGS, segment.getInt(offset + RECORD_FLAGS) | FLAG_SPENT);
+      unspentCount--;
+      unspentAmount -= amount(record);
+      return true;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Marks the inputs of a transaction as spent, then flushes the store.
+   *
+   * @param inputs the inputs of the transaction.
+   * @return the number of inputs which were unspent.
+   * @throws IOException on error.
+   */
+  public int markSpent(Iterable<TxInput> inputs) throws IOException {
+    int spent = 0;
+    for (TxInput input : inputs) {
+      if (markSpent(input.getPrevHash(), input.getPrevIndex())) {
+        spent++;
+      }
+    }
+    force();
+    return spent;
+  }
+
+  /**
+   * @param prevHash the txid of the output, in the same order as TxInput.prev_hash.
+   * @param prevIndex the index of the output.
+   * @return true if the output is in the store and hasn't been spent.
+   */
+  public boolean isUnspent(ByteString prevHash, int prevIndex) {
+    lock.readLock().lock();
+    try {
+      int record = find(prevHash, prevIndex);
+      return record >= 0 && !isSpent(record);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private boolean isSpent(int record) {
+    return (segment(record).getInt(offset(record) + RECORD_FLAGS) & FLAG_SPENT) != 0;
+  }
+
+  private long amount(int record) {
+    return segment(record).getLong(offset(record) + RECORD_AMOUNT);
+  }
+
+  private TxInput toTxInput(int record) {
+    ByteBuffer segment = segment(record);
+    int offset = offset(record);
+    byte[] prevHash = new byte[32];
+    for (int i = 0; i < 32; i++) {
+      prevHash[i] = segment.get(offset + RECORD_PREV_HASH + i);
+    }
+    return TxInput.newBuilder()
+        .setPrevHash(ByteString.copyFrom(prevHash))
+        .setPrevIndex(segment.getInt(offset + RECORD_PREV_INDEX))
+        .setAmount(segment.getLong(offset + RECORD_AMOUNT))
+        .setPath(ScriptHashIndex.unpackPath(segment.getInt(offset + RECORD_PATH)))
+        .build();
+  }
+
+  /** Record numbers of the unspent outputs, in insertion order. */
+  private int[] unspentRecords() {
+    lock.readLock().lock();
+    try {
+      int[] records = new int[unspentCount];
+      int n = 0;
+      for (int record = 0; record < count; record++) {
+        if (!isSpent(record)) {
+          records[n++] = record;
+        }
+      }
+      return records;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * The unspent outputs, in the order they were added. The outputs are materialized lazily; the
+   * set of outputs is the one at the time of the call.
+   *
+   * @return the unspent outputs.
+   */
+  public Stream<TxInput> unspent() {
+    return Arrays.stream(unspentRecords()).mapToObj(this::toTxInput);
+  }
+
+  /**
+   * The unspent outputs, largest first. Outputs with the same amount are in the order they were
+   * added.
+   *
+   * @return the unspent outputs.
+   */
+  public Stream<TxInput> unspentByAmount() {
+    int[] records = unspentRecords();
+    long[] amounts = new long[records.length];
+    for (int i = 0; i < records.length; i++) {
+      amounts[i] = amount(records[i]);
+    }
+    // An amount and a record number don't fit in a long, but the amount's position in the sorted
+    // amounts does (binarySearch finds the same one for equal amounts). Reversed position followed
+    // by the record number sorts as needed.
+    long[] sorted = amounts.clone();
+    Arrays.sort(sorted);
+    long[] keys = new long[records.length];
+    for (int i = 0; i < records.length; i++) {
+      long rank = records.length - 1 - Arrays.binarySearch(sorted, amounts[i]);
+      keys[i] = (rank << 32) | records[i];
+    }
+    Arrays.sort(keys);
+    return Arrays.stream(keys).mapToObj(key -> toTxInput((int) key));
+  }
+
+  /**
+   * The unspent outputs, ordered by path: receive addresses first, then change, each by index.
+   * Outputs with the same path are in the order they were added.
+   *
+   * @return the unspent outputs.
+   */
+  public Stream<TxInput> unspentByPath() {
+    int[] records = unspentRecords();
+    // Packed path (with is_change as the top bit) followed by the record number sorts as needed.
+    long[] keys = new long[records.length];
+    for (int i = 0; i < records.length; i++) {
+      int packedPath = segment(records[i]).getInt(offset(records[i]) + RECORD_PATH);
+      keys[i] = ((packedPath & 0xffffffffL) << 32) | records[i];
+    }
+    Arrays.sort(keys);
+    return Arrays.stream(keys).mapToObj(key -> toTxInput((int) key));
+  }
+
+  /**
+   * @return the number of outputs in the store, spent or not.
+   */
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return count;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return the number of unspent outputs.
+   */
+  public int unspentCount() {
+    lock.readLock().lock();
+    try {
+      return unspentCount;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return the sum of the unspent outputs, in satoshis.
+   */
+  public long unspentAmount() {
+    lock.readLock().lock();
+    try {
+      return unspentAmount;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Writes the changes to disk.
+   */
+  public void force() {
+    lock.readLock().lock();
+    try {
+      for (MappedByteBuffer segment : segments) {
+        segment.force();
+      }
+      header.force();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Flushes the store and closes the file.
+   *
+   * @throws IOException on error.
+   */
+  @Override public void close() throws IOException {
+    force();
+    channel.close();
+  }
+}
@@ -1,10 +1,14 @@
 package com.squareup.subzero.shared;
 
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.util.Random;
 import org.junit.Test;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
 
 public class Base45Test {
   @Test
@@ -81,9 +85,79 @@ public class Base45Test {
     Base45.fromBase45("foobar");
   }
 
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidNonAscii() {
+    Base45.fromBase45("00\u00c9");
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testGroupOutOfRange() {
+    // ::: is 45^3 - 1, which doesn't fit in 2 bytes.
+    Base45.fromBase45(":::");
+  }
+
   @Test
   public void testKnownValue() {
     byte[] buf = new byte[] { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9 };
     assertEquals("0010BK0M*0YD10W", Base45.toBase45(buf));
   }
+
+  @Test
+  public void testLengths() {
+    for (int l = 0; l < 100; l++) {
+      int encoded = Base45.encodedLength(l);
+      assertEquals(Base45.toBase45(new byte[l]).length(), encoded);
+      assertEquals(l, Base45.decodedLength(encoded));
+    }
+  }
+
+  @Test
+  public void testBuffers() throws Exception {
+    Random random = new Random(45);
+    for (int l = 0; l < 1000; l++) {
+      byte[] buf1 = new byte[l];
+      random.nextBytes(buf1);
+      String expected = Base45.toBase45(buf1);
+
+      // Direct buffers, with data before and after.
+      ByteBuffer input = ByteBuffer.allocateDirect(l + 2);
+      input.put((byte) 1).put(buf1).put((byte) 2);
+      input.position(1).limit(l + 1);
+      CharBuffer chars = CharBuffer.allocate(expected.length() + 1);
+      chars.put('!');
+      Base45.toBase45(input, chars);
+      assertEquals(l + 1, input.position());
+      assertEquals(expected.length() + 1, chars.position());
+      chars.flip().position(1);
+      assertEquals(expected, chars.toString());
+
+      StringBuilder appended = new StringBuilder("!");
+      Base45.toBase45(ByteBuffer.wrap(buf1), appended);
+      assertEquals("!" + expected, appended.toString());
+
+      ByteBuffer output = ByteBuffer.allocateDirect(l);
+      Base45.fromBase45(chars, output);
+      assertFalse(chars.hasRemaining());
+      assertFalse(output.hasRemaining());
+      byte[] buf2 = new byte[l];
+      output.flip();
+      output.get(buf2);
+      assertArrayEquals(buf1, buf2);
+    }
+  }
+
+  @Test
+  public void testBuffersTooSmall() {
+    ByteBuffer input = ByteBuffer.wrap(new byte[] { 0, 1, 2 });
+    CharBuffer chars = CharBuffer.allocate(4);
+    assertThrows(IllegalArgumentException.class, () -> Base45.toBase45(input, chars));
+    assertEquals(0, input.position());
+    assertEquals(0, chars.position());
+
+    CharBuffer encoded = CharBuffer.wrap("0010B");
+    ByteBuffer output = ByteBuffer.allocate(2);
+    assertThrows(IllegalArgumentException.class, () -> Base45.fromBase45(encoded, output));
+    assertEquals(0, encoded.position());
+    assertEquals(0, output.position());
+  }
 }
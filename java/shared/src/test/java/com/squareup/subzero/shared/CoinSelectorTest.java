@@ -0,0 +1,180 @@
+package com.squareup.subzero.shared;
+
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.ByteString;
+import com.squareup.subzero.proto.service.Common.Destination;
+import com.squareup.subzero.proto.service.Common.Path;
+import com.squareup.subzero.proto.service.Common.QrCodeSignature;
+import com.squareup.subzero.proto.service.Common.Signature;
+import com.squareup.subzero.proto.service.Common.TxInput;
+import com.squareup.subzero.proto.service.Common.TxOutput;
+import com.squareup.subzero.proto.service.Service.CommandRequest;
+import com.squareup.subzero.proto.service.Service.CommandResponse;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+
+import static com.squareup.subzero.shared.TestWallets.utxos;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class CoinSelectorTest {
+  private static final String TOKEN = "1c0c0b1e-d5a4-4a6a-9e8a-4a1a7ed9c1b1";
+
+  private ColdWallet coldWallet;
+  private final Path gatewayPath = SubzeroUtils.newPath(false, 17);
+  private final Path changePath = SubzeroUtils.newPath(true, 1234567);
+
+  @Before public void setUp() {
+    coldWallet = TestWallets.coldWallet();
+  }
+
+  /** The largest response Subzero can produce for the inputs. */
+  private static CommandResponse worstCaseResponse(int inputs) {
+    Signature signature = Signature.newBuilder()
+        .setDer(ByteString.copyFrom(new byte[Constants.SIGNATURE_DER_MAX_SIZE]))
+        .setHash(ByteString.copyFrom(new byte[Constants.SIGNATURE_HASH_SIZE]))
+        .build();
+    CommandResponse.SignTxResponse.Builder signTx = CommandResponse.SignTxResponse.newBuilder();
+    for (int i = 0; i < inputs; i++) {
+      signTx.addSignatures(signature);
+    }
+    return CommandResponse.newBuilder().setToken(TOKEN).setSignTx(signTx).build();
+  }
+
+  private static long sum(List<TxInput> inputs) {
+    return inputs.stream().mapToLong(TxInput::getAmount).sum();
+  }
+
+  @Test public void testFee() {
+    CoinSelector selector = new CoinSelector(coldWallet, 1, false);
+    // 10.5 vbytes of overhead, 148.5 per input, 34 for a P2PKH output.
+    assertEquals(11 + 34, selector.fee(0, CoinSelector.GATEWAY_OUTPUT_SIZE));
+    assertEquals(193, selector.fee(1, CoinSelector.GATEWAY_OUTPUT_SIZE));
+    assertEquals(374, selector.fee(2, CoinSelector.GATEWAY_OUTPUT_SIZE
+        + CoinSelector.CHANGE_OUTPUT_SIZE));
+    assertEquals(3 * 374, new CoinSelector(coldWallet, 3, false).fee(2,
+        CoinSelector.GATEWAY_OUTPUT_SIZE + CoinSelector.CHANGE_OUTPUT_SIZE));
+  }
+
+  @Test public void testSelect() {
+    CoinSelector selector = new CoinSelector(coldWallet, 10, false);
+    List<TxInput> utxos = utxos(50, 1_000_000);
+    CoinSelector.Selection selection =
+        selector.select(utxos, 2_500_000, gatewayPath, changePath, TOKEN, 0.0001);
+
+    // The three largest inputs.
+    assertEquals(ImmutableList.of(utxos.get(49), utxos.get(48), utxos.get(47)),
+        selection.getInputs());
+    assertEquals(2, selection.getOutputs().size());
+    TxOutput gateway = selection.getOutputs().get(0);
+    TxOutput change = selection.getOutputs().get(1);
+    assertEquals(Destination.GATEWAY, gateway.getDestination());
+    assertEquals(gatewayPath, gateway.getPath());
+    assertEquals(2_500_000, gateway.getAmount());
+    assertEquals(Destination.CHANGE, change.getDestination());
+    assertEquals(changePath, change.getPath());
+    assertEquals(selector.fee(3, CoinSelector.GATEWAY_OUTPUT_SIZE
+        + CoinSelector.CHANGE_OUTPUT_SIZE), selection.getFee());
+    assertEquals(sum(selection.getInputs()),
+        gateway.getAmount() + change.getAmount() + selection.getFee());
+
+    CommandRequest request = coldWallet.startTransaction(selection.getInputs(),
+        selection.getOutputs(), TOKEN, 0.0001);
+    assertEquals(request.getSerializedSize(), selection.getRequestSize());
+    assertEquals(worstCaseResponse(3).getSerializedSize(), selection.getResponseSize());
+  }
+
+  @Test public void testSelectWithoutChange() {
+    CoinSelector selector = new CoinSelector(coldWallet, 10, false);
+    List<TxInput> utxos = utxos(1, 1_000_000);
+    // Leaves less than DUST_THRESHOLD of change.
+    long amount = 1_000_000 - selector.fee(1, CoinSelector.GATEWAY_OUTPUT_SIZE) - 100;
+    CoinSelector.Selection selection =
+        selector.select(utxos, amount, gatewayPath, changePath, null, null);
+    assertEquals(1, selection.getOutputs().size());
+    assertEquals(amount, selection.getOutputs().get(0).getAmount());
+    assertEquals(1_000_000 - amount, selection.getFee());
+  }
+
+  @Test public void testSelectInsufficient() {
+    CoinSelector selector = new CoinSelector(coldWallet, 10, false);
+    assertThrows(IllegalArgumentException.class,
+        () -> selector.select(utxos(3, 1_000_000), 3_000_000, gatewayPath, changePath, null,
+            null));
+    assertThrows(IllegalArgumentException.class,
+        () -> selector.select(utxos(3, 1_000_000), 100, gatewayPath, changePath, null, null));
+    // Enough funds, but not in a single QR code.
+    assertThrows(IllegalArgumentException.class,
+        () -> selector.select(utxos(100, 10_000), 900_000, gatewayPath, changePath, null,
+            null));
+  }
+
+  @Test public void testSelectSkipsUneconomicInputs() {
+    CoinSelector selector = new CoinSelector(coldWallet, 10, false);
+    List<TxInput> utxos = new ArrayList<>(utxos(20, 1000));
+    utxos.addAll(utxos(1, 1_000_000));
+    CoinSelector.Selection selection =
+        selector.select(utxos, 900_000, gatewayPath, changePath, null, null);
+    assertEquals(1, selection.getInputs().size());
+    // At 10 sat/vbyte, a 1000 sat input costs more than it's worth.
+    assertThrows(IllegalArgumentException.class,
+        () -> selector.selectMax(utxos(20, 1000), gatewayPath, null, null));
+  }
+
+  @Test public void testSelectMax() {
+    for (boolean qrSigned : new boolean[] {false, true}) {
+      CoinSelector selector = new CoinSelector(coldWallet, 5, qrSigned);
+      List<TxInput> utxos = utxos(Constants.INPUTS_COUNT_MAX, 100_000);
+      CoinSelector.Selection selection = selector.selectMax(utxos, gatewayPath, TOKEN, 0.0001);
+      int count = selection.getInputs().size();
+
+      // Largest first.
+      for (int i = 0; i < count; i++) {
+        assertEquals(utxos.get(utxos.size() - 1 - i), selection.getInputs().get(i));
+      }
+      assertEquals(1, selection.getOutputs().size());
+      assertEquals(sum(selection.getInputs()) - selection.getFee(),
+          selection.getOutputs().get(0).getAmount());
+
+      CommandRequest request = coldWallet.startTransaction(selection.getInputs(),
+          selection.getOutputs(), TOKEN, 0.0001);
+      if (qrSigned) {
+        request = request.toBuilder()
+            .setSerializedCommandRequest(request.toByteString())
+            .setQrsignature(QrCodeSignature.newBuilder()
+                .setSignature(ByteString.copyFrom(new byte[Constants.QR_SIGNATURE_SIZE])))
+            .build();
+      }
+      assertEquals(request.getSerializedSize(), selection.getRequestSize());
+      assertTrue(request.getSerializedSize() <= Constants.MAX_QR_PROTO_BYTES);
+      assertEquals(worstCaseResponse(count).getSerializedSize(), selection.getResponseSize());
+      assertTrue(selection.getResponseSize() <= Constants.MAX_QR_PROTO_BYTES);
+
+      // One more input (of the same size) doesn't fit.
+      CoinSelector.Selection smaller = selector.selectMax(utxos.subList(0, count + 1),
+          gatewayPath, TOKEN, 0.0001);
+      assertEquals(count, smaller.getInputs().size());
+    }
+  }
+
+  @Test public void testSelectMaxBase45() {
+    for (boolean qrSigned : new boolean[] {false, true}) {
+      List<TxInput> utxos = utxos(Constants.INPUTS_COUNT_MAX, 100_000);
+      int base64 = new CoinSelector(coldWallet, 5, qrSigned)
+          .selectMax(utxos, gatewayPath, TOKEN, 0.0001).getInputs().size();
+      CoinSelector.Selection selection =
+          new CoinSelector(coldWallet, 5, qrSigned, QrPayload.Encoding.BASE45)
+              .selectMax(utxos, gatewayPath, TOKEN, 0.0001);
+
+      // Base45 QR codes hold more bytes, so more inputs fit.
+      assertTrue(selection.getInputs().size() > base64);
+      assertTrue(selection.getRequestSize() > Constants.MAX_QR_PROTO_BYTES
+          || selection.getResponseSize() > Constants.MAX_QR_PROTO_BYTES);
+      assertTrue(selection.getRequestSize() <= Constants.MAX_QR_PROTO_BYTES_BASE45);
+      assertTrue(selection.getResponseSize() <= Constants.MAX_QR_PROTO_BYTES_BASE45);
+    }
+  }
+}
@@ -10,8 +10,14 @@ import com.squareup.subzero.proto.service.Common.TxInput;
 import com.squareup.subzero.proto.service.Common.TxOutput;
 import com.squareup.subzero.proto.service.Service.CommandRequest;
 import com.squareup.subzero.proto.service.Service.CommandResponse;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import org.bitcoinj.params.TestNet3Params;
 import org.bouncycastle.util.encoders.Base64;
 import org.bouncycastle.util.encoders.Hex;
@@ -19,6 +25,7 @@ import org.junit.Test;
 
 import static org.bouncycastle.util.encoders.Hex.toHexString;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
 
 /**
  * This tests show cases how to initialize, finalize and sign a transaction.
@@ -227,6 +234,11 @@ public class ColdWalletCreationAndSigningTestnetTest {
         "010000000001011d08ca0a654814df8f45edc6c53c222c358366c76642a5a12697692d1a9dcc21000000002322002089d07657310b60a144a5c6bab92083f69eff86650dda61d287d632c68cf12b68feffffff02c02090020000000017a914c0989ed5ab5a3c6568b41c902f37a5b1fdc3793887804120050000000017a914260cd6a84fcf10bf0d4101ede0452ff5265ea59187040048304502210084297bbd69f9dd848d9a5475c7af510c1d780a7f227705f6350a02ce4ac1c7f2022003f0ef945ab4883ce9996c99dec6a6009df3fbdbc662f6fec08f2870f9223bce0147304402202cc4d544bd0c9efcf2879491d0edafeb304f38680b27e2da41c4948215af358602204de0d0d6e623ccc51a32151041e0fa8ab4ac2117106ba4bb69c01321be24b127018b5221020a6e06b48f1e4806ba94435aaf7b55190bc8295ff63ca40264dfcae3148451a321024826a65c1db382cebc2fa93be6bac859d1dc74f5374eaa016c41cdb08c17a45721038858f3df69e3aa0289129ffea09c3819700eb926b7e09ae36bac3e50c19a72172103c83e35763df6941fcd3b9ef0f754f222ce95c8adc5deef65cf968af9e1162c4b54ae00000000",
         transaction);
 
+    // The txid can be computed before the transaction is signed.
+    assertEquals("d8b2819b24ea90042e6381763027fffbd66d7e8ab4e1c00371d7d9040303d1bc",
+        toHexString(coldWallet.txid(signTxRequest.getSignTx().getInputsList(),
+            signTxRequest.getSignTx().getOutputsList())));
+
     // We used https://testnet.smartbit.com.au/txs/pushtx to broadcast the transaction. You can see
     // this transaction here:
     // https://live.blockcypher.com/btc-testnet/tx/d8b2819b24ea90042e6381763027fffbd66d7e8ab4e1c00371d7d9040303d1bc/
@@ -360,6 +372,54 @@ public class ColdWalletCreationAndSigningTestnetTest {
         "01000000000104109615ddfb4b767f6c9d9c33aff8166bceb065ccfdb43fa1e1776d852a84e57d0000000023220020a1a6cbed6d48dec7b235a03abdb2b033d94a4e9b6f1be8d7ac3cd67f4916e0dbfeffffff31ea724316a95ccf7757700c5fb973c5abc90aebc12ee8986cd9d1c9913fffaf01000000232200201302962e6038910d8378af75da33aa0dfc79e7f39ed0535c36f99f37cc7e73b0feffffffbcd1030304d9d77103c0e1b48a7e6dd6fbff27307681632e0490ea249b81b2d80000000023220020af9952c5364afd0bc3f652b7475cf19955dffccf38b32b5956ff27b71b84892afeffffffbcd1030304d9d77103c0e1b48a7e6dd6fbff27307681632e0490ea249b81b2d801000000232200200802857270d28e8396cf4cf28e2048b562e281b272bf90c898dc2e5a8d25d3effeffffff02eadc6a06000000001976a914f209bea76345aff81f46e98dcfab7c82ef10bf0b88acd4b9d50c000000001976a91424ae16e1b25950e00309371c161fc12920bfc92488ac040047304402205b3afa08e4bc5184d4fbc8342b69590ad2022dc146eaee1bd8f6dbecd05bec110220149538002118f0b8e363f9f891e7f34a2e6b35825f686f0fd04f86f97b918cca0147304402203115973546bf45e4ec2b9c9a32b78f7841d98db35f1627265877c26a9e39757d02203e73c67e127c92e25f9a88af40d2232ba6eb7b38b3cf01de176a9f3a667b1b8c018b5221020e85c11cd89f76a154b3bcecb72a59061ddc42beadca3ce052f18f4a9eec29372102546e5e2b33127c7d4233fd1007babb9968b83a946637307397dd11cd57a180c82102774ac67e1d9f73e7014fa18b54684acf27315756f23f68d450d0566fc948b27e210386dcfc6e1cf571c8ed6a840cb129763b6db6aec3fbdb69623aa559ff6195ed8954ae04004730440220239c90f56fa67893ab94de8adf6e4d8a437696344ea0cf5b80b750bf7392ecb6022016e1bec57d54e1074bc554e5c4e5d8a15065ebbac82eace913ae9dddc045523a0147304402205419bf94b68fe70fd0bba18b8a1603932cd35dab63afc3250d40be79dd3306b7022005927143f504c598628faf299f30b5db71893c4cbe96ae670df57f1ee09a7bf6018b52210297171fe6aeb0d350e342536e1b087265f3f9bf04542832ecff09851d1e41ff172103652b3cdde4f21909a28d48dc352f7d5e611123d6ed4a76db74b88a517bdd9d432103ced7d6985d5ae5eebf1289f761cd020477b746c2b2ccc8d55dbac1ec53e200d52103dd1b3b6e5c368119c54025fd3b7715cc66862eb5b75573de058ca8401d51f63554ae0400473044022006fd36d05b7c0d2c33c43f2fb39b634cbae029daf19ccb83bdd712dfe5e53dcd02200793acd4bb3833a35dee4c9596e4523835c03037966b96bb7086772bca1294080147304402200bcc808aec82eec1c6af29b56bd98e4f59a4aa879d4689bf0abcef2146d2ca0302202d1378e83cd31e43e766f55447d42a27d2039ff0b5b860c2e84363188963e5a6018b52210253e108c2fdb6eb033183093f97d25920285b0cb79d97cb3eece566c234c6b4b72102c6b695e912f54a6fd5171b11b60b8a0d579b61e04537c1ad3bc7abb51dc2de5d2103a8233d9fc5bf8b67d8c912f9e040a8233876deef8b3d91a9049c392728b6bafb2103d7a4f8da1077ce8d1f4443625c3734a92f6f0b5d8d0f1a094e3c6e91feb0b3c054ae04004830450221008e0da981e571dd773cd5c8f3ffbdc6caf3753fd1130cd03beaad2fc27371340f02206df1956ca2a29f583bd887d30bc25f3e8a6af2eff9ec696f6616d11c6492c1ca01483045022100e584f1906fabae1e3274dd0bf626d80bcad7b948394bd207226f07d3a78fdd2a022021b1a77276af01dbd5f421c7b080392d9a6656361262342638c7c9b4fdae66ee018b522102b1942adb06295930976c080c4b3f51861ff882daea7e4cfcc7003ece166209952102c82ce4241450537b2d1cfeb89e10684d38516593ca7fb7a9cf33704a51b5f5642102d5a7a2947e9ab732d37530bbf66f063e9f8f7c1ad23200845c25b1ed395120c3210361a8486ffe1eae5020b53beb7ef62b71b60386f99b14c98b30dfbade4ee2dc6d54ae00000000",
         transaction);
 
+    // Same transaction, with the inputs verified in parallel.
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      coldWallet.setVerificationExecutor(executor);
+      assertEquals(transaction,
+          toHexString(coldWallet.createTransaction(signTxRequest.getSignTx().getInputsList(),
+              signTxRequest.getSignTx().getOutputsList(), signatures)));
+
+      // Signatures for the wrong input are rejected.
+      List<Signature> swapped = new ArrayList<>(sig1.getSignTx().getSignaturesList());
+      Collections.swap(swapped, 0, 1);
+      assertThrows(RuntimeException.class,
+          () -> coldWallet.createTransaction(signTxRequest.getSignTx().getInputsList(),
+              signTxRequest.getSignTx().getOutputsList(),
+              ImmutableList.of(swapped, sig2.getSignTx().getSignaturesList())));
+    } finally {
+      executor.shutdown();
+    }
+
+    assertEquals("7153adb85690cf359d028e8e7fb6c7a9aee013105a72388509ff608f1593f9cf",
+        toHexString(coldWallet.txid(signTxRequest.getSignTx().getInputsList(),
+            signTxRequest.getSignTx().getOutputsList())));
+
+    // Same transaction, written to a direct buffer after some other data.
+    List<TxInput> inputs = signTxRequest.getSignTx().getInputsList();
+    List<TxOutput> outputs = signTxRequest.getSignTx().getOutputsList();
+    int size = transaction.length() / 2;
+    ByteBuffer direct = ByteBuffer.allocateDirect(3 + size);
+    direct.put(new byte[3]);
+    assertEquals(size, coldWallet.createTransaction(inputs, outputs, signatures, direct));
+    assertEquals(direct.capacity(), direct.position());
+    assertEquals(ByteOrder.BIG_ENDIAN, direct.order());
+    byte[] written = new byte[size];
+    direct.position(3);
+    direct.get(written);
+    assertEquals(transaction, toHexString(written));
+
+    ByteBuffer allocated =
+        coldWallet.createTransaction(inputs, outputs, signatures, ByteBuffer::allocateDirect);
+    assertEquals(size, allocated.remaining());
+    allocated.get(written);
+    assertEquals(transaction, toHexString(written));
+
+    ByteBuffer small = ByteBuffer.allocate(size - 1);
+    assertThrows(IllegalArgumentException.class,
+        () -> coldWallet.createTransaction(inputs, outputs, signatures, small));
+    assertEquals(0, small.position());
+
     // You can see this transaction here:
     // https://live.blockcypher.com/btc-testnet/tx/7153adb85690cf359d028e8e7fb6c7a9aee013105a72388509ff608f1593f9cf/
   }
@@ -11,12 +11,17 @@ import com.squareup.subzero.proto.service.Service.CommandRequest;
 import com.squareup.subzero.proto.service.Service.CommandResponse;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.Collectors;
+import org.bitcoinj.core.Address;
 import org.bitcoinj.params.TestNet3Params;
+import org.bitcoinj.script.ScriptBuilder;
 import org.bouncycastle.util.encoders.Hex;
 import org.junit.Before;
 import org.junit.Test;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
 import static java.lang.String.format;
 
@@ -127,4 +132,54 @@ public class ColdWalletTest {
     CommandRequest request = coldWallet.startTransaction(inputs, outputs, token, localRate);
     assertEquals(localRate, request.getSignTx().getLocalRate(), 0.0);
   }
+
+  @Test public void testAddressRange() {
+    // Large enough for the spliterator to split at least once.
+    int count = 3 * PathRangeSpliterator.MIN_SPLIT_SIZE;
+    for (boolean isChange : new boolean[] {false, true}) {
+      List<Address> addresses = coldWallet.addresses(isChange, 1000, count);
+      assertEquals(count, addresses.size());
+      for (int i = 0; i < count; i++) {
+        assertEquals(coldWallet.address(SubzeroUtils.newPath(isChange, 1000 + i)), addresses.get(i));
+      }
+    }
+
+    // The sequential stream returns the same addresses.
+    assertEquals(coldWallet.addresses(false, 5, 10),
+        coldWallet.addressStream(false, 5, 10).sequential().collect(Collectors.toList()));
+
+    // The range can end at the last index.
+    assertEquals(coldWallet.address(SubzeroUtils.newPath(true, Integer.MAX_VALUE)),
+        coldWallet.addresses(true, Integer.MAX_VALUE, 1).get(0));
+    assertTrue(coldWallet.addresses(false, 0, 0).isEmpty());
+  }
+
+  @Test public void testAddressRangeInvalid() {
+    assertThrows(IllegalArgumentException.class, () -> coldWallet.addresses(false, -1, 1));
+    assertThrows(IllegalArgumentException.class, () -> coldWallet.addresses(false, 0, -1));
+    assertThrows(IllegalArgumentException.class,
+        () -> coldWallet.addresses(false, Integer.MAX_VALUE, 2));
+  }
+
+  @Test public void testWrongRootKeyCount() {
+    String key = "tpubD9jBarsLCKot45kvTTu7yWxmNnkBPbpn2CgS1F3yuxZGgohTkamYwJJKenZHrsYwPRJY66dk3ZUt3aZwZqFf7QGsgUUUcNSvvb9NXHFt5Vb";
+    assertThrows(IllegalArgumentException.class,
+        () -> new ColdWallet(TestNet3Params.get(), 1, ImmutableList.of(key, key, key), key));
+    assertThrows(IllegalArgumentException.class,
+        () -> new ColdWallet(TestNet3Params.get(), 1, ImmutableList.of(key, key, key, key, key),
+            key));
+  }
+
+  @Test public void testScriptHashes() {
+    Path path = SubzeroUtils.newPath(true, 17);
+    assertArrayEquals(coldWallet.address(path).getHash(), coldWallet.scriptHash(path));
+    assertArrayEquals(ScriptBuilder.createOutputScript(coldWallet.address(path)).getProgram(),
+        coldWallet.scriptPubKey(path));
+
+    List<byte[]> scriptHashes = coldWallet.scriptHashes(false, 300, 10);
+    for (int i = 0; i < 10; i++) {
+      assertArrayEquals(coldWallet.scriptHash(SubzeroUtils.newPath(false, 300 + i)),
+          scriptHashes.get(i));
+    }
+  }
 }
@@ -0,0 +1,90 @@
+package com.squareup.subzero.shared;
+
+import com.google.common.collect.ImmutableList;
+import com.squareup.subzero.proto.service.Common.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.bitcoinj.core.Address;
+import org.bitcoinj.crypto.DeterministicKey;
+import org.bitcoinj.params.TestNet3Params;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class DerivationCacheTest {
+  private List<DeterministicKey> rootKeys;
+
+  @Before public void setUp() {
+    // Same keys as SubzeroUtilsTest.deriveP2SHP2WSH
+    rootKeys = ImmutableList.of(
+        "tpubD9xeStpGFRUVhE7c3dDsdqNmbPC6RjQhvSc7UetKRMYjjLusaJx6Nfb3bAGQXDmnY5iuBApU75yuLDDYDXvq3FnXX1zEQMficGXkrYn6i1L",
+        "tpubD9JLQCZyqpsY7L5dY86vJnJ1g1Acgb5MzpF7MgE29qQzUcM1LpxTuKeCRWwnCncVRhxYugumQqndARHqQ95c629h7bEciRH39LHXjpJEbsY",
+        "tpubD9F4zKZ1qkfAghtK8BCT5EeFJm5X3YP34M4xGi98KAok4rkwYBxoFdM9EaWxTK3PTRhe7Mwd7Mfm96ovKb64vDnENj84jfoN6gMzKx85uYm",
+        "tpubD8YrhVDcGsTdyj4pZh2ZGJvcqpASFZLai9tRHPj4ikjyn4MZcoHjqeuzNBGntpkSxNg61FKo9yCWpCvUGVnMpJJUwGJcWUpxTdPQKVdgoSo")
+        .stream().map(pub -> DeterministicKey.deserializeB58(pub, TestNet3Params.get()))
+        .collect(Collectors.toList());
+  }
+
+  @Test public void testMatchesUncachedDerivation() {
+    DerivationCache cache = new DerivationCache();
+    for (DeterministicKey root : rootKeys) {
+      for (boolean isChange : new boolean[] {false, true}) {
+        for (int index = 0; index < 5; index++) {
+          Path path = SubzeroUtils.newPath(isChange, index);
+          assertEquals(SubzeroUtils.derivePublicKey(root, path), cache.derivePublicKey(root, path));
+        }
+      }
+    }
+  }
+
+  @Test public void testAddress() {
+    DerivationCache cache = new DerivationCache();
+    Path path = SubzeroUtils.newPath(false, 3172);
+    Address address = SubzeroUtils.deriveP2SHP2WSH(TestNet3Params.get(), 2, rootKeys, cache, path);
+    assertEquals("2MuAdStu2xZtRSyA5B6wRtj7SmaLjDyfm1H", address.toString());
+  }
+
+  @Test public void testHitsAndMisses() {
+    DerivationCache cache = new DerivationCache();
+    Path path = SubzeroUtils.newPath(true, 42);
+
+    DeterministicKey first = cache.derivePublicKey(rootKeys.get(0), path);
+    assertEquals(0, cache.hitCount());
+    assertEquals(1, cache.missCount());
+
+    DeterministicKey second = cache.derivePublicKey(rootKeys.get(0), path);
+    assertSame(first, second);
+    assertEquals(1, cache.hitCount());
+    assertEquals(1, cache.missCount());
+
+    // Same path on a different root is a different leaf.
+    cache.derivePublicKey(rootKeys.get(1), path);
+    assertEquals(1, cache.hitCount());
+    assertEquals(2, cache.missCount());
+  }
+
+  @Test public void testBounded() {
+    DerivationCache cache = new DerivationCache(10);
+    for (int index = 0; index < 100; index++) {
+      cache.derivePublicKey(rootKeys.get(0), SubzeroUtils.newPath(false, index));
+    }
+    assertTrue(cache.size() <= 10);
+
+    // Leaf caching can be disabled, the results are unchanged.
+    DerivationCache disabled = new DerivationCache(0);
+    Path path = SubzeroUtils.newPath(false, 7);
+    assertEquals(SubzeroUtils.derivePublicKey(rootKeys.get(2), path),
+        disabled.derivePublicKey(rootKeys.get(2), path));
+    assertEquals(0, disabled.size());
+  }
+
+  @Test public void testInvalidIndex() {
+    DerivationCache cache = new DerivationCache();
+    Path path = Path.newBuilder().setIsChange(false).setIndex(-1).build();
+    assertThrows(IllegalStateException.class, () -> cache.derivePublicKey(rootKeys.get(0), path));
+  }
+}
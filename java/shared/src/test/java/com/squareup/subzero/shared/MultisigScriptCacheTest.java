@@ -0,0 +1,129 @@
+package com.squareup.subzero.shared;
+
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.ByteString;
+import com.squareup.subzero.proto.service.Common.Destination;
+import com.squareup.subzero.proto.service.Common.Path;
+import com.squareup.subzero.proto.service.Common.TxInput;
+import com.squareup.subzero.proto.service.Common.TxOutput;
+import com.squareup.subzero.shared.MultisigScriptCache.MultisigScript;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.crypto.DeterministicKey;
+import org.bitcoinj.params.TestNet3Params;
+import org.bitcoinj.script.ScriptBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class MultisigScriptCacheTest {
+  private List<DeterministicKey> rootKeys;
+
+  @Before public void setUp() {
+    // Same keys as SubzeroUtilsTest.deriveP2SHP2WSH
+    rootKeys = ImmutableList.of(
+        "tpubD9xeStpGFRUVhE7c3dDsdqNmbPC6RjQhvSc7UetKRMYjjLusaJx6Nfb3bAGQXDmnY5iuBApU75yuLDDYDXvq3FnXX1zEQMficGXkrYn6i1L",
+        "tpubD9JLQCZyqpsY7L5dY86vJnJ1g1Acgb5MzpF7MgE29qQzUcM1LpxTuKeCRWwnCncVRhxYugumQqndARHqQ95c629h7bEciRH39LHXjpJEbsY",
+        "tpubD9F4zKZ1qkfAghtK8BCT5EeFJm5X3YP34M4xGi98KAok4rkwYBxoFdM9EaWxTK3PTRhe7Mwd7Mfm96ovKb64vDnENj84jfoN6gMzKx85uYm",
+        "tpubD8YrhVDcGsTdyj4pZh2ZGJvcqpASFZLai9tRHPj4ikjyn4MZcoHjqeuzNBGntpkSxNg61FKo9yCWpCvUGVnMpJJUwGJcWUpxTdPQKVdgoSo")
+        .stream().map(pub -> DeterministicKey.deserializeB58(pub, TestNet3Params.get()))
+        .collect(Collectors.toList());
+  }
+
+  private Supplier<List<? extends ECKey>> publicKeys(Path path) {
+    return () -> SubzeroUtils.derivePublicKeys(rootKeys, path);
+  }
+
+  @Test public void testMatchesUncachedScripts() {
+    MultisigScriptCache cache = new MultisigScriptCache();
+    for (boolean isChange : new boolean[] {false, true}) {
+      for (int index = 0; index < 5; index++) {
+        Path path = SubzeroUtils.newPath(isChange, index);
+        MultisigScript script = cache.get(1, path, publicKeys(path));
+        assertArrayEquals(
+            ScriptBuilder.createRedeemScript(2, SubzeroUtils.derivePublicKeys(rootKeys, path))
+                .getProgram(),
+            script.getWitnessScript());
+        assertArrayEquals(SubzeroUtils.deriveP2SHP2WSHScriptHash(2, rootKeys, path),
+            script.getScriptHash());
+        assertArrayEquals(
+            SubzeroUtils.deriveP2SHP2WSH(TestNet3Params.get(), 2, rootKeys, path).getHash(),
+            script.getScriptHash());
+      }
+    }
+  }
+
+  @Test public void testHitsAndMisses() {
+    MultisigScriptCache cache = new MultisigScriptCache();
+    Path path = SubzeroUtils.newPath(true, 42);
+
+    MultisigScript first = cache.get(1, path, publicKeys(path));
+    assertEquals(0, cache.hitCount());
+    assertEquals(1, cache.missCount());
+
+    MultisigScript second = cache.get(1, path, () -> {
+      throw new AssertionError("should be cached");
+    });
+    assertSame(first, second);
+    assertEquals(1, cache.hitCount());
+    assertEquals(1, cache.missCount());
+
+    // Same path in a different wallet is a different entry.
+    cache.get(2, path, publicKeys(path));
+    assertEquals(1, cache.hitCount());
+    assertEquals(2, cache.missCount());
+  }
+
+  @Test public void testSharedByAddressAndTransaction() {
+    ColdWallet wallet = new ColdWallet(TestNet3Params.get(), 7, rootKeys, rootKeys.get(0));
+    MultisigScriptCache cache = wallet.getMultisigScriptCache();
+    Path path = SubzeroUtils.newPath(false, 3172);
+    assertEquals("2MuAdStu2xZtRSyA5B6wRtj7SmaLjDyfm1H", wallet.address(path).toString());
+    assertEquals(1, cache.missCount());
+
+    // Spending the output reuses the script, and so does a change output to the same path.
+    TxInput input = TxInput.newBuilder()
+        .setPrevHash(ByteString.copyFrom(new byte[32]))
+        .setPrevIndex(0)
+        .setAmount(100_000)
+        .setPath(path)
+        .build();
+    TxOutput output = TxOutput.newBuilder()
+        .setAmount(90_000)
+        .setDestination(Destination.CHANGE)
+        .setPath(path)
+        .build();
+    wallet.txid(ImmutableList.of(input), ImmutableList.of(output));
+    assertEquals(2, cache.hitCount());
+    assertEquals(1, cache.missCount());
+    assertArrayEquals(wallet.address(path).getHash(), wallet.scriptHash(path));
+  }
+
+  @Test public void testBounded() {
+    MultisigScriptCache cache = new MultisigScriptCache(10);
+    for (int index = 0; index < 100; index++) {
+      Path path = SubzeroUtils.newPath(false, index);
+      cache.get(1, path, publicKeys(path));
+    }
+    assertTrue(cache.size() <= 10);
+
+    MultisigScriptCache disabled = new MultisigScriptCache(0);
+    Path path = SubzeroUtils.newPath(false, 7);
+    assertArrayEquals(SubzeroUtils.deriveP2SHP2WSHScriptHash(2, rootKeys, path),
+        disabled.get(1, path, publicKeys(path)).getScriptHash());
+    assertEquals(0, disabled.size());
+  }
+
+  @Test public void testInvalidIndex() {
+    MultisigScriptCache cache = new MultisigScriptCache();
+    Path path = Path.newBuilder().setIsChange(false).setIndex(-1).build();
+    assertThrows(IllegalStateException.class, () -> cache.get(1, path, publicKeys(path)));
+  }
+}
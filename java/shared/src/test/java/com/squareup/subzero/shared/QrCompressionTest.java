@@ -0,0 +1,140 @@
+package com.squareup.subzero.shared;
+
+import com.google.protobuf.ByteString;
+import com.squareup.subzero.proto.service.Common.Destination;
+import com.squareup.subzero.proto.service.Common.QrCodeSignature;
+import com.squareup.subzero.proto.service.Common.TxInput;
+import com.squareup.subzero.proto.service.Common.TxOutput;
+import com.squareup.subzero.proto.service.Service.CommandRequest;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class QrCompressionTest {
+  /** A signed SignTx request, like the server generates. */
+  private static byte[] signTxRequest(int inputs) {
+    Random random = new Random(inputs);
+    CommandRequest.SignTxRequest.Builder signTx = CommandRequest.SignTxRequest.newBuilder();
+    for (int i = 0; i < inputs; i++) {
+      byte[] prevHash = new byte[32];
+      random.nextBytes(prevHash);
+      signTx.addInputs(TxInput.newBuilder()
+          .setPrevHash(ByteString.copyFrom(prevHash))
+          .setPrevIndex(random.nextInt(4))
+          .setAmount(random.nextInt(100_000_000))
+          .setPath(SubzeroUtils.newPath(false, random.nextInt(1000))));
+    }
+    signTx.addOutputs(TxOutput.newBuilder()
+        .setAmount(100_000)
+        .setDestination(Destination.GATEWAY)
+        .setPath(SubzeroUtils.newPath(false, 0)));
+    signTx.setLockTime(0);
+    CommandRequest request = CommandRequest.newBuilder()
+        .setWalletId(1234)
+        .setSignTx(signTx)
+        .build();
+
+    byte[] signature = new byte[Constants.QR_SIGNATURE_SIZE];
+    random.nextBytes(signature);
+    return request.toBuilder()
+        .setSerializedCommandRequest(request.toByteString())
+        .setQrsignature(QrCodeSignature.newBuilder().setSignature(ByteString.copyFrom(signature)))
+        .build()
+        .toByteArray();
+  }
+
+  @Test public void testRoundTrip() {
+    Random random = new Random(24);
+    for (int l = 0; l < 300; l++) {
+      byte[] proto = new byte[l];
+      random.nextBytes(proto);
+      byte[] envelope = QrCompression.compress(proto, QrCompression.VERSION_1);
+      assertEquals(QrCompression.MARKER, envelope[0]);
+      assertEquals(QrCompression.VERSION_1, QrCompression.version(envelope));
+      assertArrayEquals(proto, QrCompression.decompress(envelope));
+    }
+  }
+
+  @Test public void testNone() throws Exception {
+    byte[] proto = signTxRequest(3);
+    assertSame(proto, QrCompression.compress(proto, QrCompression.NONE));
+    assertEquals(QrCompression.NONE, QrCompression.version(proto));
+    assertSame(proto, QrCompression.decompress(proto));
+    CommandRequest.parseFrom(QrCompression.decompress(proto));
+  }
+
+  @Test public void testSignTxRequest() throws Exception {
+    for (int inputs : new int[] {10, 60}) {
+      byte[] proto = signTxRequest(inputs);
+      byte[] envelope = QrCompression.compress(proto, QrCompression.VERSION_1);
+      // The request is carried twice, and the dictionary has its structure.
+      assertTrue(envelope.length < proto.length * 6 / 10);
+      assertArrayEquals(proto, QrCompression.decompress(envelope));
+      CommandRequest.parseFrom(QrCompression.decompress(envelope));
+    }
+    // The dictionary helps small requests.
+    byte[] proto = signTxRequest(1);
+    Deflater plain = new Deflater(Deflater.BEST_COMPRESSION, true);
+    plain.setInput(proto);
+    plain.finish();
+    byte[] buffer = new byte[proto.length * 2];
+    int plainLength = plain.deflate(buffer);
+    plain.end();
+    assertTrue(QrCompression.compress(proto, QrCompression.VERSION_1).length - 2 < plainLength);
+  }
+
+  @Test public void testMoreFitsInQrCode() {
+    int raw = 0;
+    while (signTxRequest(raw + 1).length <= Constants.MAX_QR_PROTO_BYTES) {
+      raw++;
+    }
+    int compressed = raw;
+    while (QrCompression.compress(signTxRequest(compressed + 1), QrCompression.VERSION_1).length
+        <= Constants.MAX_QR_PROTO_BYTES) {
+      compressed++;
+    }
+    assertTrue(compressed > raw * 3 / 2);
+  }
+
+  @Test public void testDictionaryIsPinned() {
+    // Released dictionaries must never change. Add a version instead.
+    byte[] dictionary = QrCompression.dictionary(QrCompression.VERSION_1);
+    CRC32 crc = new CRC32();
+    crc.update(dictionary);
+    assertEquals(4090, dictionary.length);
+    assertEquals(0xecbaae0dL, crc.getValue());
+  }
+
+  @Test public void testInvalid() {
+    assertFalse(QrCompression.isSupported(-1));
+    assertFalse(QrCompression.isSupported(2));
+    assertThrows(IllegalArgumentException.class,
+        () -> QrCompression.compress(new byte[10], 2));
+    assertThrows(IllegalArgumentException.class,
+        () -> QrCompression.decompress(new byte[] {QrCompression.MARKER, 2, 0}));
+
+    byte[] envelope = QrCompression.compress(signTxRequest(5), QrCompression.VERSION_1);
+    assertThrows(IllegalArgumentException.class,
+        () -> QrCompression.decompress(Arrays.copyOf(envelope, envelope.length - 10)));
+    assertThrows(IllegalArgumentException.class,
+        () -> QrCompression.decompress(Arrays.copyOf(envelope, envelope.length + 1)));
+    byte[] corrupted = envelope.clone();
+    // A final block, of the reserved type.
+    corrupted[2] = 0x07;
+    assertThrows(IllegalArgumentException.class, () -> QrCompression.decompress(corrupted));
+
+    // A small envelope can't expand to a lot of memory.
+    byte[] bomb = QrCompression.compress(new byte[2 << 20], QrCompression.VERSION_1);
+    assertTrue(bomb.length < 5000);
+    assertThrows(IllegalArgumentException.class, () -> QrCompression.decompress(bomb));
+  }
+}
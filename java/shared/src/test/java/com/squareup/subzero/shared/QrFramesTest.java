@@ -0,0 +1,131 @@
+package com.squareup.subzero.shared;
+
+import com.squareup.subzero.shared.QrPayload.Encoding;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class QrFramesTest {
+  @Test public void testInOrder() {
+    Random random = new Random(23);
+    for (int l : new int[] {0, 1, 100, 1000, 1001, 5000}) {
+      byte[] proto = new byte[l];
+      random.nextBytes(proto);
+      QrFrames.Encoder encoder = new QrFrames.Encoder(proto, 200);
+      QrFrames.Decoder decoder = new QrFrames.Decoder();
+      for (int seq = 1; seq < encoder.getFragmentCount(); seq++) {
+        assertFalse(decoder.receive(encoder.frame(seq)));
+        assertEquals(seq, decoder.getReceivedCount());
+      }
+      assertTrue(decoder.receive(encoder.frame(encoder.getFragmentCount())));
+      assertTrue(decoder.isComplete());
+      assertEquals(encoder.getFragmentCount(), decoder.getFragmentCount());
+      assertArrayEquals(proto, decoder.getProto());
+    }
+  }
+
+  @Test public void testFrameSize() {
+    byte[] proto = new byte[1001];
+    QrFrames.Encoder encoder = new QrFrames.Encoder(proto, 200);
+    // 182 bytes of data per frame means 6 fragments, spread as 6 * 167 bytes.
+    assertEquals(6, encoder.getFragmentCount());
+    for (int seq = 1; seq < 20; seq++) {
+      assertEquals(167 + QrFrames.FRAME_OVERHEAD, encoder.frame(seq).length);
+    }
+
+    for (Encoding encoding : Encoding.values()) {
+      int maxFrameBytes = QrFrames.maxFrameBytes(encoding);
+      encoder = new QrFrames.Encoder(new byte[maxFrameBytes * 3], maxFrameBytes);
+      String payload = encoder.payload(1, encoding);
+      assertTrue(QrFrames.isFrame(payload));
+      assertFalse(QrFrames.isFrame(QrPayload.encode(proto, encoding)));
+      assertTrue(payload.length() <= 1 + encoding.payloadSize(encoding.getMaxProtoBytes()));
+    }
+  }
+
+  @Test public void testFountainFramesOnly() {
+    Random random = new Random(45);
+    byte[] proto = new byte[3000];
+    random.nextBytes(proto);
+    QrFrames.Encoder encoder = new QrFrames.Encoder(proto, 300);
+    QrFrames.Decoder decoder = new QrFrames.Decoder();
+    // Skip all the frames which carry a single fragment.
+    int seq = encoder.getFragmentCount() + 1;
+    while (!decoder.receive(encoder.frame(seq))) {
+      seq++;
+    }
+    // A few extra frames are expected, since some combinations are redundant.
+    assertTrue(seq - encoder.getFragmentCount() < 2 * encoder.getFragmentCount());
+    assertArrayEquals(proto, decoder.getProto());
+  }
+
+  @Test public void testShuffledWithLosses() {
+    Random random = new Random(1);
+    byte[] proto = new byte[10000];
+    random.nextBytes(proto);
+    QrFrames.Encoder encoder = new QrFrames.Encoder(proto, QrFrames.maxFrameBytes(Encoding.BASE45));
+
+    List<String> payloads = new ArrayList<>();
+    for (int seq = 1; seq <= 3 * encoder.getFragmentCount(); seq++) {
+      payloads.add(encoder.payload(seq, Encoding.BASE45));
+    }
+    Collections.shuffle(payloads, random);
+
+    QrFrames.Decoder decoder = new QrFrames.Decoder();
+    for (String payload : payloads) {
+      // Drop a third of the frames.
+      if (random.nextInt(3) == 0) {
+        continue;
+      }
+      if (decoder.receive(payload)) {
+        break;
+      }
+    }
+    assertTrue(decoder.isComplete());
+    assertArrayEquals(proto, decoder.getProto());
+    // Frames received after completion are ignored.
+    assertTrue(decoder.receive(payloads.get(0)));
+  }
+
+  @Test public void testRedundantFrame() {
+    byte[] proto = new byte[500];
+    QrFrames.Encoder encoder = new QrFrames.Encoder(proto, 200);
+    QrFrames.Decoder decoder = new QrFrames.Decoder();
+    assertFalse(decoder.receive(encoder.frame(1)));
+    assertFalse(decoder.receive(encoder.frame(1)));
+    assertEquals(1, decoder.getReceivedCount());
+    assertThrows(IllegalStateException.class, decoder::getProto);
+  }
+
+  @Test public void testInvalid() {
+    byte[] proto = new byte[500];
+    QrFrames.Encoder encoder = new QrFrames.Encoder(proto, 200);
+    QrFrames.Decoder decoder = new QrFrames.Decoder();
+
+    byte[] corrupted = encoder.frame(1);
+    corrupted[20] ^= 1;
+    assertThrows(IllegalArgumentException.class, () -> decoder.receive(corrupted));
+    assertThrows(IllegalArgumentException.class, () -> decoder.receive(new byte[10]));
+    assertThrows(IllegalArgumentException.class,
+        () -> decoder.receive(QrPayload.encode(proto, Encoding.BASE64)));
+    assertThrows(IllegalArgumentException.class, () -> encoder.frame(0));
+    assertThrows(IllegalArgumentException.class, () -> new QrFrames.Encoder(proto, 18));
+    assertThrows(IllegalArgumentException.class,
+        () -> new QrFrames.Encoder(new byte[0x10000], 19));
+
+    decoder.receive(encoder.frame(1));
+    byte[] other = new byte[500];
+    other[0] = 1;
+    QrFrames.Encoder otherEncoder = new QrFrames.Encoder(other, 200);
+    assertThrows(IllegalArgumentException.class, () -> decoder.receive(otherEncoder.frame(2)));
+    assertEquals(1, decoder.getReceivedCount());
+  }
+}
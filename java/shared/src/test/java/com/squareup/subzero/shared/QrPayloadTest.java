@@ -0,0 +1,67 @@
+package com.squareup.subzero.shared;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.WriterException;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.qrcode.QRCodeWriter;
+import com.squareup.subzero.shared.QrPayload.Encoding;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class QrPayloadTest {
+  @Test public void testRoundTrip() {
+    Random random = new Random(42);
+    for (Encoding encoding : Encoding.values()) {
+      for (int l = 0; l < 500; l++) {
+        byte[] proto = new byte[l];
+        random.nextBytes(proto);
+        String payload = QrPayload.encode(proto, encoding);
+        assertEquals(encoding.payloadSize(l), payload.length());
+        assertEquals(encoding, QrPayload.detect(payload));
+        assertArrayEquals(proto, QrPayload.decode(payload));
+      }
+    }
+  }
+
+  @Test public void testBase45IsAlphanumeric() {
+    byte[] proto = new byte[256];
+    for (int i = 0; i < proto.length; i++) {
+      proto[i] = (byte) i;
+    }
+    String payload = QrPayload.encode(proto, Encoding.BASE45);
+    assertEquals(QrPayload.BASE45_PREFIX, payload.charAt(0));
+    for (char c : payload.toCharArray()) {
+      assertTrue(Base45.CHARSET.indexOf(c) >= 0);
+    }
+  }
+
+  @Test public void testMaxProtoBytes() throws Exception {
+    // A full QR code (version 40, L) holds 2953 bytes or 4296 alphanumeric characters.
+    assertTrue(Encoding.BASE64.payloadSize(Encoding.BASE64.getMaxProtoBytes()) <= 2953);
+    assertTrue(Encoding.BASE64.payloadSize(Encoding.BASE64.getMaxProtoBytes() + 1) > 2953);
+    assertEquals(4296, Encoding.BASE45.payloadSize(Encoding.BASE45.getMaxProtoBytes()));
+    assertTrue(Encoding.BASE45.payloadSize(Encoding.BASE45.getMaxProtoBytes() + 1) > 4296);
+
+    QRCodeWriter writer = new QRCodeWriter();
+    byte[] proto = new byte[Encoding.BASE45.getMaxProtoBytes()];
+    new Random(45).nextBytes(proto);
+    BitMatrix matrix = writer.encode(QrPayload.encode(proto, Encoding.BASE45),
+        BarcodeFormat.QR_CODE, 1, 1);
+    assertEquals(17 + 4 * 40, matrix.getWidth());
+
+    String tooBig = QrPayload.encode(new byte[proto.length + 1], Encoding.BASE45);
+    assertThrows(WriterException.class,
+        () -> writer.encode(tooBig, BarcodeFormat.QR_CODE, 1, 1));
+  }
+
+  @Test public void testInvalid() {
+    assertThrows(IllegalArgumentException.class, () -> QrPayload.decode("-abc"));
+    assertThrows(IllegalArgumentException.class, () -> QrPayload.decode("-:::"));
+    assertThrows(IllegalArgumentException.class, () -> QrPayload.decode("not base64!"));
+  }
+}
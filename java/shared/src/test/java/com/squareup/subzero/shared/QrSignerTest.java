@@ -9,6 +9,11 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.security.*;
 import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.bouncycastle.util.encoders.Hex;
 import org.bouncycastle.util.io.pem.PemObject;
 import org.bouncycastle.util.io.pem.PemWriter;
@@ -16,6 +21,7 @@ import javax.security.auth.DestroyFailedException;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
@@ -136,4 +142,51 @@ public class QrSignerTest {
 
         signer.destroy();
     }
+
+    @Test
+    public void SignerTestConcurrent() throws Exception {
+        QrSigner signer = new QrSigner();
+        byte[][] expected = new byte[10][];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = signer.sign(new byte[] {(byte) i});
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<byte[]>> signatures = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                byte[] data = {(byte) (i % expected.length)};
+                signatures.add(executor.submit(() -> signer.sign(data)));
+            }
+            for (int i = 0; i < signatures.size(); i++) {
+                byte[] signature = signatures.get(i).get();
+                assertArrayEquals(expected[i % expected.length], signature);
+                assertTrue(signer.verify(signature, new byte[] {(byte) (i % expected.length)}));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void SignerTestVerifyAndDestroy() throws DestroyFailedException {
+        QrSigner signer = new QrSigner();
+        byte[] bytes_to_sign = "Subzero".getBytes(StandardCharsets.UTF_8);
+        byte[] signature = signer.sign(bytes_to_sign);
+        assertFalse(signer.verify(signature, "subzero".getBytes(StandardCharsets.UTF_8)));
+        signature[0] ^= 1;
+        assertFalse(signer.verify(signature, bytes_to_sign));
+
+        // The public key is cached, and the same each time.
+        assertArrayEquals(signer.dumpPublicKey(), signer.dumpPublicKey());
+
+        signer.destroy();
+        assertTrue(signer.isDestroyed());
+        assertThrows(IllegalStateException.class, () -> signer.sign(bytes_to_sign));
+    }
+
+    @Test
+    public void SignerTestInvalidKey() {
+        assertThrows(IllegalArgumentException.class, () -> new QrSigner(new byte[32]));
+    }
 }
@@ -0,0 +1,101 @@
+package com.squareup.subzero.shared;
+
+import com.google.common.collect.ImmutableList;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.bitcoinj.crypto.ChildNumber;
+import org.bitcoinj.crypto.DeterministicKey;
+import org.bitcoinj.crypto.HDKeyDerivation;
+import org.bitcoinj.params.TestNet3Params;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+
+public class RangeDerivationTest {
+  private List<DeterministicKey> rootKeys;
+
+  @Before public void setUp() {
+    rootKeys = ImmutableList.of(
+        "tpubD9xeStpGFRUVhE7c3dDsdqNmbPC6RjQhvSc7UetKRMYjjLusaJx6Nfb3bAGQXDmnY5iuBApU75yuLDDYDXvq3FnXX1zEQMficGXkrYn6i1L",
+        "tpubD9JLQCZyqpsY7L5dY86vJnJ1g1Acgb5MzpF7MgE29qQzUcM1LpxTuKeCRWwnCncVRhxYugumQqndARHqQ95c629h7bEciRH39LHXjpJEbsY",
+        "tpubD9F4zKZ1qkfAghtK8BCT5EeFJm5X3YP34M4xGi98KAok4rkwYBxoFdM9EaWxTK3PTRhe7Mwd7Mfm96ovKb64vDnENj84jfoN6gMzKx85uYm",
+        "tpubD8YrhVDcGsTdyj4pZh2ZGJvcqpASFZLai9tRHPj4ikjyn4MZcoHjqeuzNBGntpkSxNg61FKo9yCWpCvUGVnMpJJUwGJcWUpxTdPQKVdgoSo")
+        .stream().map(pub -> DeterministicKey.deserializeB58(pub, TestNet3Params.get()))
+        .collect(Collectors.toList());
+  }
+
+  /** Asserts the keys are identical, including the bits equals() doesn't look at. */
+  private static void assertSameKey(DeterministicKey expected, DeterministicKey actual) {
+    assertEquals(expected, actual);
+    assertArrayEquals(expected.getPubKey(), actual.getPubKey());
+    assertArrayEquals(expected.getChainCode(), actual.getChainCode());
+    assertEquals(expected.getPath(), actual.getPath());
+    assertSame(expected.getParent(), actual.getParent());
+    assertEquals(expected.serializePubB58(TestNet3Params.get()),
+        actual.serializePubB58(TestNet3Params.get()));
+  }
+
+  @Test public void testDeriveChildren() {
+    DeterministicKey parent = HDKeyDerivation.deriveChildKey(rootKeys.get(0), ChildNumber.ZERO);
+    DeterministicKey[] children = RangeDerivation.deriveChildren(parent, 3000, 100);
+    assertEquals(100, children.length);
+    for (int i = 0; i < children.length; i++) {
+      assertSameKey(HDKeyDerivation.deriveChildKey(parent, new ChildNumber(3000 + i, false)),
+          children[i]);
+    }
+  }
+
+  @Test public void testDeriveChildrenEdges() {
+    DeterministicKey parent = rootKeys.get(1);
+    assertEquals(0, RangeDerivation.deriveChildren(parent, 0, 0).length);
+    assertSameKey(HDKeyDerivation.deriveChildKey(parent, new ChildNumber(Integer.MAX_VALUE, false)),
+        RangeDerivation.deriveChildren(parent, Integer.MAX_VALUE, 1)[0]);
+
+    assertThrows(IllegalArgumentException.class,
+        () -> RangeDerivation.deriveChildren(parent, -1, 1));
+    assertThrows(IllegalArgumentException.class,
+        () -> RangeDerivation.deriveChildren(parent, Integer.MAX_VALUE, 2));
+  }
+
+  @Test public void testDeriveChild() {
+    DeterministicKey[] children = RangeDerivation.deriveChild(rootKeys, 1);
+    for (int i = 0; i < rootKeys.size(); i++) {
+      assertSameKey(HDKeyDerivation.deriveChildKey(rootKeys.get(i), ChildNumber.ONE), children[i]);
+    }
+  }
+
+  @Test public void testPrivateParents() {
+    // Private keys go through HDKeyDerivation, mixed with public ones.
+    List<DeterministicKey> parents = ImmutableList.of(
+        SubzeroUtilsTest.createDeterministicKey("key1"),
+        rootKeys.get(0),
+        SubzeroUtilsTest.createDeterministicKey("key2"));
+    DeterministicKey[] children = RangeDerivation.deriveChild(parents, 7);
+    for (int i = 0; i < parents.size(); i++) {
+      assertSameKey(HDKeyDerivation.deriveChildKey(parents.get(i), new ChildNumber(7, false)),
+          children[i]);
+    }
+
+    DeterministicKey[] range = RangeDerivation.deriveChildren(parents.get(0), 10, 3);
+    for (int i = 0; i < range.length; i++) {
+      assertSameKey(HDKeyDerivation.deriveChildKey(parents.get(0), new ChildNumber(10 + i, false)),
+          range[i]);
+    }
+  }
+
+  @Test public void testDerivePublicKeys() {
+    for (boolean isChange : new boolean[] {false, true}) {
+      List<DeterministicKey> keys =
+          SubzeroUtils.derivePublicKeys(rootKeys, SubzeroUtils.newPath(isChange, 3172));
+      for (int i = 0; i < rootKeys.size(); i++) {
+        assertEquals(
+            SubzeroUtils.derivePublicKey(rootKeys.get(i), SubzeroUtils.newPath(isChange, 3172)),
+            keys.get(i));
+      }
+    }
+  }
+}
@@ -0,0 +1,290 @@
+package com.squareup.subzero.shared;
+
+import com.google.common.primitives.Bytes;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.squareup.subzero.proto.service.Common.Destination;
+import com.squareup.subzero.proto.service.Common.EncryptedPubKey;
+import com.squareup.subzero.proto.service.Common.Path;
+import com.squareup.subzero.proto.service.Common.TxInput;
+import com.squareup.subzero.proto.service.Common.TxOutput;
+import com.squareup.subzero.proto.service.Service.CommandRequest;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.bitcoinj.core.VerificationException;
+import org.junit.Test;
+
+import static com.squareup.subzero.shared.SubzeroUtils.ERROR_ENCRYPTED_PUB_KEYS_COUNT;
+import static com.squareup.subzero.shared.SubzeroUtils.ERROR_ENCRYPTED_PUB_KEY_SIZE;
+import static com.squareup.subzero.shared.SubzeroUtils.ERROR_FEE_TOO_HIGH;
+import static com.squareup.subzero.shared.SubzeroUtils.ERROR_INCONSISTENT_IS_CHANGE;
+import static com.squareup.subzero.shared.SubzeroUtils.ERROR_INPUTS_COUNT;
+import static com.squareup.subzero.shared.SubzeroUtils.ERROR_INVALID_DESTINATION;
+import static com.squareup.subzero.shared.SubzeroUtils.ERROR_NEGATIVE_FEE;
+import static com.squareup.subzero.shared.SubzeroUtils.ERROR_OUTPUTS_COUNT;
+import static com.squareup.subzero.shared.SubzeroUtils.ERROR_TXINPUT_PREV_HASH_SIZE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+public class RawCommandRequestValidatorTest {
+  private static final ByteString LONG_PREV_HASH = ByteString.copyFrom(new byte[33]);
+
+  @Test public void testSignTx() {
+    assertValid(signTx(input(1000), output(990, Destination.GATEWAY)));
+    assertValid(signTx(input(1000), output(500, Destination.GATEWAY),
+        output(490, Destination.CHANGE)));
+
+    assertInvalid(ERROR_TXINPUT_PREV_HASH_SIZE, signTx(input(1000).toBuilder()
+        .setPrevHash(LONG_PREV_HASH).build(), output(990, Destination.GATEWAY)));
+
+    CommandRequest.SignTxRequest.Builder inputs = CommandRequest.SignTxRequest.newBuilder()
+        .addOutputs(output(990, Destination.GATEWAY));
+    for (int i = 0; i < Constants.INPUTS_COUNT_MAX; i++) {
+      inputs.addInputs(input(1000));
+    }
+    assertValid(CommandRequest.newBuilder().setSignTx(inputs).build());
+    inputs.addInputs(input(1000));
+    assertInvalid(ERROR_INPUTS_COUNT, CommandRequest.newBuilder().setSignTx(inputs).build());
+
+    CommandRequest.SignTxRequest.Builder outputs = CommandRequest.SignTxRequest.newBuilder()
+        .addInputs(input(1_000_000));
+    for (int i = 0; i < Constants.OUTPUTS_COUNT_MAX; i++) {
+      outputs.addOutputs(output(1000, Destination.GATEWAY));
+    }
+    assertValid(CommandRequest.newBuilder().setSignTx(outputs).build());
+    outputs.addOutputs(output(1000, Destination.GATEWAY));
+    assertInvalid(ERROR_OUTPUTS_COUNT, CommandRequest.newBuilder().setSignTx(outputs).build());
+  }
+
+  @Test public void testDestinations() {
+    assertInvalid(ERROR_INVALID_DESTINATION,
+        signTx(input(1000), output(990, Destination.DEFAULT_DESTINATION_DO_NOT_USE)));
+    assertInvalid(ERROR_INVALID_DESTINATION, signTx(input(1000), TxOutput.newBuilder()
+        .setAmount(990)
+        .build()));
+    assertInvalid(ERROR_INCONSISTENT_IS_CHANGE, signTx(input(1000),
+        output(990, Destination.GATEWAY).toBuilder().setPath(path(true)).build()));
+    assertInvalid(ERROR_INCONSISTENT_IS_CHANGE, signTx(input(1000),
+        output(990, Destination.CHANGE).toBuilder().setPath(path(false)).build()));
+    assertInvalid(ERROR_INCONSISTENT_IS_CHANGE, signTx(input(1000), TxOutput.newBuilder()
+        .setAmount(990)
+        .setDestination(Destination.CHANGE)
+        .build()));
+  }
+
+  @Test public void testFees() {
+    assertValid(signTx(input(100000), output(95000, Destination.GATEWAY)));
+    assertValid(signTx(input(2000000000), output(1890000000, Destination.GATEWAY)));
+    assertInvalid(ERROR_FEE_TOO_HIGH, signTx(input(10000000000L),
+        output(8000000000L, Destination.GATEWAY)));
+    // Change isn't counted in the total.
+    assertInvalid(ERROR_FEE_TOO_HIGH, signTx(input(10000000000L),
+        output(8000000000L, Destination.GATEWAY), output(1150000000L, Destination.CHANGE)));
+    assertInvalid(ERROR_NEGATIVE_FEE, signTx(input(1000), output(1001, Destination.GATEWAY)));
+    assertInvalid(ERROR_NEGATIVE_FEE, signTx(output(1, Destination.GATEWAY)));
+  }
+
+  @Test public void testFinalizeWallet() {
+    CommandRequest.FinalizeWalletRequest.Builder finalize =
+        CommandRequest.FinalizeWalletRequest.newBuilder();
+    for (int i = 0; i < Constants.ENCRYPTED_PUB_KEYS_MAX_COUNT; i++) {
+      finalize.addEncryptedPubKeys(encryptedPubKey(Constants.ENCRYPTED_PUB_KEY_MAX_SIZE));
+    }
+    assertValid(CommandRequest.newBuilder().setFinalizeWallet(finalize).build());
+
+    assertInvalid(ERROR_ENCRYPTED_PUB_KEYS_COUNT, CommandRequest.newBuilder()
+        .setFinalizeWallet(finalize.clone().addEncryptedPubKeys(encryptedPubKey(10)))
+        .build());
+    assertInvalid(ERROR_ENCRYPTED_PUB_KEY_SIZE, CommandRequest.newBuilder()
+        .setFinalizeWallet(finalize.clone()
+            .setEncryptedPubKeys(0, encryptedPubKey(Constants.ENCRYPTED_PUB_KEY_MAX_SIZE + 1)))
+        .build());
+  }
+
+  @Test public void testInitWallet() {
+    assertValid(CommandRequest.newBuilder()
+        .setWalletId(1)
+        .setInitWallet(CommandRequest.InitWalletRequest.getDefaultInstance())
+        .build());
+  }
+
+  @Test public void testNoCommand() {
+    byte[] request = CommandRequest.newBuilder().setWalletId(1).build().toByteArray();
+    assertThrows(IllegalArgumentException.class,
+        () -> RawCommandRequestValidator.validate(request));
+  }
+
+  @Test public void testMergedEncodings() throws Exception {
+    // Concatenated messages are merged: 2 * 65 inputs is over the limit.
+    CommandRequest.SignTxRequest.Builder half = CommandRequest.SignTxRequest.newBuilder();
+    for (int i = 0; i < 65; i++) {
+      half.addInputs(input(1000));
+    }
+    byte[] request = CommandRequest.newBuilder().setSignTx(half).build().toByteArray();
+    assertInvalid(ERROR_INPUTS_COUNT, Bytes.concat(request, request));
+
+    // A later command replaces the invalid SignTx.
+    byte[] invalid = signTx(input(1000), output(1001, Destination.GATEWAY)).toByteArray();
+    byte[] initWallet = CommandRequest.newBuilder()
+        .setInitWallet(CommandRequest.InitWalletRequest.getDefaultInstance())
+        .build()
+        .toByteArray();
+    assertValid(Bytes.concat(invalid, initWallet));
+    assertInvalid(ERROR_NEGATIVE_FEE, Bytes.concat(initWallet, invalid));
+
+    // The last destination wins, and an unknown value keeps the previous one.
+    byte[] gatewayOutput = output(990, Destination.GATEWAY).toByteArray();
+    byte[] changeDestination = varintField(TxOutput.DESTINATION_FIELD_NUMBER, 1);
+    byte[] unknownDestination = varintField(TxOutput.DESTINATION_FIELD_NUMBER, 7);
+    byte[] input = input(1000).toByteArray();
+    assertInvalid(ERROR_INCONSISTENT_IS_CHANGE,
+        signTx(input, Bytes.concat(gatewayOutput, changeDestination)));
+    assertValid(signTx(input, Bytes.concat(gatewayOutput, unknownDestination)));
+
+    // The last prev_hash wins.
+    byte[] longInput = input(1000).toBuilder().setPrevHash(LONG_PREV_HASH).build().toByteArray();
+    byte[] shortPrevHash = bytesField(TxInput.PREV_HASH_FIELD_NUMBER, new byte[32]);
+    assertValid(signTx(Bytes.concat(longInput, shortPrevHash), gatewayOutput));
+    assertInvalid(ERROR_TXINPUT_PREV_HASH_SIZE,
+        signTx(Bytes.concat(shortPrevHash, longInput), gatewayOutput));
+  }
+
+  @Test public void testMalformed() {
+    byte[] request = signTx(input(1000), output(990, Destination.GATEWAY)).toByteArray();
+    byte[] truncated = Arrays.copyOf(request, request.length - 1);
+    assertThrows(InvalidProtocolBufferException.class,
+        () -> RawCommandRequestValidator.validate(truncated));
+    assertThrows(InvalidProtocolBufferException.class,
+        () -> RawCommandRequestValidator.parse(truncated));
+
+    // The output is cut between two of its fields.
+    byte[] output = output(990, Destination.GATEWAY).toByteArray();
+    byte[] cut = signTx(input(1000).toByteArray(), output);
+    byte[] atBoundary = Arrays.copyOf(cut, cut.length - output.length + 3);
+    assertThrows(InvalidProtocolBufferException.class,
+        () -> RawCommandRequestValidator.validate(atBoundary));
+  }
+
+  @Test public void testOffsetsAndBuffers() throws Exception {
+    byte[] request = signTx(input(1000), output(990, Destination.GATEWAY)).toByteArray();
+    byte[] padded = new byte[request.length + 10];
+    System.arraycopy(request, 0, padded, 5, request.length);
+    RawCommandRequestValidator.validate(padded, 5, request.length);
+
+    ByteBuffer direct = ByteBuffer.allocateDirect(padded.length);
+    direct.put(padded);
+    direct.position(5).limit(5 + request.length);
+    RawCommandRequestValidator.validate(direct);
+    assertEquals(5, direct.position());
+
+    assertEquals(CommandRequest.parseFrom(request), RawCommandRequestValidator.parse(request));
+  }
+
+  /** Checks that both validators accept the request. */
+  private static void assertValid(CommandRequest request) {
+    SubzeroUtils.validateCommandRequest(request);
+    assertValid(request.toByteArray());
+  }
+
+  private static void assertValid(byte[] request) {
+    try {
+      RawCommandRequestValidator.validate(request);
+      SubzeroUtils.validateCommandRequest(CommandRequest.parseFrom(request));
+    } catch (InvalidProtocolBufferException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /** Checks that both validators reject the request with the same error. */
+  private static void assertInvalid(String error, CommandRequest request) {
+    VerificationException e = assertThrows(VerificationException.class,
+        () -> SubzeroUtils.validateCommandRequest(request));
+    assertEquals(error, e.getMessage());
+    assertInvalid(error, request.toByteArray());
+  }
+
+  private static void assertInvalid(String error, byte[] request) {
+    VerificationException e = assertThrows(VerificationException.class,
+        () -> RawCommandRequestValidator.validate(request));
+    assertEquals(error, e.getMessage());
+    e = assertThrows(VerificationException.class,
+        () -> SubzeroUtils.validateCommandRequest(CommandRequest.parseFrom(request)));
+    assertEquals(error, e.getMessage());
+  }
+
+  private static CommandRequest signTx(TxInput input, TxOutput... outputs) {
+    return CommandRequest.newBuilder()
+        .setSignTx(CommandRequest.SignTxRequest.newBuilder()
+            .addInputs(input)
+            .addAllOutputs(Arrays.asList(outputs)))
+        .build();
+  }
+
+  private static CommandRequest signTx(TxOutput output) {
+    return CommandRequest.newBuilder()
+        .setSignTx(CommandRequest.SignTxRequest.newBuilder().addOutputs(output))
+        .build();
+  }
+
+  /** A SignTx request, with the input and output already serialized. */
+  private static byte[] signTx(byte[] input, byte[] output) {
+    byte[] signTx = Bytes.concat(
+        bytesField(CommandRequest.SignTxRequest.INPUTS_FIELD_NUMBER, input),
+        bytesField(CommandRequest.SignTxRequest.OUTPUTS_FIELD_NUMBER, output));
+    return bytesField(CommandRequest.SIGNTX_FIELD_NUMBER, signTx);
+  }
+
+  private static TxInput input(long amount) {
+    return TxInput.newBuilder()
+        .setPrevHash(ByteString.copyFrom(new byte[32]))
+        .setPrevIndex(0)
+        .setAmount(amount)
+        .setPath(path(false))
+        .build();
+  }
+
+  private static TxOutput output(long amount, Destination destination) {
+    return TxOutput.newBuilder()
+        .setAmount(amount)
+        .setDestination(destination)
+        .setPath(path(destination == Destination.CHANGE))
+        .build();
+  }
+
+  private static Path path(boolean isChange) {
+    return Path.newBuilder().setIsChange(isChange).setIndex(2).build();
+  }
+
+  private static EncryptedPubKey encryptedPubKey(int size) {
+    return EncryptedPubKey.newBuilder()
+        .setEncryptedPubKey(ByteString.copyFrom(new byte[size]))
+        .build();
+  }
+
+  private static byte[] bytesField(int field, byte[] value) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+    try {
+      out.writeByteArray(field, value);
+      out.flush();
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static byte[] varintField(int field, int value) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+    try {
+      out.writeEnum(field, value);
+      out.flush();
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+    return bytes.toByteArray();
+  }
+}
@@ -0,0 +1,186 @@
+package com.squareup.subzero.shared;
+
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.ByteString;
+import com.squareup.subzero.proto.service.Common.TxInput;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.core.TransactionWitness;
+import org.bitcoinj.params.TestNet3Params;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class RawTransactionScannerTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private final NetworkParameters params = TestNet3Params.get();
+  private ColdWallet coldWallet;
+  private ScriptHashIndex index;
+  private RawTransactionScanner scanner;
+
+  @Before public void setUp() throws IOException {
+    coldWallet = TestWallets.coldWallet();
+    index = ScriptHashIndex.open(new File(folder.getRoot(), "index"), coldWallet);
+    index.extendTo(false, 20);
+    index.extendTo(true, 20);
+    scanner = new RawTransactionScanner(index,
+        ScriptHashFilter.build(coldWallet, 20, 20, 1e-6));
+  }
+
+  @After public void tearDown() throws IOException {
+    index.close();
+  }
+
+  /**
+   * Pays a P2PKH address, an address of the wallet outside of the indexed range, and two indexed
+   * addresses of the wallet.
+   */
+  private Transaction transaction(boolean segwit) {
+    Transaction tx = new Transaction(params);
+    TransactionInput input = new TransactionInput(params, tx, new byte[] {1, 2, 3},
+        new TransactionOutPoint(params, 3, Sha256Hash.of(new byte[] {4})));
+    if (segwit) {
+      TransactionWitness witness = new TransactionWitness(2);
+      witness.setPush(0, new byte[] {5, 6});
+      witness.setPush(1, new byte[300]);
+      input.setWitness(witness);
+    }
+    tx.addInput(input);
+    tx.addOutput(Coin.valueOf(1000), LegacyAddress.fromKey(params, new ECKey()));
+    tx.addOutput(Coin.valueOf(2000), coldWallet.address(SubzeroUtils.newPath(false, 500)));
+    tx.addOutput(Coin.valueOf(3000), coldWallet.address(SubzeroUtils.newPath(false, 5)));
+    tx.addOutput(Coin.valueOf(4000), coldWallet.address(SubzeroUtils.newPath(true, 19)));
+    return tx;
+  }
+
+  private static List<TxInput> expected(Transaction tx) {
+    ByteString prevHash = ByteString.copyFrom(tx.getTxId().getBytes());
+    return ImmutableList.of(
+        TxInput.newBuilder()
+            .setPrevHash(prevHash)
+            .setPrevIndex(2)
+            .setAmount(3000)
+            .setPath(SubzeroUtils.newPath(false, 5))
+            .build(),
+        TxInput.newBuilder()
+            .setPrevHash(prevHash)
+            .setPrevIndex(3)
+            .setAmount(4000)
+            .setPath(SubzeroUtils.newPath(true, 19))
+            .build());
+  }
+
+  private static byte[] block(Transaction... txs) {
+    ByteBuffer block = ByteBuffer.allocate(100_000);
+    block.put(new byte[80]);
+    block.put((byte) txs.length);
+    for (Transaction tx : txs) {
+      block.put(tx.bitcoinSerialize());
+    }
+    byte[] r = new byte[block.position()];
+    block.flip();
+    block.get(r);
+    return r;
+  }
+
+  @Test public void testScanTransaction() {
+    for (boolean segwit : new boolean[] {false, true}) {
+      Transaction tx = transaction(segwit);
+      assertEquals(segwit, tx.hasWitnesses());
+      assertEquals(expected(tx),
+          scanner.scanTransaction(ByteBuffer.wrap(tx.bitcoinSerialize())));
+    }
+  }
+
+  @Test public void testScanTransactionWithoutMatch() {
+    Transaction tx = new Transaction(params);
+    tx.addInput(new TransactionInput(params, tx, new byte[0],
+        new TransactionOutPoint(params, 0, Sha256Hash.ZERO_HASH)));
+    tx.addOutput(Coin.valueOf(1000), coldWallet.address(SubzeroUtils.newPath(true, 20)));
+    assertEquals(ImmutableList.of(),
+        scanner.scanTransaction(ByteBuffer.wrap(tx.bitcoinSerialize())));
+  }
+
+  @Test public void testScanBlock() {
+    Transaction tx1 = transaction(false);
+    Transaction tx2 = transaction(true);
+    List<TxInput> expected = new ArrayList<>(expected(tx1));
+    expected.addAll(expected(tx2));
+
+    // The buffer's position, limit and byte order are respected, and left alone.
+    byte[] block = block(tx1, tx2);
+    ByteBuffer buffer = ByteBuffer.allocate(block.length + 10).order(ByteOrder.LITTLE_ENDIAN);
+    buffer.position(7);
+    buffer.put(block);
+    buffer.position(7);
+    buffer.limit(7 + block.length);
+    assertEquals(expected, scanner.scanBlock(buffer));
+    assertEquals(7, buffer.position());
+    assertEquals(7 + block.length, buffer.limit());
+  }
+
+  @Test public void testScanBlockFile() throws IOException {
+    Transaction tx1 = transaction(true);
+    Transaction tx2 = transaction(false);
+    byte[] block1 = block(tx1);
+    byte[] block2 = block(tx2);
+
+    File file = new File(folder.getRoot(), "blk00000.dat");
+    try (FileOutputStream out = new FileOutputStream(file)) {
+      for (byte[] block : new byte[][] {block1, block2}) {
+        ByteBuffer header = ByteBuffer.allocate(8);
+        header.putInt((int) params.getPacketMagic());
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(block.length);
+        out.write(header.array());
+        out.write(block);
+      }
+      // bitcoind preallocates block files.
+      out.write(new byte[1000]);
+    }
+
+    List<TxInput> found = new ArrayList<>();
+    scanner.scanBlockFile(file, params, found::add);
+    List<TxInput> expected = new ArrayList<>(expected(tx1));
+    expected.addAll(expected(tx2));
+    assertEquals(expected, found);
+  }
+
+  @Test public void testMalformed() {
+    byte[] tx = transaction(true).bitcoinSerialize();
+    for (int length = 0; length < tx.length; length += 7) {
+      ByteBuffer truncated = ByteBuffer.wrap(tx, 0, length);
+      assertThrows(IllegalArgumentException.class, () -> scanner.scanTransaction(truncated));
+    }
+    byte[] trailing = new byte[tx.length + 1];
+    System.arraycopy(tx, 0, trailing, 0, tx.length);
+    assertThrows(IllegalArgumentException.class,
+        () -> scanner.scanTransaction(ByteBuffer.wrap(trailing)));
+
+    // A script size which runs past the end of the buffer.
+    byte[] block = block(transaction(false));
+    assertTrue(scanner.scanBlock(ByteBuffer.wrap(block)).size() == 2);
+    block[80] = (byte) 0xfe;
+    assertThrows(IllegalArgumentException.class, () -> scanner.scanBlock(ByteBuffer.wrap(block)));
+  }
+}
@@ -0,0 +1,244 @@
+package com.squareup.subzero.shared;
+
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.ByteString;
+import com.squareup.subzero.proto.service.Common.Destination;
+import com.squareup.subzero.proto.service.Common.EncryptedMasterSeed;
+import com.squareup.subzero.proto.service.Common.EncryptedPubKey;
+import com.squareup.subzero.proto.service.Common.QrCodeSignature;
+import com.squareup.subzero.proto.service.Common.Signature;
+import com.squareup.subzero.proto.service.Common.TxInput;
+import com.squareup.subzero.proto.service.Common.TxOutput;
+import com.squareup.subzero.proto.service.Internal.InternalCommandRequest;
+import com.squareup.subzero.proto.service.Service.CommandRequest;
+import com.squareup.subzero.proto.service.Service.CommandResponse;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import org.bitcoinj.core.Sha256Hash;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class RequestSizeEstimatorTest {
+  private static final String TOKEN = "1c0c0b1e-d5a4-4a6a-9e8a-4a1a7ed9c1b1";
+
+  private ColdWallet coldWallet;
+
+  @Before public void setUp() {
+    coldWallet = TestWallets.coldWallet();
+  }
+
+  private static TxInput input(int i) {
+    // Varying amounts and indexes, so that the varints have different sizes.
+    return TxInput.newBuilder()
+        .setPrevHash(ByteString.copyFrom(Sha256Hash.of(new byte[] {(byte) i}).getBytes()))
+        .setPrevIndex(i * 37)
+        .setAmount(1L << (i % 50))
+        .setPath(SubzeroUtils.newPath(i % 2 == 0, i * 1009))
+        .build();
+  }
+
+  private static TxOutput output(int i) {
+    return TxOutput.newBuilder()
+        .setAmount(1L << (i % 60))
+        .setDestination(i == 0 ? Destination.GATEWAY : Destination.CHANGE)
+        .setPath(SubzeroUtils.newPath(i != 0, i * 4099))
+        .build();
+  }
+
+  private static CommandRequest sign(CommandRequest request) {
+    return request.toBuilder()
+        .setSerializedCommandRequest(request.toByteString())
+        .setQrsignature(QrCodeSignature.newBuilder()
+            .setSignature(ByteString.copyFrom(new byte[Constants.QR_SIGNATURE_SIZE])))
+        .build();
+  }
+
+  /** What actions.SignTx in the gui sends to core. */
+  private static InternalCommandRequest internal(InternalCommandRequest template,
+      CommandRequest request, boolean signed) {
+    InternalCommandRequest.SignTxRequest.Builder signTx = template.getSignTx().toBuilder()
+        .addAllInputs(request.getSignTx().getInputsList())
+        .addAllOutputs(request.getSignTx().getOutputsList());
+    InternalCommandRequest.Builder builder = template.toBuilder().setSignTx(signTx);
+    if (signed) {
+      builder.setSerializedCommandRequest(request.toByteString())
+          .setQrsignature(QrCodeSignature.newBuilder()
+              .setSignature(ByteString.copyFrom(new byte[Constants.QR_SIGNATURE_SIZE])));
+    }
+    return builder.build();
+  }
+
+  private static InternalCommandRequest internalTemplate(int walletId) {
+    EncryptedPubKey pubKey = EncryptedPubKey.newBuilder()
+        .setEncryptedPubKey(ByteString.copyFrom(new byte[100]))
+        .build();
+    return InternalCommandRequest.newBuilder()
+        .setVersion(Constants.VERSION)
+        .setWalletId(walletId)
+        .setMasterSeedEncryptionKeyTicket(ByteString.copyFrom(new byte[200]))
+        .setPubKeyEncryptionKeyTicket(ByteString.copyFrom(new byte[180]))
+        .setSignTx(InternalCommandRequest.SignTxRequest.newBuilder()
+            .setEncryptedMasterSeed(EncryptedMasterSeed.newBuilder()
+                .setEncryptedMasterSeed(ByteString.copyFrom(new byte[80])))
+            .addEncryptedPubKeys(pubKey)
+            .addEncryptedPubKeys(pubKey)
+            .setLockTime(0))
+        .build();
+  }
+
+  private static CommandResponse worstCaseResponse(String token, int inputs) {
+    Signature signature = Signature.newBuilder()
+        .setDer(ByteString.copyFrom(new byte[Constants.SIGNATURE_DER_MAX_SIZE]))
+        .setHash(ByteString.copyFrom(new byte[Constants.SIGNATURE_HASH_SIZE]))
+        .build();
+    CommandResponse.SignTxResponse.Builder signTx = CommandResponse.SignTxResponse.newBuilder();
+    for (int i = 0; i < inputs; i++) {
+      signTx.addSignatures(signature);
+    }
+    CommandResponse.Builder builder = CommandResponse.newBuilder().setSignTx(signTx);
+    if (token != null) {
+      builder.setToken(token);
+    }
+    return builder.build();
+  }
+
+  @Test public void testIncremental() {
+    for (String token : new String[] {null, TOKEN}) {
+      for (Double localRate : new Double[] {null, 0.0001}) {
+        RequestSizeEstimator estimator = new RequestSizeEstimator(
+            coldWallet.startTransaction(ImmutableList.of(), ImmutableList.of(), token, localRate));
+        InternalCommandRequest internalTemplate = internalTemplate(0x7FFFFFFF);
+        List<TxInput> inputs = new ArrayList<>();
+        List<TxOutput> outputs = new ArrayList<>();
+
+        // Goes past the size where the length prefixes of the SignTxRequest and of the embedded
+        // request take two bytes.
+        for (int i = 0; i < 200; i++) {
+          if (i % 4 == 3) {
+            outputs.add(output(i));
+            estimator.addOutput(output(i));
+          } else {
+            inputs.add(input(i));
+            estimator.addInput(input(i));
+          }
+          CommandRequest request = coldWallet.startTransaction(inputs, outputs, token, localRate);
+          CommandRequest signed = sign(request);
+
+          assertEquals(inputs.size(), estimator.getInputCount());
+          assertEquals(outputs.size(), estimator.getOutputCount());
+          assertEquals(request.getSerializedSize(), estimator.requestSize());
+          assertEquals(signed.getSerializedSize(), estimator.signedRequestSize());
+          assertEquals(Base64.getEncoder().encodeToString(signed.toByteArray()).length(),
+              estimator.qrPayloadSize(true));
+          assertEquals(QrPayload.encode(signed.toByteArray(), QrPayload.Encoding.BASE45).length(),
+              estimator.qrPayloadSize(true, QrPayload.Encoding.BASE45));
+          assertEquals(worstCaseResponse(token, inputs.size()).getSerializedSize(),
+              estimator.responseSize());
+          assertEquals(internal(internalTemplate, request, false).getSerializedSize(),
+              estimator.internalRequestSize(internalTemplate, false));
+          assertEquals(internal(internalTemplate, request, true).getSerializedSize(),
+              estimator.internalRequestSize(internalTemplate, true));
+        }
+      }
+    }
+  }
+
+  @Test public void testRemove() {
+    RequestSizeEstimator estimator = new RequestSizeEstimator(
+        coldWallet.startTransaction(ImmutableList.of(), ImmutableList.of(), TOKEN, null));
+    int empty = estimator.requestSize();
+    estimator.addInput(input(1)).addInput(input(2)).addOutput(output(0));
+    estimator.removeInput(input(2));
+    assertEquals(coldWallet.startTransaction(ImmutableList.of(input(1)),
+        ImmutableList.of(output(0)), TOKEN, null).getSerializedSize(), estimator.requestSize());
+    estimator.removeInput(input(1)).removeOutput(output(0));
+    assertEquals(empty, estimator.requestSize());
+    assertEquals(0, estimator.getInputCount());
+    assertEquals(0, estimator.getOutputCount());
+  }
+
+  @Test public void testWorstCaseInternalRequest() {
+    RequestSizeEstimator estimator = new RequestSizeEstimator(
+        coldWallet.startTransaction(ImmutableList.of(input(1)), ImmutableList.of(output(0)),
+            TOKEN, 0.0001));
+    EncryptedPubKey pubKey = EncryptedPubKey.newBuilder()
+        .setEncryptedPubKey(ByteString.copyFrom(new byte[Constants.ENCRYPTED_PUB_KEY_MAX_SIZE]))
+        .build();
+    InternalCommandRequest.SignTxRequest.Builder signTx =
+        InternalCommandRequest.SignTxRequest.newBuilder()
+            .setEncryptedMasterSeed(EncryptedMasterSeed.newBuilder()
+                .setEncryptedMasterSeed(
+                    ByteString.copyFrom(new byte[Constants.ENCRYPTED_MASTER_SEED_MAX_SIZE])))
+            .setLockTime(0)
+            .addInputs(input(1))
+            .addOutputs(output(0));
+    for (int i = 0; i < Constants.ENCRYPTED_PUB_KEYS_MAX_COUNT; i++) {
+      signTx.addEncryptedPubKeys(pubKey);
+    }
+    InternalCommandRequest request = InternalCommandRequest.newBuilder()
+        .setVersion(Constants.VERSION)
+        .setWalletId(0x7FFFFFFF)
+        .setMasterSeedEncryptionKeyTicket(
+            ByteString.copyFrom(new byte[Constants.MASTER_SEED_ENCRYPTION_KEY_TICKET_MAX_SIZE]))
+        .setPubKeyEncryptionKeyTicket(
+            ByteString.copyFrom(new byte[Constants.PUB_KEY_ENCRYPTION_KEY_TICKET_MAX_SIZE]))
+        .setSignTx(signTx)
+        .build();
+    assertEquals(request.getSerializedSize(), estimator.worstCaseInternalRequestSize(false));
+    assertTrue(estimator.worstCaseInternalRequestSize(true)
+        > estimator.worstCaseInternalRequestSize(false) + estimator.requestSize());
+  }
+
+  @Test public void testBase64Size() {
+    for (int i = 0; i < 10; i++) {
+      assertEquals(Base64.getEncoder().encodeToString(new byte[i]).length(),
+          RequestSizeEstimator.base64Size(i));
+    }
+    // A full QR code (version 40, L, binary) holds 2953 characters.
+    assertTrue(RequestSizeEstimator.base64Size(Constants.MAX_QR_PROTO_BYTES) <= 2953);
+  }
+
+  @Test public void testFits() {
+    RequestSizeEstimator estimator = new RequestSizeEstimator(
+        coldWallet.startTransaction(ImmutableList.of(), ImmutableList.of(output(0)), TOKEN,
+            null));
+    int inputs = 0;
+    while (estimator.fits(false)) {
+      estimator.addInput(input(inputs++));
+    }
+    // The responses limit the number of inputs, each signature takes up to 111 bytes.
+    assertTrue(estimator.responseSize() > Constants.MAX_QR_PROTO_BYTES);
+    assertTrue(estimator.requestSize() <= Constants.MAX_QR_PROTO_BYTES);
+    assertFalse(estimator.fits(true));
+
+    String longToken = TOKEN + "0";
+    assertFalse(new RequestSizeEstimator(coldWallet.startTransaction(ImmutableList.of(),
+        ImmutableList.of(), longToken, null)).fits(false));
+
+    assertThrows(IllegalArgumentException.class,
+        () -> new RequestSizeEstimator(CommandRequest.newBuilder().setWalletId(1).build()));
+  }
+
+  @Test public void testFitsBase45() {
+    int[] inputs = new int[QrPayload.Encoding.values().length];
+    for (QrPayload.Encoding encoding : QrPayload.Encoding.values()) {
+      RequestSizeEstimator estimator = new RequestSizeEstimator(
+          coldWallet.startTransaction(ImmutableList.of(), ImmutableList.of(output(0)), TOKEN,
+              null));
+      while (estimator.fits(true, encoding)) {
+        estimator.addInput(input(inputs[encoding.ordinal()]++));
+      }
+      assertTrue(estimator.responseSize() > encoding.getMaxProtoBytes()
+          || estimator.signedRequestSize() > encoding.getMaxProtoBytes());
+    }
+    // Base45 QR codes hold about 30% more, and so do the responses.
+    assertTrue(inputs[QrPayload.Encoding.BASE45.ordinal()]
+        > inputs[QrPayload.Encoding.BASE64.ordinal()] * 5 / 4);
+  }
+}
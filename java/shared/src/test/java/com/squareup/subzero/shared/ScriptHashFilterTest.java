@@ -0,0 +1,110 @@
+package com.squareup.subzero.shared;
+
+import com.google.common.collect.ImmutableList;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import org.bitcoinj.params.TestNet3Params;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class ScriptHashFilterTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private ColdWallet coldWallet;
+
+  @Before public void setUp() {
+    coldWallet = TestWallets.coldWallet();
+  }
+
+  @Test public void testMightContain() {
+    ScriptHashFilter filter = ScriptHashFilter.build(coldWallet, 200, 100, 1e-6);
+    assertEquals(200, filter.end(false));
+    assertEquals(100, filter.end(true));
+    assertTrue(filter.falsePositiveRate() <= 1e-6);
+
+    for (byte[] scriptHash : coldWallet.scriptHashes(false, 0, 200)) {
+      assertTrue(filter.mightContain(scriptHash));
+    }
+    for (byte[] scriptHash : coldWallet.scriptHashes(true, 0, 100)) {
+      assertTrue(filter.mightContain(scriptHash));
+    }
+
+    // At 1e-6, 100k random script hashes should essentially never match.
+    Random random = new Random(0);
+    byte[] scriptHash = new byte[20];
+    int falsePositives = 0;
+    for (int i = 0; i < 100_000; i++) {
+      random.nextBytes(scriptHash);
+      if (filter.mightContain(scriptHash)) {
+        falsePositives++;
+      }
+    }
+    assertTrue(falsePositives < 5);
+  }
+
+  @Test public void testMightContainBuffer() {
+    ScriptHashFilter filter = ScriptHashFilter.build(coldWallet, 10, 0, 1e-6);
+    byte[] scriptHash = coldWallet.scriptHash(SubzeroUtils.newPath(false, 3));
+    for (ByteOrder order : new ByteOrder[] {ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN}) {
+      ByteBuffer src = ByteBuffer.allocate(64).order(order);
+      for (int i = 0; i < scriptHash.length; i++) {
+        src.put(31 + i, scriptHash[i]);
+      }
+      assertTrue(filter.mightContain(src, 31));
+    }
+  }
+
+  @Test public void testWriteAndMap() throws IOException {
+    ScriptHashFilter filter = ScriptHashFilter.build(coldWallet, 150, 50, 1e-4);
+    File file = new File(folder.getRoot(), "filter");
+    filter.writeTo(file);
+
+    ScriptHashFilter mapped = ScriptHashFilter.map(file, coldWallet);
+    assertEquals(filter.bits(), mapped.bits());
+    assertEquals(filter.hashFunctions(), mapped.hashFunctions());
+    assertEquals(150, mapped.end(false));
+    assertEquals(50, mapped.end(true));
+    for (byte[] scriptHash : coldWallet.scriptHashes(false, 0, 150)) {
+      assertTrue(mapped.mightContain(scriptHash));
+    }
+    Random random = new Random(0);
+    byte[] scriptHash = new byte[20];
+    for (int i = 0; i < 10_000; i++) {
+      random.nextBytes(scriptHash);
+      assertEquals(filter.mightContain(scriptHash), mapped.mightContain(scriptHash));
+    }
+  }
+
+  @Test public void testMapWrongWallet() throws IOException {
+    File file = new File(folder.getRoot(), "filter");
+    ScriptHashFilter.build(coldWallet, 10, 10, 1e-6).writeTo(file);
+
+    ColdWallet otherWallet = new ColdWallet(TestNet3Params.get(), 0x7FFFFFFF, ImmutableList.of(
+        "tpubD9xeStpGFRUVhE7c3dDsdqNmbPC6RjQhvSc7UetKRMYjjLusaJx6Nfb3bAGQXDmnY5iuBApU75yuLDDYDXvq3FnXX1zEQMficGXkrYn6i1L",
+        "tpubD9JLQCZyqpsY7L5dY86vJnJ1g1Acgb5MzpF7MgE29qQzUcM1LpxTuKeCRWwnCncVRhxYugumQqndARHqQ95c629h7bEciRH39LHXjpJEbsY",
+        "tpubD9F4zKZ1qkfAghtK8BCT5EeFJm5X3YP34M4xGi98KAok4rkwYBxoFdM9EaWxTK3PTRhe7Mwd7Mfm96ovKb64vDnENj84jfoN6gMzKx85uYm",
+        "tpubD8YrhVDcGsTdyj4pZh2ZGJvcqpASFZLai9tRHPj4ikjyn4MZcoHjqeuzNBGntpkSxNg61FKo9yCWpCvUGVnMpJJUwGJcWUpxTdPQKVdgoSo"),
+        "tpubD8GrNWdYHDjdJryH5tng8LUzHSrEo4gToaguKnzthEqTxyfF13jTsp4sMtmso4n1VC58R5Wvt4Ua4npZTecR1xaGGYJgLLQj5sQGdD2xh2N");
+    assertThrows(IllegalArgumentException.class, () -> ScriptHashFilter.map(file, otherWallet));
+  }
+
+  @Test public void testInvalidParameters() {
+    assertThrows(IllegalArgumentException.class,
+        () -> ScriptHashFilter.build(coldWallet, -1, 0, 1e-6));
+    assertThrows(IllegalArgumentException.class,
+        () -> ScriptHashFilter.build(coldWallet, 10, 0, 0));
+    assertThrows(IllegalArgumentException.class,
+        () -> ScriptHashFilter.build(coldWallet, 10, 0, 1));
+    assertThrows(IllegalArgumentException.class,
+        () -> ScriptHashFilter.build(coldWallet, Integer.MAX_VALUE, Integer.MAX_VALUE, 1e-12));
+  }
+}
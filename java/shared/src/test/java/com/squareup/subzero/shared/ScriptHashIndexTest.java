@@ -0,0 +1,171 @@
+package com.squareup.subzero.shared;
+
+import com.google.common.collect.ImmutableList;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import org.bitcoinj.params.TestNet3Params;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class ScriptHashIndexTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private ColdWallet coldWallet;
+  private File file;
+
+  @Before public void setUp() {
+    coldWallet = TestWallets.coldWallet();
+    file = new File(folder.getRoot(), "index");
+  }
+
+  @Test public void testLookup() throws IOException {
+    try (ScriptHashIndex index = ScriptHashIndex.open(file, coldWallet)) {
+      index.extendTo(false, 100);
+      index.extendTo(true, 50);
+      assertEquals(100, index.end(false));
+      assertEquals(50, index.end(true));
+      assertEquals(150, index.size());
+
+      for (int i = 0; i < 100; i++) {
+        assertEquals(SubzeroUtils.newPath(false, i),
+            index.lookup(coldWallet.scriptHash(SubzeroUtils.newPath(false, i))));
+      }
+      for (int i = 0; i < 50; i++) {
+        assertEquals(SubzeroUtils.newPath(true, i),
+            index.lookup(coldWallet.scriptHash(SubzeroUtils.newPath(true, i))));
+      }
+      assertNull(index.lookup(coldWallet.scriptHash(SubzeroUtils.newPath(true, 50))));
+      assertNull(index.lookup(new byte[20]));
+
+      // Extending to a smaller end is a no-op.
+      index.extendTo(false, 10);
+      assertEquals(100, index.end(false));
+    }
+  }
+
+  @Test public void testLookupPacked() throws IOException {
+    try (ScriptHashIndex index = ScriptHashIndex.open(file, coldWallet)) {
+      index.extendTo(true, 10);
+      // Script hash at an arbitrary offset, in a little-endian buffer.
+      ByteBuffer src = ByteBuffer.allocate(40).order(ByteOrder.LITTLE_ENDIAN);
+      byte[] scriptHash = coldWallet.scriptHash(SubzeroUtils.newPath(true, 7));
+      for (int i = 0; i < scriptHash.length; i++) {
+        src.put(13 + i, scriptHash[i]);
+      }
+      long packed = index.lookupPacked(src, 13);
+      assertEquals(ScriptHashIndex.packPath(true, 7) & 0xffffffffL, packed);
+      assertEquals(SubzeroUtils.newPath(true, 7), ScriptHashIndex.unpackPath((int) packed));
+      assertEquals(-1, index.lookupPacked(src, 0));
+    }
+  }
+
+  @Test public void testReopen() throws IOException {
+    try (ScriptHashIndex index = ScriptHashIndex.open(file, coldWallet)) {
+      index.extendTo(false, 20);
+    }
+    try (ScriptHashIndex index = ScriptHashIndex.open(file, coldWallet)) {
+      assertEquals(20, index.end(false));
+      assertEquals(0, index.end(true));
+      assertEquals(20, index.size());
+      assertEquals(SubzeroUtils.newPath(false, 19),
+          index.lookup(coldWallet.scriptHash(SubzeroUtils.newPath(false, 19))));
+      index.extendTo(false, 30);
+      assertEquals(30, index.size());
+    }
+  }
+
+  @Test public void testGrow() throws IOException {
+    int count = ScriptHashIndex.MIN_CAPACITY;
+    try (ScriptHashIndex index = ScriptHashIndex.open(file, coldWallet)) {
+      index.extendTo(false, count);
+      assertEquals(count, index.size());
+      assertTrue(file.length() >= ScriptHashIndex.HEADER_SIZE
+          + 2L * count * ScriptHashIndex.SLOT_SIZE);
+      assertEquals(SubzeroUtils.newPath(false, 0),
+          index.lookup(coldWallet.scriptHash(SubzeroUtils.newPath(false, 0))));
+      assertEquals(SubzeroUtils.newPath(false, count - 1),
+          index.lookup(coldWallet.scriptHash(SubzeroUtils.newPath(false, count - 1))));
+    }
+    try (ScriptHashIndex index = ScriptHashIndex.open(file, coldWallet)) {
+      assertEquals(count, index.size());
+      assertEquals(SubzeroUtils.newPath(false, count / 2),
+          index.lookup(coldWallet.scriptHash(SubzeroUtils.newPath(false, count / 2))));
+    }
+  }
+
+  @Test public void testWrongWallet() throws IOException {
+    ScriptHashIndex.open(file, coldWallet).close();
+
+    ColdWallet otherWallet = new ColdWallet(TestNet3Params.get(), 0x7FFFFFFF, ImmutableList.of(
+        "tpubD9xeStpGFRUVhE7c3dDsdqNmbPC6RjQhvSc7UetKRMYjjLusaJx6Nfb3bAGQXDmnY5iuBApU75yuLDDYDXvq3FnXX1zEQMficGXkrYn6i1L",
+        "tpubD9JLQCZyqpsY7L5dY86vJnJ1g1Acgb5MzpF7MgE29qQzUcM1LpxTuKeCRWwnCncVRhxYugumQqndARHqQ95c629h7bEciRH39LHXjpJEbsY",
+        "tpubD9F4zKZ1qkfAghtK8BCT5EeFJm5X3YP34M4xGi98KAok4rkwYBxoFdM9EaWxTK3PTRhe7Mwd7Mfm96ovKb64vDnENj84jfoN6gMzKx85uYm",
+        "tpubD8YrhVDcGsTdyj4pZh2ZGJvcqpASFZLai9tRHPj4ikjyn4MZcoHjqeuzNBGntpkSxNg61FKo9yCWpCvUGVnMpJJUwGJcWUpxTdPQKVdgoSo"),
+        "tpubD8GrNWdYHDjdJryH5tng8LUzHSrEo4gToaguKnzthEqTxyfF13jTsp4sMtmso4n1VC58R5Wvt4Ua4npZTecR1xaGGYJgLLQj5sQGdD2xh2N");
+    assertThrows(IllegalArgumentException.class, () -> ScriptHashIndex.open(file, otherWallet));
+  }
+
+  @Test public void testInvalidFile() throws IOException {
+    Files.write(file.toPath(), new byte[100]);
+    assertThrows(IOException.class, () -> ScriptHashIndex.open(file, coldWallet));
+  }
+
+  @Test public void testInvalidHeader() throws IOException {
+    ScriptHashIndex.open(file, coldWallet).close();
+    for (int[] header : new int[][] {
+        {ScriptHashIndex.OFFSET_SIZE, -1},
+        {ScriptHashIndex.OFFSET_SIZE, ScriptHashIndex.MIN_CAPACITY + 1},
+        {ScriptHashIndex.OFFSET_RECEIVE_END, -1},
+        {ScriptHashIndex.OFFSET_CHANGE_END, Integer.MIN_VALUE}}) {
+      byte[] bytes = Files.readAllBytes(file.toPath());
+      ByteBuffer.wrap(bytes).putInt(header[0], header[1]);
+      File corrupted = folder.newFile();
+      Files.write(corrupted.toPath(), bytes);
+      assertThrows(IOException.class, () -> ScriptHashIndex.open(corrupted, coldWallet));
+    }
+  }
+
+  @Test public void testCleanFlag() throws IOException {
+    try (ScriptHashIndex index = ScriptHashIndex.open(file, coldWallet)) {
+      index.extendTo(false, 10);
+      // Cleared until the index is closed.
+      ByteBuffer header = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+      assertEquals(0, header.getInt(ScriptHashIndex.OFFSET_CLEAN));
+      assertEquals(10, header.getInt(ScriptHashIndex.OFFSET_SIZE));
+    }
+    ByteBuffer header = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+    assertEquals(1, header.getInt(ScriptHashIndex.OFFSET_CLEAN));
+  }
+
+  @Test public void testCrashWhileExtending() throws IOException {
+    try (ScriptHashIndex index = ScriptHashIndex.open(file, coldWallet)) {
+      index.extendTo(false, 100);
+    }
+    // The slots of the last chunk were written, but not the header, and the index wasn't closed.
+    byte[] bytes = Files.readAllBytes(file.toPath());
+    assertEquals(1, ByteBuffer.wrap(bytes).getInt(ScriptHashIndex.OFFSET_CLEAN));
+    ByteBuffer.wrap(bytes)
+        .putInt(ScriptHashIndex.OFFSET_SIZE, 60)
+        .putInt(ScriptHashIndex.OFFSET_RECEIVE_END, 60)
+        .putInt(ScriptHashIndex.OFFSET_CLEAN, 0);
+    Files.write(file.toPath(), bytes);
+
+    try (ScriptHashIndex index = ScriptHashIndex.open(file, coldWallet)) {
+      assertEquals(60, index.end(false));
+      assertEquals(100, index.size());
+      index.extendTo(false, 100);
+      assertEquals(100, index.end(false));
+      assertEquals(100, index.size());
+    }
+  }
+}
@@ -0,0 +1,121 @@
+package com.squareup.subzero.shared;
+
+import com.google.protobuf.ByteString;
+import com.squareup.subzero.proto.service.Common.TxInput;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.params.TestNet3Params;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThrows;
+
+public class SighashContextTest {
+  private static final int SEQUENCE = 0xfffffffe;
+  private static final int LOCK_TIME = 1234567;
+
+  private final NetworkParameters params = TestNet3Params.get();
+  private final Random random = new Random(143);
+  private final List<TxInput> inputs = new ArrayList<>();
+  private final List<byte[]> scriptCodes = new ArrayList<>();
+  private Transaction transaction;
+  private SighashContext context;
+
+  private byte[] randomBytes(int length) {
+    byte[] bytes = new byte[length];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+
+  /** Builds the same transaction with bitcoinj, which is used as the reference. */
+  @Before public void setUp() throws Exception {
+    transaction = new Transaction(params);
+    ByteArrayOutputStream prevouts = new ByteArrayOutputStream();
+    ByteArrayOutputStream sequences = new ByteArrayOutputStream();
+    for (int i = 0; i < Constants.INPUTS_COUNT_MAX; i++) {
+      TxInput input = TxInput.newBuilder()
+          .setPrevHash(ByteString.copyFrom(randomBytes(32)))
+          .setPrevIndex(random.nextInt(1000))
+          .setAmount(random.nextLong() & Long.MAX_VALUE)
+          .build();
+      inputs.add(input);
+      // Covers the 1 and 3 byte encodings of the script length.
+      scriptCodes.add(randomBytes(i % 3 == 0 ? 300 : 71 + i));
+
+      TransactionOutPoint outpoint = new TransactionOutPoint(params, input.getPrevIndex(),
+          Sha256Hash.wrap(input.getPrevHash().toByteArray()));
+      TransactionInput transactionInput =
+          new TransactionInput(params, transaction, new byte[0], outpoint);
+      transactionInput.setSequenceNumber(SEQUENCE & 0xffffffffL);
+      transaction.addInput(transactionInput);
+      prevouts.write(outpoint.bitcoinSerialize());
+      Utils.uint32ToByteStreamLE(SEQUENCE, sequences);
+    }
+    ByteArrayOutputStream outputs = new ByteArrayOutputStream();
+    for (int i = 0; i < 3; i++) {
+      TransactionOutput output = new TransactionOutput(params, transaction,
+          Coin.valueOf(random.nextInt(Integer.MAX_VALUE)), randomBytes(23 + i));
+      transaction.addOutput(output);
+      outputs.write(output.bitcoinSerialize());
+    }
+    transaction.setLockTime(LOCK_TIME);
+
+    context = new SighashContext(Sha256Hash.hashTwice(prevouts.toByteArray()),
+        Sha256Hash.hashTwice(sequences.toByteArray()), Sha256Hash.hashTwice(outputs.toByteArray()),
+        SEQUENCE, LOCK_TIME);
+  }
+
+  private byte[] expected(int i) {
+    return transaction.hashForWitnessSignature(i, scriptCodes.get(i),
+        Coin.valueOf(inputs.get(i).getAmount()), Transaction.SigHash.ALL, false).getBytes();
+  }
+
+  @Test public void testSighash() {
+    for (int i = 0; i < inputs.size(); i++) {
+      assertArrayEquals(expected(i), context.sighash(inputs.get(i), scriptCodes.get(i)));
+    }
+  }
+
+  @Test public void testSighashIntoBuffer() {
+    byte[] out = new byte[inputs.size() * 32 + 1];
+    for (int i = 0; i < inputs.size(); i++) {
+      context.sighash(inputs.get(i), scriptCodes.get(i), out, 1 + i * 32);
+    }
+    for (int i = 0; i < inputs.size(); i++) {
+      assertArrayEquals(expected(i), Arrays.copyOfRange(out, 1 + i * 32, 1 + (i + 1) * 32));
+    }
+  }
+
+  @Test public void testCopy() {
+    SighashContext copy = context.copy();
+    // Interleaved, to check the contexts don't share their working state.
+    for (int i = inputs.size() - 1; i >= 0; i--) {
+      byte[] fromCopy = copy.sighash(inputs.get(i), scriptCodes.get(i));
+      byte[] fromContext = context.sighash(inputs.get(inputs.size() - 1 - i),
+          scriptCodes.get(inputs.size() - 1 - i));
+      assertArrayEquals(expected(i), fromCopy);
+      assertArrayEquals(expected(inputs.size() - 1 - i), fromContext);
+    }
+  }
+
+  @Test public void testInvalidArguments() {
+    assertThrows(IllegalArgumentException.class,
+        () -> new SighashContext(new byte[31], new byte[32], new byte[32], SEQUENCE, LOCK_TIME));
+    TxInput input =
+        inputs.get(0).toBuilder().setPrevHash(ByteString.copyFrom(new byte[20])).build();
+    assertThrows(IllegalArgumentException.class,
+        () -> context.sighash(input, scriptCodes.get(0)));
+  }
+}
@@ -0,0 +1,111 @@
+package com.squareup.subzero.shared;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertThrows;
+
+/**
+ * Differential test of the SignatureVerifier implementations against ECKey.verify.
+ */
+public class SignatureVerifierTest {
+  private static final BigInteger N = ECKey.CURVE.getN();
+
+  private final Random random = new Random(15);
+  private final List<ECKey> keys = new ArrayList<>();
+  private final List<ECKey> pubkeys = new ArrayList<>();
+  private final List<SignatureVerifier> verifiers = new ArrayList<>();
+
+  @Before public void setUp() {
+    for (int i = 0; i < 4; i++) {
+      ECKey key = new ECKey();
+      keys.add(key);
+      pubkeys.add(ECKey.fromPublicOnly(key));
+    }
+    pubkeys.sort(ECKey.PUBKEY_COMPARATOR);
+    verifiers.add(RecoverySignatureVerifier.INSTANCE);
+    verifiers.add(new CachingRecoveryVerifier());
+    // Evicts on every new key.
+    verifiers.add(new CachingRecoveryVerifier(1));
+  }
+
+  private Sha256Hash randomHash() {
+    byte[] bytes = new byte[32];
+    random.nextBytes(bytes);
+    return Sha256Hash.wrap(bytes);
+  }
+
+  /** The index of the first key for which ECKey.verify accepts the signature, or -1. */
+  private int reference(Sha256Hash message, ECKey.ECDSASignature signature) {
+    for (int i = 0; i < pubkeys.size(); i++) {
+      if (ECKey.verify(message.getBytes(), signature, pubkeys.get(i).getPubKey())) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private void check(Sha256Hash message, ECKey.ECDSASignature signature) {
+    int expected = reference(message, signature);
+    for (SignatureVerifier verifier : verifiers) {
+      assertEquals(verifier.getClass().getSimpleName(), expected,
+          verifier.signer(pubkeys, message, signature));
+    }
+  }
+
+  @Test public void testValidSignatures() {
+    for (int i = 0; i < 200; i++) {
+      Sha256Hash message = randomHash();
+      ECKey key = keys.get(random.nextInt(keys.size()));
+      ECKey.ECDSASignature signature = key.sign(message);
+      check(message, signature);
+      // The malleated signature is also valid: the low-S rule is a relay policy.
+      check(message, new ECKey.ECDSASignature(signature.r, N.subtract(signature.s)));
+    }
+  }
+
+  @Test public void testInvalidSignatures() {
+    for (int i = 0; i < 50; i++) {
+      Sha256Hash message = randomHash();
+      ECKey.ECDSASignature signature = keys.get(i % keys.size()).sign(message);
+      // Wrong message.
+      check(randomHash(), signature);
+      // Wrong r or s.
+      check(message, new ECKey.ECDSASignature(signature.r.add(BigInteger.ONE).mod(N),
+          signature.s));
+      check(message, new ECKey.ECDSASignature(signature.r,
+          signature.s.add(BigInteger.ONE).mod(N)));
+      // Someone else's key.
+      check(message, new ECKey().sign(message));
+      // Random values.
+      check(message, new ECKey.ECDSASignature(new BigInteger(255, random).add(BigInteger.ONE),
+          new BigInteger(255, random).add(BigInteger.ONE)));
+    }
+  }
+
+  @Test public void testSharedKeys() {
+    // The same keys are checked against many signatures, so the cached points get reused.
+    SignatureVerifier verifier = new CachingRecoveryVerifier();
+    Sha256Hash message = randomHash();
+    for (int i = 0; i < 20; i++) {
+      for (ECKey key : keys) {
+        ECKey.ECDSASignature signature = key.sign(message);
+        int expected = reference(message, signature);
+        assertNotEquals(-1, expected);
+        assertEquals(expected, verifier.signer(pubkeys, message, signature));
+      }
+    }
+  }
+
+  @Test public void testInvalidMaximumSize() {
+    assertThrows(IllegalArgumentException.class, () -> new CachingRecoveryVerifier(-1));
+  }
+}
@@ -1,37 +1,35 @@
 package com.squareup.subzero.shared;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.primitives.Bytes;
 import com.google.protobuf.ByteString;
 import com.squareup.subzero.proto.service.Common.Destination;
 import com.squareup.subzero.proto.service.Common.EncryptedMasterSeed;
 import com.squareup.subzero.proto.service.Common.EncryptedPubKey;
 import com.squareup.subzero.proto.service.Common.Path;
-import com.squareup.subzero.proto.service.Common.Signature;
 import com.squareup.subzero.proto.service.Common.TxInput;
 import com.squareup.subzero.proto.service.Common.TxOutput;
 import com.squareup.subzero.proto.service.Internal.InternalCommandRequest;
 import com.squareup.subzero.proto.service.Service.CommandRequest;
 import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.stream.Collectors;
 import org.bitcoinj.core.Address;
 import org.bitcoinj.core.ECKey;
-import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.VerificationException;
 import org.bitcoinj.crypto.DeterministicKey;
 import org.bitcoinj.crypto.HDKeyDerivation;
 import org.bitcoinj.params.TestNet3Params;
+import org.bitcoinj.script.ScriptBuilder;
 import org.bouncycastle.util.encoders.Hex;
 import org.junit.Before;
 import org.junit.Test;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
@@ -159,6 +157,33 @@ public class SubzeroUtilsTest {
     assertEquals("2MuAdStu2xZtRSyA5B6wRtj7SmaLjDyfm1H", address.toString());
   }
 
+  @Test public void deriveP2SHP2WSHScriptHash() {
+    // Same keys and path as deriveP2SHP2WSH above. Note that the hash in the comment there doesn't
+    // match the address the test checks.
+    Path path = SubzeroUtils.newPath(false, 3172);
+    List<DeterministicKey> addresses = ImmutableList.of(
+        "tpubD9xeStpGFRUVhE7c3dDsdqNmbPC6RjQhvSc7UetKRMYjjLusaJx6Nfb3bAGQXDmnY5iuBApU75yuLDDYDXvq3FnXX1zEQMficGXkrYn6i1L",
+        "tpubD9JLQCZyqpsY7L5dY86vJnJ1g1Acgb5MzpF7MgE29qQzUcM1LpxTuKeCRWwnCncVRhxYugumQqndARHqQ95c629h7bEciRH39LHXjpJEbsY",
+        "tpubD9F4zKZ1qkfAghtK8BCT5EeFJm5X3YP34M4xGi98KAok4rkwYBxoFdM9EaWxTK3PTRhe7Mwd7Mfm96ovKb64vDnENj84jfoN6gMzKx85uYm",
+        "tpubD8YrhVDcGsTdyj4pZh2ZGJvcqpASFZLai9tRHPj4ikjyn4MZcoHjqeuzNBGntpkSxNg61FKo9yCWpCvUGVnMpJJUwGJcWUpxTdPQKVdgoSo")
+        .stream().map(pub -> DeterministicKey.deserializeB58(pub, TestNet3Params.get())).collect(Collectors.toList());
+
+    byte[] scriptHash = SubzeroUtils.deriveP2SHP2WSHScriptHash(2, addresses, path);
+    // Hash of 2MuAdStu2xZtRSyA5B6wRtj7SmaLjDyfm1H
+    assertEquals("1511c11306ba88c11b4be8113b7713b57ce4dbd2", Hex.toHexString(scriptHash));
+    assertArrayEquals(SubzeroUtils.deriveP2SHP2WSH(TestNet3Params.get(), 2, addresses, path).getHash(),
+        scriptHash);
+
+    assertEquals("a9141511c11306ba88c11b4be8113b7713b57ce4dbd287",
+        Hex.toHexString(SubzeroUtils.p2shScriptPubKey(scriptHash)));
+    assertEquals(0x1511c11306ba88c1L, SubzeroUtils.packScriptHash(scriptHash, 0));
+
+    // The witness script matches bitcoinj's.
+    List<ECKey> publicKeys = new ArrayList<>(SubzeroUtils.derivePublicKeys(addresses, path));
+    assertArrayEquals(ScriptBuilder.createRedeemScript(2, publicKeys).getProgram(),
+        SubzeroUtils.multisigWitnessScript(2, publicKeys));
+  }
+
   @Test public void testDerivePublicKeyRandom() {
     // Using https://iancoleman.io/bip39/, I created a random key. The derivation we use for cold
     // wallet is m/coin_type'/change/address_index. The coin_type' is taken care of for us,
@@ -585,132 +610,24 @@ public class SubzeroUtilsTest {
   }
 
   @Test
-  public void testValidateAndSortValidSignatures() {
-    List<ECKey> keys = Arrays.asList(new ECKey(), new ECKey(), new ECKey());
-    keys.sort(ECKey.PUBKEY_COMPARATOR);
-
-    byte[] hash = sha256Hash("mock input");
-    List<Signature> signatures = Arrays.asList(
-        createValidSignature(hash, keys.get(0)),
-        createValidSignature(hash, keys.get(1))
-    );
-
-    List<byte[]> sortedSigs = SubzeroUtils.validateAndSort(keys, hash, signatures);
-
-    assertEquals(Constants.MULTISIG_THRESHOLD, sortedSigs.size());
-    assertArrayEquals(signatures.get(0).getDer().toByteArray(), sortedSigs.get(0));
-    assertArrayEquals(signatures.get(1).getDer().toByteArray(), sortedSigs.get(1));
-  }
-
-  @Test
-  public void testValidateAndSortInvalidSignatures() {
-    List<ECKey> keys = Arrays.asList(new ECKey(), new ECKey());
-    byte[] hash = sha256Hash("mock input");
-    List<Signature> signatures = Arrays.asList(
-        createInvalidEmptySignature(),
-        createInvalidEmptySignature()
-    );
-
-    RuntimeException exception = assertThrows(RuntimeException.class, () ->
-        SubzeroUtils.validateAndSort(keys, hash, signatures)
-    );
-
-    assertTrue(exception.getMessage().contains("Our calculated hash does not match the HSM provided sig"));
-  }
-
-  @Test
-  public void testValidateAndSortValidSignaturesFlippedBit() {
-    List<ECKey> keys = Arrays.asList(new ECKey(), new ECKey(), new ECKey());
-    keys.sort(ECKey.PUBKEY_COMPARATOR);
-
-    byte[] hash = sha256Hash("mock input");
-    List<Signature> signatures = Arrays.asList(
-        createValidSignature(hash, keys.get(0)),
-        createValidSignature(hash, keys.get(1))
-    );
-
-    List<byte[]> sortedSigs = SubzeroUtils.validateAndSort(keys, hash, signatures);
-
-    assertEquals(Constants.MULTISIG_THRESHOLD, sortedSigs.size());
-    assertArrayEquals(signatures.get(0).getDer().toByteArray(), sortedSigs.get(0));
-    assertArrayEquals(signatures.get(1).getDer().toByteArray(), sortedSigs.get(1));
-
-    // Flip a bit in one signature and check for failure
-    byte[] corruptedSigBytes = signatures.get(0).getDer().toByteArray();
-    corruptedSigBytes[0] ^= 0x01;
-
-    // Use the same hash but use the corrupted signature
-    Signature corruptedSignature = Signature.newBuilder()
-        .setHash(signatures.get(0).getHash())
-        .setDer(ByteString.copyFrom(corruptedSigBytes))
+  public void testParseCommandRequestAliases() throws Exception {
+    CommandRequest inner = CommandRequest.newBuilder()
+        .setSignTx(CommandRequest.SignTxRequest.newBuilder()
+            .addInputs(testInput())
+            .addOutputs(testOutput()))
         .build();
+    byte[] bytes = CommandRequest.newBuilder()
+        .setSerializedCommandRequest(inner.toByteString())
+        .build()
+        .toByteArray();
+    CommandRequest outer = SubzeroUtils.parseCommandRequest(bytes);
+    CommandRequest parsed = SubzeroUtils.parseCommandRequest(outer.getSerializedCommandRequest());
+    assertEquals(inner, parsed);
 
-    List<Signature> corruptedSignatures = Arrays.asList(corruptedSignature, signatures.get(1));
-
-    // Validate and expect a failure
-    RuntimeException exception = assertThrows(RuntimeException.class, () ->
-        SubzeroUtils.validateAndSort(keys, hash, corruptedSignatures)
-    );
-
-    assertTrue(exception.getMessage().contains("Failed validating signatures"));
-  }
-
-  @Test
-  public void testValidateAndSortSignatureWithWrongHash() {
-    List<ECKey> keys = Arrays.asList(new ECKey(), new ECKey());
-    byte[] hash = sha256Hash("input1");
-    byte[] wrongHash = sha256Hash("input2");
-    List<Signature> signatures = Arrays.asList(createValidSignature(wrongHash, keys.get(0)));
-
-    RuntimeException exception = assertThrows(RuntimeException.class, () ->
-        SubzeroUtils.validateAndSort(keys, hash, signatures)
-    );
-    assertTrue(exception.getMessage().contains("Our calculated hash does not match the HSM provided sig"));
-  }
-
-  @Test
-  public void testValidateAndSortDuplicateSignatures() {
-    List<ECKey> keys = Arrays.asList(new ECKey(), new ECKey());
-    byte[] hash = sha256Hash("input");
-    Signature validSig = createValidSignature(hash, keys.get(0));
-    List<Signature> signatures = Arrays.asList(validSig, validSig);
-
-    RuntimeException exception = assertThrows(RuntimeException.class, () ->
-        SubzeroUtils.validateAndSort(keys, hash, signatures)
-    );
-    assertTrue(exception.getMessage().contains("Failed validating signatures"));
-  }
-
-  @Test
-  public void testValidateAndSortDuplicateKey() {
-    List<ECKey> keys = Arrays.asList(new ECKey(), new ECKey());
-    byte[] hash = sha256Hash("input");
-
-    // Sign twice using the same key rather than using a copied reference to the same signature
-    // as in testValidateAndSortDuplicateSignatures
-    Signature validSig1 = createValidSignature(hash, keys.get(0));
-    Signature validSig2 = createValidSignature(hash, keys.get(0));
-    List<Signature> signatures = Arrays.asList(validSig1, validSig2);
-
-    RuntimeException exception = assertThrows(RuntimeException.class, () ->
-        SubzeroUtils.validateAndSort(keys, hash, signatures)
-    );
-    assertTrue(exception.getMessage().contains("Failed validating signatures"));
-  }
-
-  @Test
-  public void testValidateAndSortSignaturesBelowThreshold() {
-    List<ECKey> keys = Arrays.asList(new ECKey(), new ECKey());
-    byte[] hash = sha256Hash("input");
-    // Only supply 1 sig
-    List<Signature> signatures = Arrays.asList(
-        createValidSignature(hash, keys.get(0))
-    );
-
-    RuntimeException exception = assertThrows(RuntimeException.class, () ->
-        SubzeroUtils.validateAndSort(keys, hash, signatures)
-    );
-    assertTrue(exception.getMessage().contains("Failed validating signatures"));
+    // The prev hash is a view of the original bytes, not a copy.
+    byte[] prevHash = testInput().getPrevHash().toByteArray();
+    bytes[Bytes.indexOf(bytes, prevHash)] ^= 1;
+    assertNotEquals(testInput().getPrevHash(), parsed.getSignTx().getInputs(0).getPrevHash());
   }
 
   public static DeterministicKey createDeterministicKey(String input) {
@@ -753,30 +670,4 @@ public class SubzeroUtilsTest {
             .setIndex(2))
         .build();
   }
-
-  private Signature createValidSignature(byte[] hash, ECKey ecKey) {
-    Sha256Hash sha256Hash = Sha256Hash.wrap(hash);
-    ECKey.ECDSASignature ecdsaSignature = ecKey.sign(sha256Hash);
-    byte[] signatureBytes = ecdsaSignature.encodeToDER();
-    return Signature.newBuilder()
-        .setHash(ByteString.copyFrom(hash))
-        .setDer(ByteString.copyFrom(signatureBytes))
-        .build();
-  }
-
-  private byte[] sha256Hash(String inputData) {
-    try {
-      MessageDigest digest = MessageDigest.getInstance("SHA-256");
-      return digest.digest(inputData.getBytes(StandardCharsets.UTF_8));
-    } catch (NoSuchAlgorithmException e) {
-      throw new RuntimeException("SHA-256 not found", e);
-    }
-  }
-
-  private Signature createInvalidEmptySignature() {
-    return Signature.newBuilder()
-        .setHash(ByteString.copyFrom(new byte[]{0}))
-        .setDer(ByteString.copyFrom(new byte[]{0}))
-        .build();
-  }
 }
@@ -0,0 +1,176 @@
+package com.squareup.subzero.shared;
+
+import com.google.protobuf.ByteString;
+import com.squareup.subzero.proto.service.Common.Destination;
+import com.squareup.subzero.proto.service.Common.Path;
+import com.squareup.subzero.proto.service.Common.TxInput;
+import com.squareup.subzero.proto.service.Common.TxOutput;
+import com.squareup.subzero.proto.service.Service.CommandRequest;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Supplier;
+import org.junit.Before;
+import org.junit.Test;
+
+import static com.squareup.subzero.shared.TestWallets.utxos;
+import static java.lang.String.format;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class SweepPlannerTest {
+  private ColdWallet coldWallet;
+  private final Path gatewayPath = SubzeroUtils.newPath(false, 17);
+  private final Path changePath = SubzeroUtils.newPath(true, 1000);
+  private int tokenCount;
+  private final Supplier<String> tokens = () -> format("%036d", tokenCount++);
+
+  @Before public void setUp() {
+    coldWallet = TestWallets.coldWallet();
+  }
+
+  private static long sum(List<TxInput> inputs) {
+    return inputs.stream().mapToLong(TxInput::getAmount).sum();
+  }
+
+  private static long gatewayAmount(CommandRequest request) {
+    return request.getSignTx().getOutputsList().stream()
+        .filter(output -> output.getDestination() == Destination.GATEWAY)
+        .mapToLong(TxOutput::getAmount)
+        .sum();
+  }
+
+  /**
+   * Checks each request fits in a QR code, every utxo is spent at most once, and the fees and
+   * amounts add up.
+   */
+  private void checkPlan(SweepPlanner.Plan plan) {
+    Set<TxInput> spent = new HashSet<>();
+    long fee = 0;
+    long amount = 0;
+    for (CommandRequest request : plan.getRequests()) {
+      assertTrue(request.getSerializedSize() <= Constants.MAX_QR_PROTO_BYTES);
+      CommandRequest.SignTxRequest signTx = request.getSignTx();
+      for (TxInput input : signTx.getInputsList()) {
+        assertTrue(spent.add(input));
+      }
+      fee += sum(signTx.getInputsList());
+      for (TxOutput output : signTx.getOutputsList()) {
+        fee -= output.getAmount();
+      }
+      amount += gatewayAmount(request);
+    }
+    assertEquals(plan.getFee(), fee);
+    assertEquals(plan.getAmount(), amount);
+    assertEquals(plan.getRequests().size(), plan.getCeremonies());
+  }
+
+  @Test public void testSweepEverything() {
+    SweepPlanner planner = new SweepPlanner(coldWallet, 10, false);
+    List<TxInput> utxos = utxos(100, 1_000_000);
+    List<SweepPlanner.Plan> plans =
+        planner.plans(utxos, null, gatewayPath, changePath, tokens, null);
+    assertEquals(2, plans.size());
+
+    SweepPlanner.Plan independent = plans.get(0);
+    assertEquals(SweepPlanner.Strategy.INDEPENDENT, independent.getStrategy());
+    checkPlan(independent);
+    int perRequest = independent.getRequests().get(0).getSignTx().getInputsCount();
+    assertEquals((100 + perRequest - 1) / perRequest, independent.getCeremonies());
+    assertEquals(sum(utxos), independent.getAmount() + independent.getFee());
+    for (CommandRequest request : independent.getRequests()) {
+      assertEquals(1, request.getSignTx().getOutputsCount());
+      assertEquals(Destination.GATEWAY, request.getSignTx().getOutputs(0).getDestination());
+    }
+
+    // Each chained transaction uses an input for the previous transaction's change.
+    SweepPlanner.Plan chained = plans.get(1);
+    assertEquals(SweepPlanner.Strategy.CHAINED, chained.getStrategy());
+    checkPlan(chained);
+    assertTrue(chained.getCeremonies() >= independent.getCeremonies());
+    assertEquals(sum(utxos), chained.getAmount() + chained.getFee());
+    List<CommandRequest> requests = chained.getRequests();
+    for (int i = 0; i < requests.size(); i++) {
+      CommandRequest.SignTxRequest signTx = requests.get(i).getSignTx();
+      assertEquals(1, signTx.getOutputsCount());
+      TxOutput output = signTx.getOutputs(0);
+      if (i == requests.size() - 1) {
+        assertEquals(Destination.GATEWAY, output.getDestination());
+      } else {
+        assertEquals(Destination.CHANGE, output.getDestination());
+        assertEquals(SubzeroUtils.newPath(true, 1000 + i), output.getPath());
+        TxInput next = requests.get(i + 1).getSignTx().getInputs(0);
+        assertEquals(ByteString.copyFrom(
+            coldWallet.txid(signTx.getInputsList(), signTx.getOutputsList())),
+            next.getPrevHash());
+        assertEquals(0, next.getPrevIndex());
+        assertEquals(output.getAmount(), next.getAmount());
+        assertEquals(output.getPath(), next.getPath());
+      }
+    }
+
+    assertEquals(SweepPlanner.Strategy.INDEPENDENT,
+        planner.plan(utxos, null, gatewayPath, changePath, tokens, null).getStrategy());
+  }
+
+  @Test public void testAmount() {
+    SweepPlanner planner = new SweepPlanner(coldWallet, 10, true);
+    List<TxInput> utxos = utxos(100, 1_000_000);
+    for (SweepPlanner.Plan plan :
+        planner.plans(utxos, 50_000_000L, gatewayPath, changePath, tokens, 0.0001)) {
+      checkPlan(plan);
+      assertEquals(50_000_000L, plan.getAmount());
+      assertTrue(plan.getCeremonies() > 1);
+
+      // Only the last transaction can have change.
+      CommandRequest last = plan.getRequests().get(plan.getCeremonies() - 1);
+      if (last.getSignTx().getOutputsCount() == 2) {
+        TxOutput change = last.getSignTx().getOutputs(1);
+        assertEquals(Destination.CHANGE, change.getDestination());
+        assertTrue(change.getAmount() >= CoinSelector.DUST_THRESHOLD);
+      }
+      if (plan.getStrategy() == SweepPlanner.Strategy.CHAINED) {
+        assertEquals(50_000_000L, gatewayAmount(last));
+      }
+    }
+  }
+
+  @Test public void testSingleRequest() {
+    SweepPlanner planner = new SweepPlanner(coldWallet, 10, false);
+    List<TxInput> utxos = utxos(10, 1_000_000);
+    List<SweepPlanner.Plan> plans =
+        planner.plans(utxos, 2_500_000L, gatewayPath, changePath, tokens, null);
+    for (SweepPlanner.Plan plan : plans) {
+      checkPlan(plan);
+      assertEquals(1, plan.getCeremonies());
+      assertEquals(3, plan.getRequests().get(0).getSignTx().getInputsCount());
+      assertEquals(2_500_000L, plan.getAmount());
+    }
+  }
+
+  @Test public void testBase45() {
+    List<TxInput> utxos = utxos(100, 1_000_000);
+    SweepPlanner.Plan base64 = new SweepPlanner(coldWallet, 10, true)
+        .plan(utxos, null, gatewayPath, changePath, tokens, null);
+    SweepPlanner.Plan base45 = new SweepPlanner(coldWallet, 10, true, QrPayload.Encoding.BASE45)
+        .plan(utxos, null, gatewayPath, changePath, tokens, null);
+    checkPlan(base45);
+    // Each request carries more inputs, so the sweep needs fewer ceremonies.
+    assertTrue(base45.getRequests().get(0).getSignTx().getInputsCount()
+        > base64.getRequests().get(0).getSignTx().getInputsCount());
+    assertTrue(base45.getCeremonies() < base64.getCeremonies());
+  }
+
+  @Test public void testInsufficientFunds() {
+    SweepPlanner planner = new SweepPlanner(coldWallet, 10, false);
+    assertThrows(IllegalArgumentException.class,
+        () -> planner.plans(utxos(100, 1_000_000), 100_000_000L, gatewayPath, changePath,
+            tokens, null));
+    assertThrows(IllegalArgumentException.class,
+        () -> planner.plans(utxos(3, 1_000_000), 100L, gatewayPath, changePath, tokens, null));
+    // At 10 sat/vbyte, a 1000 sat input costs more than it's worth.
+    assertThrows(IllegalArgumentException.class,
+        () -> planner.plans(utxos(100, 1000), null, gatewayPath, changePath, tokens, null));
+  }
+}
@@ -0,0 +1,43 @@
+package com.squareup.subzero.shared;
+
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.ByteString;
+import com.squareup.subzero.proto.service.Common.TxInput;
+import java.util.ArrayList;
+import java.util.List;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.params.TestNet3Params;
+
+/**
+ * Fixtures shared by the tests of the classes built on top of ColdWallet.
+ */
+final class TestWallets {
+  private TestWallets() {}
+
+  /** A testnet wallet with 4 root keys, which also uses the last one as the gateway. */
+  static ColdWallet coldWallet() {
+    return new ColdWallet(TestNet3Params.get(), 0x7FFFFFFF, ImmutableList.of(
+        "tpubD9jBarsLCKot45kvTTu7yWxmNnkBPbpn2CgS1F3yuxZGgohTkamYwJJKenZHrsYwPRJY66dk3ZUt3aZwZqFf7QGsgUUUcNSvvb9NXHFt5Vb",
+        "tpubD8u5eHk8B6q63G4ekfBB2eVCeBYTrW2uCvi7Z3BF6bY2z33jW14Uzna8f5cFQWS3HFwdAzUWxqESq7j5x2CUQ7uBPgpXnpf8X9FPnh63XYd",
+        "tpubD9dkteiWZqa3jL17meqVvy1RSUQsmJvU3hBfAosMzrSa69DacRku8yHy3E2fma1Q4Den25ukcsBL3bYTFyKjKbF8CEWHu86Xg9YXiY6CkeC",
+        "tpubD8GrNWdYHDjdJryH5tng8LUzHSrEo4gToaguKnzthEqTxyfF13jTsp4sMtmso4n1VC58R5Wvt4Ua4npZTecR1xaGGYJgLLQj5sQGdD2xh2N"),
+        "tpubD8GrNWdYHDjdJryH5tng8LUzHSrEo4gToaguKnzthEqTxyfF13jTsp4sMtmso4n1VC58R5Wvt4Ua4npZTecR1xaGGYJgLLQj5sQGdD2xh2N");
+  }
+
+  /**
+   * Unspent outputs worth amount + i satoshis, alternating between the change and the receive
+   * chain.
+   */
+  static List<TxInput> utxos(int count, long amount) {
+    List<TxInput> utxos = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      utxos.add(TxInput.newBuilder()
+          .setPrevHash(ByteString.copyFrom(Sha256Hash.of(new byte[] {(byte) i}).getBytes()))
+          .setPrevIndex(i)
+          .setAmount(amount + i)
+          .setPath(SubzeroUtils.newPath(i % 2 == 0, 100000 + i))
+          .build());
+    }
+    return utxos;
+  }
+}
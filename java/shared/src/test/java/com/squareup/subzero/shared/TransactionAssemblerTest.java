@@ -0,0 +1,288 @@
+package com.squareup.subzero.shared;
+
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.ByteString;
+import com.squareup.subzero.proto.service.Common.Signature;
+import com.squareup.subzero.proto.service.Service.CommandRequest;
+import com.squareup.subzero.proto.service.Service.CommandResponse;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionWitness;
+import org.bitcoinj.crypto.DeterministicKey;
+import org.bitcoinj.crypto.HDKeyDerivation;
+import org.bitcoinj.params.TestNet3Params;
+import org.bouncycastle.util.encoders.Base64;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.bouncycastle.util.encoders.Hex.toHexString;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Uses transaction 1 from ColdWalletCreationAndSigningTestnetTest. The tests which need to sign
+ * with a chosen key use the same inputs and outputs, in a wallet whose private root keys are
+ * known.
+ */
+public class TransactionAssemblerTest {
+  private static final String TRANSACTION = "010000000001011d08ca0a654814df8f45edc6c53c222c358366c76642a5a12697692d1a9dcc21000000002322002089d07657310b60a144a5c6bab92083f69eff86650dda61d287d632c68cf12b68feffffff02c02090020000000017a914c0989ed5ab5a3c6568b41c902f37a5b1fdc3793887804120050000000017a914260cd6a84fcf10bf0d4101ede0452ff5265ea59187040048304502210084297bbd69f9dd848d9a5475c7af510c1d780a7f227705f6350a02ce4ac1c7f2022003f0ef945ab4883ce9996c99dec6a6009df3fbdbc662f6fec08f2870f9223bce0147304402202cc4d544bd0c9efcf2879491d0edafeb304f38680b27e2da41c4948215af358602204de0d0d6e623ccc51a32151041e0fa8ab4ac2117106ba4bb69c01321be24b127018b5221020a6e06b48f1e4806ba94435aaf7b55190bc8295ff63ca40264dfcae3148451a321024826a65c1db382cebc2fa93be6bac859d1dc74f5374eaa016c41cdb08c17a45721038858f3df69e3aa0289129ffea09c3819700eb926b7e09ae36bac3e50c19a72172103c83e35763df6941fcd3b9ef0f754f222ce95c8adc5deef65cf968af9e1162c4b54ae00000000";
+
+  private CommandRequest signTxRequest;
+  private List<Signature> response1;
+  private List<Signature> response2;
+  private TransactionAssembler assembler;
+  private final List<DeterministicKey> rootKeys = new ArrayList<>();
+  private ColdWallet signingWallet;
+  private byte[] sighash;
+
+  @Before public void setUp() throws Exception {
+    signTxRequest = CommandRequest.parseFrom(Base64.decode(
+        "ELOn0AkqVAowCiAhzJ0aLWmXJqGlQmbHZoM1LCI8xcbtRY/fFEhlCsoIHRAAGIDJ/j0iBRAAGMs+Eg4IwMHAFBABGgUQARi8IRIOCICDgSkQARoFEAEYvSEYAA=="));
+    response1 = CommandResponse.parseFrom(Base64.decode(
+        "GmwKagpGMEQCICzE1US9DJ788oeUkdDtr+swTzhoCyfi2kHElIIVrzWGAiBN4NDW5iPMxRoyFRBB4PqKtKwhFxBrpLtpwBMhviSxJxIgT1ukmqKbDPGIC8feem9Z+V8KL/DSrRocHM31PbAK4+EiAA=="))
+        .getSignTx().getSignaturesList();
+    response2 = CommandResponse.parseFrom(Base64.decode(
+        "Gm0KawpHMEUCIQCEKXu9afndhI2aVHXHr1EMHXgKfyJ3BfY1CgLOSsHH8gIgA/DvlFq0iDzpmWyZ3samAJ3z+9vGYvb+wI8ocPkiO84SIE9bpJqimwzxiAvH3npvWflfCi/w0q0aHBzN9T2wCuPhIgA="))
+        .getSignTx().getSignaturesList();
+
+    List<String> addresses = ImmutableList.of(
+        "tpubDA3BGtNJE3oVSasjxXKPfoLExCWY7KCM5yz8tEgibzgMZaRM2ooSWTW55yz7DVtQG94BVN7UYomtyiDqhRicv9atALtgzVtDQxTEVV2wjNs",
+        "tpubD9u3Ks8VxbDqYgaoUfDWnRYiDzjY8itE6VgJkGmbGzKxPkSbLoxhSH9PCkdEvBk35rqCEdu7fFpG6uf2Um5oCYoJ8NUJ1WggdP3kJ3S3VPY",
+        "tpubD8nQGcVLyQTQ4NxVhAYEvEtURo7B5PoTiGs1ez8vKHbVBQdz83hxmgvjRoZCxcHa9h6Y3HQhj6FWZCEZt1RkewU9i9rre2hh2KsYAdXehep",
+        "tpubDA5bnZgugrog8xwQwUTNGGRnSQZHSiqe1jGivpkZJC8PF2UcokJ5Xo5z8EvD4BwmzCHd2VisxzcUg7Hkaxyxf177dpVPtMW2E6n3ijsPgke");
+    String gateway = "tpubD9dXq2iRd5PppWdv38THfp9LLoBTU94RdpZohhsN4XohgVXykzhzvZWsbJa8k6yq21tnaB6w4wCMJPZ9wF8ed677CRTw8cvBw15XTLB3KHg";
+    ColdWallet coldWallet = new ColdWallet(TestNet3Params.get(), 20190131, addresses, gateway);
+    assembler = coldWallet.startTransactionAssembler(signTxRequest.getSignTx().getInputsList(),
+        signTxRequest.getSignTx().getOutputsList(), null, null);
+
+    List<String> publicRootKeys = new ArrayList<>();
+    for (int i = 0; i < Constants.MULTISIG_PARTICIPANTS; i++) {
+      DeterministicKey rootKey =
+          HDKeyDerivation.createMasterPrivateKey(Sha256Hash.hash(new byte[] {(byte) i}));
+      rootKeys.add(rootKey);
+      publicRootKeys.add(rootKey.serializePubB58(TestNet3Params.get()));
+    }
+    signingWallet = new ColdWallet(TestNet3Params.get(), 20190131, publicRootKeys, gateway);
+    sighash = signingAssembler().sighash(0);
+  }
+
+  private TransactionAssembler signingAssembler() {
+    return signingWallet.startTransactionAssembler(signTxRequest.getSignTx().getInputsList(),
+        signTxRequest.getSignTx().getOutputsList(), null, null);
+  }
+
+  /** The key root key i signs the input with. */
+  private ECKey signingKey(int i) {
+    return SubzeroUtils.derivePublicKey(rootKeys.get(i),
+        signTxRequest.getSignTx().getInputs(0).getPath());
+  }
+
+  /** The response of the Subzero holding root key i, for signingAssembler's transaction. */
+  private List<Signature> sign(int i) {
+    return ImmutableList.of(Signature.newBuilder()
+        .setHash(ByteString.copyFrom(sighash))
+        .setDer(ByteString.copyFrom(signingKey(i).sign(Sha256Hash.wrap(sighash)).encodeToDER()))
+        .build());
+  }
+
+  @Test public void testRequest() {
+    assertEquals(signTxRequest.getWalletId(), assembler.getRequest().getWalletId());
+    assertEquals(signTxRequest.getSignTx(), assembler.getRequest().getSignTx());
+  }
+
+  @Test public void testAssemble() {
+    assertFalse(assembler.addSignatures(response1));
+    assertFalse(assembler.isComplete());
+    assertThrows(IllegalStateException.class, () -> assembler.getTransaction());
+
+    assertTrue(assembler.addSignatures(response2));
+    assertTrue(assembler.isComplete());
+    assertEquals(TRANSACTION, toHexString(assembler.getTransaction()));
+    assertEquals(TRANSACTION.length() / 2, assembler.size());
+
+    ByteBuffer direct = ByteBuffer.allocateDirect(assembler.size());
+    assertEquals(assembler.size(), assembler.writeTransaction(direct));
+    byte[] written = new byte[direct.capacity()];
+    direct.flip();
+    direct.get(written);
+    assertEquals(TRANSACTION, toHexString(written));
+
+    assertThrows(IllegalStateException.class, () -> assembler.addSignatures(response1));
+  }
+
+  @Test public void testRejectedResponse() {
+    // The same response twice signs with the same key, so it's rejected and can be replaced.
+    assertFalse(assembler.addSignatures(response1));
+    assertThrows(RuntimeException.class, () -> assembler.addSignatures(response1));
+    assertFalse(assembler.isComplete());
+
+    assertThrows(RuntimeException.class, () -> assembler.addSignatures(ImmutableList.of()));
+
+    assertTrue(assembler.addSignatures(response2));
+    assertEquals(TRANSACTION, toHexString(assembler.getTransaction()));
+  }
+
+  @Test public void testRejectedFirstResponse() {
+    // A bad first response is rejected as it's added, so it doesn't block the valid ones.
+    byte[] der = response1.get(0).getDer().toByteArray();
+    der[der.length - 1] ^= 1;
+    List<Signature> invalid = ImmutableList.of(
+        response1.get(0).toBuilder().setDer(ByteString.copyFrom(der)).build());
+    assertThrows(RuntimeException.class, () -> assembler.addSignatures(invalid));
+    assertFalse(assembler.isComplete());
+
+    assertFalse(assembler.addSignatures(response2));
+    assertThrows(RuntimeException.class, () -> assembler.addSignatures(invalid));
+    assertThrows(RuntimeException.class, () -> assembler.addSignatures(response2));
+    assertTrue(assembler.addSignatures(response1));
+    assertEquals(TRANSACTION, toHexString(assembler.getTransaction()));
+  }
+
+  @Test public void testScriptOrder() {
+    // Whichever keys sign, and in whichever order the responses arrive, the witness has the
+    // signatures in the order of the public keys in the script.
+    for (int first = 0; first < Constants.MULTISIG_PARTICIPANTS; first++) {
+      for (int second = 0; second < Constants.MULTISIG_PARTICIPANTS; second++) {
+        if (first == second) {
+          continue;
+        }
+        TransactionAssembler signing = signingAssembler();
+        assertFalse(signing.addSignatures(sign(first)));
+        assertThrows(IllegalStateException.class, () -> signing.getTransaction());
+        assertTrue(signing.addSignatures(sign(second)));
+
+        List<Signature> expected = new ArrayList<>();
+        expected.add(sign(first).get(0));
+        expected.add(sign(second).get(0));
+        if (ECKey.PUBKEY_COMPARATOR.compare(signingKey(first), signingKey(second)) > 0) {
+          expected.add(expected.remove(0));
+        }
+        TransactionWitness witness = new Transaction(TestNet3Params.get(),
+            signing.getTransaction()).getInput(0).getWitness();
+        for (int i = 0; i < expected.size(); i++) {
+          byte[] der = expected.get(i).getDer().toByteArray();
+          byte[] push = witness.getPush(i + 1);
+          assertArrayEquals(der, Arrays.copyOf(push, push.length - 1));
+        }
+      }
+    }
+  }
+
+  @Test public void testWrongHash() {
+    TransactionAssembler signing = signingAssembler();
+    List<Signature> valid = sign(0);
+    List<Signature> wrongHash = ImmutableList.of(valid.get(0).toBuilder()
+        .setHash(ByteString.copyFrom(Sha256Hash.hash(new byte[] {1})))
+        .build());
+    RuntimeException e =
+        assertThrows(RuntimeException.class, () -> signing.addSignatures(wrongHash));
+    assertTrue(e.getMessage().contains("Our calculated hash does not match the HSM provided sig"));
+
+    List<Signature> empty = ImmutableList.of(Signature.newBuilder()
+        .setHash(ByteString.copyFrom(new byte[] {0}))
+        .setDer(ByteString.copyFrom(new byte[] {0}))
+        .build());
+    e = assertThrows(RuntimeException.class, () -> signing.addSignatures(empty));
+    assertTrue(e.getMessage().contains("Our calculated hash does not match the HSM provided sig"));
+
+    // A signature without a hash is only checked against the keys.
+    assertFalse(signing.addSignatures(ImmutableList.of(valid.get(0).toBuilder()
+        .clearHash()
+        .build())));
+  }
+
+  @Test public void testFlippedBit() {
+    TransactionAssembler signing = signingAssembler();
+    Signature valid = sign(0).get(0);
+    byte[] der = valid.getDer().toByteArray();
+    der[0] ^= 0x01;
+    List<Signature> corrupted = ImmutableList.of(valid.toBuilder()
+        .setDer(ByteString.copyFrom(der))
+        .build());
+    RuntimeException e =
+        assertThrows(RuntimeException.class, () -> signing.addSignatures(corrupted));
+    assertEquals("Invalid signature for input 0", e.getMessage());
+    assertFalse(signing.addSignatures(sign(0)));
+  }
+
+  @Test public void testSameKey() throws Exception {
+    TransactionAssembler signing = signingAssembler();
+    List<Signature> valid = sign(2);
+    assertFalse(signing.addSignatures(valid));
+
+    // The same signature twice.
+    RuntimeException e = assertThrows(RuntimeException.class, () -> signing.addSignatures(valid));
+    assertTrue(e.getMessage().startsWith("Input 0 was already signed by key"));
+
+    // (r, n - s) is a different, valid, signature from the same key. CHECKMULTISIG needs
+    // signatures from two different keys.
+    ECKey.ECDSASignature decoded =
+        ECKey.ECDSASignature.decodeFromDER(valid.get(0).getDer().toByteArray());
+    ECKey.ECDSASignature malleated =
+        new ECKey.ECDSASignature(decoded.r, ECKey.CURVE.getN().subtract(decoded.s));
+    assertTrue(signingKey(2).verify(sighash, malleated.encodeToDER()));
+    List<Signature> malleatedResponse = ImmutableList.of(valid.get(0).toBuilder()
+        .setDer(ByteString.copyFrom(malleated.encodeToDER()))
+        .build());
+    e = assertThrows(RuntimeException.class, () -> signing.addSignatures(malleatedResponse));
+    assertTrue(e.getMessage().startsWith("Input 0 was already signed by key"));
+
+    assertFalse(signing.isComplete());
+    assertTrue(signing.addSignatures(sign(1)));
+  }
+
+  @Test public void testConcurrentResponses() throws Exception {
+    // The signatures are verified on the executor, outside of the lock, while the other response
+    // is being added.
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    ExecutorService callers = Executors.newFixedThreadPool(2);
+    try {
+      signingWallet.setVerificationExecutor(executor);
+      for (int i = 0; i < 20; i++) {
+        TransactionAssembler signing = signingAssembler();
+        Future<Boolean> first = callers.submit(() -> signing.addSignatures(sign(0)));
+        Future<Boolean> second = callers.submit(() -> signing.addSignatures(sign(3)));
+        assertTrue(first.get() ^ second.get());
+        assertTrue(signing.isComplete());
+
+        // Of two responses from the same key, only one is added.
+        TransactionAssembler same = signingAssembler();
+        Future<Boolean> once = callers.submit(() -> same.addSignatures(sign(1)));
+        Future<Boolean> twice = callers.submit(() -> same.addSignatures(sign(1)));
+        int rejected = 0;
+        for (Future<Boolean> future : ImmutableList.of(once, twice)) {
+          try {
+            assertFalse(future.get());
+          } catch (ExecutionException e) {
+            assertTrue(e.getCause().getMessage().startsWith("Input 0 was already signed by key"));
+            rejected++;
+          }
+        }
+        assertEquals(1, rejected);
+      }
+    } finally {
+      callers.shutdown();
+      executor.shutdown();
+    }
+  }
+
+  @Test public void testBufferTooSmall() {
+    assembler.addSignatures(response2);
+    assembler.addSignatures(response1);
+    ByteBuffer small = ByteBuffer.allocate(assembler.size() - 1);
+    assertThrows(IllegalArgumentException.class, () -> assembler.writeTransaction(small));
+    assertEquals(0, small.position());
+  }
+}
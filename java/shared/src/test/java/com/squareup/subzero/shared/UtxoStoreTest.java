@@ -0,0 +1,175 @@
+package com.squareup.subzero.shared;
+
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.ByteString;
+import com.squareup.subzero.proto.service.Common.Signature;
+import com.squareup.subzero.proto.service.Common.TxInput;
+import com.squareup.subzero.proto.service.Service.CommandRequest;
+import com.squareup.subzero.proto.service.Service.CommandResponse;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.params.TestNet3Params;
+import org.bouncycastle.util.encoders.Base64;
+import org.bouncycastle.util.encoders.Hex;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class UtxoStoreTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private ColdWallet coldWallet;
+  private File file;
+
+  @Before public void setUp() {
+    coldWallet = TestWallets.coldWallet();
+    file = new File(folder.getRoot(), "utxos");
+  }
+
+  private static TxInput utxo(int tx, int prevIndex, long amount, boolean isChange, int index) {
+    return TxInput.newBuilder()
+        .setPrevHash(ByteString.copyFrom(Sha256Hash.of(new byte[] {(byte) tx, (byte) (tx >> 8)})
+            .getBytes()))
+        .setPrevIndex(prevIndex)
+        .setAmount(amount)
+        .setPath(SubzeroUtils.newPath(isChange, index))
+        .build();
+  }
+
+  @Test public void testAddAndSpend() throws IOException {
+    TxInput a = utxo(1, 0, 5000, false, 3);
+    TxInput b = utxo(1, 1, 7000, true, 0);
+    TxInput c = utxo(2, 0, 1000, false, 1);
+    try (UtxoStore store = UtxoStore.open(file, coldWallet)) {
+      assertEquals(3, store.addAll(ImmutableList.of(a, b, c)));
+      // Re-adding is a no-op.
+      assertFalse(store.add(a));
+      assertEquals(3, store.size());
+      assertEquals(3, store.unspentCount());
+      assertEquals(13000, store.unspentAmount());
+
+      assertTrue(store.isUnspent(b.getPrevHash(), 1));
+      assertTrue(store.markSpent(b.getPrevHash(), 1));
+      assertFalse(store.markSpent(b.getPrevHash(), 1));
+      assertFalse(store.isUnspent(b.getPrevHash(), 1));
+      assertFalse(store.isUnspent(b.getPrevHash(), 2));
+      assertFalse(store.markSpent(b.getPrevHash(), 2));
+
+      assertEquals(3, store.size());
+      assertEquals(2, store.unspentCount());
+      assertEquals(6000, store.unspentAmount());
+      assertEquals(ImmutableList.of(a, c), store.unspent().collect(Collectors.toList()));
+      // Spent outputs can't be re-added as unspent.
+      assertFalse(store.add(b));
+      assertFalse(store.isUnspent(b.getPrevHash(), 1));
+    }
+  }
+
+  @Test public void testConflictingOutput() throws IOException {
+    try (UtxoStore store = UtxoStore.open(file, coldWallet)) {
+      store.add(utxo(1, 0, 5000, false, 3));
+      assertThrows(IllegalArgumentException.class, () -> store.add(utxo(1, 0, 5001, false, 3)));
+      assertThrows(IllegalArgumentException.class, () -> store.add(utxo(1, 0, 5000, true, 3)));
+      assertThrows(IllegalArgumentException.class,
+          () -> store.add(utxo(1, 0, 5000, false, 3).toBuilder()
+              .setPrevHash(ByteString.copyFrom(new byte[31])).build()));
+    }
+  }
+
+  @Test public void testOrdering() throws IOException {
+    TxInput a = utxo(1, 0, 5000, true, 3);
+    TxInput b = utxo(2, 0, 7000, false, 9);
+    TxInput c = utxo(3, 0, 5000, false, 2);
+    TxInput d = utxo(4, 0, 9000, true, 0);
+    TxInput e = utxo(5, 0, 1000, false, 9);
+    try (UtxoStore store = UtxoStore.open(file, coldWallet)) {
+      store.addAll(ImmutableList.of(a, b, c, d, e));
+      assertEquals(ImmutableList.of(d, b, a, c, e),
+          store.unspentByAmount().collect(Collectors.toList()));
+      assertEquals(ImmutableList.of(c, b, e, d, a),
+          store.unspentByPath().collect(Collectors.toList()));
+    }
+  }
+
+  @Test public void testReopenAndGrow() throws IOException {
+    int count = 3 * UtxoStore.MIN_CAPACITY;
+    try (UtxoStore store = UtxoStore.open(file, coldWallet)) {
+      for (int i = 0; i < count; i++) {
+        assertTrue(store.add(utxo(i, i % 3, i, i % 2 == 0, i)));
+      }
+      for (int i = 0; i < count; i += 2) {
+        assertTrue(store.markSpent(utxo(i, i % 3, i, i % 2 == 0, i).getPrevHash(), i % 3));
+      }
+    }
+    try (UtxoStore store = UtxoStore.open(file, coldWallet)) {
+      assertEquals(count, store.size());
+      assertEquals(count / 2, store.unspentCount());
+      for (int i = 0; i < count; i++) {
+        TxInput utxo = utxo(i, i % 3, i, i % 2 == 0, i);
+        assertEquals(i % 2 == 1, store.isUnspent(utxo.getPrevHash(), i % 3));
+        assertFalse(store.add(utxo));
+      }
+      assertEquals(utxo(1, 1, 1, false, 1), store.unspent().findFirst().get());
+    }
+  }
+
+  @Test public void testWrongWallet() throws IOException {
+    UtxoStore.open(file, coldWallet).close();
+
+    ColdWallet otherWallet = new ColdWallet(TestNet3Params.get(), 0x7FFFFFFF, ImmutableList.of(
+        "tpubD9xeStpGFRUVhE7c3dDsdqNmbPC6RjQhvSc7UetKRMYjjLusaJx6Nfb3bAGQXDmnY5iuBApU75yuLDDYDXvq3FnXX1zEQMficGXkrYn6i1L",
+        "tpubD9JLQCZyqpsY7L5dY86vJnJ1g1Acgb5MzpF7MgE29qQzUcM1LpxTuKeCRWwnCncVRhxYugumQqndARHqQ95c629h7bEciRH39LHXjpJEbsY",
+        "tpubD9F4zKZ1qkfAghtK8BCT5EeFJm5X3YP34M4xGi98KAok4rkwYBxoFdM9EaWxTK3PTRhe7Mwd7Mfm96ovKb64vDnENj84jfoN6gMzKx85uYm",
+        "tpubD8YrhVDcGsTdyj4pZh2ZGJvcqpASFZLai9tRHPj4ikjyn4MZcoHjqeuzNBGntpkSxNg61FKo9yCWpCvUGVnMpJJUwGJcWUpxTdPQKVdgoSo"),
+        "tpubD8GrNWdYHDjdJryH5tng8LUzHSrEo4gToaguKnzthEqTxyfF13jTsp4sMtmso4n1VC58R5Wvt4Ua4npZTecR1xaGGYJgLLQj5sQGdD2xh2N");
+    assertThrows(IllegalArgumentException.class, () -> UtxoStore.open(file, otherWallet));
+  }
+
+  /** Same transaction as ColdWalletCreationAndSigningTestnetTest.createTransaction1. */
+  @Test public void testCreateTransaction() throws Exception {
+    CommandRequest signTxRequest = CommandRequest.parseFrom(Base64.decode(
+        "ELOn0AkqVAowCiAhzJ0aLWmXJqGlQmbHZoM1LCI8xcbtRY/fFEhlCsoIHRAAGIDJ/j0iBRAAGMs+Eg4IwMHAFBABGgUQARi8IRIOCICDgSkQARoFEAEYvSEYAA=="));
+    CommandResponse sig1 = CommandResponse.parseFrom(Base64.decode(
+        "GmwKagpGMEQCICzE1US9DJ788oeUkdDtr+swTzhoCyfi2kHElIIVrzWGAiBN4NDW5iPMxRoyFRBB4PqKtKwhFxBrpLtpwBMhviSxJxIgT1ukmqKbDPGIC8feem9Z+V8KL/DSrRocHM31PbAK4+EiAA=="));
+    CommandResponse sig2 = CommandResponse.parseFrom(Base64.decode(
+        "Gm0KawpHMEUCIQCEKXu9afndhI2aVHXHr1EMHXgKfyJ3BfY1CgLOSsHH8gIgA/DvlFq0iDzpmWyZ3samAJ3z+9vGYvb+wI8ocPkiO84SIE9bpJqimwzxiAvH3npvWflfCi/w0q0aHBzN9T2wCuPhIgA="));
+    List<List<Signature>> signatures = ImmutableList.of(sig1.getSignTx().getSignaturesList(),
+        sig2.getSignTx().getSignaturesList());
+    ColdWallet testnetWallet = new ColdWallet(TestNet3Params.get(), 20190131, ImmutableList.of(
+        "tpubDA3BGtNJE3oVSasjxXKPfoLExCWY7KCM5yz8tEgibzgMZaRM2ooSWTW55yz7DVtQG94BVN7UYomtyiDqhRicv9atALtgzVtDQxTEVV2wjNs",
+        "tpubD9u3Ks8VxbDqYgaoUfDWnRYiDzjY8itE6VgJkGmbGzKxPkSbLoxhSH9PCkdEvBk35rqCEdu7fFpG6uf2Um5oCYoJ8NUJ1WggdP3kJ3S3VPY",
+        "tpubD8nQGcVLyQTQ4NxVhAYEvEtURo7B5PoTiGs1ez8vKHbVBQdz83hxmgvjRoZCxcHa9h6Y3HQhj6FWZCEZt1RkewU9i9rre2hh2KsYAdXehep",
+        "tpubDA5bnZgugrog8xwQwUTNGGRnSQZHSiqe1jGivpkZJC8PF2UcokJ5Xo5z8EvD4BwmzCHd2VisxzcUg7Hkaxyxf177dpVPtMW2E6n3ijsPgke"),
+        "tpubD9dXq2iRd5PppWdv38THfp9LLoBTU94RdpZohhsN4XohgVXykzhzvZWsbJa8k6yq21tnaB6w4wCMJPZ9wF8ed677CRTw8cvBw15XTLB3KHg");
+
+    List<TxInput> inputs = signTxRequest.getSignTx().getInputsList();
+    try (UtxoStore store = UtxoStore.open(file, testnetWallet)) {
+      store.addAll(inputs);
+      byte[] transaction = testnetWallet.createTransaction(inputs,
+          signTxRequest.getSignTx().getOutputsList(), signatures, store);
+      assertEquals(
+          testnetWallet.createTransaction(inputs, signTxRequest.getSignTx().getOutputsList(),
+              signatures).length,
+          transaction.length);
+
+      assertFalse(store.isUnspent(inputs.get(0).getPrevHash(), inputs.get(0).getPrevIndex()));
+      // Both outputs are change.
+      ByteString txid = ByteString.copyFrom(
+          Hex.decode("d8b2819b24ea90042e6381763027fffbd66d7e8ab4e1c00371d7d9040303d1bc"));
+      assertEquals(2, store.unspentCount());
+      assertTrue(store.isUnspent(txid, 0));
+      assertTrue(store.isUnspent(txid, 1));
+      assertEquals(signTxRequest.getSignTx().getOutputs(0).getPath(),
+          store.unspent().findFirst().get().getPath());
+    }
+  }
+}
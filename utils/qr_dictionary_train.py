@@ -0,0 +1,99 @@
+#!/usr/bin/env python3
+
+"""Train the preset dictionary for compressed QR payloads.
+
+Reads the txsign test vectors and writes a deflate preset dictionary made of
+the byte sequences most of the requests and responses share: field tags, Path
+submessages, DER signature prefixes, etc. See QrCompression in java/shared.
+
+The dictionary of a released version must never change. Train a new one under
+a new version instead.
+"""
+
+from collections import Counter
+from pathlib import Path
+import argparse
+import base64
+import zlib
+
+def read_samples(vectors_dir):
+  """Return the decoded requests and responses of all the test vectors."""
+  samples = []
+  for path in sorted(Path(vectors_dir).iterdir()):
+    for line in path.read_text().splitlines():
+      for marker in ("request:", "response:"):
+        if line.startswith(marker):
+          try:
+            sample = base64.b64decode(line[len(marker):], validate=True)
+          except ValueError:
+            # e.g. "response:ERROR..."
+            continue
+          if sample:
+            samples.append(sample)
+  return samples
+
+def train(samples, k, size):
+  """Pick the segments shared by the most samples, up to size bytes.
+
+  A segment is a run of k-grams which each appear in at least 5% of the
+  samples. Segments are scored by occurrences * length. The best ones go last,
+  since deflate encodes short distances in fewer bits.
+  """
+  frequency = Counter()
+  for sample in samples:
+    frequency.update(set(sample[i:i + k] for i in range(len(sample) - k + 1)))
+  threshold = max(3, len(samples) // 20)
+
+  segments = Counter()
+  for sample in samples:
+    i = 0
+    while i <= len(sample) - k:
+      if frequency[sample[i:i + k]] < threshold:
+        i += 1
+        continue
+      j = i
+      while j <= len(sample) - k and frequency[sample[j:j + k]] >= threshold:
+        j += 1
+      segments[sample[i:j + k - 1]] += 1
+      i = j
+
+  picked = []
+  total = 0
+  for segment, count in sorted(segments.items(),
+                               key=lambda s: (-s[1] * len(s[0]), s[0])):
+    if count < 2 or total + len(segment) > size:
+      continue
+    if any(segment in p for p in picked):
+      continue
+    picked.append(segment)
+    total += len(segment)
+  return b"".join(reversed(picked))
+
+def ratio(samples, dictionary):
+  """Return the size of the compressed samples over their size."""
+  compressed = 0
+  for sample in samples:
+    compressor = zlib.compressobj(9, zlib.DEFLATED, -15, 9,
+                                  zlib.Z_DEFAULT_STRATEGY, zdict=dictionary)
+    compressed += len(compressor.compress(sample) + compressor.flush())
+  return compressed / sum(len(s) for s in samples)
+
+def main():
+  parser = argparse.ArgumentParser(description=__doc__)
+  parser.add_argument("--vectors", required=True,
+                      help="txsign test vectors directory")
+  parser.add_argument("--out", required=True, help="dictionary file to write")
+  parser.add_argument("--k", type=int, default=4, help="k-gram length")
+  parser.add_argument("--size", type=int, default=4096,
+                      help="maximum dictionary size")
+  args = parser.parse_args()
+
+  samples = read_samples(args.vectors)
+  dictionary = train(samples, args.k, args.size)
+  Path(args.out).write_bytes(dictionary)
+  print("%d samples, %d bytes dictionary, ratio %.3f (%.3f without)" %
+        (len(samples), len(dictionary), ratio(samples, dictionary),
+         ratio(samples, b"")))
+
+if __name__ == "__main__":
+  main()